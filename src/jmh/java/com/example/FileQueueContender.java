@@ -0,0 +1,25 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.logging.LogManager;
+
+/*
+ * Competes for a file queue from another JVM during FileQueueContentionBenchmark: pushes, pulls
+ * and deletes in a loop until it is killed.
+ *
+ * Arguments: root directory, queue name, durability
+ */
+public class FileQueueContender {
+	public static void main(String[] args) throws IOException {
+		LogManager.getLogManager().reset();
+		FileQueueService fileQueueService = new FileQueueService(args[0], 3600, QueueLog.DEFAULT_SEGMENT_SIZE,
+				Durability.valueOf(args[2]));
+		while (true) {
+			fileQueueService.push(args[1], "contender");
+			QueueMessage msg = fileQueueService.pull(args[1]);
+			if (msg != null) {
+				fileQueueService.delete(args[1], msg);
+			}
+		}
+	}
+}
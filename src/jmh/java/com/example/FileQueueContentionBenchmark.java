@@ -0,0 +1,88 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogManager;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Strings;
+
+/*
+ * Round-trip throughput of a file queue while other JVMs (FileQueueContender processes) work
+ * the same queue, contending for its lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileQueueContentionBenchmark {
+	private static final String QUEUE = "Benchmark Queue";
+
+	@Param({"0", "1", "3"})
+	public int contenders;
+
+	@Param({"NONE", "GROUP_COMMIT"})
+	public String durability;
+
+	@Param({"1024"})
+	public int payloadSize;
+
+	private File rootDir;
+	private FileQueueService fileQueueService;
+	private String payload;
+	private final List<Process> processes = new ArrayList<Process>();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		LogManager.getLogManager().reset();
+		payload = Strings.repeat("x", payloadSize);
+		rootDir = Files.createTempDirectory("queue-benchmark").toFile();
+		fileQueueService = new FileQueueService(rootDir.getAbsolutePath(), 3600, QueueLog.DEFAULT_SEGMENT_SIZE,
+				Durability.valueOf(durability));
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		for (int i = 0; i < contenders; i++) {
+			processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					FileQueueContender.class.getName(), rootDir.getAbsolutePath(), QUEUE, durability)
+					.redirectErrorStream(true).redirectOutput(new File(rootDir, "contender-" + i + ".log")).start());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		for (Process process : processes) {
+			process.destroyForcibly().waitFor();
+		}
+		FileUtils.deleteDirectory(rootDir);
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException {
+		fileQueueService.push(QUEUE, payload);
+		QueueMessage msg = fileQueueService.pull(QUEUE);
+		if (msg != null) {
+			fileQueueService.delete(QUEUE, msg);
+		}
+		return msg;
+	}
+}
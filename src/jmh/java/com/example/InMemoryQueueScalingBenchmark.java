@@ -0,0 +1,87 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.LogManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * How InMemoryQueueService scales with threads. Each benchmark runs push/pull/delete round trips,
+ * on one thread and on every core, with each thread on a queue of its own or all on one shared
+ * queue. Queues keep their state apart, so on separate queues the score on every core should be
+ * close to the single-thread score times the core count; the shared queue shows what contention
+ * on one queue costs.
+ *
+ * Compare roundTrip with roundTripOnEveryCore for each value of queues, e.g.
+ * -Djmh.args="InMemoryQueueScalingBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryQueueScalingBenchmark {
+	private static final String SHARED_QUEUE = "Shared Queue";
+
+	@Param({"separate", "shared"})
+	public String queues;
+
+	private InMemoryQueueService queueService;
+	private final AtomicInteger threadCount = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setup() {
+		LogManager.getLogManager().reset();
+		queueService = new InMemoryQueueService();
+		queueService.setVisibilityTimeout(3600);
+	}
+
+	/*
+	 * The queue a benchmark thread pushes to and pulls from
+	 */
+	@State(Scope.Thread)
+	public static class ThreadQueue {
+		String name;
+
+		@Setup(Level.Trial)
+		public void setup(InMemoryQueueScalingBenchmark benchmark) {
+			name = "shared".equals(benchmark.queues) ? SHARED_QUEUE : "Queue " + benchmark.threadCount.getAndIncrement();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object roundTrip(ThreadQueue queue) throws IOException {
+		return roundTrip(queue.name);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object roundTripOnEveryCore(ThreadQueue queue) throws IOException {
+		return roundTrip(queue.name);
+	}
+
+	private Object roundTrip(String queueName) throws IOException {
+		queueService.push(queueName, "Benchmark Message");
+		QueueMessage msg = queueService.pull(queueName);
+		if (msg != null) {
+			queueService.delete(queueName, msg);
+		}
+		return msg;
+	}
+}
@@ -0,0 +1,195 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.LogManager;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Strings;
+
+/*
+ * Throughput of every QueueService implementation. The SQS service runs against LocalSqs, so it
+ * measures the client side only.
+ *
+ * Each trial starts from a queue holding depth messages of payloadSize bytes, of which
+ * inFlightRatio have been pulled and not deleted. push and pull restore the depth between
+ * iterations; a pull iteration longer than the queue is deep measures empty pulls once it runs
+ * dry. producerConsumer runs producers and consumers side by side; set the split with -tg, e.g.
+ * -tg 2,4 for two producers and four consumers.
+ *
+ * The default parameters keep a full run to a sensible size; cover the rest of the range with
+ * -p, e.g. -p depth=1000000 or -p payloadSize=262144.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueServiceBenchmark {
+	private static final String QUEUE = "Benchmark Queue";
+
+	/*
+	 * Long enough that nothing pulled during a trial becomes visible again
+	 */
+	private static final long VISIBILITY_TIMEOUT = 3600;
+
+	@Param({"memory", "file", "sqs"})
+	public String backend;
+
+	@Param({"1000", "100000"})
+	public int depth;
+
+	@Param({"0", "0.5"})
+	public double inFlightRatio;
+
+	@Param({"16", "1024"})
+	public int payloadSize;
+
+	private QueueService queueService;
+	private File rootDir;
+	private String payload;
+	private final Queue<Object> pulled = new ConcurrentLinkedQueue<Object>();
+	private final AtomicInteger pushed = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		LogManager.getLogManager().reset();
+		payload = Strings.repeat("x", payloadSize);
+		switch (backend) {
+		case "memory":
+			InMemoryQueueService inMemoryQueueService = new InMemoryQueueService();
+			inMemoryQueueService.setVisibilityTimeout(VISIBILITY_TIMEOUT);
+			queueService = inMemoryQueueService;
+			break;
+		case "file":
+			rootDir = Files.createTempDirectory("queue-benchmark").toFile();
+			queueService = new FileQueueService(rootDir.getAbsolutePath(), VISIBILITY_TIMEOUT);
+			break;
+		case "sqs":
+			LocalSqs sqs = new LocalSqs();
+			sqs.createQueue(QUEUE);
+			queueService = new SqsQueueService(sqs);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown backend " + backend);
+		}
+		pushMessages(depth);
+		int inFlight = (int) (depth * inFlightRatio);
+		for (int pulledCount = 0; pulledCount < inFlight;) {
+			pulledCount += queueService.pullBatch(QUEUE, Math.min(1000, inFlight - pulledCount)).size();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (rootDir != null) {
+			FileUtils.deleteDirectory(rootDir);
+		}
+	}
+
+	/*
+	 * Puts the queue back to its starting depth: deletes what push added beyond it and replaces
+	 * what pull took
+	 */
+	@TearDown(Level.Iteration)
+	public void restoreDepth() throws IOException {
+		for (int excess = pushed.getAndSet(0); excess > 0; excess -= 1000) {
+			List<?> msgs = queueService.pullBatch(QUEUE, Math.min(1000, excess));
+			if (msgs.isEmpty()) {
+				break;
+			}
+			queueService.deleteBatch(QUEUE, msgs);
+		}
+		List<Object> batch = new ArrayList<Object>();
+		Object msg;
+		int replaced = 0;
+		while ((msg = pulled.poll()) != null) {
+			batch.add(msg);
+			if (batch.size() == 1000) {
+				queueService.deleteBatch(QUEUE, batch);
+				batch.clear();
+			}
+			replaced++;
+		}
+		queueService.deleteBatch(QUEUE, batch);
+		pushMessages(replaced);
+	}
+
+	@Benchmark
+	public void push() throws IOException {
+		queueService.push(QUEUE, payload);
+		pushed.incrementAndGet();
+	}
+
+	@Benchmark
+	public Object pull() throws IOException {
+		Object msg = queueService.pull(QUEUE);
+		if (msg != null) {
+			pulled.add(msg);
+		}
+		return msg;
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException {
+		queueService.push(QUEUE, payload);
+		Object msg = queueService.pull(QUEUE);
+		if (msg != null) {
+			queueService.delete(QUEUE, msg);
+		}
+		return msg;
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public void produce() throws IOException {
+		queueService.push(QUEUE, payload);
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public Object consume() throws IOException {
+		Object msg = queueService.pull(QUEUE);
+		if (msg != null) {
+			queueService.delete(QUEUE, msg);
+		}
+		return msg;
+	}
+
+	private void pushMessages(int count) throws IOException {
+		List<String> batch = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			batch.add(payload);
+			if (batch.size() == 1000 || i == count - 1) {
+				queueService.pushBatch(QUEUE, batch);
+				batch.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * A waiting pull that holds no thread while it waits. Each attempt that finds nothing arms the
+ * pull: it asks its source to be woken by the next change to the queue, and sets a timer for
+ * when an in-flight message may become visible again or the wait ends, whichever comes first.
+ * Whatever wakes it runs the next attempt on the executor.
+ *
+ * Attempts never overlap. A wake-up during an attempt makes the attempt run again once it is
+ * done, so a change between asking to be woken and looking at the queue is never missed.
+ */
+class AsyncPull<T> {
+	/*
+	 * The queue a pull waits on
+	 */
+	interface Source<T> {
+		/*
+		 * Runs wakeUp once, on the next change to the queue. Returns a handle that forgets wakeUp
+		 * if it has not run yet.
+		 */
+		Runnable onChange(Runnable wakeUp) throws IOException;
+
+		/*
+		 * Pulls a message, or returns null if none is visible
+		 */
+		T poll() throws IOException;
+
+		/*
+		 * Longest to wait before polling again without a change, as an in-flight message may
+		 * have become visible by then
+		 */
+		long nanosUntilRecheck();
+
+		/*
+		 * Makes a message pulled for a pull that was cancelled visible again
+		 */
+		void release(T message) throws IOException;
+	}
+
+	private static final int IDLE = 0;
+	private static final int RUNNING = 1;
+	private static final int WOKEN = 2;
+	private static final int DONE = 3;
+
+	private static final Logger log = Logger.getLogger("AsyncPull");
+
+	/*
+	 * Fires the rechecks of every waiting pull, and the retries of QueueConsumer
+	 */
+	static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("async-timer-%d").setDaemon(true).build());
+
+	private final Source<T> source;
+	private final Executor executor;
+	private final long deadline;
+	private final CompletableFuture<T> result = new CompletableFuture<T>();
+	private final AtomicInteger state = new AtomicInteger(RUNNING);
+	private final AtomicBoolean listening = new AtomicBoolean();
+	private volatile ScheduledFuture<?> recheck;
+	private volatile Runnable stopListening;
+
+	private AsyncPull(Source<T> source, long waitTime, TimeUnit unit, Executor executor) {
+		this.source = source;
+		this.executor = executor;
+		this.deadline = System.nanoTime() + unit.toNanos(waitTime);
+	}
+
+	/*
+	 * Makes the first attempt in the calling thread, and any later ones on executor
+	 */
+	static <T> CompletableFuture<T> start(Source<T> source, long waitTime, TimeUnit unit, Executor executor) {
+		AsyncPull<T> pull = new AsyncPull<T>(source, waitTime, unit, executor);
+		pull.result.whenComplete((message, error) -> pull.finish());
+		pull.attempt();
+		return pull.result;
+	}
+
+	/*
+	 * Makes every attempt on executor, the first one included, for sources that may block
+	 */
+	static <T> CompletableFuture<T> submit(Source<T> source, long waitTime, TimeUnit unit, Executor executor) {
+		AsyncPull<T> pull = new AsyncPull<T>(source, waitTime, unit, executor);
+		pull.result.whenComplete((message, error) -> pull.finish());
+		pull.run();
+		return pull.result;
+	}
+
+	private void attempt() {
+		try {
+			while (true) {
+				if (listening.compareAndSet(false, true)) {
+					stopListening = source.onChange(() -> {
+						listening.set(false);
+						wakeUp();
+					});
+					// Finished while registering; finish may have missed the handle
+					if (state.get() == DONE) {
+						stopListening();
+					}
+				}
+				T message = source.poll();
+				long remaining = deadline - System.nanoTime();
+				if (message != null || remaining <= 0) {
+					if (!result.complete(message) && message != null) {
+						source.release(message);
+					}
+					return;
+				}
+				cancelRecheck();
+				recheck = timer.schedule(this::wakeUp, Math.min(remaining, source.nanosUntilRecheck()), TimeUnit.NANOSECONDS);
+				if (state.compareAndSet(RUNNING, IDLE)) {
+					return;
+				}
+				// Woken during the attempt; stop unless finished meanwhile
+				if (!state.compareAndSet(WOKEN, RUNNING)) {
+					return;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void wakeUp() {
+		while (true) {
+			int current = state.get();
+			if (current == IDLE && state.compareAndSet(IDLE, RUNNING)) {
+				run();
+				return;
+			}
+			if (current != IDLE && (current != RUNNING || state.compareAndSet(RUNNING, WOKEN))) {
+				return;
+			}
+		}
+	}
+
+	private void run() {
+		try {
+			executor.execute(this::attempt);
+		} catch (RuntimeException e) {
+			log.warning("Cannot run waiting pull; Error: " + e);
+			result.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * Lets go of the timer and of the queue's listener, so a pull that timed out or was cancelled
+	 * on an idle queue is not kept reachable by either
+	 */
+	private void finish() {
+		state.set(DONE);
+		cancelRecheck();
+		stopListening();
+	}
+
+	private void stopListening() {
+		Runnable stopListening = this.stopListening;
+		if (stopListening != null) {
+			stopListening.run();
+		}
+	}
+
+	private void cancelRecheck() {
+		ScheduledFuture<?> recheck = this.recheck;
+		if (recheck != null) {
+			recheck.cancel(false);
+		}
+	}
+}
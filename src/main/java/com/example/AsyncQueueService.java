@@ -0,0 +1,44 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Non-blocking counterpart of QueueService. Every operation returns at once with a future, which
+ * completes with the result, or exceptionally with the IOException or QueueFullException the
+ * blocking call would have thrown. A waiting pull holds no thread while it waits, so a single
+ * process can keep thousands of them outstanding (see QueueConsumer).
+ *
+ * Implementations: InMemoryAsyncQueueService and FileAsyncQueueService over the in-memory and
+ * file engines, SqsAsyncQueueService over the SQS async client, and ExecutorAsyncQueueService
+ * for any other QueueService, which runs its blocking calls on an executor.
+ */
+public interface AsyncQueueService {
+	CompletableFuture<Void> push(String queueName, String msgContent);
+	CompletableFuture<Void> pushBatch(String queueName, List<String> msgContents);
+	CompletableFuture<Void> pushBytes(String queueName, ByteBuffer payload);
+
+	/*
+	 * Completes with a message, or with null if none is visible
+	 */
+	CompletableFuture<?> pull(String queueName);
+
+	/*
+	 * Completes with a message as soon as one is pushed or becomes visible again, or with null
+	 * once waitTime has passed without one. Cancelling the future ends the wait; a message
+	 * pulled at the same time is made visible again.
+	 */
+	CompletableFuture<?> pull(String queueName, long waitTime, TimeUnit unit);
+
+	CompletableFuture<? extends List<?>> pullBatch(String queueName, int maxMessages);
+	CompletableFuture<Void> delete(String queueName, Object msg);
+	CompletableFuture<Void> deleteBatch(String queueName, List<?> msgs);
+	CompletableFuture<Boolean> changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit);
+
+	/*
+	 * Payload of a pulled message, as QueueService.getPayload
+	 */
+	ByteBuffer getPayload(Object msg);
+}
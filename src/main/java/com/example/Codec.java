@@ -0,0 +1,49 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Turns values of type T into message payloads and back, for TypedQueueService.
+ *
+ * encode may return a buffer it reuses on every call, as queue services copy the payload before
+ * push returns. decode is given a read-only buffer that may be a view of the queue's own
+ * storage, such as a memory-mapped segment of a file queue, so it should read from it rather
+ * than keep it.
+ */
+public interface Codec<T> {
+	ByteBuffer encode(T value);
+	T decode(ByteBuffer payload);
+
+	/*
+	 * Text as UTF-8, the encoding String messages are stored in
+	 */
+	Codec<String> UTF8 = new Codec<String>() {
+		@Override
+		public ByteBuffer encode(String value) {
+			return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public String decode(ByteBuffer payload) {
+			return StandardCharsets.UTF_8.decode(payload).toString();
+		}
+	};
+
+	/*
+	 * Raw bytes, copied out of the payload
+	 */
+	Codec<byte[]> BYTES = new Codec<byte[]>() {
+		@Override
+		public ByteBuffer encode(byte[] value) {
+			return ByteBuffer.wrap(value);
+		}
+
+		@Override
+		public byte[] decode(ByteBuffer payload) {
+			byte[] value = new byte[payload.remaining()];
+			payload.get(value);
+			return value;
+		}
+	};
+}
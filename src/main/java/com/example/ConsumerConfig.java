@@ -0,0 +1,56 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Settings for QueueConsumer
+ *
+ * maxInFlight most messages handed to handlers and not yet handled; the consumer stops pulling
+ *             while this many are, so it never holds more than it can handle in time
+ * batchSize   most messages asked for in one pull
+ * pollWait    longest a pull waits for a message before it is made again
+ * maxThreads  threads handlers run on when virtual threads are not available (before Java 21);
+ *             handlers beyond these wait for a thread, still counting as in flight
+ */
+public class ConsumerConfig {
+	private int maxInFlight = 1000;
+	private int batchSize = 10;
+	private long pollWaitMillis = TimeUnit.SECONDS.toMillis(20);
+	private int maxThreads = 64;
+
+	public ConsumerConfig withMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public ConsumerConfig withBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public ConsumerConfig withPollWait(long pollWait, TimeUnit unit) {
+		this.pollWaitMillis = unit.toMillis(pollWait);
+		return this;
+	}
+
+	public ConsumerConfig withMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+		return this;
+	}
+
+	int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	long getPollWaitMillis() {
+		return pollWaitMillis;
+	}
+
+	int getMaxThreads() {
+		return maxThreads;
+	}
+}
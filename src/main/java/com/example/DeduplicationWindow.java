@@ -0,0 +1,92 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Deduplication ids pushed to one FIFO queue within a sliding window of time.
+ *
+ * Ids are kept in a hash index, for O(1) lookups, and in a deque in the order they were added,
+ * which is also the order they expire in. Every call first drops the expired ids from the head
+ * of the deque, so the index never holds much more than the ids of one window.
+ *
+ * Times are in whatever unit and on whatever clock the caller uses, as long as it is the same
+ * for every call.
+ */
+class DeduplicationWindow {
+	private final Map<String, Long> addedAt = new HashMap<String, Long>();
+	private final ArrayDeque<Added> order = new ArrayDeque<Added>();
+
+	/*
+	 * Adds id as of now, unless it was added less than window ago. Returns false if it was, as
+	 * the message carrying it is a duplicate.
+	 */
+	synchronized boolean add(String id, long now, long window) {
+		if (contains(id, now, window)) {
+			return false;
+		}
+		record(id, now);
+		return true;
+	}
+
+	/*
+	 * Whether id was added less than window ago
+	 */
+	synchronized boolean contains(String id, long now, long window) {
+		expire(now, window);
+		Long previous = addedAt.get(id);
+		return previous != null && now - previous < window;
+	}
+
+	/*
+	 * Adds id as of at without checking it, for an id known to have been pushed then
+	 */
+	synchronized void record(String id, long at) {
+		addedAt.put(id, at);
+		order.addLast(new Added(id, at));
+	}
+
+	/*
+	 * Forgets id if it was added at the given time, after the message carrying it could not be
+	 * pushed after all
+	 */
+	synchronized void remove(String id, long at) {
+		addedAt.remove(id, at);
+	}
+
+	/*
+	 * Every id with the time it was added at, oldest first. Ids whose window has passed may still
+	 * be included, as they are only dropped on the next call.
+	 */
+	synchronized Map<String, Long> snapshot() {
+		Map<String, Long> ids = new LinkedHashMap<String, Long>();
+		for (Added added : order) {
+			Long at = addedAt.get(added.id);
+			if (at != null && at == added.at) {
+				ids.put(added.id, added.at);
+			}
+		}
+		return ids;
+	}
+
+	private void expire(long now, long window) {
+		Added oldest;
+		while ((oldest = order.peekFirst()) != null && now - oldest.at >= window) {
+			order.pollFirst();
+			// The id may have been added again since
+			addedAt.remove(oldest.id, oldest.at);
+		}
+	}
+
+	private static class Added {
+		final String id;
+		final long at;
+
+		Added(String id, long at) {
+			this.id = id;
+			this.at = at;
+		}
+	}
+}
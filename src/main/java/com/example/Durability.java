@@ -0,0 +1,27 @@
+package com.example;
+
+/*
+ * How hard FileQueueService works to get queue changes onto disk before an operation returns.
+ *
+ * Records are written into memory-mapped segments, so they survive the process being killed in
+ * every mode; the modes differ in what survives the machine going down. A push that cannot reach
+ * the durability of its mode throws IOException rather than returning.
+ */
+public enum Durability {
+	/*
+	 * Leaves write-back to the operating system
+	 */
+	NONE,
+
+	/*
+	 * Syncs every queue on a short interval, or as soon as enough records are waiting, and makes
+	 * each push wait for the sync covering it. Concurrent pushes share one sync, so throughput
+	 * stays high while an acknowledged push is still on disk.
+	 */
+	GROUP_COMMIT,
+
+	/*
+	 * Syncs after every push, pull and delete, before releasing the queue lock
+	 */
+	ALWAYS
+}
@@ -0,0 +1,166 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AsyncQueueService over any QueueService, running each blocking call on executor. Unlike the
+ * native implementations, a waiting pull holds a thread of executor for as long as it waits, so
+ * the executor bounds how many can wait at once. Use it for services with no native async
+ * support, such as SharedMemoryQueueService or PartitionedQueueService.
+ */
+public class ExecutorAsyncQueueService implements AsyncQueueService {
+	private final QueueService queueService;
+	private final Executor executor;
+
+	/*
+	 * A blocking call of a QueueService
+	 */
+	interface Call<T> {
+		T call() throws IOException;
+	}
+
+	public ExecutorAsyncQueueService(QueueService queueService, Executor executor) {
+		this.queueService = queueService;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<Void> push(String queueName, String msgContent) {
+		return submit(executor, () -> {
+			queueService.push(queueName, msgContent);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> pushBatch(String queueName, List<String> msgContents) {
+		return submit(executor, () -> {
+			queueService.pushBatch(queueName, msgContents);
+			return null;
+		});
+	}
+
+	/*
+	 * The payload is copied before the call returns, so the caller may reuse its buffer at once
+	 */
+	@Override
+	public CompletableFuture<Void> pushBytes(String queueName, ByteBuffer payload) {
+		ByteBuffer copy = copy(payload);
+		return submit(executor, () -> {
+			queueService.pushBytes(queueName, copy);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<?> pull(String queueName) {
+		return submit(executor, () -> queueService.pull(queueName));
+	}
+
+	/*
+	 * Cancelling the future cannot interrupt the blocking pull, so a message it returns after the
+	 * future was cancelled is made visible again
+	 */
+	@Override
+	public CompletableFuture<?> pull(String queueName, long waitTime, TimeUnit unit) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		try {
+			executor.execute(() -> {
+				if (result.isDone()) {
+					return;
+				}
+				try {
+					Object msg = queueService.pull(queueName, waitTime, unit);
+					if (!result.complete(msg) && msg != null) {
+						queueService.changeVisibility(queueName, msg, 0, TimeUnit.SECONDS);
+					}
+				} catch (IOException | RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<? extends List<?>> pullBatch(String queueName, int maxMessages) {
+		return submit(executor, () -> queueService.pullBatch(queueName, maxMessages));
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String queueName, Object msg) {
+		return submit(executor, () -> {
+			queueService.delete(queueName, msg);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteBatch(String queueName, List<?> msgs) {
+		return submit(executor, () -> {
+			queueService.deleteBatch(queueName, msgs);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) {
+		return submit(executor, () -> queueService.changeVisibility(queueName, msg, timeout, unit));
+	}
+
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return queueService.getPayload(msg);
+	}
+
+	/*
+	 * Runs call in the calling thread, returning a future that has completed already
+	 */
+	static <T> CompletableFuture<T> now(Call<T> call) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			result.complete(call.call());
+		} catch (IOException | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/*
+	 * Runs call on executor. The future fails if executor rejects it.
+	 */
+	static <T> CompletableFuture<T> submit(Executor executor, Call<T> call) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> {
+				if (result.isDone()) {
+					return;
+				}
+				try {
+					result.complete(call.call());
+				} catch (IOException | RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	static ByteBuffer copy(ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		copy.put(payload.duplicate());
+		((Buffer) copy).flip();
+		return copy;
+	}
+}
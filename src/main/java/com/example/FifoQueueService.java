@@ -0,0 +1,40 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * QueueService with the message groups and deduplication of SQS FIFO queues.
+ *
+ * Messages pushed to the same group of a queue are delivered in the order they were pushed, one
+ * at a time: the next message of a group is not delivered until the one before it has been
+ * deleted or moved to the dead-letter queue. A message whose visibility timeout expires is
+ * delivered again before any later message of its group. Groups are independent of each other,
+ * so a queue can be consumed by as many consumers in parallel as it has groups with messages.
+ *
+ * A message pushed with the deduplication id of a message pushed to the same queue within the
+ * deduplication window, five minutes by default, is accepted but dropped, so producers can retry
+ * pushes safely.
+ *
+ * Messages pushed without a group, through the methods of QueueService, keep their best-effort
+ * order and may be mixed with grouped messages on one queue.
+ */
+public interface FifoQueueService extends QueueService {
+	/*
+	 * How long deduplication ids are remembered by default, as in SQS
+	 */
+	long DEFAULT_DEDUPLICATION_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/*
+	 * Pushes a message to messageGroupId of queueName. A null deduplicationId is never a
+	 * duplicate; a null messageGroupId pushes the message outside any group.
+	 */
+	void pushToGroup(String queueName, String msgContent, String messageGroupId, String deduplicationId) throws IOException;
+
+	/*
+	 * Binary variant of pushToGroup, pushing the bytes between the position and the limit of
+	 * payload
+	 */
+	void pushBytesToGroup(String queueName, ByteBuffer payload, String messageGroupId, String deduplicationId) throws IOException;
+}
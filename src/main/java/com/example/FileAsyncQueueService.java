@@ -0,0 +1,27 @@
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AsyncQueueService over a FileQueueService. Pushes, pulls and deletes take the queue lock and
+ * do file I/O, so they run on executor. A waiting pull holds no thread while it waits: it asks
+ * the QueueWatcher to be woken by the next change to the queue directory, from any process,
+ * and by a timer for the next visibility timeout, and only takes a thread of executor to look.
+ */
+public class FileAsyncQueueService extends ExecutorAsyncQueueService {
+	private final FileQueueService queueService;
+	private final Executor executor;
+
+	public FileAsyncQueueService(FileQueueService queueService, Executor executor) {
+		super(queueService, executor);
+		this.queueService = queueService;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<QueueMessage> pull(String queueName, long waitTime, TimeUnit unit) {
+		return queueService.pullAsync(queueName, waitTime, unit, executor);
+	}
+}
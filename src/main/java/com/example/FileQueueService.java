@@ -1,112 +1,912 @@
 package com.example;
 
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
-
-public class FileQueueService implements QueueService {
+public class FileQueueService implements FifoQueueService, Closeable {
   //
   // Task 3: Implement me if you have time.
   //
 	
 	private Path rootPath;
-	private long visibilityTimeout = 30;
+	private volatile long visibilityTimeoutMillis;
+	private final long segmentSize;
+	private final Map<String, QueueLog> logs = new ConcurrentHashMap<String, QueueLog>();
+	private final Set<String> pendingCompactions = Sets.newConcurrentHashSet();
+	private final Set<String> pendingCheckpoints = Sets.newConcurrentHashSet();
+	private final Map<String, DeadLetterPolicy> deadLetterPolicies = new ConcurrentHashMap<String, DeadLetterPolicy>();
+	private final Map<String, QueueLimits> queueLimits = new ConcurrentHashMap<String, QueueLimits>();
+	private final Durability durability;
+	private volatile long groupCommitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private volatile int groupCommitRecords = 256;
+	private volatile long checkpointRecords = 65536;
+	private volatile QueueMetrics metrics = QueueMetrics.NOOP;
+	private volatile ScheduledFuture<?> groupCommit;
+	private volatile boolean closed;
+	private volatile long deduplicationWindowMillis = DEFAULT_DEDUPLICATION_WINDOW_MILLIS;
 	
 	private static final Logger log = Logger.getLogger("FileQueueService");
+	
+	/*
+	 * Compacts logs and writes checkpoints off the request path. Shared by every instance, as
+	 * both are rare and each run is short.
+	 */
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-queue-compactor-%d").build());
+	
+	/*
+	 * Runs group commits for every instance. A single thread, so syncs of a queue never overlap.
+	 */
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-queue-flusher-%d").build());
+	
+	/*
+	 * Longest a push waits for its group commit before giving up on it
+	 */
+	private static final long SYNC_TIMEOUT_SECONDS = 30;
+	
+	/*
+	 * Messages redriven per lock acquisition of the dead-letter queue
+	 */
+	private static final int REDRIVE_BATCH_SIZE = 256;
+	
+	/*
+	 * Longest a producer blocked on a full queue waits before looking again, in case a delete by
+	 * another process raised no change notification
+	 */
+	private static final long ROOM_RECHECK_MILLIS = 100;
     
     public FileQueueService(String rootPath, long visibilityTimeout) throws IOException {
+        this(rootPath, visibilityTimeout, QueueLog.DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /*
+     * segmentSize is the size in bytes after which the log of a queue rolls over to a new
+     * segment file.
+     */
+    public FileQueueService(String rootPath, long visibilityTimeout, long segmentSize) throws IOException {
+        this(rootPath, visibilityTimeout, segmentSize, Durability.NONE);
+    }
+    
+    /*
+     * durability decides when changes are forced to disk; see Durability
+     */
+    public FileQueueService(String rootPath, long visibilityTimeout, long segmentSize, Durability durability) throws IOException {
         this.rootPath = Paths.get(rootPath);
-        this.visibilityTimeout = visibilityTimeout;
+        this.visibilityTimeoutMillis = TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        this.segmentSize = segmentSize;
+        this.durability = durability;
         if (!Files.isDirectory(this.rootPath, LinkOption.NOFOLLOW_LINKS)) {
             throw new IOException(this.rootPath + " is not a valid directory");
         }
+        if (durability == Durability.GROUP_COMMIT) {
+        	scheduleGroupCommit(new WeakReference<FileQueueService>(this));
+        }
     }
 	
     @Override
 	public void push(String queueName, String msgContent) throws IOException{
-		String message = new QueueMessage(msgContent, visibilityTimeout).toString() + "\n";
-		Path queuePath = getQueuePath(queueName);
-		Path messagePath = getMessagePath(queuePath);
-		File lock = queuePath.resolve(".lock").toFile();
+		pushBatch(queueName, Collections.singletonList(msgContent));
+	}
+	
+    @Override
+	public QueueMessage pull(String queueName) throws IOException{
+		List<QueueMessage> messages = pullBatch(queueName, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+    
+    @Override
+    public void delete(String queueName, Object msg) throws IOException {
+    	deleteBatch(queueName, Collections.singletonList(msg));
+    }
+    
+    /*
+     * Pulls a message, blocking until one is pushed by any process or an in-flight message
+     * becomes visible again. Waits on directory change notifications rather than polling.
+     */
+    @Override
+    public QueueMessage pull(String queueName, long waitTime, TimeUnit unit) throws IOException {
+		WaitingPull waitingPull = new WaitingPull(queueName);
+		QueueWatcher watcher = QueueWatcher.instance();
+		long deadline = System.nanoTime() + unit.toNanos(waitTime);
 		
 		try {
-			lock(lock);
-			Files.write(messagePath, message.getBytes(), StandardOpenOption.APPEND);
-		} catch (Exception e) {
-			log.warning("Error occurred pushing message " + msgContent + " to queue " + queueName + "; Error: " + e);
-		} finally {
-			unlock(lock);
+			while (true) {
+				long version = watcher.version(waitingPull.queuePath);
+				QueueMessage message = waitingPull.poll();
+				long remaining = deadline - System.nanoTime();
+				if (message != null || remaining <= 0) {
+					return message;
+				}
+				watcher.awaitChange(waitingPull.queuePath, version, Math.min(remaining, waitingPull.nanosUntilRecheck()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
+    }
+    
+    /*
+     * Waiting pull for FileAsyncQueueService. Instead of blocking a thread, asks the watcher to
+     * be woken by the next change to the queue. Attempts take the queue lock, so all of them run
+     * on executor.
+     */
+    CompletableFuture<QueueMessage> pullAsync(String queueName, long waitTime, TimeUnit unit, Executor executor) {
+    	WaitingPull waitingPull;
+    	try {
+    		waitingPull = new WaitingPull(queueName);
+    	} catch (IOException e) {
+    		CompletableFuture<QueueMessage> failed = new CompletableFuture<QueueMessage>();
+    		failed.completeExceptionally(e);
+    		return failed;
+    	}
+    	return AsyncPull.submit(waitingPull, waitTime, unit, executor);
+    }
+    
+    /*
+     * Attempts of a waiting pull. Each pulls a message if one is visible, and otherwise notes
+     * how long until an in-flight message may become visible again.
+     */
+    private class WaitingPull implements AsyncPull.Source<QueueMessage> {
+    	final String queueName;
+    	final Path queuePath;
+    	private volatile long nextVisibleMillis;
+    	
+    	WaitingPull(String queueName) throws IOException {
+    		this.queueName = queueName;
+    		this.queuePath = getQueuePath(queueName);
+    	}
+    	
+    	@Override
+    	public Runnable onChange(Runnable wakeUp) throws IOException {
+    		return QueueWatcher.instance().onChange(queuePath, wakeUp);
+    	}
+    	
+    	@Override
+    	public QueueMessage poll() throws IOException {
+			QueueLock lock = QueueLock.forQueue(queuePath);
+			DeadLetterPolicy policy = deadLetterPolicies.get(queueName);
+			List<QueueMessage> messages;
+			List<QueueMessage> deadLetters = new ArrayList<QueueMessage>();
+			lock(lock, queueName);
+			try {
+				QueueLog queueLog = getQueueLog(queueName, queuePath);
+				queueLog.catchUp();
+				long now = System.currentTimeMillis();
+				messages = queueLog.pull(1, now, now + visibilityTimeoutMillis,
+						policy == null ? 0 : policy.maxReceiveCount, deadLetters);
+				nextVisibleMillis = queueLog.nextDeadline() - now + 1;
+				syncIfAlways(queueLog);
+				checkpointIfDue(queueName, queueLog);
+				reportPulled(queueName, queueLog, messages, -1);
+			} finally {
+				lock.unlock();
+			}
+			if (!deadLetters.isEmpty()) {
+				moveToDeadLetterQueue(queueName, policy, deadLetters);
+			}
+			return messages.isEmpty() ? null : messages.get(0);
+    	}
+    	
+    	@Override
+    	public long nanosUntilRecheck() {
+    		return TimeUnit.MILLISECONDS.toNanos(nextVisibleMillis);
+    	}
+    	
+    	@Override
+    	public void release(QueueMessage message) throws IOException {
+    		changeVisibility(queueName, message, 0, TimeUnit.MILLISECONDS);
+    	}
+    }
+    
+    /*
+     * Pushes all messages under a single lock acquisition. With group commit, waits for the
+     * messages to be synced after releasing the lock, so other pushes can join the same sync.
+     * Throws QueueFullException if the messages do not fit under the limits of the queue.
+     */
+    @Override
+	public void pushBatch(String queueName, List<String> msgContents) throws IOException{
+		pushPayloads(queueName, encode(msgContents), null, null, 0);
 	}
 	
+    /*
+     * The message is written at once, with a record holding it back until delay has passed by
+     * the wall clock. Waiting for it costs nothing: it sits with the in-flight messages, ordered
+     * by the time it becomes visible, and pulls only look at the earliest of them.
+     */
     @Override
-	public QueueMessage pull(String queueName) throws IOException{
+    public void push(String queueName, String msgContent, long delay, TimeUnit unit) throws IOException {
+    	pushAt(queueName, msgContent, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+    
+    @Override
+    public void pushAt(String queueName, String msgContent, Instant deliverAt) throws IOException {
+    	pushAt(queueName, msgContent, deliverAt.toEpochMilli());
+    }
+    
+    private void pushAt(String queueName, String msgContent, long visibleAt) throws IOException {
+    	pushPayloads(queueName, encode(Collections.singletonList(msgContent)), null, null, visibleAt);
+    }
+    
+    @Override
+    public void pushBytes(String queueName, ByteBuffer payload) throws IOException {
+    	pushBytesBatch(queueName, Collections.singletonList(payload));
+    }
+    
+    /*
+     * Each payload is copied from the caller's buffer straight into the mapped segment
+     */
+    @Override
+    public void pushBytesBatch(String queueName, List<ByteBuffer> payloads) throws IOException {
+    	pushPayloads(queueName, payloads, null, null, 0);
+    }
+    
+    /*
+     * The group and deduplication ids are written ahead of the payload in its PUSH record, so
+     * every process sees the same groups and deduplication window
+     */
+    @Override
+    public void pushToGroup(String queueName, String msgContent, String messageGroupId, String deduplicationId) throws IOException {
+    	pushPayloads(queueName, encode(Collections.singletonList(msgContent)), Collections.singletonList(messageGroupId),
+    			Collections.singletonList(deduplicationId), 0);
+    }
+    
+    @Override
+    public void pushBytesToGroup(String queueName, ByteBuffer payload, String messageGroupId, String deduplicationId) throws IOException {
+    	pushPayloads(queueName, Collections.singletonList(payload), Collections.singletonList(messageGroupId),
+    			Collections.singletonList(deduplicationId), 0);
+    }
+    
+    /*
+     * Pulled messages hold their payload as a read-only slice of the mapped segment
+     */
+    @Override
+    public ByteBuffer getPayload(Object msg) {
+    	return ((QueueMessage) msg).getPayload();
+    }
+    
+    /*
+     * groupIds and deduplicationIds hold the ids of the payload at the same index, or are null.
+     * The payloads become visible at visibleAt, in milliseconds since the epoch, or at once if it
+     * has passed. Throws IOException if the payloads could not be written, or did not reach disk
+     * as the durability mode requires.
+     */
+    private void pushPayloads(String queueName, List<ByteBuffer> payloads, List<String> groupIds, List<String> deduplicationIds,
+    		long visibleAt) throws IOException {
+		long start = System.nanoTime();
+		try {
+			QueueLimits limits = queueLimits.get(queueName);
+			int pushed;
+			if (limits == null) {
+				pushed = tryAppend(queueName, payloads, groupIds, deduplicationIds, visibleAt, null, false);
+			} else {
+				pushed = appendWithin(queueName, payloads, groupIds, deduplicationIds, visibleAt, limits);
+			}
+			metrics.pushed(queueName, pushed, System.nanoTime() - start);
+		} catch (QueueFullException e) {
+			metrics.rejected(queueName, payloads.size());
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted pushing messages to queue " + queueName);
+		} catch (IOException e) {
+			log.warning("Error occurred pushing " + payloads.size() + " messages to queue " + queueName + "; Error: " + e);
+			throw e;
+		}
+	}
+	
+    /*
+     * Pulls up to maxMessages visible messages under a single lock acquisition
+     */
+    @Override
+	public List<QueueMessage> pullBatch(String queueName, int maxMessages) throws IOException{
     	Path queuePath = getQueuePath(queueName);
-		Path messagePath = getMessagePath(queuePath);
-		File lock = queuePath.resolve(".lock").toFile();
-		QueueMessage message = null;
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		List<QueueMessage> messages = Collections.emptyList();
+		List<QueueMessage> deadLetters = new ArrayList<QueueMessage>();
+		DeadLetterPolicy policy = deadLetterPolicies.get(queueName);
+		long start = System.nanoTime();
 		
 		try {
-			lock(lock);
-			List<QueueMessage> qmsgList = getAllMessages(messagePath);
-			message = Iterables.find(qmsgList, msg -> msg.isVisible());
-			message.setTimeoutInMillis();
-			writeAllMessages(messagePath, qmsgList);
+			lock(lock, queueName);
+			try {
+				QueueLog queueLog = getQueueLog(queueName, queuePath);
+				queueLog.catchUp();
+				long now = System.currentTimeMillis();
+				messages = queueLog.pull(maxMessages, now, now + visibilityTimeoutMillis,
+						policy == null ? 0 : policy.maxReceiveCount, deadLetters);
+				syncIfAlways(queueLog);
+				checkpointIfDue(queueName, queueLog);
+				reportPulled(queueName, queueLog, messages, System.nanoTime() - start);
+			} finally {
+				lock.unlock();
+			}
+			if(!deadLetters.isEmpty()) {
+				moveToDeadLetterQueue(queueName, policy, deadLetters);
+			}
+			if(messages.isEmpty()) {
+				log.warning("No Visible Messages in Queue " + queueName);
+			}
 		} catch (Exception e) {
-			log.warning("Error occurred pulling message from queue " + queueName + "; Error: " + e);
-		} finally {
-			unlock(lock);
+			log.warning("Error occurred pulling messages from queue " + queueName + "; Error: " + e);
 		}
 		
-		return message;
+		return messages;
 	}
     
+    /*
+     * Deletes all still-invisible messages pulled from this queue under a single lock
+     * acquisition
+     */
     @Override
-    public void delete(String queueName, Object msg) throws IOException {
-    	Path queuePath = getQueuePath(queueName);
-		Path messagePath = getMessagePath(queuePath);
-		File lock = queuePath.resolve(".lock").toFile();
-		
-		if(!(msg instanceof QueueMessage)) {
-			log.warning("Invalid message, cannot delete");
+    public void deleteBatch(String queueName, List<?> msgs) throws IOException {
+		List<QueueMessage> receipts = new ArrayList<QueueMessage>();
+		for(Object msg : msgs) {
+			if(!(msg instanceof QueueMessage)) {
+				log.warning("Invalid message, cannot delete");
+				continue;
+			}
+			QueueMessage qMsg = (QueueMessage) msg;
+			if(!queueName.equals(qMsg.getQueueName())) {
+				log.warning("Message was not pulled from queue " + queueName + ", cannot delete");
+				continue;
+			}
+			if(!qMsg.isVisible()) {
+				receipts.add(qMsg);
+			}
+		}
+		if(receipts.isEmpty()) {
 			return;
 		}
-		QueueMessage qMsg = (QueueMessage) msg;
 		
-		if(!qMsg.isVisible()) {
+		long start = System.nanoTime();
+		try {
+			List<QueueMessage> deleted = remove(queueName, receipts);
+			long now = System.currentTimeMillis();
+			QueueMetrics metrics = this.metrics;
+			metrics.deleted(queueName, deleted.size(), System.nanoTime() - start);
+			for (QueueMessage receipt : deleted) {
+				metrics.messageAge(queueName, now - receipt.getPushedAt());
+			}
+			if(deleted.size() < receipts.size()) {
+				log.warning((receipts.size() - deleted.size()) + " messages could not be removed from Queue " + queueName);
+			}
+		} catch (Exception e) {
+			log.warning("Error occurred deleting messages from queue " + queueName + "; Error: " + e);
+		}
+    }
+    
+    @Override
+    public boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) throws IOException {
+    	return changeVisibilityBatch(queueName, Collections.singletonList(msg), timeout, unit) == 1;
+    }
+    
+    /*
+     * Rewrites the deadline in the header of each message's PUSH record in place, under a single
+     * lock acquisition
+     */
+    @Override
+    public int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) throws IOException {
+		List<QueueMessage> receipts = new ArrayList<QueueMessage>();
+		for(Object msg : msgs) {
+			if(!(msg instanceof QueueMessage) || !queueName.equals(((QueueMessage) msg).getQueueName())) {
+				log.warning("Message was not pulled from queue " + queueName + ", cannot change visibility");
+				continue;
+			}
+			receipts.add((QueueMessage) msg);
+		}
+		if(receipts.isEmpty()) {
+			return 0;
+		}
+		
+		Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		try {
+			List<QueueMessage> changed;
+			long deadline;
+			lock(lock, queueName);
 			try {
-				lock(lock);
-				List<QueueMessage> qmsgList = getAllMessages(messagePath);
-				boolean removed = qmsgList.remove(qMsg);
-				if(!removed) {
-					log.warning("Message could not be removed from Queue " + queueName);
-				}
-				writeAllMessages(messagePath, qmsgList);
-			} catch (Exception e) {
-				log.warning("Error occurred deleting message from queue " + queueName + "; Error: " + e);
+				QueueLog queueLog = getQueueLog(queueName, queuePath);
+				queueLog.catchUp();
+				long now = System.currentTimeMillis();
+				deadline = now + unit.toMillis(timeout);
+				changed = queueLog.changeVisibility(receipts, now, deadline);
+				syncIfAlways(queueLog);
+				checkpointIfDue(queueName, queueLog);
 			} finally {
-				unlock(lock);
+				lock.unlock();
+			}
+			for(QueueMessage receipt : changed) {
+				receipt.setTimeoutInMillis(deadline);
+			}
+			if(changed.size() < msgs.size()) {
+				log.warning("Visibility of " + (msgs.size() - changed.size()) + " messages in queue " + queueName + " could not be changed");
+			}
+			// Waiting consumers may need to wake up sooner
+			QueueWatcher.notifyChanged(queuePath);
+			return changed.size();
+		} catch (Exception e) {
+			log.warning("Error occurred changing visibility of messages in queue " + queueName + "; Error: " + e);
+			return 0;
+		}
+    }
+    
+    /*
+     * Messages of queueName received maxReceiveCount times are moved to deadLetterQueueName on
+     * their next pull. The policy belongs to this service, so every process pulling from the
+     * queue should set the same one.
+     */
+    @Override
+    public void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+    	if (deadLetterQueueName == null) {
+    		deadLetterPolicies.remove(queueName);
+    	} else {
+    		deadLetterPolicies.put(queueName, new DeadLetterPolicy(deadLetterQueueName, maxReceiveCount));
+    	}
+    }
+    
+    /*
+     * Moves messages in batches: each batch is taken in flight on the dead-letter queue, pushed
+     * to queueName and only then deleted, so a crash can duplicate messages but never lose them
+     */
+    @Override
+    public int redrive(String deadLetterQueueName, String queueName, int maxMessages) throws IOException {
+    	int moved = 0;
+    	try {
+    		while (moved < maxMessages) {
+    			List<QueueMessage> messages = claim(deadLetterQueueName, Math.min(REDRIVE_BATCH_SIZE, maxMessages - moved));
+    			if (messages.isEmpty()) {
+    				break;
+    			}
+    			append(queueName, messages);
+    			remove(deadLetterQueueName, messages);
+    			moved += messages.size();
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		log.warning("Interrupted redriving messages from queue " + deadLetterQueueName + " to queue " + queueName);
+    	} catch (Exception e) {
+    		log.warning("Error occurred redriving messages from queue " + deadLetterQueueName + " to queue " + queueName + "; Error: " + e);
+    	}
+    	return moved;
+    }
+    
+    /*
+     * Pushes the message only if it fits under the limits of the queue right now, without
+     * waiting for room or dropping messages. Throws IOException, as push does, if the message
+     * could not be written or synced.
+     */
+    @Override
+    public boolean offer(String queueName, String msgContent) throws IOException {
+    	long start = System.nanoTime();
+    	try {
+    		boolean pushed = tryAppend(queueName, encode(Collections.singletonList(msgContent)), null, null, 0,
+    				queueLimits.get(queueName), false) >= 0;
+    		if (pushed) {
+    			metrics.pushed(queueName, 1, System.nanoTime() - start);
+    		} else {
+    			metrics.rejected(queueName, 1);
+    		}
+    		return pushed;
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted waiting for message offered to queue " + queueName + " to be synced");
+    	} catch (IOException e) {
+    		log.warning("Error occurred offering message to queue " + queueName + "; Error: " + e);
+    		throw e;
+    	}
+    }
+    
+    /*
+     * The limits belong to this service, so every process pushing to the queue should set the
+     * same ones. Blocked producers wait on change notifications for the queue directory.
+     */
+    @Override
+    public void setQueueLimits(String queueName, QueueLimits limits) {
+    	if (limits == null) {
+    		queueLimits.remove(queueName);
+    	} else {
+    		queueLimits.put(queueName, limits);
+    	}
+    }
+    
+    /*
+     * Pushes copies of messages, in the same FIFO groups, without limits, throwing on failure
+     */
+    private void append(String queueName, List<QueueMessage> messages) throws IOException, InterruptedException {
+    	List<String> groupIds = new ArrayList<String>(messages.size());
+    	for (QueueMessage message : messages) {
+    		groupIds.add(message.getMessageGroupId());
+    	}
+    	tryAppend(queueName, payloads(messages), groupIds, null, 0, null, false);
+    }
+    
+    /*
+     * Appends payloads under limits, handling overflow as their policy says. Returns the number
+     * appended, as tryAppend does. Throws QueueFullException if they do not fit.
+     */
+    private int appendWithin(String queueName, List<ByteBuffer> payloads, List<String> groupIds, List<String> deduplicationIds,
+    		long visibleAt, QueueLimits limits) throws IOException, InterruptedException {
+    	if (!limits.fits(0, 0, payloads.size(), byteCount(payloads))) {
+    		throw new QueueFullException("Queue " + queueName + " can never hold " + payloads.size() + " more messages");
+    	}
+    	OverflowPolicy policy = limits.getOverflowPolicy();
+    	if (policy != OverflowPolicy.BLOCK) {
+    		int pushed = tryAppend(queueName, payloads, groupIds, deduplicationIds, visibleAt, limits, policy == OverflowPolicy.DROP_OLDEST);
+    		if (pushed < 0) {
+    			throw new QueueFullException("Queue " + queueName + " has no room for " + payloads.size() + " messages");
+    		}
+    		return pushed;
+    	}
+    	Path queuePath = getQueuePath(queueName);
+    	QueueWatcher watcher = QueueWatcher.instance();
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.getMaxBlockMillis());
+    	while (true) {
+    		long version = watcher.version(queuePath);
+    		int pushed = tryAppend(queueName, payloads, groupIds, deduplicationIds, visibleAt, limits, false);
+    		if (pushed >= 0) {
+    			return pushed;
+    		}
+    		long remaining = deadline - System.nanoTime();
+    		if (remaining <= 0) {
+    			throw new QueueFullException("Timed out waiting for room for " + payloads.size() + " messages in queue " + queueName);
+    		}
+    		watcher.awaitChange(queuePath, version, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ROOM_RECHECK_MILLIS)));
+    	}
+    }
+    
+    /*
+     * Appends payloads if they fit under limits, which may be null, dropping the oldest visible
+     * messages to make room if dropOldest is set. Payloads whose deduplication id was pushed
+     * within the window are skipped. Returns the number of payloads appended, or -1, appending
+     * nothing, if they do not fit.
+     */
+    private int tryAppend(String queueName, List<ByteBuffer> payloads, List<String> groupIds, List<String> deduplicationIds,
+    		long visibleAt, QueueLimits limits, boolean dropOldest) throws IOException, InterruptedException {
+    	Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		long byteCount = byteCount(payloads);
+		QueueLog queueLog;
+		long written;
+		boolean fits = true;
+		int pushed = 0;
+		int dropped = 0;
+		boolean compact;
+		lock(lock, queueName);
+		try {
+			queueLog = getQueueLog(queueName, queuePath);
+			queueLog.catchUp();
+			long now = System.currentTimeMillis();
+			while (limits != null && !limits.fits(queueLog.size(), queueLog.bytes(), payloads.size(), byteCount)) {
+				if (!dropOldest || !queueLog.dropOldest(now)) {
+					fits = false;
+					break;
+				}
+				dropped++;
 			}
+			if (fits) {
+				pushed = queueLog.push(payloads, groupIds, deduplicationIds, visibilityTimeoutMillis, visibleAt, now);
+			}
+			written = queueLog.written();
+			compact = dropped > 0 && queueLog.needsCompaction();
+			syncIfAlways(queueLog);
+			checkpointIfDue(queueName, queueLog);
+			reportDepth(queueName, queueLog);
+		} finally {
+			lock.unlock();
 		}
+		if (dropped > 0) {
+			metrics.dropped(queueName, dropped);
+		}
+		if (compact) {
+			scheduleCompaction(queueName);
+		}
+		if (!fits) {
+			return -1;
+		}
+		if (pushed < payloads.size()) {
+			log.warning("Dropped " + (payloads.size() - pushed) + " messages with deduplication ids already pushed to queue " + queueName);
+		}
+		QueueWatcher.notifyChanged(queuePath);
+		if (durability == Durability.GROUP_COMMIT) {
+			awaitGroupCommit(queueName, queueLog, written);
+		}
+		return pushed;
     }
     
-    private void writeAllMessages(Path messagePath, List<QueueMessage> qmsgList) throws IOException {
-	    String msgs = Joiner.on('\n').join(qmsgList);
-	    Files.write(messagePath, msgs.getBytes());
+    /*
+     * Takes up to maxMessages visible messages in flight without reporting them as pulled
+     */
+    private List<QueueMessage> claim(String queueName, int maxMessages) throws IOException {
+    	Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		lock(lock, queueName);
+		try {
+			QueueLog queueLog = getQueueLog(queueName, queuePath);
+			queueLog.catchUp();
+			long now = System.currentTimeMillis();
+			List<QueueMessage> messages = queueLog.pull(maxMessages, now, now + visibilityTimeoutMillis);
+			syncIfAlways(queueLog);
+			checkpointIfDue(queueName, queueLog);
+			return messages;
+		} finally {
+			lock.unlock();
+		}
     }
+    
+    /*
+     * Deletes the deliveries named by the receipts under a single lock acquisition, returning the
+     * receipts of the messages deleted
+     */
+    private List<QueueMessage> remove(String queueName, List<QueueMessage> receipts) throws IOException {
+    	Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		List<QueueMessage> deleted;
+		boolean compact;
+		lock(lock, queueName);
+		try {
+			QueueLog queueLog = getQueueLog(queueName, queuePath);
+			queueLog.catchUp();
+			deleted = queueLog.delete(receipts, System.currentTimeMillis());
+			compact = queueLog.needsCompaction();
+			syncIfAlways(queueLog);
+			checkpointIfDue(queueName, queueLog);
+			reportDepth(queueName, queueLog);
+		} finally {
+			lock.unlock();
+		}
+		if(compact) {
+			scheduleCompaction(queueName);
+		}
+		// Producers blocked on a full queue may have room now
+		QueueWatcher.notifyChanged(queuePath);
+		return deleted;
+    }
+    
+    /*
+     * Pushes messages that used up their receives to the dead-letter queue, then deletes them
+     * from queueName. The locks of the two queues are never held together. If the move fails,
+     * the messages become visible again and are moved by a later pull.
+     */
+    private void moveToDeadLetterQueue(String queueName, DeadLetterPolicy policy, List<QueueMessage> deadLetters) {
+    	try {
+    		append(policy.queueName, deadLetters);
+    		remove(queueName, deadLetters);
+    		metrics.deadLettered(queueName, deadLetters.size());
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		log.warning("Interrupted moving messages from queue " + queueName + " to dead-letter queue " + policy.queueName);
+    	} catch (Exception e) {
+    		log.warning("Error occurred moving messages from queue " + queueName + " to dead-letter queue " + policy.queueName + "; Error: " + e);
+    	}
+    }
+    
+    /*
+     * Takes the queue lock, reporting how long it took
+     */
+    private void lock(QueueLock lock, String queueName) throws IOException {
+    	long start = System.nanoTime();
+    	lock.lock();
+    	metrics.lockWaited(queueName, System.nanoTime() - start);
+    }
+    
+    /*
+     * Reports a pull; must be called holding the queue lock
+     */
+    private void reportPulled(String queueName, QueueLog queueLog, List<QueueMessage> messages, long latencyNanos) {
+    	QueueMetrics metrics = this.metrics;
+    	metrics.pulled(queueName, messages.size(), latencyNanos);
+    	int redelivered = 0;
+    	for (QueueMessage message : messages) {
+    		if (message.getReceiveCount() > 1) {
+    			redelivered++;
+    		}
+    	}
+    	if (redelivered > 0) {
+    		metrics.redelivered(queueName, redelivered);
+    	}
+    	reportDepth(queueName, queueLog);
+    }
+    
+    /*
+     * Reports the depth of a queue and any expiries seen; must be called holding the queue lock
+     */
+    private void reportDepth(String queueName, QueueLog queueLog) {
+    	QueueMetrics metrics = this.metrics;
+    	int expired = queueLog.drainExpired();
+    	if (expired > 0) {
+    		metrics.expired(queueName, expired);
+    	}
+    	int inFlight = queueLog.inFlightCount();
+    	metrics.depth(queueName, queueLog.size() - inFlight - queueLog.delayedCount(), inFlight);
+    }
+    
+    private void syncIfAlways(QueueLog queueLog) throws IOException {
+    	if (durability == Durability.ALWAYS) {
+    		queueLog.sync();
+    	}
+    }
+    
+    /*
+     * Waits for the group commit covering the given record count, starting it early if enough
+     * records are waiting. Throws IOException if that sync failed or did not come in time.
+     */
+    private void awaitGroupCommit(String queueName, QueueLog queueLog, long written) throws InterruptedException, IOException {
+    	if (written - queueLog.synced() >= groupCommitRecords) {
+    		flusher.execute(this::syncAll);
+    	}
+    	if (!queueLog.awaitSync(written, TimeUnit.SECONDS.toNanos(SYNC_TIMEOUT_SECONDS))) {
+    		throw new IOException("Timed out waiting for messages pushed to queue " + queueName + " to be synced");
+    	}
+    }
+    
+    /*
+     * Syncs every interval for as long as the service is open. The task holds the service weakly,
+     * so a service dropped without being closed stops its group commits instead of being kept
+     * alive by them.
+     */
+    private static void scheduleGroupCommit(WeakReference<FileQueueService> reference) {
+    	FileQueueService service = reference.get();
+    	if (service == null || service.closed) {
+    		return;
+    	}
+    	service.groupCommit = flusher.schedule(() -> {
+    		FileQueueService current = reference.get();
+    		if (current != null && !current.closed) {
+    			current.syncAll();
+    			scheduleGroupCommit(reference);
+    		}
+    	}, service.groupCommitIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /*
+     * Stops the group commits of the service and syncs whatever is still waiting. The service
+     * must not be used afterwards; its queues stay on disk for other services.
+     */
+    @Override
+    public void close() {
+    	closed = true;
+    	ScheduledFuture<?> groupCommit = this.groupCommit;
+    	if (groupCommit != null) {
+    		groupCommit.cancel(false);
+    	}
+    	syncAll();
+    }
+    
+    /*
+     * Records this service has written to a queue that are not yet known to be on disk
+     */
+    long unsyncedRecords(String queueName) {
+    	QueueLog queueLog = logs.get(queueName);
+    	return queueLog == null ? 0 : Math.max(0, queueLog.written() - queueLog.synced());
+    }
+    
+    /*
+     * Failures are left to the pushes waiting on the sync, which QueueLog fails with them
+     */
+    private void syncAll() {
+    	for (Map.Entry<String, QueueLog> entry : logs.entrySet()) {
+    		QueueLog queueLog = entry.getValue();
+    		if (queueLog.written() > queueLog.synced()) {
+    			try {
+    				queueLog.sync();
+    			} catch (Exception e) {
+    				log.warning("Error occurred syncing queue " + entry.getKey() + "; Error: " + e);
+    			}
+    		}
+    	}
+    }
+    
+    /*
+     * Checkpoints the view of a queue in the background once enough records have been applied
+     * to it, so a restart replays at most that many
+     */
+    private void checkpointIfDue(String queueName, QueueLog queueLog) {
+    	if (queueLog.appliedSinceCheckpoint() >= checkpointRecords) {
+    		scheduleMaintenance(queueName, pendingCheckpoints, "checkpointing", current -> {
+    			current.checkpoint();
+    			return false;
+    		});
+    	}
+    }
+    
+    /*
+     * Compacts the head of the log of a queue in the background, one segment per lock
+     * acquisition. At most one compaction per queue is pending at a time.
+     */
+    private void scheduleCompaction(String queueName) {
+    	scheduleMaintenance(queueName, pendingCompactions, "compacting", QueueLog::compact);
+    }
+    
+    /*
+     * Runs task on the compactor under the queue lock, unless one is already pending for the
+     * queue in pending, and runs it again, under a new acquisition, for as long as it returns
+     * true
+     */
+    private void scheduleMaintenance(String queueName, Set<String> pending, String description, Maintenance task) {
+    	if(!pending.add(queueName)) {
+    		return;
+    	}
+    	compactor.execute(() -> {
+    		pending.remove(queueName);
+    		Path queuePath = rootPath.resolve(queueName);
+    		if(!Files.isDirectory(queuePath, LinkOption.NOFOLLOW_LINKS)) {
+    			return;
+    		}
+    		QueueLock lock = QueueLock.forQueue(queuePath);
+    		boolean again;
+    		try {
+    			lock.lock();
+    			try {
+    				QueueLog queueLog = getQueueLog(queueName, queuePath);
+    				queueLog.catchUp();
+    				again = task.run(queueLog);
+    			} finally {
+    				lock.unlock();
+    			}
+    		} catch (Exception e) {
+    			log.warning("Error occurred " + description + " queue " + queueName + "; Error: " + e);
+    			return;
+    		}
+    		if(again) {
+    			scheduleMaintenance(queueName, pending, description, task);
+    		}
+    	});
+    }
+    
+    private interface Maintenance {
+    	boolean run(QueueLog queueLog) throws IOException;
+    }
+	
+	private static List<ByteBuffer> payloads(List<QueueMessage> messages) {
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(messages.size());
+		for(QueueMessage message : messages) {
+			payloads.add(message.getPayload());
+		}
+		return payloads;
+	}
+	
+	private static long byteCount(List<ByteBuffer> payloads) {
+		long byteCount = 0;
+		for(ByteBuffer payload : payloads) {
+			byteCount += payload.remaining();
+		}
+		return byteCount;
+	}
+	
+	private static List<ByteBuffer> encode(List<String> msgContents) {
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(msgContents.size());
+		for(String msgContent : msgContents) {
+			payloads.add(ByteBuffer.wrap(msgContent.getBytes(StandardCharsets.UTF_8)));
+		}
+		return payloads;
+	}
 	
 	private Path getQueuePath(String queueName) throws IOException {
 		Path queuePath = rootPath.resolve(queueName);
@@ -116,47 +916,102 @@ public class FileQueueService implements QueueService {
 		return queuePath;
 	}
 	
-	private Path getMessagePath(Path queuePath) throws IOException {
-		Path messagePath = queuePath.resolve("messages");
-		if (Files.notExists(messagePath, LinkOption.NOFOLLOW_LINKS)) {
-            Files.createFile(messagePath);
-        }
-		return messagePath;
+	private QueueLog getQueueLog(String queueName, Path queuePath) {
+		return logs.computeIfAbsent(queueName, name -> {
+			QueueLog queueLog = new QueueLog(name, queuePath, segmentSize);
+			queueLog.setDeduplicationWindow(deduplicationWindowMillis);
+			return queueLog;
+		});
 	}
 	
-	private List<QueueMessage> getAllMessages(Path messagePath) throws IOException {
-		List<String> lines = Files.readAllLines(messagePath, StandardCharsets.UTF_8);
-		List<QueueMessage> msgList = new ArrayList<QueueMessage>();
-		for(String line : lines) {
-			Iterable<String> messageInfo = Splitter.on(':').split(line);
-		    Long timeoutForMsg = Long.parseLong(Iterables.get(messageInfo, 0), 10);
-		    String msgContent = Iterables.get(messageInfo, 1);
-		    Long visibilityTimeout = Long.parseLong(Iterables.get(messageInfo, 2), 10);
-		
-		    msgList.add(new QueueMessage(msgContent, visibilityTimeout, timeoutForMsg));
-		}
-		return msgList;
+    /*
+	 * Sets visibilityTimeout, in seconds, to be applied to new messages
+	 */
+	public void setVisibilityTimeout(long visibilityTimeout) {
+		setVisibilityTimeout(visibilityTimeout, TimeUnit.SECONDS);
 	}
 	
-    private void lock(File lock) throws InterruptedException {
-        while (!lock.mkdir()) {
-            Thread.sleep(50);
-        }
-    }
-
-    private void unlock(File lock) {
-        lock.delete();
-    }
-    
     /*
-	 * Sets visibilityTimeout to be applied to new messages
+	 * Sets visibilityTimeout to be applied to new messages, to the millisecond. Deadlines are
+	 * shared with every process using the queue directory, so they are kept on the wall clock.
 	 */
-	public void setVisibilityTimeout(long visibilityTimeout) {
-		this.visibilityTimeout = visibilityTimeout;
+	public void setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		this.visibilityTimeoutMillis = unit.toMillis(visibilityTimeout);
 	}
 	
+    /*
+     * Sets how long deduplication ids of FIFO pushes are remembered. The window belongs to this
+     * service, so every process pushing to the queue should set the same one.
+     */
+    public void setDeduplicationWindow(long window, TimeUnit unit) {
+    	this.deduplicationWindowMillis = unit.toMillis(window);
+    	for (QueueLog queueLog : logs.values()) {
+    		queueLog.setDeduplicationWindow(deduplicationWindowMillis);
+    	}
+    }
+    
+    /*
+     * Sets where operations on every queue are reported
+     */
+    public void setMetrics(QueueMetrics metrics) {
+    	this.metrics = metrics;
+    }
+    
+    /*
+     * Group commit syncs at least every interval, and as soon as maxRecords records are waiting
+     */
+    public void setGroupCommit(long interval, TimeUnit unit, int maxRecords) {
+    	this.groupCommitIntervalNanos = unit.toNanos(interval);
+    	this.groupCommitRecords = maxRecords;
+    }
+    
+    /*
+     * Sets how many records a view of a queue applies between checkpoints. A process starting on
+     * the queue loads the latest checkpoint and replays only the records after it.
+     */
+    public void setCheckpointInterval(long records) {
+    	this.checkpointRecords = records;
+    }
+    
+    /*
+     * Checkpoints the queue now, for instance before shutting down, so the next start replays
+     * nothing
+     */
+    public void checkpoint(String queueName) throws IOException {
+    	Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		
+		lock.lock();
+		try {
+			QueueLog queueLog = getQueueLog(queueName, queuePath);
+			queueLog.catchUp();
+			queueLog.checkpoint();
+		} finally {
+			lock.unlock();
+		}
+    }
+    
     public int getQueueSize(String queueName) throws IOException {
-        Path messagesPath = getQueuePath(queueName).resolve("messages");
-        return Files.readAllLines(messagesPath).size();
+    	Path queuePath = getQueuePath(queueName);
+		QueueLock lock = QueueLock.forQueue(queuePath);
+		
+		lock.lock();
+		try {
+			QueueLog queueLog = getQueueLog(queueName, queuePath);
+			queueLog.catchUp();
+			return queueLog.size();
+		} finally {
+			lock.unlock();
+		}
+    }
+    
+    private static class DeadLetterPolicy {
+    	final String queueName;
+    	final int maxReceiveCount;
+    	
+    	DeadLetterPolicy(String queueName, int maxReceiveCount) {
+    		this.queueName = queueName;
+    		this.maxReceiveCount = maxReceiveCount;
+    	}
     }
 }
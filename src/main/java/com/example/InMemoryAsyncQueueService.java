@@ -0,0 +1,102 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AsyncQueueService over an InMemoryQueueService. Operations on the in-memory queues never
+ * block, so they run in the calling thread and return completed futures. Only pushes that may
+ * have to wait for room, in off-heap mode or under a BLOCK overflow policy, run on executor.
+ *
+ * A waiting pull holds no thread: it asks its queue to be woken by the next push, and by a
+ * timer for the next visibility timeout, and makes its next attempt on executor then.
+ */
+public class InMemoryAsyncQueueService implements AsyncQueueService {
+	private final InMemoryQueueService queueService;
+	private final Executor executor;
+
+	public InMemoryAsyncQueueService(InMemoryQueueService queueService) {
+		this(queueService, ForkJoinPool.commonPool());
+	}
+
+	public InMemoryAsyncQueueService(InMemoryQueueService queueService, Executor executor) {
+		this.queueService = queueService;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<Void> push(String queueName, String msgContent) {
+		return pushBatch(queueName, Collections.singletonList(msgContent));
+	}
+
+	@Override
+	public CompletableFuture<Void> pushBatch(String queueName, List<String> msgContents) {
+		ExecutorAsyncQueueService.Call<Void> push = () -> {
+			queueService.pushBatch(queueName, msgContents);
+			return null;
+		};
+		return queueService.pushMayWait(queueName) ? ExecutorAsyncQueueService.submit(executor, push)
+				: ExecutorAsyncQueueService.now(push);
+	}
+
+	@Override
+	public CompletableFuture<Void> pushBytes(String queueName, ByteBuffer payload) {
+		if (!queueService.pushMayWait(queueName)) {
+			return ExecutorAsyncQueueService.now(() -> {
+				queueService.pushBytes(queueName, payload);
+				return null;
+			});
+		}
+		ByteBuffer copy = ExecutorAsyncQueueService.copy(payload);
+		return ExecutorAsyncQueueService.submit(executor, () -> {
+			queueService.pushBytes(queueName, copy);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<QueueMessage> pull(String queueName) {
+		return ExecutorAsyncQueueService.now(() -> queueService.pull(queueName));
+	}
+
+	@Override
+	public CompletableFuture<QueueMessage> pull(String queueName, long waitTime, TimeUnit unit) {
+		return queueService.pullAsync(queueName, waitTime, unit, executor);
+	}
+
+	@Override
+	public CompletableFuture<List<QueueMessage>> pullBatch(String queueName, int maxMessages) {
+		return ExecutorAsyncQueueService.now(() -> queueService.pullBatch(queueName, maxMessages));
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String queueName, Object msg) {
+		return ExecutorAsyncQueueService.now(() -> {
+			queueService.delete(queueName, msg);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteBatch(String queueName, List<?> msgs) {
+		return ExecutorAsyncQueueService.now(() -> {
+			queueService.deleteBatch(queueName, msgs);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) {
+		return ExecutorAsyncQueueService.now(() -> queueService.changeVisibility(queueName, msg, timeout, unit));
+	}
+
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return queueService.getPayload(msg);
+	}
+}
@@ -1,38 +1,259 @@
 package com.example;
 
-import com.google.common.collect.*;
-
-import java.util.Collection;
-import java.util.NoSuchElementException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
-public class InMemoryQueueService implements QueueService {
+import com.google.common.base.Ticker;
+
+public class InMemoryQueueService implements FifoQueueService {
   //
   // Task 2: Implement me.
   //
-	private Multimap<String, QueueMessage> queues;
-	private long visibilityTimeout = 30;
+	/*
+	 * Each queue has its own lock-free state, so traffic on one queue never blocks another
+	 */
+	private ConcurrentMap<String, QueueState> queues;
+	private volatile long visibilityTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final TimingWheel<QueueState.Delivery> timeouts;
+	private volatile QueueMetrics metrics = QueueMetrics.NOOP;
+	private volatile long deduplicationWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEDUPLICATION_WINDOW_MILLIS);
+	
+	/*
+	 * Holds the visible messages of every queue in off-heap mode; null when they are kept on the heap
+	 */
+	private final OffHeapStore offHeapStore;
+	private final long maxPushWaitNanos;
 	
 	private static final Logger log = Logger.getLogger("InMemoryQueueService");
 	
+	/*
+	 * Resolution of visibility timeouts, and the number of ticks in one turn of the timing wheel
+	 */
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int WHEEL_SIZE = 1024;
+	
 	public InMemoryQueueService() {
-		queues = Multimaps.synchronizedListMultimap(LinkedListMultimap.create());
+		this(Ticker.systemTicker());
+	}
+	
+	/*
+	 * ticker is the monotonic clock visibility timeouts are measured on
+	 */
+	public InMemoryQueueService(Ticker ticker) {
+		this(ticker, null);
+	}
+	
+	/*
+	 * Keeps visible messages in direct memory as configured by offHeap, out of reach of the
+	 * garbage collector. Pushes wait for room once its capacity is used up.
+	 */
+	public InMemoryQueueService(OffHeapConfig offHeap) {
+		this(Ticker.systemTicker(), offHeap);
+	}
+	
+	/*
+	 * offHeap may be null to keep messages on the heap
+	 */
+	public InMemoryQueueService(Ticker ticker, OffHeapConfig offHeap) {
+		queues = new ConcurrentHashMap<String, QueueState>();
+		timeouts = new TimingWheel<QueueState.Delivery>(ticker, TICK_NANOS, WHEEL_SIZE);
+		if(offHeap == null) {
+			offHeapStore = null;
+			maxPushWaitNanos = 0;
+		} else {
+			offHeapStore = new OffHeapStore(offHeap.getCapacityBytes(), offHeap.getSlabBytes());
+			maxPushWaitNanos = TimeUnit.MILLISECONDS.toNanos(offHeap.getMaxPushWaitMillis());
+		}
 	}
 	
 	/*
-	 * Sets visibilityTimeout to be applied to new messages
+	 * Sets visibilityTimeout, in seconds, to be applied to new messages
 	 */
 	public void setVisibilityTimeout(long visibilityTimeout) {
-		this.visibilityTimeout = visibilityTimeout;
+		setVisibilityTimeout(visibilityTimeout, TimeUnit.SECONDS);
+	}
+	
+	/*
+	 * Sets visibilityTimeout to be applied to new messages, to the millisecond
+	 */
+	public void setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		this.visibilityTimeoutMillis = unit.toMillis(visibilityTimeout);
+	}
+	
+	/*
+	 * Sets how long deduplication ids of FIFO pushes are remembered, measured on the ticker
+	 */
+	public void setDeduplicationWindow(long window, TimeUnit unit) {
+		this.deduplicationWindowNanos = unit.toNanos(window);
+	}
+	
+	/*
+	 * Sets where operations on every queue are reported
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
 	}
 	
 	/*
-	 * Pushes a new message to a queue specified by queueName with content msgContent 
+	 * Pushes a new message to a queue specified by queueName with content msgContent. Throws
+	 * QueueFullException if the queue is over its limits, or in off-heap mode if no room was
+	 * freed within the configured wait.
 	 */
 	@Override
 	public void push(String queueName, String msgContent) {
-		Collection<QueueMessage> queue = queues.get(queueName);
-		queue.add(new QueueMessage(msgContent, visibilityTimeout));
+		pushBatch(queueName, Collections.singletonList(msgContent));
+	}
+	
+	@Override
+	public void pushBatch(String queueName, List<String> msgContents) {
+		long start = System.nanoTime();
+		List<QueueMessage> messages = new ArrayList<QueueMessage>(msgContents.size());
+		for(String msgContent : msgContents) {
+			messages.add(new QueueMessage(queueName, nextSequence.getAndIncrement(), msgContent, visibilityTimeoutMillis));
+		}
+		pushMessages(queueName, messages, start);
+	}
+	
+	/*
+	 * The delay is measured on the ticker, to the millisecond. Throws QueueFullException as push
+	 * does; a delayed message takes its room in the queue from the moment it is pushed.
+	 */
+	@Override
+	public void push(String queueName, String msgContent, long delay, TimeUnit unit) {
+		long start = System.nanoTime();
+		QueueState queue = getOrCreateQueue(queueName);
+		try {
+			queue.push(Collections.singletonList(new QueueMessage(queueName, nextSequence.getAndIncrement(), msgContent,
+					visibilityTimeoutMillis)), unit.toNanos(delay));
+		} catch (QueueFullException e) {
+			metrics.rejected(queueName, 1);
+			throw e;
+		}
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+		reportDepth(queueName, queue);
+	}
+	
+	/*
+	 * deliverAt is read on the wall clock once, when the message is pushed, and the message is
+	 * then delayed for the time left on the ticker
+	 */
+	@Override
+	public void pushAt(String queueName, String msgContent, Instant deliverAt) {
+		push(queueName, msgContent, deliverAt.toEpochMilli() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+	
+	@Override
+	public void pushBytes(String queueName, ByteBuffer payload) {
+		pushBytesBatch(queueName, Collections.singletonList(payload));
+	}
+	
+	/*
+	 * On the heap each payload is copied once, as the caller may reuse its buffer. In off-heap
+	 * mode it is copied straight from the caller's buffer into its block during the push.
+	 */
+	@Override
+	public void pushBytesBatch(String queueName, List<ByteBuffer> payloads) {
+		long start = System.nanoTime();
+		List<QueueMessage> messages = new ArrayList<QueueMessage>(payloads.size());
+		for(ByteBuffer payload : payloads) {
+			messages.add(new QueueMessage(queueName, nextSequence.getAndIncrement(), ownPayload(payload), visibilityTimeoutMillis));
+		}
+		pushMessages(queueName, messages, start);
+	}
+	
+	/*
+	 * Only the head of a group is ever visible or in flight, so each pull costs the same as for
+	 * messages outside any group. Throws QueueFullException as push does.
+	 */
+	@Override
+	public void pushToGroup(String queueName, String msgContent, String messageGroupId, String deduplicationId) {
+		pushToGroup(queueName, new QueueMessage(queueName, nextSequence.getAndIncrement(), msgContent, visibilityTimeoutMillis),
+				messageGroupId, deduplicationId);
+	}
+	
+	@Override
+	public void pushBytesToGroup(String queueName, ByteBuffer payload, String messageGroupId, String deduplicationId) {
+		pushToGroup(queueName, new QueueMessage(queueName, nextSequence.getAndIncrement(), ownPayload(payload), visibilityTimeoutMillis),
+				messageGroupId, deduplicationId);
+	}
+	
+	private void pushToGroup(String queueName, QueueMessage message, String messageGroupId, String deduplicationId) {
+		long start = System.nanoTime();
+		message.setMessageGroupId(messageGroupId);
+		QueueState queue = getOrCreateQueue(queueName);
+		boolean pushed;
+		try {
+			pushed = queue.push(message, deduplicationId, deduplicationWindowNanos);
+		} catch (QueueFullException e) {
+			metrics.rejected(queueName, 1);
+			throw e;
+		}
+		if(!pushed) {
+			log.warning("Dropped message with deduplication id " + deduplicationId + " already pushed to queue " + queueName);
+			return;
+		}
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+		reportDepth(queueName, queue);
+	}
+	
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return ((QueueMessage) msg).getPayload();
+	}
+	
+	private ByteBuffer ownPayload(ByteBuffer payload) {
+		if(offHeapStore != null) {
+			return payload.asReadOnlyBuffer();
+		}
+		byte[] copy = new byte[payload.remaining()];
+		payload.duplicate().get(copy);
+		return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+	}
+	
+	private void pushMessages(String queueName, List<QueueMessage> messages, long start) {
+		QueueState queue = getOrCreateQueue(queueName);
+		try {
+			queue.push(messages);
+		} catch (QueueFullException e) {
+			metrics.rejected(queueName, messages.size());
+			throw e;
+		}
+		metrics.pushed(queueName, messages.size(), System.nanoTime() - start);
+		reportDepth(queueName, queue);
+	}
+	
+	@Override
+	public boolean offer(String queueName, String msgContent) {
+		long start = System.nanoTime();
+		QueueState queue = getOrCreateQueue(queueName);
+		boolean pushed = queue.offer(new QueueMessage(queueName, nextSequence.getAndIncrement(), msgContent, visibilityTimeoutMillis));
+		QueueMetrics metrics = this.metrics;
+		if(pushed) {
+			metrics.pushed(queueName, 1, System.nanoTime() - start);
+			reportDepth(queueName, queue);
+		} else {
+			metrics.rejected(queueName, 1);
+		}
+		return pushed;
+	}
+	
+	/*
+	 * Limits apply to pushes from now on; producers blocked under the old limits retry under the new ones
+	 */
+	@Override
+	public void setQueueLimits(String queueName, QueueLimits limits) {
+		getOrCreateQueue(queueName).setLimits(limits);
 	}
 	
 	/*
@@ -41,21 +262,106 @@ public class InMemoryQueueService implements QueueService {
 	 */
 	@Override
 	public QueueMessage pull(String queueName) {
-		Collection<QueueMessage> queue = queues.get(queueName);
-		if(queue.isEmpty()) {
+		long start = System.nanoTime();
+		QueueState queue = queues.get(queueName);
+		if(queue == null || queue.size() == 0) {
 			log.warning("Cannot pull messages from " + queueName + " as queue does not exist");
 			return null;
 		}
+		QueueMessage message = queue.pull();
+		reportPull(queueName, queue, message, System.nanoTime() - start);
+		if(message == null) {
+			log.warning("No Visible Messages in Queue " + queueName);
+		}
+		return message;
+	}
+	
+	/*
+	 * Pulls a message from specified queue in (attempted) FIFO order, blocking until one is
+	 * pushed or becomes visible again. Returns null if none is visible after waitTime.
+	 */
+	@Override
+	public QueueMessage pull(String queueName, long waitTime, TimeUnit unit) {
 		try {
-			QueueMessage message = Iterables.find(queue, msg -> msg.isVisible());
-			message.setTimeoutInMillis();
-		
-		    return message; 
-		    
-		} catch (NoSuchElementException e) {
+			QueueState queue = getOrCreateQueue(queueName);
+			QueueMessage message = queue.pull(waitTime, unit);
+			reportPull(queueName, queue, message, -1);
+			return message;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/*
+	 * Waiting pull for InMemoryAsyncQueueService. Instead of blocking a thread, asks the queue to
+	 * be woken by the next push and runs later attempts on executor.
+	 */
+	CompletableFuture<QueueMessage> pullAsync(String queueName, long waitTime, TimeUnit unit, Executor executor) {
+		QueueState queue = getOrCreateQueue(queueName);
+		CompletableFuture<QueueMessage> result = AsyncPull.start(new AsyncPull.Source<QueueMessage>() {
+			@Override
+			public Runnable onChange(Runnable wakeUp) {
+				return queue.onAvailable(wakeUp);
+			}
+
+			@Override
+			public QueueMessage poll() {
+				return queue.pull();
+			}
+
+			@Override
+			public long nanosUntilRecheck() {
+				return queue.nanosUntilNextTimeout();
+			}
+
+			@Override
+			public void release(QueueMessage message) {
+				queue.changeVisibility(message, 0);
+			}
+		}, waitTime, unit, executor);
+		result.thenAccept(message -> reportPull(queueName, queue, message, -1));
+		return result;
+	}
+	
+	/*
+	 * Whether a push to a queue may have to wait for room, in off-heap mode or under a BLOCK
+	 * overflow policy
+	 */
+	boolean pushMayWait(String queueName) {
+		QueueState queue = queues.get(queueName);
+		return offHeapStore != null || (queue != null && queue.pushMayWait());
+	}
+	
+	/*
+	 * Pulls up to maxMessages visible messages from specified queue in (attempted) FIFO order.
+	 * Returns an empty list if queue does not exist or if no messages are visible in queue.
+	 */
+	@Override
+	public List<QueueMessage> pullBatch(String queueName, int maxMessages) {
+		long start = System.nanoTime();
+		QueueState queue = queues.get(queueName);
+		if(queue == null || queue.size() == 0) {
+			log.warning("Cannot pull messages from " + queueName + " as queue does not exist");
+			return Collections.emptyList();
+		}
+		List<QueueMessage> messages = queue.pull(maxMessages);
+		QueueMetrics metrics = this.metrics;
+		metrics.pulled(queueName, messages.size(), System.nanoTime() - start);
+		int redelivered = 0;
+		for(QueueMessage message : messages) {
+			if(message.getReceiveCount() > 1) {
+				redelivered++;
+			}
+		}
+		if(redelivered > 0) {
+			metrics.redelivered(queueName, redelivered);
+		}
+		reportDepth(queueName, queue);
+		if(messages.isEmpty()) {
 			log.warning("No Visible Messages in Queue " + queueName);
-		    return null;
 		}
+		return messages;
 	}
 	
 	/*
@@ -65,8 +371,9 @@ public class InMemoryQueueService implements QueueService {
 	 */
 	@Override
 	public void delete(String queueName, Object msg) {
-		Collection<QueueMessage> queue = queues.get(queueName);
-		if(queue.isEmpty()) {
+		long start = System.nanoTime();
+		QueueState queue = queues.get(queueName);
+		if(queue == null || queue.size() == 0) {
 			log.warning("Cannot delete messages from " + queueName + " as queue does not exist");
 			return;
 		}
@@ -75,19 +382,132 @@ public class InMemoryQueueService implements QueueService {
 			return;
 		}
 		QueueMessage qMsg = (QueueMessage) msg;
-		if(!qMsg.isVisible()) {
-			boolean removed = queue.remove(qMsg);
-			if(!removed) {
-				log.warning("Message could not be deleted from queue " + queueName);
-			}
+		if(!queueName.equals(qMsg.getQueueName())) {
+			log.warning("Message was not pulled from queue " + queueName + ", cannot delete");
+			return;
+		}
+		boolean removed = queue.delete(qMsg);
+		QueueMetrics metrics = this.metrics;
+		metrics.deleted(queueName, removed ? 1 : 0, System.nanoTime() - start);
+		if(removed) {
+			metrics.messageAge(queueName, System.currentTimeMillis() - qMsg.getPushedAt());
 		}
-		else {
+		reportDepth(queueName, queue);
+		if(!removed) {
 			log.warning("Message does not exist or visibility timeout has expired");
 		}
 	}
 	
+	@Override
+	public void deleteBatch(String queueName, List<?> msgs) {
+		for(Object msg : msgs) {
+			delete(queueName, msg);
+		}
+	}
+	
+	@Override
+	public boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) {
+		return changeVisibilityBatch(queueName, Collections.singletonList(msg), timeout, unit) == 1;
+	}
+	
+	/*
+	 * Reschedules each delivery on the timing wheel, which is O(1) per message
+	 */
+	@Override
+	public int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) {
+		QueueState queue = queues.get(queueName);
+		if(queue == null) {
+			log.warning("Cannot change visibility of messages in " + queueName + " as queue does not exist");
+			return 0;
+		}
+		int changed = 0;
+		for(Object msg : msgs) {
+			if(!(msg instanceof QueueMessage) || !queueName.equals(((QueueMessage) msg).getQueueName())) {
+				log.warning("Message was not pulled from queue " + queueName + ", cannot change visibility");
+				continue;
+			}
+			QueueMessage qMsg = (QueueMessage) msg;
+			if(queue.changeVisibility(qMsg, unit.toNanos(timeout))) {
+				qMsg.setTimeoutInMillis(System.currentTimeMillis() + unit.toMillis(timeout));
+				changed++;
+			}
+		}
+		if(changed < msgs.size()) {
+			log.warning("Visibility of " + (msgs.size() - changed) + " messages in queue " + queueName + " could not be changed");
+		}
+		return changed;
+	}
+	
+	@Override
+	public void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+		getOrCreateQueue(queueName).setDeadLetterQueue(
+				deadLetterQueueName == null ? null : getOrCreateQueue(deadLetterQueueName), maxReceiveCount);
+	}
+	
+	@Override
+	public int redrive(String deadLetterQueueName, String queueName, int maxMessages) {
+		QueueState deadLetterQueue = queues.get(deadLetterQueueName);
+		if(deadLetterQueue == null) {
+			log.warning("Cannot redrive messages from " + deadLetterQueueName + " as queue does not exist");
+			return 0;
+		}
+		QueueState queue = getOrCreateQueue(queueName);
+		List<QueueMessage> messages = deadLetterQueue.take(maxMessages);
+		for(QueueMessage message : messages) {
+			queue.move(QueueState.moved(message, queueName));
+		}
+		reportDepth(deadLetterQueueName, deadLetterQueue);
+		reportDepth(queueName, queue);
+		return messages.size();
+	}
+	
+	/*
+	 * Waiting pulls of InMemoryAsyncQueueService registered to be woken on a queue
+	 */
+	int waitingPullCount(String queueName) {
+		return getOrCreateQueue(queueName).listenerCount();
+	}
+	
+	private QueueState getOrCreateQueue(String queueName) {
+		QueueState queue = queues.get(queueName);
+		if(queue == null) {
+			queue = queues.computeIfAbsent(queueName, name -> new QueueState(name, () -> metrics, timeouts,
+					offHeapStore == null ? new ReadyQueue.OnHeap() : new OffHeapReadyQueue(name, offHeapStore, maxPushWaitNanos)));
+		}
+		return queue;
+	}
+	
+	private void reportPull(String queueName, QueueState queue, QueueMessage message, long latencyNanos) {
+		QueueMetrics metrics = this.metrics;
+		metrics.pulled(queueName, message == null ? 0 : 1, latencyNanos);
+		if(message != null && message.getReceiveCount() > 1) {
+			metrics.redelivered(queueName, 1);
+		}
+		reportDepth(queueName, queue);
+	}
+	
+	private void reportDepth(String queueName, QueueState queue) {
+		int inFlight = queue.inFlightCount();
+		metrics.depth(queueName, queue.size() - inFlight - queue.delayedCount(), inFlight);
+	}
+	
+	/*
+	 * Bytes of direct memory holding messages in off-heap mode, or 0 when messages are on the heap
+	 */
+	public long getOffHeapUsage() {
+		return offHeapStore == null ? 0 : offHeapStore.usedBytes();
+	}
+	
+	/*
+	 * Bytes of UTF-8 content of the messages in a queue, visible and in flight
+	 */
+	public long getQueueBytes(String queueName) {
+		QueueState queue = queues.get(queueName);
+		return queue == null ? 0 : queue.bytes();
+	}
+	
 	public int getQueueSize(String queueName) {
-		Collection<QueueMessage> queue = queues.get(queueName);
-		return queue.size();
+		QueueState queue = queues.get(queueName);
+		return queue == null ? 0 : queue.size();
 	}
 }
@@ -0,0 +1,61 @@
+package com.example;
+
+import java.beans.ConstructorProperties;
+
+import org.HdrHistogram.AbstractHistogram;
+
+/*
+ * Distribution of a recorded duration, in microseconds
+ */
+public class LatencySummary {
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	@ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+	public LatencySummary(long count, double mean, long p50, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	static LatencySummary of(AbstractHistogram histogram) {
+		return new LatencySummary(histogram.getTotalCount(), histogram.getMean(), histogram.getValueAtPercentile(50),
+				histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + mean + " p50=" + p50 + " p99=" + p99 + " p999=" + p999 + " max=" + max;
+	}
+}
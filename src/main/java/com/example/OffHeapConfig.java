@@ -0,0 +1,46 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Settings for the off-heap mode of InMemoryQueueService.
+ *
+ * capacity    most bytes of direct memory taken by messages of every queue together, counting
+ *             free blocks kept for reuse; at least one slab is always allowed
+ * slabSize    bytes of direct memory allocated at a time, rounded up to a power of two; also
+ *             bounds the size of a single message
+ * maxPushWait longest a push waits for a message to be deleted when capacity is reached, before
+ *             it fails with QueueFullException
+ */
+public class OffHeapConfig {
+	private long capacityBytes = 64L << 20;
+	private int slabBytes = 1 << 20;
+	private long maxPushWaitMillis = TimeUnit.SECONDS.toMillis(30);
+
+	public OffHeapConfig withCapacity(long capacityBytes) {
+		this.capacityBytes = capacityBytes;
+		return this;
+	}
+
+	public OffHeapConfig withSlabSize(int slabBytes) {
+		this.slabBytes = slabBytes;
+		return this;
+	}
+
+	public OffHeapConfig withMaxPushWait(long maxPushWait, TimeUnit unit) {
+		this.maxPushWaitMillis = unit.toMillis(maxPushWait);
+		return this;
+	}
+
+	long getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	int getSlabBytes() {
+		return slabBytes;
+	}
+
+	long getMaxPushWaitMillis() {
+		return maxPushWaitMillis;
+	}
+}
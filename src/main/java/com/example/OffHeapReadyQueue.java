@@ -0,0 +1,142 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Ready queue of the off-heap mode: messages live in blocks of an OffHeapStore shared by every
+ * queue of the service, and the queue itself is a ring of block handles, one long per message.
+ *
+ * A message taken off with pollFirst is read back onto the heap but keeps its block while in
+ * flight, so returning it after its visibility timeout, or moving it to another queue, never
+ * needs new room. Only delete frees the block. Deliveries in flight are therefore the only
+ * messages on the heap, and memory used by all messages together stays within the store's
+ * capacity.
+ *
+ * Messages waiting behind others of their FIFO group are parked in a block of their own as soon
+ * as they are pushed, and only a handle to the block stays on the heap until their turn.
+ *
+ * Adding a new message waits up to maxWaitNanos for room in the store, and throws
+ * QueueFullException if none is freed in time.
+ */
+class OffHeapReadyQueue implements ReadyQueue {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final String queueName;
+	private final OffHeapStore store;
+	private final long maxWaitNanos;
+
+	/*
+	 * Guarded by this
+	 */
+	private long[] ring = new long[16];
+	private int head;
+	private int count;
+
+	OffHeapReadyQueue(String queueName, OffHeapStore store, long maxWaitNanos) {
+		this.queueName = queueName;
+		this.store = store;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	@Override
+	public void addLast(QueueMessage message) {
+		append(blockOrFail(message));
+	}
+
+	@Override
+	public boolean offerLast(QueueMessage message) {
+		long block = blockOf(message, 0);
+		if (block < 0) {
+			return false;
+		}
+		append(block);
+		return true;
+	}
+
+	@Override
+	public void addFirst(QueueMessage message) {
+		long block = blockOrFail(message);
+		synchronized (this) {
+			grow();
+			head = (head - 1) & (ring.length - 1);
+			ring[head] = block;
+			count++;
+		}
+	}
+
+	@Override
+	public QueueMessage pollFirst() {
+		long block;
+		synchronized (this) {
+			if (count == 0) {
+				return null;
+			}
+			block = ring[head];
+			head = (head + 1) & (ring.length - 1);
+			count--;
+		}
+		return store.load(block, queueName);
+	}
+
+	/*
+	 * Stores the message and returns a stand-in holding only its block
+	 */
+	@Override
+	public QueueMessage park(QueueMessage message) {
+		QueueMessage parked = new QueueMessage(queueName, message.getSequence(), EMPTY, message.getVisibilityTimeoutMillis());
+		parked.setOffHeapBlock(blockOrFail(message));
+		return parked;
+	}
+
+	@Override
+	public void release(QueueMessage message) {
+		store.free(message.getOffHeapBlock());
+	}
+
+	private synchronized void append(long block) {
+		grow();
+		ring[(head + count) & (ring.length - 1)] = block;
+		count++;
+	}
+
+	/*
+	 * Block of a message that already has one, with its receive count brought up to date, or a
+	 * new block for a message only on the heap. Returns -1 if no room was freed within waitNanos.
+	 */
+	private long blockOf(QueueMessage message, long waitNanos) {
+		long block = message.getOffHeapBlock();
+		if (block >= 0) {
+			store.setReceiveCount(block, message.getReceiveCount());
+			return block;
+		}
+		try {
+			block = store.store(message, waitNanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (block >= 0) {
+			message.setOffHeapBlock(block);
+		}
+		return block;
+	}
+
+	private long blockOrFail(QueueMessage message) {
+		long block = blockOf(message, maxWaitNanos);
+		if (block < 0) {
+			throw new QueueFullException("Off-heap store is full, cannot push message to queue " + queueName);
+		}
+		return block;
+	}
+
+	private void grow() {
+		if (count < ring.length) {
+			return;
+		}
+		long[] grown = new long[ring.length * 2];
+		for (int i = 0; i < count; i++) {
+			grown[i] = ring[(head + i) & (ring.length - 1)];
+		}
+		ring = grown;
+		head = 0;
+	}
+}
@@ -0,0 +1,243 @@
+package com.example;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Direct memory holding the visible messages of every queue of an off-heap InMemoryQueueService,
+ * so a deep backlog costs the garbage collector nothing but one long per message.
+ *
+ * Memory is taken from the JVM one slab at a time, up to the configured capacity, and handed
+ * out in blocks of power-of-two sizes from 64 bytes up to a whole slab. A message is stored in
+ * one block and named by a long handle: the slab index in the high half, the offset in the low.
+ * Freed blocks go onto a free list of their size and are reused before new memory is carved. Once
+ * no slab is left, a larger free block is split in halves until it fits; blocks are never merged
+ * again, so a long-lived mix of very different sizes can leave room that only small messages use.
+ *
+ * When nothing fits, store waits for a block to be freed, which is how producers feel
+ * backpressure. Each block starts with a fixed header:
+ *
+ *   capacity int | receiveCount int | sequence long | pushedAt long
+ *     | visibilityTimeoutMillis long | length int | payload
+ *
+ * A block belongs to one thread at a time, passed on under the lock of a ready queue, so its
+ * contents are read and written without locking. Only allocation takes the store's lock.
+ */
+class OffHeapStore {
+	private static final int CAPACITY = 0;
+	private static final int RECEIVE_COUNT = 4;
+	private static final int SEQUENCE = 8;
+	private static final int PUSHED_AT = 16;
+	private static final int VISIBILITY_TIMEOUT = 24;
+	private static final int LENGTH = 32;
+	private static final int HEADER_BYTES = 36;
+
+	private static final int MIN_BLOCK_SHIFT = 6;
+
+	private final int slabShift;
+	private final int slabBytes;
+	private final AtomicReferenceArray<ByteBuffer> slabs;
+	private final LongStack[] freeBlocks;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition freed = lock.newCondition();
+	private int slabCount;
+	private int carved;
+	private volatile long usedBytes;
+
+	OffHeapStore(long capacityBytes, int slabBytes) {
+		this.slabShift = Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, slabBytes - 1)));
+		this.slabBytes = 1 << slabShift;
+		this.slabs = new AtomicReferenceArray<ByteBuffer>((int) Math.max(1, Math.min(Integer.MAX_VALUE, capacityBytes / this.slabBytes)));
+		this.freeBlocks = new LongStack[slabShift - MIN_BLOCK_SHIFT + 1];
+		for (int i = 0; i < freeBlocks.length; i++) {
+			freeBlocks[i] = new LongStack();
+		}
+		this.carved = this.slabBytes;
+	}
+
+	/*
+	 * Copies message into a new block, waiting up to timeoutNanos for room. Returns the block's
+	 * handle, or -1 if no room was freed in time. Throws IllegalArgumentException if the message
+	 * is larger than a slab.
+	 */
+	long store(QueueMessage message, long timeoutNanos) throws InterruptedException {
+		ByteBuffer content = message.getPayload();
+		int length = content.remaining();
+		if (HEADER_BYTES + length > slabBytes) {
+			throw new IllegalArgumentException("Message of " + length + " bytes does not fit in a slab of " + slabBytes);
+		}
+		long block = allocate(sizeClass(HEADER_BYTES + length), timeoutNanos);
+		if (block < 0) {
+			return -1;
+		}
+		ByteBuffer slab = slabs.get(slabOf(block)).duplicate();
+		int offset = offsetOf(block);
+		slab.putInt(offset + RECEIVE_COUNT, message.getReceiveCount());
+		slab.putLong(offset + SEQUENCE, message.getSequence());
+		slab.putLong(offset + PUSHED_AT, message.getPushedAt());
+		slab.putLong(offset + VISIBILITY_TIMEOUT, message.getVisibilityTimeoutMillis());
+		slab.putInt(offset + LENGTH, length);
+		((Buffer) slab).position(offset + HEADER_BYTES);
+		slab.put(content);
+		return block;
+	}
+
+	/*
+	 * Reads the message in block back onto the heap, as a message of queueName that still owns
+	 * the block
+	 */
+	QueueMessage load(long block, String queueName) {
+		ByteBuffer slab = slabs.get(slabOf(block)).duplicate();
+		int offset = offsetOf(block);
+		byte[] content = new byte[slab.getInt(offset + LENGTH)];
+		((Buffer) slab).position(offset + HEADER_BYTES);
+		slab.get(content);
+		QueueMessage message = new QueueMessage(queueName, slab.getLong(offset + SEQUENCE), slab.getInt(offset + RECEIVE_COUNT),
+				ByteBuffer.wrap(content).asReadOnlyBuffer(), slab.getLong(offset + VISIBILITY_TIMEOUT), 0,
+				slab.getLong(offset + PUSHED_AT));
+		message.setOffHeapBlock(block);
+		return message;
+	}
+
+	void setReceiveCount(long block, int receiveCount) {
+		slabs.get(slabOf(block)).putInt(offsetOf(block) + RECEIVE_COUNT, receiveCount);
+	}
+
+	/*
+	 * Returns block to its free list and wakes producers waiting for room
+	 */
+	void free(long block) {
+		int size = slabs.get(slabOf(block)).getInt(offsetOf(block) + CAPACITY);
+		lock.lock();
+		try {
+			freeBlocks[sizeClass(size)].push(block);
+			usedBytes -= size;
+			freed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Bytes in blocks holding messages
+	 */
+	long usedBytes() {
+		return usedBytes;
+	}
+
+	private long allocate(int sizeClass, long timeoutNanos) throws InterruptedException {
+		lock.lock();
+		try {
+			long remaining = timeoutNanos;
+			while (true) {
+				long block = tryAllocate(sizeClass);
+				if (block >= 0) {
+					int size = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+					slabs.get(slabOf(block)).putInt(offsetOf(block) + CAPACITY, size);
+					usedBytes += size;
+					return block;
+				}
+				if (remaining <= 0) {
+					return -1;
+				}
+				remaining = freed.awaitNanos(remaining);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Reuses a free block, carves one from the newest slab, or splits a larger free block, in that
+	 * order of preference. Returns -1 if none of them fits.
+	 */
+	private long tryAllocate(int sizeClass) {
+		if (!freeBlocks[sizeClass].isEmpty()) {
+			return freeBlocks[sizeClass].pop();
+		}
+		int size = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+		if (slabBytes - carved < size) {
+			releaseRemainder();
+			if (slabCount < slabs.length()) {
+				slabs.set(slabCount++, ByteBuffer.allocateDirect(slabBytes));
+				carved = 0;
+			}
+		}
+		if (slabBytes - carved >= size) {
+			long block = handle(slabCount - 1, carved);
+			carved += size;
+			return block;
+		}
+		for (int larger = sizeClass + 1; larger < freeBlocks.length; larger++) {
+			if (!freeBlocks[larger].isEmpty()) {
+				long block = freeBlocks[larger].pop();
+				while (larger > sizeClass) {
+					larger--;
+					freeBlocks[larger].push(block + (1 << (larger + MIN_BLOCK_SHIFT)));
+				}
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Puts what is left of the newest slab on the free lists before moving on from it
+	 */
+	private void releaseRemainder() {
+		while (slabBytes - carved >= 1 << MIN_BLOCK_SHIFT) {
+			int size = Integer.highestOneBit(slabBytes - carved);
+			freeBlocks[sizeClass(size)].push(handle(slabCount - 1, carved));
+			carved += size;
+		}
+	}
+
+	/*
+	 * Index of the smallest block size holding bytes
+	 */
+	private static int sizeClass(int bytes) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, bytes - 1));
+		return Math.max(0, shift - MIN_BLOCK_SHIFT);
+	}
+
+	private static long handle(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slabOf(long block) {
+		return (int) (block >>> 32);
+	}
+
+	private static int offsetOf(long block) {
+		return (int) block;
+	}
+
+	/*
+	 * Growable stack of block handles
+	 */
+	private static class LongStack {
+		private long[] values = new long[16];
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(long value) {
+			if (size == values.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+
+		long pop() {
+			return values[--size];
+		}
+	}
+}
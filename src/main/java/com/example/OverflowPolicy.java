@@ -0,0 +1,22 @@
+package com.example;
+
+/*
+ * What a push does when its messages would take a queue over its QueueLimits
+ */
+public enum OverflowPolicy {
+	/*
+	 * Waits for consumers to delete enough messages, up to the limits' maximum wait, then fails
+	 */
+	BLOCK,
+
+	/*
+	 * Fails at once with QueueFullException
+	 */
+	FAIL,
+
+	/*
+	 * Drops the oldest visible messages to make room. Fails if there is still no room once every
+	 * visible message is gone, as in-flight messages are never dropped.
+	 */
+	DROP_OLDEST
+}
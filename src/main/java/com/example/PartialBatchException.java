@@ -0,0 +1,41 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+
+/*
+ * Thrown by an SQS batch push some of whose messages SQS refused. The rest were sent. Each failed
+ * entry has the index of its message in the list pushed as its id, along with the error SQS gave,
+ * so the caller can retry exactly those messages.
+ */
+public class PartialBatchException extends AmazonServiceException {
+	private static final long serialVersionUID = 1L;
+
+	private final List<BatchResultErrorEntry> failed;
+
+	public PartialBatchException(String queueName, List<BatchResultErrorEntry> failed) {
+		super(failed.size() + " messages could not be pushed to queue " + queueName + ", first error: "
+				+ failed.get(0).getCode() + " " + failed.get(0).getMessage());
+		setErrorCode(failed.get(0).getCode());
+		this.failed = failed;
+	}
+
+	public List<BatchResultErrorEntry> getFailed() {
+		return failed;
+	}
+
+	/*
+	 * Indexes of the failed messages in the list pushed, in ascending order
+	 */
+	public List<Integer> getFailedIndexes() {
+		List<Integer> indexes = new ArrayList<Integer>(failed.size());
+		for(BatchResultErrorEntry entry : failed) {
+			indexes.add(Integer.parseInt(entry.getId()));
+		}
+		indexes.sort(null);
+		return indexes;
+	}
+}
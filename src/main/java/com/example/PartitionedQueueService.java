@@ -0,0 +1,526 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Spreads each logical queue over several shards of another QueueService, so pushes and pulls
+ * on one queue no longer share a single lock, file or list. Shard i of queue "orders" is the
+ * queue "orders#i" of the underlying service: a directory with its own lock for files, its own
+ * state in memory, its own queue for SQS.
+ *
+ * Producers place a message on the shard of its key, so messages with the same key stay in
+ * order on one shard, or on the next shard in turn when no key is given. Each consumer thread
+ * starts from a home shard of its own and steals from the others, in turn, when its home shard
+ * has nothing visible. Pulled messages are returned wrapped in a Partitioned, which every
+ * other method of this service unwraps.
+ *
+ * A shard only keeps its messages in order for one consumer at a time. For queues set to be
+ * ordered, a shard that has been pulled from is skipped by every other consumer of this service
+ * until each message pulled from it is deleted or given back, or until the lease set for the
+ * queue has passed, by which time they would have become visible again. Consumers in other
+ * processes are not held back, so ordered queues should be consumed by a single process.
+ *
+ * Partition counts belong to this service and decide where keys go, so every process using the
+ * queue must set the same count, before pushing to it.
+ */
+public class PartitionedQueueService implements QueueService {
+	/*
+	 * How long a pull that is waiting for messages waits on its home shard before looking at the
+	 * other shards again
+	 */
+	private static final long STEAL_INTERVAL_MILLIS = 100;
+
+	/*
+	 * Most messages moved to one shard at a time by redrive, so they are spread over all shards
+	 */
+	private static final int REDRIVE_CHUNK = 10;
+
+	private final QueueService shards;
+	private final int defaultPartitions;
+	private final ConcurrentMap<String, Partitions> partitions = new ConcurrentHashMap<String, Partitions>();
+	private final ConcurrentMap<String, Long> orderedLeases = new ConcurrentHashMap<String, Long>();
+
+	/*
+	 * Queues without a partition count of their own are spread over defaultPartitions shards
+	 */
+	public PartitionedQueueService(QueueService shards, int defaultPartitions) {
+		if(defaultPartitions < 1) {
+			throw new IllegalArgumentException("A queue needs at least one partition, not " + defaultPartitions);
+		}
+		this.shards = shards;
+		this.defaultPartitions = defaultPartitions;
+	}
+
+	/*
+	 * Spreads queueName over count shards. Keys map to other shards once the count changes, so
+	 * it should be set before the queue is used.
+	 */
+	public void setPartitions(String queueName, int count) {
+		if(count < 1) {
+			throw new IllegalArgumentException("A queue needs at least one partition, not " + count);
+		}
+		partitions.put(queueName, newPartitions(queueName, count));
+	}
+
+	/*
+	 * Hands each shard of queueName to one consumer of this service at a time, for at most lease,
+	 * so messages with the same key are handled in the order they were pushed. lease should be
+	 * the visibility timeout of the queue. A lease of zero turns ordering off.
+	 */
+	public void setOrdered(String queueName, long lease, TimeUnit unit) {
+		long leaseNanos = unit.toNanos(lease);
+		orderedLeases.put(queueName, leaseNanos);
+		getPartitions(queueName).leaseNanos = leaseNanos;
+	}
+
+	/*
+	 * Name of the underlying queue holding shard of queueName
+	 */
+	public static String shardName(String queueName, int shard) {
+		return queueName + "#" + shard;
+	}
+
+	/*
+	 * Pushes to the shard of key, after the messages pushed earlier with the same key. A null key
+	 * picks the next shard in turn.
+	 */
+	public void push(String queueName, String key, String msgContent) throws IOException {
+		shards.push(getPartitions(queueName).forKey(key).name, msgContent);
+	}
+
+	public void pushBytes(String queueName, String key, ByteBuffer payload) throws IOException {
+		shards.pushBytes(getPartitions(queueName).forKey(key).name, payload);
+	}
+
+	@Override
+	public void push(String queueName, String msgContent) throws IOException {
+		push(queueName, null, msgContent);
+	}
+
+	@Override
+	public void pushBytes(String queueName, ByteBuffer payload) throws IOException {
+		pushBytes(queueName, null, payload);
+	}
+
+	/*
+	 * Delayed messages go to the shard of key, or the next shard in turn for a null key, and wait
+	 * there as the shards' service makes them wait. A delayed message becomes visible after
+	 * messages with the same key pushed after it without a delay.
+	 */
+	public void push(String queueName, String key, String msgContent, long delay, TimeUnit unit) throws IOException {
+		shards.push(getPartitions(queueName).forKey(key).name, msgContent, delay, unit);
+	}
+
+	public void pushAt(String queueName, String key, String msgContent, Instant deliverAt) throws IOException {
+		shards.pushAt(getPartitions(queueName).forKey(key).name, msgContent, deliverAt);
+	}
+
+	@Override
+	public void push(String queueName, String msgContent, long delay, TimeUnit unit) throws IOException {
+		push(queueName, null, msgContent, delay, unit);
+	}
+
+	@Override
+	public void pushAt(String queueName, String msgContent, Instant deliverAt) throws IOException {
+		pushAt(queueName, null, msgContent, deliverAt);
+	}
+
+	/*
+	 * Deals the messages out over the shards in turn, with one batch push per shard
+	 */
+	@Override
+	public void pushBatch(String queueName, List<String> msgContents) throws IOException {
+		for(Map.Entry<Shard, List<String>> batch : getPartitions(queueName).deal(msgContents).entrySet()) {
+			shards.pushBatch(batch.getKey().name, batch.getValue());
+		}
+	}
+
+	@Override
+	public void pushBytesBatch(String queueName, List<ByteBuffer> payloads) throws IOException {
+		for(Map.Entry<Shard, List<ByteBuffer>> batch : getPartitions(queueName).deal(payloads).entrySet()) {
+			shards.pushBytesBatch(batch.getKey().name, batch.getValue());
+		}
+	}
+
+	/*
+	 * Offers to each shard in turn, so the message is only refused when no shard has room
+	 */
+	@Override
+	public boolean offer(String queueName, String msgContent) throws IOException {
+		Partitions queue = getPartitions(queueName);
+		Shard first = queue.forKey(null);
+		for(int i = 0; i < queue.shards.length; i++) {
+			if(shards.offer(queue.shards[(first.index + i) % queue.shards.length].name, msgContent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns null if no shard has a visible message
+	 */
+	@Override
+	public Partitioned pull(String queueName) throws IOException {
+		List<Partitioned> msgs = pullBatch(queueName, 1);
+		return msgs.isEmpty() ? null : msgs.get(0);
+	}
+
+	/*
+	 * Waits on the home shard of the calling thread, looking at every shard again at least every
+	 * STEAL_INTERVAL_MILLIS
+	 */
+	@Override
+	public Partitioned pull(String queueName, long waitTime, TimeUnit unit) throws IOException {
+		Partitions queue = getPartitions(queueName);
+		long deadline = System.nanoTime() + unit.toNanos(waitTime);
+		while(true) {
+			List<Partitioned> msgs = pullBatch(queueName, 1);
+			if(!msgs.isEmpty()) {
+				return msgs.get(0);
+			}
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			Shard home = queue.home();
+			Lease lease = home.claim(queue.leaseNanos);
+			if(lease == null) {
+				sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(STEAL_INTERVAL_MILLIS)));
+				continue;
+			}
+			Object msg = shards.pull(home.name,
+					Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(STEAL_INTERVAL_MILLIS)), TimeUnit.NANOSECONDS);
+			lease.pulled(msg == null ? 0 : 1);
+			if(msg != null) {
+				return new Partitioned(lease, msg);
+			}
+		}
+	}
+
+	/*
+	 * Fills the batch from the home shard of the calling thread first, then from the other shards
+	 * in turn
+	 */
+	@Override
+	public List<Partitioned> pullBatch(String queueName, int maxMessages) throws IOException {
+		Partitions queue = getPartitions(queueName);
+		List<Partitioned> msgs = new ArrayList<Partitioned>();
+		Shard home = queue.home();
+		for(int i = 0; i < queue.shards.length && msgs.size() < maxMessages; i++) {
+			Shard shard = queue.shards[(home.index + i) % queue.shards.length];
+			Lease lease = shard.claim(queue.leaseNanos);
+			if(lease == null) {
+				continue;
+			}
+			List<?> pulled = shards.pullBatch(shard.name, maxMessages - msgs.size());
+			lease.pulled(pulled.size());
+			for(Object msg : pulled) {
+				msgs.add(new Partitioned(lease, msg));
+			}
+		}
+		return msgs;
+	}
+
+	@Override
+	public void delete(String queueName, Object msg) throws IOException {
+		Partitioned partitioned = (Partitioned) msg;
+		shards.delete(partitioned.lease.shard.name, partitioned.message);
+		partitioned.lease.done(1);
+	}
+
+	/*
+	 * One batch delete per shard, or per lease of a shard of an ordered queue
+	 */
+	@Override
+	public void deleteBatch(String queueName, List<?> msgs) throws IOException {
+		for(Map.Entry<Lease, List<Object>> batch : byLease(msgs).entrySet()) {
+			shards.deleteBatch(batch.getKey().shard.name, batch.getValue());
+			batch.getKey().done(batch.getValue().size());
+		}
+	}
+
+	/*
+	 * A message given back with a timeout of zero no longer holds its shard of an ordered queue
+	 */
+	@Override
+	public boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) throws IOException {
+		Partitioned partitioned = (Partitioned) msg;
+		boolean changed = shards.changeVisibility(partitioned.lease.shard.name, partitioned.message, timeout, unit);
+		if(changed && timeout == 0) {
+			partitioned.lease.done(1);
+		}
+		return changed;
+	}
+
+	@Override
+	public int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) throws IOException {
+		int changed = 0;
+		for(Map.Entry<Lease, List<Object>> batch : byLease(msgs).entrySet()) {
+			int shardChanged = shards.changeVisibilityBatch(batch.getKey().shard.name, batch.getValue(), timeout, unit);
+			if(timeout == 0) {
+				batch.getKey().done(shardChanged);
+			}
+			changed += shardChanged;
+		}
+		return changed;
+	}
+
+	/*
+	 * Every shard of queueName moves its messages to deadLetterQueueName, which is a single queue
+	 * of the underlying service unless it is partitioned too, with as many shards
+	 */
+	@Override
+	public void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) throws IOException {
+		Partitions queue = getPartitions(queueName);
+		Partitions deadLetters = deadLetterQueueName == null ? null : partitions.get(deadLetterQueueName);
+		for(Shard shard : queue.shards) {
+			String target = deadLetterQueueName;
+			if(deadLetters != null && deadLetters.shards.length == queue.shards.length) {
+				target = deadLetters.shards[shard.index].name;
+			}
+			shards.setDeadLetterQueue(shard.name, target, maxReceiveCount);
+		}
+	}
+
+	/*
+	 * Moves messages from deadLetterQueueName, or each of its shards if it is partitioned, to
+	 * the shards of queueName. A dead-letter queue with as many shards as queueName, which
+	 * setDeadLetterQueue pairs shard by shard, gives each shard's messages back to the shard they
+	 * came from, so they stay on the shard of their key. Otherwise keys are not kept with
+	 * messages, so they are dealt out over the shards in turn.
+	 */
+	@Override
+	public int redrive(String deadLetterQueueName, String queueName, int maxMessages) throws IOException {
+		Partitions queue = getPartitions(queueName);
+		Partitions deadLetters = partitions.get(deadLetterQueueName);
+		boolean paired = deadLetters != null && deadLetters.shards.length == queue.shards.length;
+		List<String> sources = new ArrayList<String>();
+		if(deadLetters == null) {
+			sources.add(deadLetterQueueName);
+		} else {
+			for(Shard shard : deadLetters.shards) {
+				sources.add(shard.name);
+			}
+		}
+		int moved = 0;
+		for(int i = 0; i < sources.size(); i++) {
+			String source = sources.get(i);
+			while(moved < maxMessages) {
+				String target = paired ? queue.shards[i].name : queue.forKey(null).name;
+				int chunk = shards.redrive(source, target, Math.min(REDRIVE_CHUNK, maxMessages - moved));
+				if(chunk == 0) {
+					break;
+				}
+				moved += chunk;
+			}
+		}
+		return moved;
+	}
+
+	/*
+	 * Limits apply to each shard, so a queue of n shards holds up to n times the caps
+	 */
+	@Override
+	public void setQueueLimits(String queueName, QueueLimits limits) throws IOException {
+		for(Shard shard : getPartitions(queueName).shards) {
+			shards.setQueueLimits(shard.name, limits);
+		}
+	}
+
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return shards.getPayload(((Partitioned) msg).message);
+	}
+
+	private Partitions getPartitions(String queueName) {
+		Partitions queue = partitions.get(queueName);
+		if(queue == null) {
+			Partitions created = newPartitions(queueName, defaultPartitions);
+			queue = partitions.putIfAbsent(queueName, created);
+			if(queue == null) {
+				queue = created;
+			}
+		}
+		return queue;
+	}
+
+	private Partitions newPartitions(String queueName, int count) {
+		Partitions queue = new Partitions(queueName, count);
+		queue.leaseNanos = orderedLeases.getOrDefault(queueName, 0L);
+		return queue;
+	}
+
+	private static Map<Lease, List<Object>> byLease(List<?> msgs) {
+		Map<Lease, List<Object>> batches = new LinkedHashMap<Lease, List<Object>>();
+		for(Object msg : msgs) {
+			Partitioned partitioned = (Partitioned) msg;
+			batches.computeIfAbsent(partitioned.lease, lease -> new ArrayList<Object>()).add(partitioned.message);
+		}
+		return batches;
+	}
+
+	private static void sleep(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * A message pulled from a shard, with the lease on the shard it was pulled under
+	 */
+	public static class Partitioned {
+		private final Lease lease;
+		private final Object message;
+
+		private Partitioned(Lease lease, Object message) {
+			this.lease = lease;
+			this.message = message;
+		}
+
+		/*
+		 * Name of the underlying queue the message was pulled from
+		 */
+		public String getShardName() {
+			return lease.shard.name;
+		}
+
+		/*
+		 * The message as the underlying service returned it
+		 */
+		public Object getMessage() {
+			return message;
+		}
+	}
+
+	/*
+	 * The shards of one logical queue
+	 */
+	private static class Partitions {
+		final Shard[] shards;
+		final AtomicInteger next = new AtomicInteger();
+		volatile long leaseNanos;
+
+		Partitions(String queueName, int count) {
+			shards = new Shard[count];
+			for(int i = 0; i < count; i++) {
+				shards[i] = new Shard(shardName(queueName, i), i);
+			}
+		}
+
+		/*
+		 * Shard of key, or the next shard in turn for a null key
+		 */
+		Shard forKey(String key) {
+			int hash = key == null ? next.getAndIncrement() : key.hashCode();
+			return shards[Math.floorMod(hash, shards.length)];
+		}
+
+		/*
+		 * Consumer threads are spread over the shards by id, so each tends to find its own
+		 */
+		Shard home() {
+			return shards[(int) (Thread.currentThread().getId() % shards.length)];
+		}
+
+		<T> Map<Shard, List<T>> deal(List<T> values) {
+			Map<Shard, List<T>> batches = new LinkedHashMap<Shard, List<T>>();
+			int first = next.getAndAdd(values.size());
+			for(int i = 0; i < values.size(); i++) {
+				Shard shard = shards[Math.floorMod(first + i, shards.length)];
+				batches.computeIfAbsent(shard, s -> new ArrayList<T>()).add(values.get(i));
+			}
+			return batches;
+		}
+	}
+
+	/*
+	 * One shard, and for ordered queues the lease of the consumer holding it, or null if no
+	 * consumer holds it
+	 */
+	private static class Shard {
+		final String name;
+		final int index;
+		final AtomicReference<Lease> lease = new AtomicReference<Lease>();
+
+		/*
+		 * Lease every pull gets while the queue is not ordered, holding nothing
+		 */
+		final Lease unordered = new Lease(this, 0);
+
+		Shard(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+
+		/*
+		 * Takes the shard for a pull, returning the lease to pull under, or null if another
+		 * consumer holds it. Always succeeds unless the queue is ordered.
+		 */
+		Lease claim(long leaseNanos) {
+			if(leaseNanos == 0) {
+				return unordered;
+			}
+			long now = System.nanoTime();
+			Lease held = lease.get();
+			if(held != null && held.until - now > 0) {
+				return null;
+			}
+			Lease claimed = new Lease(this, now + leaseNanos);
+			return lease.compareAndSet(held, claimed) ? claimed : null;
+		}
+	}
+
+	/*
+	 * One consumer's hold on a shard of an ordered queue: until is when it ends in System.nanoTime,
+	 * and inFlight the messages pulled under it yet to be deleted or given back. Messages keep the
+	 * lease they were pulled under, so those of a lease that has lapsed cannot give up a later one.
+	 */
+	private static class Lease {
+		final Shard shard;
+		final long until;
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		Lease(Shard shard, long until) {
+			this.shard = shard;
+			this.until = until;
+		}
+
+		/*
+		 * Records how many messages the pull got, giving the shard up if none
+		 */
+		void pulled(int count) {
+			if(this == shard.unordered) {
+				return;
+			}
+			if(count == 0) {
+				shard.lease.compareAndSet(this, null);
+			} else {
+				inFlight.addAndGet(count);
+			}
+		}
+
+		/*
+		 * Gives the shard up once every message pulled under this lease is done with, if it still
+		 * holds the shard
+		 */
+		void done(int count) {
+			if(this != shard.unordered && count > 0 && inFlight.addAndGet(-count) <= 0) {
+				shard.lease.compareAndSet(this, null);
+			}
+		}
+	}
+}
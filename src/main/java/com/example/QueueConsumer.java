@@ -0,0 +1,219 @@
+package com.example;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Drains a queue of an AsyncQueueService into a handler. Each message runs the handler on a
+ * thread of its own, a virtual thread where the JVM has them (Java 21 on) or else a thread of a
+ * bounded pool, and is deleted once the handler returns. A message whose handler throws is left
+ * in flight, to be delivered again when its visibility timeout ends.
+ *
+ * Pulling takes no thread: the consumer keeps one pull outstanding at a time, asking for as many
+ * messages as it has room for under maxInFlight, and stops pulling while that many are being
+ * handled. So the number of handlers running at once is bounded by maxInFlight alone, which may
+ * be thousands with virtual threads.
+ */
+public class QueueConsumer implements Closeable {
+	/*
+	 * Handles one message; throwing leaves the message to be delivered again
+	 */
+	public interface Handler {
+		void handle(Object msg) throws Exception;
+	}
+
+	private final AsyncQueueService queueService;
+	private final String queueName;
+	private final Handler handler;
+	private final ConsumerConfig config;
+	private final ExecutorService handlers;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicBoolean polling = new AtomicBoolean();
+	private volatile boolean running;
+	private volatile CompletableFuture<?> waitingPull;
+
+	private static final Logger log = Logger.getLogger("QueueConsumer");
+
+	/*
+	 * How long to wait before pulling again after a pull failed
+	 */
+	private static final long RETRY_MILLIS = 1000;
+
+	public QueueConsumer(AsyncQueueService queueService, String queueName, Handler handler) {
+		this(queueService, queueName, handler, new ConsumerConfig());
+	}
+
+	public QueueConsumer(AsyncQueueService queueService, String queueName, Handler handler, ConsumerConfig config) {
+		this.queueService = queueService;
+		this.queueName = queueName;
+		this.handler = handler;
+		this.config = config;
+		this.handlers = newHandlerExecutor(config.getMaxThreads());
+	}
+
+	/*
+	 * A virtual thread per handler where the JVM supports it, looked up reflectively as this
+	 * code is built for Java 8, or else a fixed pool of maxThreads daemon threads
+	 */
+	static ExecutorService newHandlerExecutor(int maxThreads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return new ThreadPoolExecutor(maxThreads, maxThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactoryBuilder().setNameFormat("queue-consumer-%d").setDaemon(true).build());
+		}
+	}
+
+	public void start() {
+		running = true;
+		resume();
+	}
+
+	/*
+	 * Messages handed to handlers and not yet handled
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/*
+	 * Stops pulling, giving back any message a pull still brings. Handlers already running finish,
+	 * and their messages are deleted; see awaitTermination.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		CompletableFuture<?> waitingPull = this.waitingPull;
+		if (waitingPull != null) {
+			waitingPull.cancel(false);
+		}
+		handlers.shutdown();
+	}
+
+	/*
+	 * Waits for the handlers still running after close. Returns false on timeout.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return handlers.awaitTermination(timeout, unit);
+	}
+
+	private void resume() {
+		if (running && polling.compareAndSet(false, true)) {
+			poll();
+		}
+	}
+
+	/*
+	 * Pulls for as long as there is room and pulls complete at once, then continues from the
+	 * completion of the first pull that has to wait
+	 */
+	private void poll() {
+		while (running) {
+			int room = config.getMaxInFlight() - inFlight.get();
+			if (room <= 0) {
+				polling.set(false);
+				// A handler may have finished since room was read, and found polling still set
+				if (config.getMaxInFlight() - inFlight.get() <= 0 || !polling.compareAndSet(false, true)) {
+					return;
+				}
+				continue;
+			}
+			CompletableFuture<? extends List<?>> pulled = pull(Math.min(room, config.getBatchSize()));
+			if (!pulled.isDone()) {
+				pulled.handle(this::received).thenAccept(more -> {
+					if (more) {
+						poll();
+					}
+				});
+				return;
+			}
+			if (!pulled.handle(this::received).join()) {
+				return;
+			}
+		}
+		polling.set(false);
+	}
+
+	/*
+	 * Takes whatever is visible, or else waits for a message
+	 */
+	private CompletableFuture<? extends List<?>> pull(int maxMessages) {
+		return queueService.pullBatch(queueName, maxMessages).thenCompose(msgs -> {
+			if (!msgs.isEmpty() || !running) {
+				return CompletableFuture.completedFuture(msgs);
+			}
+			CompletableFuture<?> waitingPull = queueService.pull(queueName, config.getPollWaitMillis(), TimeUnit.MILLISECONDS);
+			this.waitingPull = waitingPull;
+			if (!running) {
+				waitingPull.cancel(false);
+			}
+			return waitingPull.thenApply(msg -> msg == null ? Collections.emptyList() : Collections.singletonList(msg));
+		});
+	}
+
+	/*
+	 * Dispatches pulled messages. Returns whether to pull again now; after a failed pull the
+	 * next one is made after RETRY_MILLIS.
+	 */
+	private boolean received(List<?> msgs, Throwable error) {
+		if (error != null) {
+			if (running) {
+				log.warning("Error occurred pulling messages from queue " + queueName + "; Error: " + error);
+				polling.set(false);
+				AsyncPull.timer.schedule(this::resume, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			return false;
+		}
+		for (Object msg : msgs) {
+			dispatch(msg);
+		}
+		return running;
+	}
+
+	private void dispatch(Object msg) {
+		if (!running) {
+			giveBack(msg);
+			return;
+		}
+		inFlight.incrementAndGet();
+		try {
+			handlers.execute(() -> handle(msg));
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			giveBack(msg);
+		}
+	}
+
+	private void handle(Object msg) {
+		try {
+			handler.handle(msg);
+			queueService.delete(queueName, msg).whenComplete((deleted, error) -> {
+				if (error != null) {
+					log.warning("Error occurred deleting handled message from queue " + queueName + "; Error: " + error);
+				}
+			});
+		} catch (Exception e) {
+			log.warning("Handler failed on message from queue " + queueName + ", leaving it to be delivered again; Error: " + e);
+		} finally {
+			inFlight.decrementAndGet();
+			resume();
+		}
+	}
+
+	private void giveBack(Object msg) {
+		queueService.changeVisibility(queueName, msg, 0, TimeUnit.SECONDS);
+	}
+}
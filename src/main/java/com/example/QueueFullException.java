@@ -0,0 +1,14 @@
+package com.example;
+
+/*
+ * Thrown by a push whose messages do not fit under the limits of the queue, or, in off-heap mode,
+ * in the memory of the service. Nothing of the failed push was stored, except for messages of
+ * an off-heap batch stored before the memory ran out.
+ */
+public class QueueFullException extends IllegalStateException {
+	private static final long serialVersionUID = 1L;
+
+	public QueueFullException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,65 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Caps on a single queue, set with QueueService.setQueueLimits.
+ *
+ * maxMessages    most messages in the queue, visible and in flight
+ * maxBytes       most bytes of UTF-8 content in the queue, visible and in flight
+ * overflowPolicy what a push that would go over a cap does; offer never waits or drops
+ * maxBlock       longest a push waits for room under OverflowPolicy.BLOCK
+ *
+ * Messages moved by dead-lettering or redrive are not held back, so a dead-letter queue can go
+ * over its caps rather than stall the queue it serves.
+ */
+public class QueueLimits {
+	private int maxMessages = Integer.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.FAIL;
+	private long maxBlockMillis = TimeUnit.SECONDS.toMillis(30);
+
+	public QueueLimits withMaxMessages(int maxMessages) {
+		this.maxMessages = maxMessages;
+		return this;
+	}
+
+	public QueueLimits withMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	public QueueLimits withOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	public QueueLimits withMaxBlock(long maxBlock, TimeUnit unit) {
+		this.maxBlockMillis = unit.toMillis(maxBlock);
+		return this;
+	}
+
+	int getMaxMessages() {
+		return maxMessages;
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	long getMaxBlockMillis() {
+		return maxBlockMillis;
+	}
+
+	/*
+	 * Whether count more messages of byteCount bytes fit in a queue holding size messages of
+	 * bytes bytes
+	 */
+	boolean fits(int size, long bytes, int count, long byteCount) {
+		return (long) size + count <= maxMessages && bytes + byteCount <= maxBytes;
+	}
+}
@@ -0,0 +1,79 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * Exclusive lock over a single queue directory, safe across threads and processes.
+ *
+ * Threads of this JVM first queue up on a ReentrantLock striped by lock file, so only the holder
+ * ever waits on the OS lock and hand-off between local threads never involves the file system.
+ * The holder then takes a FileChannel lock (flock/fcntl) on the lock file, which excludes other
+ * processes and is released by the OS if the holding process dies.
+ *
+ * Locks are shared by every FileQueueService in the JVM: the JVM tracks file locks per file, so
+ * two services over the same directory must not race for the OS lock through separate channels.
+ * The lock channel stays open for the life of the JVM, as closing any descriptor of a file drops
+ * every POSIX lock the process holds on it.
+ */
+class QueueLock {
+	static final String LOCK_FILE = "queue.lock";
+
+	private static final ConcurrentMap<Path, QueueLock> locks = new ConcurrentHashMap<Path, QueueLock>();
+	private static final Logger log = Logger.getLogger("QueueLock");
+
+	private final ReentrantLock threadLock = new ReentrantLock();
+	private final Path lockPath;
+	private FileChannel channel;
+	private FileLock fileLock;
+
+	private QueueLock(Path lockPath) {
+		this.lockPath = lockPath;
+	}
+
+	static QueueLock forQueue(Path queuePath) {
+		Path lockPath = queuePath.resolve(LOCK_FILE).toAbsolutePath().normalize();
+		return locks.computeIfAbsent(lockPath, QueueLock::new);
+	}
+
+	void lock() throws IOException {
+		threadLock.lock();
+		try {
+			fileLock = channel().lock();
+		} catch (IOException | RuntimeException e) {
+			threadLock.unlock();
+			throw e;
+		}
+	}
+
+	void unlock() {
+		try {
+			if (fileLock != null && fileLock.isValid()) {
+				fileLock.release();
+			}
+		} catch (IOException e) {
+			log.warning("Error occurred releasing lock " + lockPath + "; Error: " + e);
+		} finally {
+			fileLock = null;
+			threadLock.unlock();
+		}
+	}
+
+	/*
+	 * An interrupt during a channel operation closes the channel, so reopen it if needed. Only
+	 * the thread holding threadLock gets here.
+	 */
+	private FileChannel channel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+		return channel;
+	}
+}
@@ -0,0 +1,1196 @@
+package com.example;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Append-only, segmented log backing a single file queue.
+ *
+ * The queue directory holds rolling segment files named by a zero-padded segment id, read and
+ * written through memory mappings. Every record is a fixed-size binary header, followed by the
+ * payload bytes for PUSH records:
+ *
+ *   type (4) | payload length (4) | sequence (8) | value (8) | timestamp (8) | count (4)
+ *     | crc (4) | state (4) | receive count (4) | deadline (8) | payload
+ *
+ * SEGMENT records carry the next sequence number in value, PUSH records the visibility timeout
+ * of the message in milliseconds and, in count, the byte lengths of its FIFO group id (high 16
+ * bits) and deduplication id (low 16 bits), which precede the payload in UTF-8, PULL records the
+ * new visibility deadline and, in count, the receive count of the delivery. A PULL record with
+ * an unchanged receive count moves the deadline of a delivery whose visibility was changed, and
+ * one with a receive count of 0, right after the PUSH record of a delayed message, holds the
+ * message back until the time it becomes visible. DELETE records carry nothing. MOVE records are
+ * copies of a live message written by compaction: value holds its deadline, timestamp when it
+ * was pushed and count its receive count, and the payload is preceded by its visibility timeout
+ * (8), whether it was in flight (4) and the length of its FIFO group id (4), then the group id.
+ * The timestamp of every other record is when it was written, in milliseconds since the epoch. The CRC covers the first 36
+ * bytes of the header and the payload, so a record torn by a crash, or the zeroed space past the
+ * end of the log, is never mistaken for data.
+ * The last three header fields of a PUSH record are the current state of the message, updated in
+ * place on every pull and delete; they are not covered by the CRC. The PULL and DELETE records
+ * are the change feed that lets other processes follow those updates without rescanning.
+ *
+ * Each process keeps an in-memory view of the queue (the live messages, a ready set ordered by
+ * sequence, an in-flight set ordered by deadline, which also holds delayed messages until they
+ * become visible, the live messages of each FIFO group and the deduplication ids pushed within
+ * the window) which it brings up to date by reading only the records appended since its last
+ * visit. All methods must be called while holding the queue lock, so push, pull and delete cost
+ * stays flat as the queue grows, and payloads are only read when a message is delivered.
+ *
+ * Payloads are copied once, from the caller's buffer straight into the mapping, and handed out as
+ * read-only slices of the mapping, so neither a push nor a pull copies them onto the heap. Records
+ * are never rewritten past their header, and a mapping outlives the deletion of its segment, so a
+ * slice stays valid for as long as the message is referenced.
+ *
+ * Writes land in the page cache. sync() forces them to disk and may run on another thread
+ * without the queue lock: every record bumps a written counter after marking its segment dirty,
+ * so a sync that reads the counter first covers every record counted. A failed sync keeps the
+ * dirty marks for the next one to retry, and fails the waiters whose records it covered.
+ *
+ * The log is compacted from its head. The oldest segment is dropped once it is sealed, every
+ * message in it has been deleted, and the deduplication ids pushed to it have left the window.
+ * Before that, if at most half of it is live, or the log has grown past twice the size of its
+ * live messages, its live messages are copied to the end of the log in MOVE records, keeping
+ * their sequence, state and FIFO group, and so leave it for dropping. So one message left
+ * undeleted pins at most its own copy, and the disk space of a queue stays bounded by its live
+ * messages. State records only ever refer to messages in the same or an earlier segment, or moved
+ * out of one, so a process that finds its read position has been dropped by another process can
+ * safely forget everything it knew about the dropped segments: it meets the moved messages again
+ * in their MOVE records.
+ *
+ * A process starting on a large queue would have to replay every record still on disk to build
+ * its view. Instead, checkpoint() writes the view, with the log position it was taken at, to a
+ * checkpoint file in the queue directory: the live messages with the position of their PUSH
+ * records and their state, and the deduplication ids within the window. A new view loads the
+ * latest checkpoint whose position is still on disk and replays only the records after it, so
+ * starting costs the size of the view and of the records since the checkpoint, not the size of
+ * the log. The file is replaced atomically and carries a CRC, and any checkpoint that cannot be
+ * read falls back to a full replay.
+ *
+ * A record whose CRC fails at the end of the last segment was torn by a writer that crashed
+ * halfway through it. The first process to read it zeroes it, so the log ends cleanly before it.
+ */
+class QueueLog implements Closeable {
+	static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	static final int HEADER_SIZE = 56;
+	static final int SEGMENT = 1;
+	static final int PUSH = 2;
+	static final int PULL = 3;
+	static final int DELETE = 4;
+	static final int MOVE = 5;
+
+	static final int READY = 0;
+	static final int IN_FLIGHT = 1;
+	static final int DELETED = 2;
+
+	private static final int COUNT_OFFSET = 32;
+	private static final int CRC_OFFSET = 36;
+	private static final int STATE_OFFSET = 40;
+	private static final int RECEIVE_COUNT_OFFSET = 44;
+	private static final int DEADLINE_OFFSET = 48;
+
+	/*
+	 * Bytes ahead of the FIFO group id in a MOVE record: visibility timeout, state, group id length
+	 */
+	private static final int MOVE_PREFIX = 16;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int CHECKPOINT_VERSION = 1;
+
+	/*
+	 * State in checkpoints of a message waiting behind the first message of its FIFO group
+	 */
+	private static final int WAITING = 3;
+
+	private static final Logger log = Logger.getLogger("QueueLog");
+
+	private final String queueName;
+	private final Path queuePath;
+	private final long segmentSize;
+	private final CRC32 crc = new CRC32();
+	private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+
+	private long firstSegment = -1;
+	private long readSegment = -1;
+	private long readOffset;
+	private long nextSeq;
+
+	private final ConcurrentMap<Long, MappedByteBuffer> dirty = new ConcurrentHashMap<Long, MappedByteBuffer>();
+	private final AtomicLong written = new AtomicLong();
+	private volatile long synced;
+	private long failedSync;
+	private IOException syncFailure;
+	private volatile boolean segmentCreated;
+	private int expired;
+	private long appliedSinceCheckpoint;
+
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+	private final TreeMap<Long, Entry> ready = new TreeMap<Long, Entry>();
+	private final TreeSet<Entry> inFlight = new TreeSet<Entry>(Entry.BY_DEADLINE);
+	/*
+	 * Bytes of the records of live messages in each segment
+	 */
+	private final Map<Long, Long> liveBySegment = new HashMap<Long, Long>();
+	private long bytes;
+	private int delayed;
+
+	/*
+	 * Live messages of each FIFO group, in push order. Only the first of a group is ever in the
+	 * ready or in-flight set; the next joins the ready set once it is deleted.
+	 */
+	private final Map<String, ArrayDeque<Entry>> groups = new HashMap<String, ArrayDeque<Entry>>();
+	private final DeduplicationWindow deduplication = new DeduplicationWindow();
+	private final Map<Long, Long> lastDeduplicatedAt = new HashMap<Long, Long>();
+	private volatile long deduplicationWindowMillis = FifoQueueService.DEFAULT_DEDUPLICATION_WINDOW_MILLIS;
+
+	QueueLog(String queueName, Path queuePath, long segmentSize) {
+		this.queueName = queueName;
+		this.queuePath = queuePath;
+		this.segmentSize = segmentSize;
+	}
+
+	/*
+	 * Applies every record appended since the last call, by this or any other process.
+	 */
+	void catchUp() throws IOException {
+		if(readSegment < 0) {
+			loadCheckpoint();
+		}
+		if(readSegment < 0 || !Files.exists(segmentPath(readSegment))) {
+			seekToFirstSegment();
+			if(readSegment < 0) {
+				return;
+			}
+		}
+		while(true) {
+			MappedByteBuffer buffer = mapping(readSegment, 0);
+			while(true) {
+				if(readOffset + HEADER_SIZE > buffer.capacity()) {
+					// Another process may have grown the segment since it was mapped
+					buffer = remap(readSegment);
+					if(readOffset + HEADER_SIZE > buffer.capacity()) {
+						break;
+					}
+				}
+				int position = (int) readOffset;
+				int length = buffer.getInt(position + 4);
+				if(buffer.getInt(position) == 0 || length < 0) {
+					break;
+				}
+				if(position + HEADER_SIZE + length > buffer.capacity()) {
+					buffer = remap(readSegment);
+					if(position + HEADER_SIZE + length > buffer.capacity()) {
+						break;
+					}
+				}
+				if(checksum(buffer, position, length) != buffer.getInt(position + CRC_OFFSET)) {
+					// Torn write from a crashed writer, unless later segments show it is not the tail
+					if(!Files.exists(segmentPath(readSegment + 1))) {
+						truncate(buffer, position, length);
+					}
+					break;
+				}
+				apply(buffer.getInt(position), buffer.getLong(position + 8), buffer.getLong(position + 16),
+						buffer.getLong(position + 24), buffer.getInt(position + COUNT_OFFSET), readSegment, readOffset, length);
+				readOffset += HEADER_SIZE + length;
+			}
+			if(!Files.exists(segmentPath(readSegment + 1))) {
+				return;
+			}
+			readSegment++;
+			readOffset = 0;
+		}
+	}
+
+	/*
+	 * Appends a PUSH record for each message.
+	 */
+	void push(List<ByteBuffer> payloads, long visibilityTimeoutMillis, long now) throws IOException {
+		push(payloads, null, null, visibilityTimeoutMillis, 0, now);
+	}
+
+	/*
+	 * Appends a PUSH record for each message, with the FIFO group and deduplication id at the same
+	 * index of groupIds and deduplicationIds. Either list, or any id in them, may be null. Skips
+	 * messages whose deduplication id was pushed within the window, by any process. Messages
+	 * become visible at visibleAt, or at once if it is not after now. Returns the number of
+	 * messages appended.
+	 */
+	int push(List<ByteBuffer> payloads, List<String> groupIds, List<String> deduplicationIds, long visibilityTimeoutMillis,
+			long visibleAt, long now) throws IOException {
+		int pushed = 0;
+		for(int i = 0; i < payloads.size(); i++) {
+			String groupId = groupIds == null ? null : groupIds.get(i);
+			String deduplicationId = deduplicationIds == null ? null : deduplicationIds.get(i);
+			if(deduplicationId != null && deduplication.contains(deduplicationId, now, deduplicationWindowMillis)) {
+				continue;
+			}
+			byte[] groupKey = keyBytes(groupId);
+			byte[] deduplicationKey = keyBytes(deduplicationId);
+			ByteBuffer keys = null;
+			if(groupKey.length + deduplicationKey.length > 0) {
+				keys = ByteBuffer.allocate(groupKey.length + deduplicationKey.length).put(groupKey).put(deduplicationKey);
+				((Buffer) keys).flip();
+			}
+			long seq = nextSeq;
+			append(PUSH, seq, visibilityTimeoutMillis, now, groupKey.length << 16 | deduplicationKey.length, keys,
+					payloads.get(i));
+			if(visibleAt > now) {
+				append(PULL, seq, visibleAt, now, 0, null, null);
+				updateState(entries.get(seq), IN_FLIGHT);
+			}
+			pushed++;
+		}
+		return pushed;
+	}
+
+	/*
+	 * Deduplication ids are remembered for window from their push; it should be the same for
+	 * every process using the queue
+	 */
+	void setDeduplicationWindow(long windowMillis) {
+		this.deduplicationWindowMillis = windowMillis;
+	}
+
+	/*
+	 * Marks up to maxMessages visible messages, in FIFO order, as in flight until deadline and
+	 * returns them. The state of each message is updated in place in its PUSH record.
+	 */
+	List<QueueMessage> pull(int maxMessages, long now, long deadline) throws IOException {
+		return pull(maxMessages, now, deadline, 0, null);
+	}
+
+	/*
+	 * As pull, but messages already received maxReceiveCount times are marked in flight and added
+	 * to deadLetters instead of being returned, for the caller to move to the dead-letter queue
+	 * and then delete. Should the caller die first, they become visible again and are moved on
+	 * a later pull. A maxReceiveCount of 0 means no limit. Dead letters count toward maxMessages,
+	 * so a pull never takes more than that many messages under the lock.
+	 */
+	List<QueueMessage> pull(int maxMessages, long now, long deadline, int maxReceiveCount, List<QueueMessage> deadLetters)
+			throws IOException {
+		expire(now);
+		List<QueueMessage> messages = new ArrayList<QueueMessage>();
+		for(int taken = 0; taken < maxMessages && !ready.isEmpty(); taken++) {
+			Entry entry = ready.firstEntry().getValue();
+			boolean deadLetter = maxReceiveCount > 0 && entry.receiveCount >= maxReceiveCount;
+			QueueMessage message = deliver(entry, now, deadline);
+			(deadLetter ? deadLetters : messages).add(message);
+		}
+		return messages;
+	}
+
+	private QueueMessage deliver(Entry entry, long now, long deadline) throws IOException {
+		int start = (int) entry.offset + HEADER_SIZE + entry.keyLength;
+		MappedByteBuffer buffer = mapping(entry.segment, start + entry.length);
+		ByteBuffer payload = buffer.asReadOnlyBuffer();
+		((Buffer) payload).position(start).limit(start + entry.length);
+		append(PULL, entry.seq, deadline, now, entry.receiveCount + 1, null, null);
+		updateState(entry, IN_FLIGHT);
+		QueueMessage message = new QueueMessage(queueName, entry.seq, entry.receiveCount, payload.slice(),
+				entry.visibilityTimeoutMillis, deadline, entry.pushedAt);
+		message.setMessageGroupId(entry.groupId);
+		return message;
+	}
+
+	/*
+	 * Deletes the deliveries named by the receipt handles of the given messages, skipping any
+	 * that are no longer the latest delivery of their message or whose visibility timeout has
+	 * expired. Returns the receipts of the messages deleted.
+	 */
+	List<QueueMessage> delete(List<QueueMessage> receipts, long now) throws IOException {
+		List<QueueMessage> deleted = new ArrayList<QueueMessage>();
+		for(QueueMessage receipt : receipts) {
+			Entry entry = entries.get(receipt.getSequence());
+			if(entry == null || entry.receiveCount != receipt.getReceiveCount() || now > entry.deadline) {
+				continue;
+			}
+			append(DELETE, entry.seq, 0, now, 0, null, null);
+			updateState(entry, DELETED);
+			deleted.add(receipt);
+		}
+		return deleted;
+	}
+
+	/*
+	 * Moves the deadline of the deliveries named by the receipt handles of the given messages,
+	 * skipping any that are no longer the latest delivery of their message or have expired.
+	 * Returns the receipts of the messages changed.
+	 */
+	List<QueueMessage> changeVisibility(List<QueueMessage> receipts, long now, long deadline) throws IOException {
+		List<QueueMessage> changed = new ArrayList<QueueMessage>();
+		for(QueueMessage receipt : receipts) {
+			Entry entry = entries.get(receipt.getSequence());
+			if(entry == null || entry.receiveCount != receipt.getReceiveCount() || now > entry.deadline) {
+				continue;
+			}
+			append(PULL, entry.seq, deadline, now, entry.receiveCount, null, null);
+			updateState(entry, IN_FLIGHT);
+			changed.add(receipt);
+		}
+		return changed;
+	}
+
+	/*
+	 * Deletes the oldest visible message, as if it had been pulled and deleted. Returns false if
+	 * no message is visible.
+	 */
+	boolean dropOldest(long now) throws IOException {
+		expire(now);
+		if(ready.isEmpty()) {
+			return false;
+		}
+		Entry entry = ready.firstEntry().getValue();
+		append(DELETE, entry.seq, 0, now, 0, null, null);
+		updateState(entry, DELETED);
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/*
+	 * Payload bytes of the live messages
+	 */
+	long bytes() {
+		return bytes;
+	}
+
+	/*
+	 * Messages delivered and not yet deleted or visible again, not counting delayed messages
+	 */
+	int inFlightCount() {
+		return inFlight.size() - delayed;
+	}
+
+	/*
+	 * Messages pushed with a delay that has not yet passed
+	 */
+	int delayedCount() {
+		return delayed;
+	}
+
+	/*
+	 * Number of in-flight messages this process has seen become visible again since the last
+	 * call
+	 */
+	int drainExpired() {
+		int count = expired;
+		expired = 0;
+		return count;
+	}
+
+	/*
+	 * Deadline at which the next in-flight or delayed message becomes visible, or Long.MAX_VALUE
+	 * if none is
+	 */
+	long nextDeadline() {
+		return inFlight.isEmpty() ? Long.MAX_VALUE : inFlight.first().deadline;
+	}
+
+	/*
+	 * True if the oldest segment is sealed, holds no deduplication id still within the window,
+	 * which every process must go on seeing, and either holds no live message or is worth moving
+	 * the live ones out of.
+	 */
+	boolean needsCompaction() {
+		if(firstSegment < 0 || firstSegment >= readSegment) {
+			return false;
+		}
+		Long deduplicatedAt = lastDeduplicatedAt.get(firstSegment);
+		if(deduplicatedAt != null && System.currentTimeMillis() - deduplicatedAt < deduplicationWindowMillis) {
+			return false;
+		}
+		long live = liveBytes(firstSegment);
+		return live <= segmentSize / 2 || logBytes() > 2 * (liveBytes() + segmentSize);
+	}
+
+	/*
+	 * Drops the fully acknowledged segments at the head of the log, and moves the live messages of
+	 * the oldest one out of it if needsCompaction() says so. Moves at most one segment per call,
+	 * to keep the queue lock short; returns true if more compaction is due.
+	 *
+	 * The moved copies are forced to disk before the segment is dropped, so a crash cannot lose
+	 * them whatever the durability of the queue.
+	 */
+	boolean compact() throws IOException {
+		dropSegments();
+		if(!needsCompaction()) {
+			return false;
+		}
+		long moveFrom = firstSegment;
+		long moveTo = readSegment;
+		List<Entry> live = new ArrayList<Entry>();
+		for(Entry entry : entries.values()) {
+			if(entry.segment == moveFrom) {
+				live.add(entry);
+			}
+		}
+		live.sort(Entry.BY_SEQ);
+		for(Entry entry : live) {
+			move(entry);
+		}
+		for(MappedByteBuffer buffer : segments.tailMap(moveTo).values()) {
+			buffer.force();
+		}
+		if(segmentCreated) {
+			syncDirectory();
+		}
+		dropSegments();
+		return needsCompaction();
+	}
+
+	private void dropSegments() throws IOException {
+		while(firstSegment >= 0 && firstSegment < readSegment && liveBytes(firstSegment) == 0 && needsCompaction()) {
+			segments.remove(firstSegment);
+			Files.deleteIfExists(segmentPath(firstSegment));
+			liveBySegment.remove(firstSegment);
+			lastDeduplicatedAt.remove(firstSegment);
+			firstSegment++;
+		}
+	}
+
+	/*
+	 * Copies a live message to the end of the log in a MOVE record
+	 */
+	private void move(Entry entry) throws IOException {
+		byte[] groupKey = keyBytes(entry.groupId);
+		ByteBuffer keys = ByteBuffer.allocate(MOVE_PREFIX + groupKey.length).putLong(entry.visibilityTimeoutMillis)
+				.putInt(inFlight.contains(entry) ? IN_FLIGHT : READY).putInt(groupKey.length).put(groupKey);
+		((Buffer) keys).flip();
+		int start = (int) entry.offset + HEADER_SIZE + entry.keyLength;
+		ByteBuffer payload = ((ByteBuffer) mapping(entry.segment, start + entry.length)).duplicate();
+		((Buffer) payload).limit(start + entry.length).position(start);
+		append(MOVE, entry.seq, entry.deadline, entry.pushedAt, entry.receiveCount, keys, payload);
+		updateState(entry, inFlight.contains(entry) ? IN_FLIGHT : READY);
+	}
+
+	/*
+	 * Records applied to the view since it was last checkpointed, or loaded from a checkpoint
+	 */
+	long appliedSinceCheckpoint() {
+		return appliedSinceCheckpoint;
+	}
+
+	/*
+	 * Writes the view to the checkpoint file of the queue, replacing the previous checkpoint. Every
+	 * mapped segment is forced to disk first, so a checkpoint never covers records that a crash
+	 * could still lose.
+	 */
+	void checkpoint() throws IOException {
+		if(readSegment < 0) {
+			return;
+		}
+		for(MappedByteBuffer buffer : segments.values()) {
+			buffer.force();
+		}
+		Entry[] live = entries.values().toArray(new Entry[entries.size()]);
+		// Group members must be loaded in push order
+		Arrays.sort(live, Entry.BY_SEQ);
+		Map<String, Long> deduplicationIds = deduplication.snapshot();
+		Path temp = queuePath.resolve(CHECKPOINT_FILE + ".tmp");
+		CRC32 checksum = new CRC32();
+		try (FileOutputStream file = new FileOutputStream(temp.toFile());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, checksum), 1 << 16))) {
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeLong(firstSegment);
+			out.writeLong(readSegment);
+			out.writeLong(readOffset);
+			out.writeLong(nextSeq);
+			out.writeInt(live.length);
+			for(Entry entry : live) {
+				out.writeLong(entry.seq);
+				out.writeLong(entry.segment);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.keyLength);
+				out.writeInt(entry.length);
+				out.writeLong(entry.visibilityTimeoutMillis);
+				out.writeLong(entry.pushedAt);
+				out.writeLong(entry.deadline);
+				out.writeInt(entry.receiveCount);
+				out.writeInt(ready.containsKey(entry.seq) ? READY : inFlight.contains(entry) ? IN_FLIGHT : WAITING);
+				writeKey(out, entry.groupId);
+			}
+			out.writeInt(deduplicationIds.size());
+			for(Map.Entry<String, Long> id : deduplicationIds.entrySet()) {
+				writeKey(out, id.getKey());
+				out.writeLong(id.getValue());
+			}
+			out.writeInt(lastDeduplicatedAt.size());
+			for(Map.Entry<Long, Long> segment : lastDeduplicatedAt.entrySet()) {
+				out.writeLong(segment.getKey());
+				out.writeLong(segment.getValue());
+			}
+			out.flush();
+			out.writeInt((int) checksum.getValue());
+			out.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(temp, queuePath.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		appliedSinceCheckpoint = 0;
+	}
+
+	/*
+	 * Number of records written by this process so far. A record is on disk once synced() has
+	 * caught up with the count taken after writing it.
+	 */
+	long written() {
+		return written.get();
+	}
+
+	long synced() {
+		return synced;
+	}
+
+	/*
+	 * Forces every record written so far, and the directory entry of any new segment, to disk.
+	 * Syncs must not run concurrently with each other, but need not hold the queue lock.
+	 *
+	 * A segment's mark is taken before forcing it, so a record written meanwhile marks it again,
+	 * and is put back if the force fails, so the next sync forces the segment again.
+	 */
+	void sync() throws IOException {
+		long target = written.get();
+		try {
+			if(segmentCreated) {
+				segmentCreated = false;
+				syncDirectory();
+			}
+			for(Long segment : dirty.keySet()) {
+				MappedByteBuffer buffer = dirty.remove(segment);
+				if(buffer != null) {
+					force(segment, buffer);
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failedSync = Math.max(failedSync, target);
+				syncFailure = e;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			synced = Math.max(synced, target);
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Waits until the record count given has been synced, or timeoutNanos passes. Returns false
+	 * on timeout. Throws IOException if a sync covering the count failed and none has succeeded
+	 * since.
+	 */
+	synchronized boolean awaitSync(long count, long timeoutNanos) throws InterruptedException, IOException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while(synced < count) {
+			if(failedSync >= count) {
+				throw new IOException("Records of queue " + queueName + " could not be synced", syncFailure);
+			}
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/*
+	 * Forgets the mappings; the memory is released once they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		segments.clear();
+	}
+
+	/*
+	 * Writes a record at the end of the active segment and applies it to the view.
+	 */
+	private void append(int type, long seq, long value, long timestamp, int count, ByteBuffer keys, ByteBuffer payload)
+			throws IOException {
+		if(readSegment < 0) {
+			createSegment(0);
+		} else if(readOffset >= segmentSize) {
+			createSegment(readSegment + 1);
+		}
+		int length = (keys == null ? 0 : keys.remaining()) + (payload == null ? 0 : payload.remaining());
+		MappedByteBuffer buffer = mapping(readSegment, readOffset + HEADER_SIZE + length);
+		writeRecord(buffer, (int) readOffset, type, seq, value, timestamp, count, keys, payload);
+		dirty.put(readSegment, buffer);
+		written.incrementAndGet();
+		apply(type, seq, value, timestamp, count, readSegment, readOffset, length);
+		readOffset += HEADER_SIZE + length;
+	}
+
+	/*
+	 * Writes the payload and header before the CRC, so the record only becomes valid once it is
+	 * complete.
+	 */
+	private void writeRecord(ByteBuffer buffer, int position, int type, long seq, long value, long timestamp, int count,
+			ByteBuffer keys, ByteBuffer payload) {
+		ByteBuffer target = buffer.duplicate();
+		((Buffer) target).position(position + HEADER_SIZE);
+		if(keys != null) {
+			target.put(keys.duplicate());
+		}
+		if(payload != null) {
+			target.put(payload.duplicate());
+		}
+		int length = target.position() - position - HEADER_SIZE;
+		buffer.putInt(position, type).putInt(position + 4, length).putLong(position + 8, seq)
+				.putLong(position + 16, value).putLong(position + 24, timestamp).putInt(position + COUNT_OFFSET, count)
+				.putInt(position + STATE_OFFSET, READY).putInt(position + RECEIVE_COUNT_OFFSET, 0)
+				.putLong(position + DEADLINE_OFFSET, 0);
+		buffer.putInt(position + CRC_OFFSET, checksum(buffer, position, length));
+	}
+
+	/*
+	 * Records the current state of a message in the header of its PUSH record
+	 */
+	private void updateState(Entry entry, int state) throws IOException {
+		MappedByteBuffer buffer = mapping(entry.segment, entry.offset + HEADER_SIZE);
+		int position = (int) entry.offset;
+		buffer.putInt(position + STATE_OFFSET, state).putInt(position + RECEIVE_COUNT_OFFSET, entry.receiveCount)
+				.putLong(position + DEADLINE_OFFSET, entry.deadline);
+		dirty.put(entry.segment, buffer);
+	}
+
+	private int checksum(ByteBuffer buffer, int position, int length) {
+		ByteBuffer covered = buffer.duplicate();
+		crc.reset();
+		((Buffer) covered).limit(position + CRC_OFFSET).position(position);
+		crc.update(covered);
+		((Buffer) covered).limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+		crc.update(covered);
+		return (int) crc.getValue();
+	}
+
+	private void createSegment(long segment) throws IOException {
+		if(firstSegment < 0) {
+			firstSegment = segment;
+		}
+		readSegment = segment;
+		readOffset = 0;
+		segmentCreated = true;
+		MappedByteBuffer buffer = mapping(segment, HEADER_SIZE);
+		writeRecord(buffer, 0, SEGMENT, nextSeq, 0, System.currentTimeMillis(), 0, null, null);
+		dirty.put(segment, buffer);
+		written.incrementAndGet();
+		readOffset = HEADER_SIZE;
+	}
+
+	private void apply(int type, long seq, long value, long timestamp, int count, long segment, long offset, int length)
+			throws IOException {
+		Entry entry;
+		appliedSinceCheckpoint++;
+		switch (type) {
+		case SEGMENT:
+			nextSeq = Math.max(nextSeq, seq);
+			break;
+		case PUSH:
+			int groupLength = count >>> 16;
+			int deduplicationLength = count & 0xFFFF;
+			String groupId = readKey(segment, offset + HEADER_SIZE, groupLength);
+			String deduplicationId = readKey(segment, offset + HEADER_SIZE + groupLength, deduplicationLength);
+			entry = new Entry(seq, segment, offset, groupLength + deduplicationLength, length - groupLength - deduplicationLength,
+					value, timestamp, groupId);
+			entries.put(seq, entry);
+			if(groupId == null || joinGroup(entry)) {
+				ready.put(seq, entry);
+			}
+			if(deduplicationId != null) {
+				deduplication.record(deduplicationId, timestamp);
+				lastDeduplicatedAt.merge(segment, timestamp, Math::max);
+			}
+			bytes += entry.length;
+			addLive(segment, entry.recordSize());
+			nextSeq = Math.max(nextSeq, seq + 1);
+			break;
+		case MOVE:
+			applyMove(seq, value, timestamp, count, segment, offset, length);
+			break;
+		case PULL:
+			entry = entries.get(seq);
+			if(entry != null) {
+				unlink(entry);
+				entry.deadline = value;
+				entry.receiveCount = count;
+				inFlight.add(entry);
+				if(count == 0) {
+					delayed++;
+				}
+			}
+			break;
+		case DELETE:
+			entry = entries.remove(seq);
+			if(entry != null) {
+				unlink(entry);
+				leaveGroup(entry);
+				bytes -= entry.length;
+				addLive(entry.segment, -entry.recordSize());
+			}
+			break;
+		default:
+			throw new IllegalStateException("Corrupt record of type " + type + " in " + segmentPath(segment));
+		}
+	}
+
+	/*
+	 * Points the message at its moved copy, or, for a process that forgot it along with a segment
+	 * dropped before it read the move, brings it back in the state it was moved in
+	 */
+	private void applyMove(long seq, long deadline, long pushedAt, int receiveCount, long segment, long offset, int length)
+			throws IOException {
+		MappedByteBuffer buffer = mapping(segment, offset + HEADER_SIZE + MOVE_PREFIX);
+		int prefix = (int) offset + HEADER_SIZE;
+		int keyLength = MOVE_PREFIX + buffer.getInt(prefix + 12);
+		Entry entry = entries.get(seq);
+		if(entry != null) {
+			addLive(entry.segment, -entry.recordSize());
+			entry.segment = segment;
+			entry.offset = offset;
+			entry.keyLength = keyLength;
+			addLive(segment, entry.recordSize());
+			return;
+		}
+		entry = new Entry(seq, segment, offset, keyLength, length - keyLength, buffer.getLong(prefix), pushedAt,
+				readKey(segment, prefix + MOVE_PREFIX, keyLength - MOVE_PREFIX));
+		entry.deadline = deadline;
+		entry.receiveCount = receiveCount;
+		entries.put(seq, entry);
+		boolean first = entry.groupId == null || joinGroup(entry);
+		if(buffer.getInt(prefix + 8) == IN_FLIGHT) {
+			inFlight.add(entry);
+			if(receiveCount == 0) {
+				delayed++;
+			}
+		} else if(first) {
+			ready.put(seq, entry);
+		}
+		bytes += entry.length;
+		addLive(segment, entry.recordSize());
+		nextSeq = Math.max(nextSeq, seq + 1);
+	}
+
+	private void unlink(Entry entry) {
+		if(ready.remove(entry.seq) == null && inFlight.remove(entry) && entry.receiveCount == 0) {
+			delayed--;
+		}
+	}
+
+	/*
+	 * Adds a message to its FIFO group, in push order. Returns true if it is the first of the
+	 * group, and so may be delivered.
+	 */
+	private boolean joinGroup(Entry entry) {
+		ArrayDeque<Entry> group = groups.computeIfAbsent(entry.groupId, groupId -> new ArrayDeque<Entry>());
+		if(group.isEmpty() || group.peekLast().seq < entry.seq) {
+			group.addLast(entry);
+			return group.size() == 1;
+		}
+		// A moved message met again after later messages of its group. None of those can have been
+		// delivered while it was live, so the one that was first only leaves the ready set.
+		List<Entry> members = new ArrayList<Entry>(group);
+		int index = 0;
+		while(members.get(index).seq < entry.seq) {
+			index++;
+		}
+		members.add(index, entry);
+		Entry first = group.peekFirst();
+		group.clear();
+		group.addAll(members);
+		if(index > 0) {
+			return false;
+		}
+		ready.remove(first.seq);
+		return true;
+	}
+
+	/*
+	 * Removes a deleted message from its FIFO group, making the next message of the group ready
+	 * if it was the first
+	 */
+	private void leaveGroup(Entry entry) {
+		ArrayDeque<Entry> group = entry.groupId == null ? null : groups.get(entry.groupId);
+		if(group == null) {
+			return;
+		}
+		boolean first = group.peekFirst() == entry;
+		group.remove(entry);
+		if(group.isEmpty()) {
+			groups.remove(entry.groupId);
+		} else if(first) {
+			ready.put(group.peekFirst().seq, group.peekFirst());
+		}
+	}
+
+	/*
+	 * Reads a FIFO group or deduplication id of length bytes, or returns null for an id of no bytes
+	 */
+	private String readKey(long segment, long position, int length) throws IOException {
+		if(length == 0) {
+			return null;
+		}
+		ByteBuffer key = ((ByteBuffer) mapping(segment, position + length)).duplicate();
+		((Buffer) key).limit((int) position + length).position((int) position);
+		return StandardCharsets.UTF_8.decode(key).toString();
+	}
+
+	/*
+	 * UTF-8 bytes of a FIFO group or deduplication id, which must fit in the 16 bits the PUSH
+	 * record has for its length
+	 */
+	private static byte[] keyBytes(String key) {
+		if(key == null) {
+			return new byte[0];
+		}
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length == 0 || bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Ids of FIFO groups and deduplication must be 1 to 65535 bytes, not " + bytes.length);
+		}
+		return bytes;
+	}
+
+	/*
+	 * Returns every in-flight message whose deadline has passed to the ready set, along with the
+	 * delayed messages that came due. Ready messages are ordered by sequence, so redelivered
+	 * messages go back to the head of the queue, and delayed ones take the place of their push.
+	 */
+	private void expire(long now) {
+		while(!inFlight.isEmpty() && now > inFlight.first().deadline) {
+			Entry entry = inFlight.pollFirst();
+			ready.put(entry.seq, entry);
+			if(entry.receiveCount == 0) {
+				delayed--;
+			} else {
+				expired++;
+			}
+		}
+	}
+
+	/*
+	 * Zeroes a torn record, as far as it lies within the mapping, so the log ends before it
+	 */
+	private void truncate(MappedByteBuffer buffer, int position, int length) {
+		int end = (int) Math.min(buffer.capacity(), (long) position + HEADER_SIZE + length);
+		for(int i = position; i < end; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		dirty.put(readSegment, buffer);
+		written.incrementAndGet();
+		log.warning("Truncated record torn by a crashed writer at offset " + position + " of " + segmentPath(readSegment));
+	}
+
+	/*
+	 * Loads the view from the checkpoint file into an empty view, positioning the reader right
+	 * after the last record it covers. Leaves the view empty if there is no checkpoint, it is
+	 * damaged or its read position has been dropped since.
+	 */
+	private void loadCheckpoint() throws IOException {
+		ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(queuePath.resolve(CHECKPOINT_FILE), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size < 8 || size > Integer.MAX_VALUE) {
+				return;
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		CRC32 checksum = new CRC32();
+		ByteBuffer covered = in.duplicate();
+		((Buffer) covered).limit(in.capacity() - 4);
+		checksum.update(covered);
+		if((int) checksum.getValue() != in.getInt(in.capacity() - 4) || in.getInt() != CHECKPOINT_VERSION) {
+			log.warning("Ignoring damaged checkpoint of queue " + queueName + "; replaying its whole log");
+			return;
+		}
+		long first = in.getLong();
+		long segment = in.getLong();
+		long offset = in.getLong();
+		long seq = in.getLong();
+		if(!Files.exists(segmentPath(segment))) {
+			return;
+		}
+		for(int i = in.getInt(); i > 0; i--) {
+			long entrySeq = in.getLong();
+			long entrySegment = in.getLong();
+			long entryOffset = in.getLong();
+			int keyLength = in.getInt();
+			int length = in.getInt();
+			long visibilityTimeoutMillis = in.getLong();
+			long pushedAt = in.getLong();
+			long deadline = in.getLong();
+			int receiveCount = in.getInt();
+			int state = in.getInt();
+			Entry entry = new Entry(entrySeq, entrySegment, entryOffset, keyLength, length, visibilityTimeoutMillis, pushedAt,
+					readKey(in));
+			entry.deadline = deadline;
+			entry.receiveCount = receiveCount;
+			entries.put(entry.seq, entry);
+			if(entry.groupId != null) {
+				joinGroup(entry);
+			}
+			if(state == READY) {
+				ready.put(entry.seq, entry);
+			} else if(state == IN_FLIGHT) {
+				inFlight.add(entry);
+				if(receiveCount == 0) {
+					delayed++;
+				}
+			}
+			bytes += length;
+			addLive(entrySegment, entry.recordSize());
+		}
+		for(int i = in.getInt(); i > 0; i--) {
+			deduplication.record(readKey(in), in.getLong());
+		}
+		for(int i = in.getInt(); i > 0; i--) {
+			lastDeduplicatedAt.put(in.getLong(), in.getLong());
+		}
+		firstSegment = first;
+		readSegment = segment;
+		readOffset = offset;
+		nextSeq = seq;
+		appliedSinceCheckpoint = 0;
+		// Segments may have been dropped since the checkpoint was taken
+		long oldest = oldestSegment();
+		if(oldest > firstSegment) {
+			forgetSegmentsBefore(oldest);
+			firstSegment = oldest;
+		}
+	}
+
+	private static void writeKey(DataOutputStream out, String key) throws IOException {
+		if(key == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readKey(ByteBuffer in) {
+		int length = in.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Positions the reader on the oldest segment on disk. Anything this process knew about
+	 * segments before it has been fully acknowledged and dropped by another process.
+	 */
+	private void seekToFirstSegment() throws IOException {
+		long first = oldestSegment();
+		forgetSegmentsBefore(first);
+		firstSegment = first == Long.MAX_VALUE ? -1 : first;
+		readSegment = firstSegment;
+		readOffset = 0;
+	}
+
+	/*
+	 * Id of the oldest segment on disk, or Long.MAX_VALUE if there is none
+	 */
+	private long oldestSegment() throws IOException {
+		long oldest = Long.MAX_VALUE;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(queuePath, "*" + SEGMENT_SUFFIX)) {
+			for(Path path : stream) {
+				String name = path.getFileName().toString();
+				oldest = Math.min(oldest, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			}
+		} catch (NoSuchFileException e) {
+			// Queue directory removed underneath us; treat it as empty
+		}
+		return oldest;
+	}
+
+	private void forgetSegmentsBefore(final long first) {
+		Iterator<Entry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if(entry.segment < first) {
+				it.remove();
+				unlink(entry);
+				leaveGroup(entry);
+				bytes -= entry.length;
+			}
+		}
+		segments.headMap(first).clear();
+		liveBySegment.keySet().removeIf(segment -> segment < first);
+		lastDeduplicatedAt.keySet().removeIf(segment -> segment < first);
+	}
+
+	private long liveBytes(long segment) {
+		Long live = liveBySegment.get(segment);
+		return live == null ? 0 : live;
+	}
+
+	/*
+	 * Bytes of the records of every live message
+	 */
+	private long liveBytes() {
+		long live = 0;
+		for(long segmentBytes : liveBySegment.values()) {
+			live += segmentBytes;
+		}
+		return live;
+	}
+
+	/*
+	 * Bytes of the log on disk, taking sealed segments to be of the segment size
+	 */
+	private long logBytes() {
+		return (readSegment - firstSegment) * segmentSize + readOffset;
+	}
+
+	private void addLive(long segment, long delta) {
+		liveBySegment.put(segment, liveBytes(segment) + delta);
+	}
+
+	/*
+	 * Returns a mapping of the segment covering at least required bytes. Segments are mapped at
+	 * the segment size, or the current file size if larger, so the file grows in large steps.
+	 * The mapping outlives the channel, so an interrupt cannot close it.
+	 */
+	private MappedByteBuffer mapping(long segment, long required) throws IOException {
+		MappedByteBuffer buffer = segments.get(segment);
+		if(buffer != null && buffer.capacity() >= required) {
+			return buffer;
+		}
+		try (FileChannel channel = FileChannel.open(segmentPath(segment),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = Math.max(channel.size(), Math.max(required, buffer == null ? segmentSize : buffer.capacity() * 2L));
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Segment " + segmentPath(segment) + " is too large to map");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		segments.put(segment, buffer);
+		return buffer;
+	}
+
+	/*
+	 * Forces one segment to disk, keeping it marked dirty if that fails. Depending on the JDK,
+	 * force() reports failure with an UncheckedIOException or an undeclared IOException.
+	 */
+	private void force(long segment, MappedByteBuffer buffer) throws IOException {
+		try {
+			buffer.force();
+		} catch (Exception e) {
+			dirty.putIfAbsent(segment, buffer);
+			throw new IOException("Could not sync segment " + segment + " of queue " + queueName, e);
+		}
+	}
+
+	/*
+	 * Makes new segment files survive a crash. Not every platform can sync a directory, so
+	 * failures are ignored.
+	 */
+	private void syncDirectory() {
+		try (FileChannel directory = FileChannel.open(queuePath, StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// Best effort
+		}
+	}
+
+	/*
+	 * Maps the segment again if another process has grown the file past the current mapping
+	 */
+	private MappedByteBuffer remap(long segment) throws IOException {
+		MappedByteBuffer buffer = mapping(segment, 0);
+		try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size();
+			if(size > buffer.capacity() && size <= Integer.MAX_VALUE) {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				segments.put(segment, buffer);
+			}
+		}
+		return buffer;
+	}
+
+	private Path segmentPath(long segment) {
+		return queuePath.resolve(String.format("%020d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private static class Entry {
+		static final Comparator<Entry> BY_DEADLINE = (a, b) -> a.deadline != b.deadline
+				? Long.compare(a.deadline, b.deadline) : Long.compare(a.seq, b.seq);
+		static final Comparator<Entry> BY_SEQ = (a, b) -> Long.compare(a.seq, b.seq);
+
+		final long seq;
+		/*
+		 * Where the message's PUSH record, or its latest MOVE record, is
+		 */
+		long segment;
+		long offset;
+		/*
+		 * Bytes of the FIFO group and deduplication ids, or of a MOVE record's prefix and group id,
+		 * before the payload, and of the payload
+		 */
+		int keyLength;
+		final int length;
+		final long visibilityTimeoutMillis;
+		final long pushedAt;
+		final String groupId;
+		long deadline;
+		int receiveCount;
+
+		Entry(long seq, long segment, long offset, int keyLength, int length, long visibilityTimeoutMillis, long pushedAt,
+				String groupId) {
+			this.seq = seq;
+			this.segment = segment;
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.length = length;
+			this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+			this.pushedAt = pushedAt;
+			this.groupId = groupId;
+		}
+
+		int recordSize() {
+			return HEADER_SIZE + keyLength + length;
+		}
+	}
+}
@@ -1,58 +1,229 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
 import com.google.common.base.Joiner;
+import com.google.common.base.Utf8;
 
 public class QueueMessage {
+	private String queueName;
+	private long sequence;
+	private int receiveCount;
+	/*
+	 * The message body, kept as it was pushed: a String, or a read-only buffer holding exactly
+	 * the payload. The other form is derived on first use.
+	 */
 	private String msgContent;
-	private long visibilityTimeout;
+	private ByteBuffer payload;
+	private long visibilityTimeoutMillis;
 	private long timeoutForMsg;
-	
-	QueueMessage(String msgContent, long visibilityTimeout){
+	private long pushedAt;
+	private long offHeapBlock = -1;
+	private String messageGroupId;
+
+	QueueMessage(String msgContent, long visibilityTimeoutMillis){
 		this.msgContent = msgContent;
-		this.visibilityTimeout = visibilityTimeout;
+		this.visibilityTimeoutMillis = visibilityTimeoutMillis;
 		this.timeoutForMsg = 0;
 	}
-	
-	QueueMessage(String msgContent, long visibilityTimeout, long timeoutForMsg){
-		this.msgContent = msgContent;
-		this.visibilityTimeout = visibilityTimeout;
+
+	QueueMessage(String queueName, long sequence, String msgContent, long visibilityTimeoutMillis){
+		this(msgContent, visibilityTimeoutMillis);
+		this.queueName = queueName;
+		this.sequence = sequence;
+		this.pushedAt = System.currentTimeMillis();
+	}
+
+	/*
+	 * payload must be read-only and not change afterwards
+	 */
+	QueueMessage(String queueName, long sequence, ByteBuffer payload, long visibilityTimeoutMillis){
+		this(queueName, sequence, (String) null, visibilityTimeoutMillis);
+		this.payload = payload;
+	}
+
+	/*
+	 * A single delivery of a message, identified by its receipt handle
+	 */
+	QueueMessage(String queueName, long sequence, int receiveCount, String msgContent, long visibilityTimeoutMillis, long timeoutForMsg, long pushedAt){
+		this(queueName, sequence, msgContent, visibilityTimeoutMillis);
+		this.receiveCount = receiveCount;
 		this.timeoutForMsg = timeoutForMsg;
+		this.pushedAt = pushedAt;
+	}
+
+	QueueMessage(String queueName, long sequence, int receiveCount, ByteBuffer payload, long visibilityTimeoutMillis, long timeoutForMsg, long pushedAt){
+		this(queueName, sequence, receiveCount, (String) null, visibilityTimeoutMillis, timeoutForMsg, pushedAt);
+		this.payload = payload;
+	}
+
+	/*
+	 * A delivery or copy of message with the same body, in whichever form it is held
+	 */
+	QueueMessage(String queueName, long sequence, int receiveCount, QueueMessage body, long visibilityTimeoutMillis, long timeoutForMsg, long pushedAt){
+		this(queueName, sequence, receiveCount, body.msgContent, visibilityTimeoutMillis, timeoutForMsg, pushedAt);
+		this.payload = body.payload;
+		this.messageGroupId = body.messageGroupId;
+	}
+
+	/*
+	 * Queue the message was pushed to, or null for a message that was never pushed
+	 */
+	String getQueueName() {
+		return queueName;
+	}
+
+	/*
+	 * Sequence number assigned to the message on push, used to find it again on delete
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/*
+	 * Time the message was pushed, in milliseconds since the epoch
+	 */
+	long getPushedAt() {
+		return pushedAt;
+	}
+
+	/*
+	 * Handle of the OffHeapStore block holding the message, or -1 if it is only on the heap
+	 */
+	long getOffHeapBlock() {
+		return offHeapBlock;
+	}
+
+	void setOffHeapBlock(long offHeapBlock) {
+		this.offHeapBlock = offHeapBlock;
+	}
+
+	/*
+	 * FIFO group the message was pushed to, or null if it was pushed outside any group
+	 */
+	public String getMessageGroupId() {
+		return messageGroupId;
+	}
+
+	void setMessageGroupId(String messageGroupId) {
+		this.messageGroupId = messageGroupId;
 	}
-	
+
+	/*
+	 * Number of times the message has been delivered, counting this delivery. Doubles as the
+	 * delivery generation of the receipt handle.
+	 */
+	public int getReceiveCount() {
+		return receiveCount;
+	}
+
+	int incrementReceiveCount() {
+		return ++receiveCount;
+	}
+
+	/*
+	 * Identifies this delivery of the message: its sequence number plus its delivery generation.
+	 * A handle stops being valid once the message is redelivered, so a consumer whose visibility
+	 * timeout expired can never delete a later delivery. Null for a message that was never pulled.
+	 */
+	public String getReceiptHandle() {
+		if(queueName == null || receiveCount == 0) {
+			return null;
+		}
+		return sequence + "-" + receiveCount;
+	}
+
+	/*
+	 * Visibility timeout in whole seconds, rounded down
+	 */
 	public long getVisibilityTimeout() {
-		return visibilityTimeout;
+		return TimeUnit.MILLISECONDS.toSeconds(visibilityTimeoutMillis);
 	}
-	
+
+	long getVisibilityTimeoutMillis() {
+		return visibilityTimeoutMillis;
+	}
+
 	public void setTimeoutInMillis() {
-		timeoutForMsg = System.currentTimeMillis() + (visibilityTimeout * 1000);
+		timeoutForMsg = System.currentTimeMillis() + visibilityTimeoutMillis;
+	}
+
+	/*
+	 * Records a new visibility deadline, in milliseconds since the epoch, after the visibility of
+	 * this delivery was changed
+	 */
+	void setTimeoutInMillis(long timeoutForMsg) {
+		this.timeoutForMsg = timeoutForMsg;
 	}
-	
+
 	public long getTimeoutInMillis() {
 		return timeoutForMsg;
 	}
-	
+
+	/*
+	 * Body of the message; a binary payload is decoded as UTF-8
+	 */
 	public String getContent() {
-	    return msgContent;
+		String content = msgContent;
+		if(content == null) {
+			content = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+			msgContent = content;
+		}
+	    return content;
+	}
+
+	/*
+	 * Body of the message as a read-only buffer of its own, positioned at the start of the
+	 * payload; a String body reads as its UTF-8 encoding
+	 */
+	public ByteBuffer getPayload() {
+		ByteBuffer bytes = payload;
+		if(bytes == null) {
+			bytes = ByteBuffer.wrap(msgContent.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+			payload = bytes;
+		}
+		return bytes.duplicate();
+	}
+
+	/*
+	 * Size of the body in bytes, counted without encoding a String body
+	 */
+	long getPayloadSize() {
+		ByteBuffer bytes = payload;
+		return bytes != null ? bytes.remaining() : Utf8.encodedLength(msgContent);
 	}
-	
+
+	/*
+	 * Whether the visibility timeout of this delivery has passed by the wall clock. The queues
+	 * decide for themselves, on their own clocks, so this is only an estimate for callers.
+	 */
 	public boolean isVisible() {
 		return System.currentTimeMillis() > timeoutForMsg;
 	}
-	
+
 	public String toString() {
-		return Joiner.on(":").join(timeoutForMsg, msgContent, visibilityTimeout);
+		return Joiner.on(":").join(timeoutForMsg, getContent(), visibilityTimeoutMillis);
 	}
-	
+
+	/*
+	 * Two messages are equal if they are the same delivery of the same message
+	 */
 	@Override
 	public boolean equals(Object obj) {
 	    if (obj == null) return false;
 	    if (obj == this) return true;
 	    if (!(obj instanceof QueueMessage)) return false;
 	    QueueMessage msg = (QueueMessage) obj;
-	    if(msg.getContent().equals(this.getContent()) && msg.getTimeoutInMillis() == this.getTimeoutInMillis()) {
-	    	return true;
-	    }
-	    return false;
+	    return Objects.equals(queueName, msg.queueName) && sequence == msg.sequence
+	    		&& receiveCount == msg.receiveCount;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(queueName, sequence, receiveCount);
 	}
 
 }
@@ -0,0 +1,73 @@
+package com.example;
+
+/*
+ * Receives measurements from the queue services. Every method has an empty default, so an
+ * implementation only overrides what it records.
+ *
+ * Methods are called on the hot path of every operation: implementations must be thread-safe,
+ * cheap and allocation-free.
+ */
+public interface QueueMetrics {
+	/*
+	 * Records nothing; the default for every service
+	 */
+	QueueMetrics NOOP = new QueueMetrics() {};
+
+	/*
+	 * A push call stored count messages and took latencyNanos
+	 */
+	default void pushed(String queueName, int count, long latencyNanos) {}
+
+	/*
+	 * A pull call delivered count messages, possibly none, and took latencyNanos. latencyNanos is
+	 * negative for pulls that waited for a message, whose duration is mostly the wait.
+	 */
+	default void pulled(String queueName, int count, long latencyNanos) {}
+
+	/*
+	 * A delete call removed count messages and took latencyNanos
+	 */
+	default void deleted(String queueName, int count, long latencyNanos) {}
+
+	/*
+	 * count of the messages just pulled had been delivered before
+	 */
+	default void redelivered(String queueName, int count) {}
+
+	/*
+	 * count in-flight messages reached their visibility timeout and became visible again
+	 */
+	default void expired(String queueName, int count) {}
+
+	/*
+	 * count messages had reached the maximum receive count and were moved to the dead-letter
+	 * queue
+	 */
+	default void deadLettered(String queueName, int count) {}
+
+	/*
+	 * count visible messages were dropped to make room for newer ones on a full queue
+	 */
+	default void dropped(String queueName, int count) {}
+
+	/*
+	 * count messages were not pushed because the queue was full
+	 */
+	default void rejected(String queueName, int count) {}
+
+	/*
+	 * Current number of visible and in-flight messages, reported after operations that know it
+	 * cheaply
+	 */
+	default void depth(String queueName, int visible, int inFlight) {}
+
+	/*
+	 * Time spent waiting for the queue lock of the file backend
+	 */
+	default void lockWaited(String queueName, long waitNanos) {}
+
+	/*
+	 * A message was deleted ageMillis after it was pushed
+	 */
+	default void messageAge(String queueName, long ageMillis) {}
+}
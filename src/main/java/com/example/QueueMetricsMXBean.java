@@ -0,0 +1,40 @@
+package com.example;
+
+/*
+ * Metrics of one queue as exported over JMX by RecordingQueueMetrics, under
+ * com.example:type=QueueMetrics,queue=<queue name>. Counters are totals since the queue was
+ * first seen; depth is as last reported.
+ */
+public interface QueueMetricsMXBean {
+	String getQueueName();
+
+	long getPushed();
+
+	long getPulled();
+
+	long getDeleted();
+
+	long getRedelivered();
+
+	long getExpired();
+
+	long getDeadLettered();
+
+	long getDropped();
+
+	long getRejected();
+
+	int getVisible();
+
+	int getInFlight();
+
+	LatencySummary getPushLatency();
+
+	LatencySummary getPullLatency();
+
+	LatencySummary getDeleteLatency();
+
+	LatencySummary getLockWait();
+
+	LatencySummary getMessageAge();
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+/*
+ * Point-in-time copy of the metrics of one queue
+ */
+public class QueueMetricsSnapshot implements QueueMetricsMXBean {
+	private final String queueName;
+	private final long pushed;
+	private final long pulled;
+	private final long deleted;
+	private final long redelivered;
+	private final long expired;
+	private final long deadLettered;
+	private final long dropped;
+	private final long rejected;
+	private final int visible;
+	private final int inFlight;
+	private final LatencySummary pushLatency;
+	private final LatencySummary pullLatency;
+	private final LatencySummary deleteLatency;
+	private final LatencySummary lockWait;
+	private final LatencySummary messageAge;
+
+	QueueMetricsSnapshot(QueueMetricsMXBean metrics) {
+		this.queueName = metrics.getQueueName();
+		this.pushed = metrics.getPushed();
+		this.pulled = metrics.getPulled();
+		this.deleted = metrics.getDeleted();
+		this.redelivered = metrics.getRedelivered();
+		this.expired = metrics.getExpired();
+		this.deadLettered = metrics.getDeadLettered();
+		this.dropped = metrics.getDropped();
+		this.rejected = metrics.getRejected();
+		this.visible = metrics.getVisible();
+		this.inFlight = metrics.getInFlight();
+		this.pushLatency = metrics.getPushLatency();
+		this.pullLatency = metrics.getPullLatency();
+		this.deleteLatency = metrics.getDeleteLatency();
+		this.lockWait = metrics.getLockWait();
+		this.messageAge = metrics.getMessageAge();
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public long getPushed() {
+		return pushed;
+	}
+
+	public long getPulled() {
+		return pulled;
+	}
+
+	public long getDeleted() {
+		return deleted;
+	}
+
+	public long getRedelivered() {
+		return redelivered;
+	}
+
+	public long getExpired() {
+		return expired;
+	}
+
+	public long getDeadLettered() {
+		return deadLettered;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public int getVisible() {
+		return visible;
+	}
+
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	public LatencySummary getPushLatency() {
+		return pushLatency;
+	}
+
+	public LatencySummary getPullLatency() {
+		return pullLatency;
+	}
+
+	public LatencySummary getDeleteLatency() {
+		return deleteLatency;
+	}
+
+	public LatencySummary getLockWait() {
+		return lockWait;
+	}
+
+	public LatencySummary getMessageAge() {
+		return messageAge;
+	}
+}
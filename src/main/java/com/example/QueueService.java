@@ -1,6 +1,10 @@
 package com.example;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public interface QueueService {
 
@@ -24,5 +28,88 @@ public interface QueueService {
 	Object pull(String queueName) throws IOException;
 	void delete(String queueName, Object msg) throws IOException;
 	
+	/*
+	 * Pushes a message that stays invisible to pulls until delay has passed, then is delivered
+	 * like any other. A delay of zero or less pushes it visible at once.
+	 */
+	void push(String queueName, String msgContent, long delay, TimeUnit unit) throws IOException;
+	
+	/*
+	 * Pushes a message that becomes visible at deliverAt, by the wall clock; an instant in the
+	 * past pushes it visible at once
+	 */
+	void pushAt(String queueName, String msgContent, Instant deliverAt) throws IOException;
+	
+	/*
+	 * Pulls a message, waiting up to waitTime for one to be pushed or to become visible again.
+	 * Returns null if none arrived in time, or if the calling thread was interrupted.
+	 */
+	Object pull(String queueName, long waitTime, TimeUnit unit) throws IOException;
+	
+	/*
+	 * Batch variants of push, pull and delete. Implementations handle a whole batch in one
+	 * operation against their backing store (one lock and write for files, one request per
+	 * ten messages for SQS). pullBatch returns up to maxMessages visible messages, and an empty
+	 * list if none are visible.
+	 */
+	void pushBatch(String queueName, List<String> msgContents) throws IOException;
+	List<?> pullBatch(String queueName, int maxMessages) throws IOException;
+	void deleteBatch(String queueName, List<?> msgs) throws IOException;
+
+	/*
+	 * Makes a pulled message visible again timeout from now instead of when its current
+	 * visibility timeout ends, so a consumer can extend the time it has, or give a message back
+	 * early with a timeout of zero. The receipt stays valid. Returns false if the message was
+	 * deleted or its visibility timeout had already expired.
+	 */
+	boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) throws IOException;
+
+	/*
+	 * Batch variant of changeVisibility. Returns the number of messages changed.
+	 */
+	int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) throws IOException;
+
+	/*
+	 * Stops delivering messages of queueName once they have been received maxReceiveCount times,
+	 * moving them to deadLetterQueueName instead. A null deadLetterQueueName removes the policy.
+	 */
+	void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) throws IOException;
+
+	/*
+	 * Moves up to maxMessages visible messages from deadLetterQueueName back to queueName, where
+	 * they start over with no receives. Returns the number of messages moved.
+	 */
+	int redrive(String deadLetterQueueName, String queueName, int maxMessages) throws IOException;
+
+	/*
+	 * Caps the number of messages in queueName and the bytes of their content. A push that would
+	 * go over a cap blocks, fails with QueueFullException or drops the oldest messages, as the
+	 * limits' overflow policy says; a batch is admitted or refused as a whole. Null removes the
+	 * caps.
+	 */
+	void setQueueLimits(String queueName, QueueLimits limits) throws IOException;
+
+	/*
+	 * Pushes a message only if it fits under the caps of the queue right now. Never waits or
+	 * drops messages, whatever the overflow policy, so producers can slow down instead. Returns
+	 * false if the message was not pushed.
+	 */
+	boolean offer(String queueName, String msgContent) throws IOException;
+
+	/*
+	 * Binary variants of push and pushBatch, for payloads that are not text. Pushes the bytes
+	 * between the position and the limit of each buffer, without changing the buffer, which the
+	 * caller may reuse once the call returns. String messages are stored as their UTF-8 bytes, so
+	 * the two kinds can be mixed on one queue.
+	 */
+	void pushBytes(String queueName, ByteBuffer payload) throws IOException;
+	void pushBytesBatch(String queueName, List<ByteBuffer> payloads) throws IOException;
+
+	/*
+	 * Payload of a pulled message as a read-only buffer; decode it with a Codec, or use
+	 * TypedQueueService to do so
+	 */
+	ByteBuffer getPayload(Object msg);
+
 
 }
@@ -0,0 +1,746 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+ * Messages of a single in-memory queue, split into a FIFO ReadyQueue of visible messages, kept
+ * on the heap or off it, and the in-flight deliveries, whose visibility deadlines are tracked by
+ * a TimingWheel shared by every queue of the service.
+ *
+ * Every pull first advances the wheel, and the deliveries that expired, of any queue, go back to
+ * the head of the ready deque of their own queue in the order they were delivered. So pull cost
+ * does not depend on how many messages are in flight. In-flight deliveries are also indexed by
+ * sequence number, so delete finds the exact delivery named by a receipt handle in O(1) and
+ * cancels its timeout in O(1).
+ *
+ * All structures are lock-free or locked per wheel bucket, so producers and consumers of the
+ * same queue never block each other. Removing a delivery from the index decides any race between
+ * delete and expiry: only the thread that removes it acts on it.
+ *
+ * A message that has used up its receives is moved to the dead-letter queue by the pull that
+ * takes it off the ready deque, so it is never in both queues or in neither.
+ *
+ * The number of messages and bytes of content, visible and in flight, are counted as they come
+ * and go. A push under QueueLimits reserves its share of both with compare-and-set before adding
+ * anything, so concurrent producers never take the queue over its caps together.
+ *
+ * A delayed message is scheduled on the same wheel as the deliveries, as a delivery with no
+ * receives that is due when the message should become visible, and is appended to the ready
+ * deque when it comes due, like a message pushed then. Until then it counts towards the size
+ * of the queue and its limits, but not as visible or in flight; in off-heap mode it waits in a
+ * block of its own. Pulls never look at delayed messages, and the wheel keeps those due after
+ * its current rotation aside, so millions of them cost nothing until they come due.
+ *
+ * Messages of a FIFO group take turns: only the head of a group is ever on the ready deque or in
+ * flight, and the others wait in order in the group's own list. When the head leaves the queue,
+ * by delete, dead-lettering or being dropped, the next message of the group is appended to the
+ * ready deque. Heads of different groups sit on the ready deque together, so pulls and expiry
+ * treat them like any other message and groups are consumed in parallel.
+ */
+class QueueState {
+	private final String queueName;
+	private final Supplier<QueueMetrics> metrics;
+	private final TimingWheel<Delivery> timeouts;
+	private final ReadyQueue ready;
+	private final ConcurrentMap<Long, Delivery> inFlightBySequence = new ConcurrentHashMap<Long, Delivery>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger delayed = new AtomicInteger();
+	private volatile DeadLetterTarget deadLetters;
+	private volatile QueueLimits limits;
+
+	/*
+	 * Groups with a head on the ready deque or in flight, each with the messages waiting behind
+	 * it. A group is only in the map while it has a head, and its list is only touched inside
+	 * compute, so the map's per-key locking orders every change to a group. groupHeads names the
+	 * group of each head by sequence number, as messages read back from off-heap blocks do not
+	 * carry it.
+	 */
+	private final ConcurrentMap<String, Queue<QueueMessage>> groups = new ConcurrentHashMap<String, Queue<QueueMessage>>();
+	private final ConcurrentMap<Long, String> groupHeads = new ConcurrentHashMap<Long, String>();
+	private final DeduplicationWindow deduplication = new DeduplicationWindow();
+
+	/*
+	 * Consumers blocked in a timed pull wait on available, and producers blocked on a full queue
+	 * wait on room. The other side only takes waitLock to signal when someone is waiting, so the
+	 * lock-free path is untouched otherwise.
+	 */
+	private final ReentrantLock waitLock = new ReentrantLock();
+	private final Condition available = waitLock.newCondition();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final Condition room = waitLock.newCondition();
+	private final AtomicInteger producers = new AtomicInteger();
+
+	/*
+	 * Waiting pulls of AsyncPull, which hold no thread, ask to be woken here instead
+	 */
+	private final Queue<Runnable> listeners = new ConcurrentLinkedQueue<Runnable>();
+
+	/*
+	 * metrics is asked for the current QueueMetrics whenever messages expire
+	 */
+	QueueState(String queueName, Supplier<QueueMetrics> metrics, TimingWheel<Delivery> timeouts, ReadyQueue ready) {
+		this.queueName = queueName;
+		this.metrics = metrics;
+		this.timeouts = timeouts;
+		this.ready = ready;
+	}
+
+	/*
+	 * Caps the queue from now on, or lifts the caps if limits is null. Messages already in the
+	 * queue stay even if they are over the new caps.
+	 */
+	void setLimits(QueueLimits limits) {
+		this.limits = limits;
+		signalRoom();
+	}
+
+	/*
+	 * Pushes messages under the limits of the queue, handling overflow as its policy says. Throws
+	 * QueueFullException if they do not fit.
+	 */
+	void push(List<QueueMessage> messages) {
+		QueueLimits limits = this.limits;
+		long byteCount = byteCount(messages);
+		if(limits == null) {
+			size.addAndGet(messages.size());
+			bytes.addAndGet(byteCount);
+		} else if(!limits.fits(0, 0, messages.size(), byteCount) || !makeRoom(limits, messages.size(), byteCount)) {
+			throw new QueueFullException("Queue " + queueName + " has no room for " + messages.size() + " messages");
+		}
+		add(messages, byteCount);
+	}
+
+	/*
+	 * Pushes messages that become visible delayNanos from now, under the limits of the queue as
+	 * push does. A delay of zero or less pushes them visible at once.
+	 */
+	void push(List<QueueMessage> messages, long delayNanos) {
+		if(delayNanos <= 0) {
+			push(messages);
+			return;
+		}
+		QueueLimits limits = this.limits;
+		long byteCount = byteCount(messages);
+		if(limits == null) {
+			size.addAndGet(messages.size());
+			bytes.addAndGet(byteCount);
+		} else if(!limits.fits(0, 0, messages.size(), byteCount) || !makeRoom(limits, messages.size(), byteCount)) {
+			throw new QueueFullException("Queue " + queueName + " has no room for " + messages.size() + " messages");
+		}
+		long visibleAt = timeouts.now() + delayNanos;
+		for(int i = 0; i < messages.size(); i++) {
+			QueueMessage parked;
+			try {
+				parked = ready.park(messages.get(i));
+			} catch (QueueFullException e) {
+				List<QueueMessage> rest = messages.subList(i, messages.size());
+				release(rest.size(), byteCount(rest));
+				throw e;
+			}
+			delayed.incrementAndGet();
+			Delivery delivery = new Delivery(this, parked, 0, visibleAt);
+			delivery.timeout = timeouts.schedule(delivery, visibleAt);
+			if(delivery.timeout == null) {
+				requeue(Collections.singletonList(delivery));
+			}
+		}
+	}
+
+	/*
+	 * Pushes a message unless another with the same deduplicationId was pushed less than
+	 * windowNanos ago. Returns false for such a duplicate, which is dropped. A null
+	 * deduplicationId is never a duplicate.
+	 */
+	boolean push(QueueMessage message, String deduplicationId, long windowNanos) {
+		if(deduplicationId == null) {
+			push(Collections.singletonList(message));
+			return true;
+		}
+		long now = timeouts.now();
+		if(!deduplication.add(deduplicationId, now, windowNanos)) {
+			return false;
+		}
+		try {
+			push(Collections.singletonList(message));
+			return true;
+		} catch (RuntimeException e) {
+			// Not pushed, so a retry must not count as a duplicate
+			deduplication.remove(deduplicationId, now);
+			throw e;
+		}
+	}
+
+	/*
+	 * Pushes a message only if it fits under the limits of the queue, and in off-heap memory,
+	 * right now. Returns false if it does not.
+	 */
+	boolean offer(QueueMessage message) {
+		QueueLimits limits = this.limits;
+		long byteCount = byteCount(message);
+		if(limits == null) {
+			size.incrementAndGet();
+			bytes.addAndGet(byteCount);
+		} else if(!reserve(limits, 1, byteCount)) {
+			return false;
+		}
+		if(!ready.offerLast(message)) {
+			release(1, byteCount);
+			return false;
+		}
+		signalAvailable();
+		return true;
+	}
+
+	/*
+	 * Adds a message moved from another queue, whatever the limits
+	 */
+	void move(QueueMessage message) {
+		size.incrementAndGet();
+		long byteCount = byteCount(message);
+		bytes.addAndGet(byteCount);
+		add(Collections.singletonList(message), byteCount);
+	}
+
+	/*
+	 * Adds messages whose room has been reserved, giving back the room of any the ready queue
+	 * refuses
+	 */
+	private void add(List<QueueMessage> messages, long byteCount) {
+		for(int i = 0; i < messages.size(); i++) {
+			try {
+				QueueMessage message = messages.get(i);
+				if(message.getMessageGroupId() == null) {
+					ready.addLast(message);
+				} else {
+					addToGroup(message);
+				}
+			} catch (QueueFullException e) {
+				List<QueueMessage> rest = messages.subList(i, messages.size());
+				release(rest.size(), byteCount(rest));
+				throw e;
+			}
+		}
+		signalAvailable();
+	}
+
+	/*
+	 * Appends a message of a FIFO group to the ready deque if the group has no head, and
+	 * otherwise to the list of messages waiting behind the head
+	 */
+	private void addToGroup(QueueMessage message) {
+		QueueMessage parked = ready.park(message);
+		boolean[] head = new boolean[1];
+		groups.compute(message.getMessageGroupId(), (groupId, waiting) -> {
+			if(waiting == null) {
+				groupHeads.put(parked.getSequence(), groupId);
+				head[0] = true;
+				return new ArrayDeque<QueueMessage>();
+			}
+			waiting.add(parked);
+			return waiting;
+		});
+		if(head[0]) {
+			ready.addLast(parked);
+		}
+	}
+
+	/*
+	 * Passes the turn of a message leaving the queue, if it is the head of a FIFO group, on to the
+	 * next message of the group. Records the group on message, so a copy moved to another queue
+	 * joins the same group there.
+	 */
+	private void leave(QueueMessage message) {
+		if(groupHeads.isEmpty()) {
+			return;
+		}
+		String groupId = groupHeads.remove(message.getSequence());
+		if(groupId == null) {
+			return;
+		}
+		message.setMessageGroupId(groupId);
+		QueueMessage[] next = new QueueMessage[1];
+		groups.computeIfPresent(groupId, (id, waiting) -> {
+			next[0] = waiting.poll();
+			if(next[0] == null) {
+				return null;
+			}
+			groupHeads.put(next[0].getSequence(), id);
+			return waiting;
+		});
+		if(next[0] != null) {
+			// Parked, so this takes no new room
+			ready.addLast(next[0]);
+			signalAvailable();
+		}
+	}
+
+	/*
+	 * Reserves room for count messages of byteCount bytes as the overflow policy says: waiting for
+	 * it, dropping the oldest visible messages for it, or just trying once
+	 */
+	private boolean makeRoom(QueueLimits limits, int count, long byteCount) {
+		switch (limits.getOverflowPolicy()) {
+		case BLOCK:
+			return awaitRoom(limits, count, byteCount);
+		case DROP_OLDEST:
+			return dropForRoom(limits, count, byteCount);
+		default:
+			return reserve(limits, count, byteCount);
+		}
+	}
+
+	/*
+	 * Takes room for count messages of byteCount bytes if it is free under limits
+	 */
+	private boolean reserve(QueueLimits limits, int count, long byteCount) {
+		int current;
+		do {
+			current = size.get();
+			if((long) current + count > limits.getMaxMessages()) {
+				return false;
+			}
+		} while(!size.compareAndSet(current, current + count));
+		long currentBytes;
+		do {
+			currentBytes = bytes.get();
+			if(currentBytes + byteCount > limits.getMaxBytes()) {
+				size.addAndGet(-count);
+				return false;
+			}
+		} while(!bytes.compareAndSet(currentBytes, currentBytes + byteCount));
+		return true;
+	}
+
+	private boolean awaitRoom(QueueLimits limits, int count, long byteCount) {
+		if(reserve(limits, count, byteCount)) {
+			return true;
+		}
+		long remaining = TimeUnit.MILLISECONDS.toNanos(limits.getMaxBlockMillis());
+		waitLock.lock();
+		// Register before retrying, so a delete after the retry is sure to signal us
+		producers.incrementAndGet();
+		try {
+			while(!reserve(limits, count, byteCount)) {
+				if(remaining <= 0) {
+					return false;
+				}
+				remaining = room.awaitNanos(remaining);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			producers.decrementAndGet();
+			waitLock.unlock();
+		}
+	}
+
+	private boolean dropForRoom(QueueLimits limits, int count, long byteCount) {
+		expire();
+		int dropped = 0;
+		try {
+			while(!reserve(limits, count, byteCount)) {
+				QueueMessage oldest = ready.pollFirst();
+				if(oldest == null) {
+					return false;
+				}
+				release(1, byteCount(oldest));
+				ready.release(oldest);
+				leave(oldest);
+				dropped++;
+			}
+			return true;
+		} finally {
+			if(dropped > 0) {
+				metrics.get().dropped(queueName, dropped);
+			}
+		}
+	}
+
+	/*
+	 * Gives back the room of count messages of byteCount bytes that left the queue
+	 */
+	private void release(int count, long byteCount) {
+		size.addAndGet(-count);
+		bytes.addAndGet(-byteCount);
+		signalRoom();
+	}
+
+	private void signalRoom() {
+		if(producers.get() > 0) {
+			waitLock.lock();
+			try {
+				room.signalAll();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+	}
+
+	private void signalAvailable() {
+		if(waiters.get() > 0) {
+			waitLock.lock();
+			try {
+				available.signal();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+		wakeListeners();
+	}
+
+	/*
+	 * Whether a push may wait for room, under a BLOCK overflow policy
+	 */
+	boolean pushMayWait() {
+		QueueLimits limits = this.limits;
+		return limits != null && limits.getOverflowPolicy() == OverflowPolicy.BLOCK;
+	}
+
+	/*
+	 * Nanoseconds until an in-flight delivery of any queue may expire, for waiting consumers
+	 */
+	long nanosUntilNextTimeout() {
+		return timeouts.nanosUntilNextTimeout();
+	}
+
+	/*
+	 * Runs listener once the next time messages are pushed or become visible again. Returns a
+	 * handle that removes listener if it has not run yet.
+	 */
+	Runnable onAvailable(Runnable listener) {
+		listeners.add(listener);
+		return () -> listeners.remove(listener);
+	}
+
+	/*
+	 * Listeners waiting for the next push or visible message
+	 */
+	int listenerCount() {
+		return listeners.size();
+	}
+
+	private void wakeListeners() {
+		Runnable listener;
+		while((listener = listeners.poll()) != null) {
+			listener.run();
+		}
+	}
+
+	/*
+	 * Returns a new delivery of the first visible message, waiting up to waitTime for one to be
+	 * pushed or for an in-flight message to become visible again. Returns null on timeout.
+	 */
+	QueueMessage pull(long waitTime, TimeUnit unit) throws InterruptedException {
+		QueueMessage message = pull();
+		if(message != null || waitTime <= 0) {
+			return message;
+		}
+		long deadline = timeouts.now() + unit.toNanos(waitTime);
+		waitLock.lock();
+		// Register before retrying, so a push after the retry is sure to signal us
+		waiters.incrementAndGet();
+		try {
+			while(true) {
+				message = pull();
+				long remaining = deadline - timeouts.now();
+				if(message != null || remaining <= 0) {
+					return message;
+				}
+				// Nobody else may advance the wheel while we wait, so wake up for the next timeout
+				available.awaitNanos(Math.min(remaining, timeouts.nanosUntilNextTimeout()));
+			}
+		} finally {
+			waiters.decrementAndGet();
+			waitLock.unlock();
+		}
+	}
+
+	/*
+	 * Returns a new delivery of the first visible message, or null if none is visible
+	 */
+	QueueMessage pull() {
+		expire();
+		QueueMessage message = ready.pollFirst();
+		while(message != null && deadLetter(message)) {
+			message = ready.pollFirst();
+		}
+		return message == null ? null : deliver(message);
+	}
+
+	/*
+	 * Returns new deliveries of up to maxMessages visible messages, in FIFO order
+	 */
+	List<QueueMessage> pull(int maxMessages) {
+		expire();
+		List<QueueMessage> messages = new ArrayList<QueueMessage>();
+		QueueMessage message;
+		while(messages.size() < maxMessages && (message = ready.pollFirst()) != null) {
+			if(!deadLetter(message)) {
+				messages.add(deliver(message));
+			}
+		}
+		return messages;
+	}
+
+	/*
+	 * Removes up to maxMessages visible messages, in FIFO order, without delivering them
+	 */
+	List<QueueMessage> take(int maxMessages) {
+		expire();
+		List<QueueMessage> messages = new ArrayList<QueueMessage>();
+		QueueMessage message;
+		while(messages.size() < maxMessages && (message = ready.pollFirst()) != null) {
+			release(1, byteCount(message));
+			leave(message);
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	/*
+	 * Moves messages received maxReceiveCount times to queue on their next pull, or stops doing
+	 * so if queue is null
+	 */
+	void setDeadLetterQueue(QueueState queue, int maxReceiveCount) {
+		deadLetters = queue == null ? null : new DeadLetterTarget(queue, maxReceiveCount);
+	}
+
+	/*
+	 * Moves a message just taken off the ready deque to the dead-letter queue if it has used up
+	 * its receives
+	 */
+	private boolean deadLetter(QueueMessage message) {
+		DeadLetterTarget target = deadLetters;
+		if(target == null || message.getReceiveCount() < target.maxReceiveCount) {
+			return false;
+		}
+		release(1, byteCount(message));
+		leave(message);
+		target.queue.move(moved(message, target.queue.queueName));
+		metrics.get().deadLettered(queueName, 1);
+		return true;
+	}
+
+	/*
+	 * Copy of message for queueName that starts over with no receives. It keeps the sequence
+	 * number, which is unique across queues, the push time, the FIFO group and any off-heap block,
+	 * so moving a message never needs new room.
+	 */
+	static QueueMessage moved(QueueMessage message, String queueName) {
+		QueueMessage moved = new QueueMessage(queueName, message.getSequence(), 0, message,
+				message.getVisibilityTimeoutMillis(), 0, message.getPushedAt());
+		moved.setOffHeapBlock(message.getOffHeapBlock());
+		return moved;
+	}
+
+	private QueueMessage deliver(QueueMessage message) {
+		long timeoutMillis = message.getVisibilityTimeoutMillis();
+		Delivery delivery = new Delivery(this, message, message.incrementReceiveCount(),
+				timeouts.now() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		inFlightBySequence.put(message.getSequence(), delivery);
+		schedule(delivery);
+		QueueMessage delivered = new QueueMessage(message.getQueueName(), message.getSequence(), delivery.receiveCount,
+				message, timeoutMillis, System.currentTimeMillis() + timeoutMillis, message.getPushedAt());
+		if(delivered.getMessageGroupId() == null && !groupHeads.isEmpty()) {
+			delivered.setMessageGroupId(groupHeads.get(message.getSequence()));
+		}
+		return delivered;
+	}
+
+	/*
+	 * Removes the delivery named by the message's receipt handle, provided it is still the
+	 * latest delivery and its visibility timeout has not expired
+	 */
+	boolean delete(QueueMessage receipt) {
+		Delivery delivery = inFlightBySequence.get(receipt.getSequence());
+		if(delivery == null || delivery.receiveCount != receipt.getReceiveCount() || timeouts.now() > delivery.deadline
+				|| !inFlightBySequence.remove(receipt.getSequence(), delivery)) {
+			return false;
+		}
+		if(delivery.timeout != null) {
+			timeouts.cancel(delivery.timeout);
+		}
+		release(1, byteCount(delivery.message));
+		ready.release(delivery.message);
+		leave(delivery.message);
+		return true;
+	}
+
+	/*
+	 * Moves the deadline of the delivery named by the message's receipt handle to timeoutNanos
+	 * from now, provided it is still the latest delivery and has not expired. Replacing the
+	 * delivery in the index decides any race with delete and expiry.
+	 */
+	boolean changeVisibility(QueueMessage receipt, long timeoutNanos) {
+		Delivery delivery = inFlightBySequence.get(receipt.getSequence());
+		long now = timeouts.now();
+		if(delivery == null || delivery.receiveCount != receipt.getReceiveCount() || now > delivery.deadline) {
+			return false;
+		}
+		Delivery changed = new Delivery(this, delivery.message, delivery.receiveCount, now + timeoutNanos);
+		if(!inFlightBySequence.replace(receipt.getSequence(), delivery, changed)) {
+			return false;
+		}
+		if(delivery.timeout != null) {
+			timeouts.cancel(delivery.timeout);
+		}
+		schedule(changed);
+		return true;
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	/*
+	 * Bytes of payload of the messages in the queue, visible and in flight
+	 */
+	long bytes() {
+		return bytes.get();
+	}
+
+	private static long byteCount(QueueMessage message) {
+		return message.getPayloadSize();
+	}
+
+	private static long byteCount(List<QueueMessage> messages) {
+		long byteCount = 0;
+		for(QueueMessage message : messages) {
+			byteCount += byteCount(message);
+		}
+		return byteCount;
+	}
+
+	int inFlightCount() {
+		return inFlightBySequence.size();
+	}
+
+	/*
+	 * Messages pushed with a delay that has not yet passed
+	 */
+	int delayedCount() {
+		return delayed.get();
+	}
+
+	private void schedule(Delivery delivery) {
+		delivery.timeout = timeouts.schedule(delivery, delivery.deadline);
+		if(delivery.timeout == null) {
+			// Due already, as with a zero visibility timeout
+			requeue(Collections.singletonList(delivery));
+		}
+	}
+
+	/*
+	 * Advances the shared wheel and returns every delivery that expired to its own queue
+	 */
+	private void expire() {
+		List<Delivery> expired = timeouts.advance();
+		if(expired.isEmpty()) {
+			return;
+		}
+		Map<QueueState, List<Delivery>> byQueue = new HashMap<QueueState, List<Delivery>>();
+		for(Delivery delivery : expired) {
+			byQueue.computeIfAbsent(delivery.queue, queue -> new ArrayList<Delivery>()).add(delivery);
+		}
+		for(Map.Entry<QueueState, List<Delivery>> entry : byQueue.entrySet()) {
+			entry.getKey().requeue(entry.getValue());
+		}
+	}
+
+	/*
+	 * Moves expired deliveries of this queue back to the head of the ready deque, keeping them
+	 * in the order they were originally delivered. Deliveries deleted meanwhile are skipped.
+	 * Delayed messages that came due are appended to the tail instead, in the order they were due.
+	 */
+	private void requeue(List<Delivery> expired) {
+		List<Delivery> returned = new ArrayList<Delivery>(expired.size());
+		List<Delivery> due = new ArrayList<Delivery>();
+		for(Delivery delivery : expired) {
+			if(delivery.receiveCount == 0) {
+				due.add(delivery);
+			} else if(inFlightBySequence.remove(delivery.message.getSequence(), delivery)) {
+				returned.add(delivery);
+			}
+		}
+		if(!due.isEmpty()) {
+			Collections.sort(due, Delivery.BY_DEADLINE);
+			for(Delivery delivery : due) {
+				// Parked already, so this takes no new room
+				ready.addLast(delivery.message);
+			}
+			delayed.addAndGet(-due.size());
+		}
+		if(returned.isEmpty()) {
+			if(!due.isEmpty()) {
+				signalAvailable();
+			}
+			return;
+		}
+		Collections.sort(returned, Delivery.BY_DEADLINE);
+		for(int i = returned.size() - 1; i >= 0; i--) {
+			ready.addFirst(returned.get(i).message);
+		}
+		metrics.get().expired(queueName, returned.size());
+		if(waiters.get() > 0) {
+			waitLock.lock();
+			try {
+				available.signalAll();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+		wakeListeners();
+	}
+
+	private static class DeadLetterTarget {
+		final QueueState queue;
+		final int maxReceiveCount;
+
+		DeadLetterTarget(QueueState queue, int maxReceiveCount) {
+			this.queue = queue;
+			this.maxReceiveCount = maxReceiveCount;
+		}
+	}
+
+	/*
+	 * A delivery of a message, in flight until deadline, or a delayed message, with no receives,
+	 * waiting until deadline to be appended to the ready deque
+	 */
+	static class Delivery {
+		static final Comparator<Delivery> BY_DEADLINE = (a, b) -> a.deadline != b.deadline
+				? Long.compare(a.deadline, b.deadline)
+				: Long.compare(a.message.getSequence(), b.message.getSequence());
+
+		final QueueState queue;
+		final QueueMessage message;
+		final int receiveCount;
+		final long deadline;
+		volatile TimingWheel.Timeout<Delivery> timeout;
+
+		Delivery(QueueState queue, QueueMessage message, int receiveCount, long deadline) {
+			this.queue = queue;
+			this.message = message;
+			this.receiveCount = receiveCount;
+			this.deadline = deadline;
+		}
+	}
+}
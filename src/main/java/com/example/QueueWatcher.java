@@ -0,0 +1,186 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Change notification for file queue directories, so blocked consumers wake up when any process
+ * appends to a queue instead of polling it.
+ *
+ * A single WatchService (inotify on Linux) watches every queue directory with waiting consumers,
+ * and a daemon thread turns its events into signals. Each queue has a change counter: consumers
+ * read it before looking for a message and then wait for it to move, so a change between the
+ * two is never missed. Writers in this JVM signal directly, without waiting for the OS event.
+ *
+ * Records are written through a mapping of the segment, and writes to mapped memory raise no
+ * file system event. So every change also touches the change file of the queue directory, which
+ * is what wakes consumers in other processes.
+ */
+class QueueWatcher {
+	static final String CHANGE_FILE = "queue.changes";
+
+	private static final Logger log = Logger.getLogger("QueueWatcher");
+	private static volatile QueueWatcher instance;
+
+	private final WatchService watchService;
+	private final ConcurrentMap<Path, Signal> signals = new ConcurrentHashMap<Path, Signal>();
+
+	private QueueWatcher() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		Thread dispatcher = new Thread(this::dispatch, "file-queue-watcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	static QueueWatcher instance() throws IOException {
+		if (instance == null) {
+			synchronized (QueueWatcher.class) {
+				if (instance == null) {
+					instance = new QueueWatcher();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/*
+	 * Returns the change counter of a queue, watching its directory from now on
+	 */
+	long version(Path queuePath) throws IOException {
+		return signal(queuePath).version;
+	}
+
+	/*
+	 * Waits up to timeoutNanos for the queue to change after the given version. Returns false on
+	 * timeout.
+	 */
+	boolean awaitChange(Path queuePath, long version, long timeoutNanos) throws IOException, InterruptedException {
+		Signal signal = signal(queuePath);
+		long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (signal) {
+			while (signal.version == version) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Runs listener once, on the next change to the queue after this call, for waiting pulls
+	 * that hold no thread. Returns a handle that removes listener if it has not run yet.
+	 */
+	Runnable onChange(Path queuePath, Runnable listener) throws IOException {
+		Queue<Runnable> listeners = signal(queuePath).listeners;
+		listeners.add(listener);
+		return () -> listeners.remove(listener);
+	}
+
+	/*
+	 * Wakes consumers of a queue in every process: those of this JVM directly, if any are
+	 * watching, and those of other processes through the change file
+	 */
+	static void notifyChanged(Path queuePath) {
+		touch(queuePath.resolve(CHANGE_FILE));
+		QueueWatcher watcher = instance;
+		if (watcher != null) {
+			watcher.changed(queuePath);
+		}
+	}
+
+	private void changed(Path queuePath) {
+		Signal signal = signals.get(key(queuePath));
+		if (signal != null) {
+			signal.bump();
+		}
+	}
+
+	/*
+	 * Sets the modification time of file, creating it if needed, which watchers see as a
+	 * modification of its directory
+	 */
+	private static void touch(Path file) {
+		try {
+			try {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			} catch (NoSuchFileException e) {
+				Files.createFile(file);
+			}
+		} catch (FileAlreadyExistsException e) {
+			// Created by another writer, which raised the event
+		} catch (IOException e) {
+			log.warning("Error occurred touching change file " + file + "; Error: " + e);
+		}
+	}
+
+	/*
+	 * Registers the directory on every call. That costs little, returning the existing watch if
+	 * there is one, and watches the directory again if it was deleted and created again since.
+	 */
+	private Signal signal(Path queuePath) throws IOException {
+		Path key = key(queuePath);
+		key.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		Signal signal = signals.get(key);
+		if (signal == null) {
+			Signal created = new Signal();
+			signal = signals.putIfAbsent(key, created);
+			if (signal == null) {
+				signal = created;
+			}
+		}
+		return signal;
+	}
+
+	private void dispatch() {
+		while (true) {
+			try {
+				WatchKey watchKey = watchService.take();
+				watchKey.pollEvents();
+				changed((Path) watchKey.watchable());
+				// False if the directory was deleted; signal() watches it again if it comes back
+				watchKey.reset();
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				log.warning("Error occurred dispatching queue changes; Error: " + e);
+			}
+		}
+	}
+
+	private static Path key(Path queuePath) {
+		return queuePath.toAbsolutePath().normalize();
+	}
+
+	private static class Signal {
+		volatile long version;
+		final Queue<Runnable> listeners = new ConcurrentLinkedQueue<Runnable>();
+
+		void bump() {
+			synchronized (this) {
+				version++;
+				notifyAll();
+			}
+			Runnable listener;
+			while ((listener = listeners.poll()) != null) {
+				listener.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.example;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/*
+ * Visible messages of one in-memory queue, in the order they will be delivered. Messages taken
+ * off with pollFirst are in flight until they are added back or released.
+ */
+interface ReadyQueue {
+
+	/*
+	 * Adds a pushed message, or one moved from another queue, at the tail
+	 */
+	void addLast(QueueMessage message);
+
+	/*
+	 * As addLast, but returns false at once instead of waiting for room
+	 */
+	boolean offerLast(QueueMessage message);
+
+	/*
+	 * Returns a message whose delivery expired to the head
+	 */
+	void addFirst(QueueMessage message);
+
+	QueueMessage pollFirst();
+
+	/*
+	 * Takes the room a message will need once it is added, for a message that has to wait first,
+	 * behind the others of its FIFO group. Returns what to add with addLast when its turn comes,
+	 * which then never waits or fails.
+	 */
+	QueueMessage park(QueueMessage message);
+
+	/*
+	 * Frees whatever still holds a message taken off with pollFirst once it has been deleted
+	 */
+	void release(QueueMessage message);
+
+	/*
+	 * Keeps messages on the heap in a lock-free deque
+	 */
+	static class OnHeap implements ReadyQueue {
+		private final ConcurrentLinkedDeque<QueueMessage> messages = new ConcurrentLinkedDeque<QueueMessage>();
+
+		@Override
+		public void addLast(QueueMessage message) {
+			messages.addLast(message);
+		}
+
+		@Override
+		public boolean offerLast(QueueMessage message) {
+			messages.addLast(message);
+			return true;
+		}
+
+		@Override
+		public void addFirst(QueueMessage message) {
+			messages.addFirst(message);
+		}
+
+		@Override
+		public QueueMessage pollFirst() {
+			return messages.pollFirst();
+		}
+
+		@Override
+		public QueueMessage park(QueueMessage message) {
+			return message;
+		}
+
+		@Override
+		public void release(QueueMessage message) {
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.ConcurrentHistogram;
+
+/*
+ * QueueMetrics that keeps per-queue counters in LongAdders and durations in HdrHistograms, both
+ * of which record without allocating or locking. Read them with snapshot(), or over JMX when
+ * constructed with an MBeanServer.
+ */
+public class RecordingQueueMetrics implements QueueMetrics {
+	/*
+	 * Longest duration the histograms track; anything longer is recorded as this
+	 */
+	private static final long MAX_TRACKED_MICROS = TimeUnit.DAYS.toMicros(1);
+
+	private static final Logger log = Logger.getLogger("RecordingQueueMetrics");
+
+	private final ConcurrentMap<String, QueueRecorder> queues = new ConcurrentHashMap<String, QueueRecorder>();
+	private final MBeanServer mBeanServer;
+
+	public RecordingQueueMetrics() {
+		this(null);
+	}
+
+	/*
+	 * Registers a QueueMetricsMXBean for each queue with mBeanServer as the queue is first seen
+	 */
+	public RecordingQueueMetrics(MBeanServer mBeanServer) {
+		this.mBeanServer = mBeanServer;
+	}
+
+	/*
+	 * Exports to the platform MBeanServer
+	 */
+	public static RecordingQueueMetrics withJmx() {
+		return new RecordingQueueMetrics(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/*
+	 * Returns a snapshot of every queue seen so far, by queue name
+	 */
+	public Map<String, QueueMetricsSnapshot> snapshot() {
+		Map<String, QueueMetricsSnapshot> snapshots = new TreeMap<String, QueueMetricsSnapshot>();
+		for (QueueRecorder recorder : queues.values()) {
+			snapshots.put(recorder.queueName, new QueueMetricsSnapshot(recorder));
+		}
+		return snapshots;
+	}
+
+	/*
+	 * Returns a snapshot of a single queue, or null if nothing has been recorded for it
+	 */
+	public QueueMetricsSnapshot snapshot(String queueName) {
+		QueueRecorder recorder = queues.get(queueName);
+		return recorder == null ? null : new QueueMetricsSnapshot(recorder);
+	}
+
+	/*
+	 * Unregisters the MXBeans of every queue
+	 */
+	public void close() {
+		if (mBeanServer == null) {
+			return;
+		}
+		for (QueueRecorder recorder : queues.values()) {
+			try {
+				mBeanServer.unregisterMBean(objectName(recorder.queueName));
+			} catch (JMException e) {
+				log.warning("Cannot unregister metrics of queue " + recorder.queueName + "; Error: " + e);
+			}
+		}
+	}
+
+	@Override
+	public void pushed(String queueName, int count, long latencyNanos) {
+		QueueRecorder recorder = recorder(queueName);
+		recorder.pushed.add(count);
+		record(recorder.pushLatency, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+	}
+
+	@Override
+	public void pulled(String queueName, int count, long latencyNanos) {
+		QueueRecorder recorder = recorder(queueName);
+		recorder.pulled.add(count);
+		if (latencyNanos >= 0) {
+			record(recorder.pullLatency, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+		}
+	}
+
+	@Override
+	public void deleted(String queueName, int count, long latencyNanos) {
+		QueueRecorder recorder = recorder(queueName);
+		recorder.deleted.add(count);
+		record(recorder.deleteLatency, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+	}
+
+	@Override
+	public void redelivered(String queueName, int count) {
+		recorder(queueName).redelivered.add(count);
+	}
+
+	@Override
+	public void expired(String queueName, int count) {
+		recorder(queueName).expired.add(count);
+	}
+
+	@Override
+	public void deadLettered(String queueName, int count) {
+		recorder(queueName).deadLettered.add(count);
+	}
+
+	@Override
+	public void dropped(String queueName, int count) {
+		recorder(queueName).dropped.add(count);
+	}
+
+	@Override
+	public void rejected(String queueName, int count) {
+		recorder(queueName).rejected.add(count);
+	}
+
+	@Override
+	public void depth(String queueName, int visible, int inFlight) {
+		QueueRecorder recorder = recorder(queueName);
+		recorder.visible = visible;
+		recorder.inFlight = inFlight;
+	}
+
+	@Override
+	public void lockWaited(String queueName, long waitNanos) {
+		record(recorder(queueName).lockWait, TimeUnit.NANOSECONDS.toMicros(waitNanos));
+	}
+
+	@Override
+	public void messageAge(String queueName, long ageMillis) {
+		record(recorder(queueName).messageAge, TimeUnit.MILLISECONDS.toMicros(ageMillis));
+	}
+
+	private QueueRecorder recorder(String queueName) {
+		QueueRecorder recorder = queues.get(queueName);
+		if (recorder == null) {
+			recorder = queues.computeIfAbsent(queueName, this::register);
+		}
+		return recorder;
+	}
+
+	private QueueRecorder register(String queueName) {
+		QueueRecorder recorder = new QueueRecorder(queueName);
+		if (mBeanServer != null) {
+			try {
+				mBeanServer.registerMBean(recorder, objectName(queueName));
+			} catch (JMException e) {
+				log.warning("Cannot export metrics of queue " + queueName + " over JMX; Error: " + e);
+			}
+		}
+		return recorder;
+	}
+
+	private static void record(ConcurrentHistogram histogram, long micros) {
+		histogram.recordValue(Math.max(0, Math.min(micros, MAX_TRACKED_MICROS)));
+	}
+
+	static ObjectName objectName(String queueName) throws JMException {
+		return new ObjectName("com.example:type=QueueMetrics,queue=" + ObjectName.quote(queueName));
+	}
+
+	private static class QueueRecorder implements QueueMetricsMXBean {
+		final String queueName;
+		final LongAdder pushed = new LongAdder();
+		final LongAdder pulled = new LongAdder();
+		final LongAdder deleted = new LongAdder();
+		final LongAdder redelivered = new LongAdder();
+		final LongAdder expired = new LongAdder();
+		final LongAdder deadLettered = new LongAdder();
+		final LongAdder dropped = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		volatile int visible;
+		volatile int inFlight;
+		final ConcurrentHistogram pushLatency = histogram();
+		final ConcurrentHistogram pullLatency = histogram();
+		final ConcurrentHistogram deleteLatency = histogram();
+		final ConcurrentHistogram lockWait = histogram();
+		final ConcurrentHistogram messageAge = histogram();
+
+		QueueRecorder(String queueName) {
+			this.queueName = queueName;
+		}
+
+		private static ConcurrentHistogram histogram() {
+			return new ConcurrentHistogram(MAX_TRACKED_MICROS, 2);
+		}
+
+		public String getQueueName() {
+			return queueName;
+		}
+
+		public long getPushed() {
+			return pushed.sum();
+		}
+
+		public long getPulled() {
+			return pulled.sum();
+		}
+
+		public long getDeleted() {
+			return deleted.sum();
+		}
+
+		public long getRedelivered() {
+			return redelivered.sum();
+		}
+
+		public long getExpired() {
+			return expired.sum();
+		}
+
+		public long getDeadLettered() {
+			return deadLettered.sum();
+		}
+
+		public long getDropped() {
+			return dropped.sum();
+		}
+
+		public long getRejected() {
+			return rejected.sum();
+		}
+
+		public int getVisible() {
+			return visible;
+		}
+
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		public LatencySummary getPushLatency() {
+			return LatencySummary.of(pushLatency.copy());
+		}
+
+		public LatencySummary getPullLatency() {
+			return LatencySummary.of(pullLatency.copy());
+		}
+
+		public LatencySummary getDeleteLatency() {
+			return LatencySummary.of(deleteLatency.copy());
+		}
+
+		public LatencySummary getLockWait() {
+			return LatencySummary.of(lockWait.copy());
+		}
+
+		public LatencySummary getMessageAge() {
+			return LatencySummary.of(messageAge.copy());
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Settings for the ring files of SharedMemoryQueueService. They only apply to rings created
+ * from now on; a ring that already exists keeps the geometry it was created with.
+ *
+ * slots          messages a ring holds, counting those in flight and delayed; a push waits once
+ *                every slot holds a message, or the message this many pushes back has not been
+ *                pulled yet
+ * maxMessageSize largest payload in bytes, rounded up so slots fill whole cache lines; every
+ *                slot reserves this much, so the ring file takes about slots times
+ *                maxMessageSize bytes, 4 MiB by default. Creating a ring writes the header of
+ *                every slot, so all of it is allocated on the first use of a queue.
+ * maxPushWait    longest a push waits for a slot to be freed before it fails with
+ *                QueueFullException
+ */
+public class SharedMemoryConfig {
+	private int slots = 1024;
+	private int maxMessageSize = 4096;
+	private long maxPushWaitMillis = TimeUnit.SECONDS.toMillis(30);
+
+	public SharedMemoryConfig withSlots(int slots) {
+		this.slots = slots;
+		return this;
+	}
+
+	public SharedMemoryConfig withMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+		return this;
+	}
+
+	public SharedMemoryConfig withMaxPushWait(long maxPushWait, TimeUnit unit) {
+		this.maxPushWaitMillis = unit.toMillis(maxPushWait);
+		return this;
+	}
+
+	int getSlots() {
+		return slots;
+	}
+
+	int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	long getMaxPushWaitMillis() {
+		return maxPushWaitMillis;
+	}
+}
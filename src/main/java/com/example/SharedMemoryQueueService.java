@@ -0,0 +1,505 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/*
+ * Queue service for processes on the same host, built on one memory-mapped ring file per queue
+ * (see SharedRing). Producers and consumers in any number of JVMs exchange messages through
+ * the shared mapping with compare-and-swap alone, so a hand-off costs microseconds rather than
+ * the lock files and system calls of FileQueueService. Messages keep the visibility timeout,
+ * receipt and delete semantics of the other services and outlive the processes using them.
+ *
+ * Rings are fixed in size: a queue holds at most the configured number of slots, and a message
+ * at most the configured size. Pushes to a full ring wait for a slot to be freed. Waits spin
+ * first, for the lowest latency when the other side is active, then yield and finally park for
+ * growing intervals up to MAX_PARK_MICROS.
+ *
+ * A delayed message takes its slot from the moment it is pushed, so the ring must have room for
+ * every message delayed at once on top of those in flight; delays suit short waits on a ring.
+ */
+public class SharedMemoryQueueService implements QueueService {
+	private final Path rootPath;
+	private final SharedMemoryConfig config;
+	private volatile long visibilityTimeoutMillis;
+	private final Map<String, SharedRing> rings = new ConcurrentHashMap<String, SharedRing>();
+	private final Map<String, DeadLetterPolicy> deadLetterPolicies = new ConcurrentHashMap<String, DeadLetterPolicy>();
+	private final Map<String, QueueLimits> queueLimits = new ConcurrentHashMap<String, QueueLimits>();
+	private volatile QueueMetrics metrics = QueueMetrics.NOOP;
+
+	private static final Logger log = Logger.getLogger("SharedMemoryQueueService");
+
+	/*
+	 * Waits busy-spin this many times, then yield this many times, before parking
+	 */
+	private static final int SPINS = 1000;
+	private static final int YIELDS = 100;
+	private static final long MAX_PARK_MICROS = 1000;
+
+	/*
+	 * Messages redriven per pull from the dead-letter queue
+	 */
+	private static final int REDRIVE_BATCH_SIZE = 256;
+
+	private static final String RING_SUFFIX = ".ring";
+
+	public SharedMemoryQueueService(String rootPath, long visibilityTimeout) throws IOException {
+		this(rootPath, visibilityTimeout, new SharedMemoryConfig());
+	}
+
+	/*
+	 * visibilityTimeout is in seconds. config sets the geometry of rings this service creates.
+	 */
+	public SharedMemoryQueueService(String rootPath, long visibilityTimeout, SharedMemoryConfig config) throws IOException {
+		this.rootPath = Paths.get(rootPath);
+		this.config = config;
+		this.visibilityTimeoutMillis = TimeUnit.SECONDS.toMillis(visibilityTimeout);
+		Files.createDirectories(this.rootPath);
+	}
+
+	/*
+	 * Sets visibilityTimeout to be applied to new messages, to the millisecond
+	 */
+	public void setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+		this.visibilityTimeoutMillis = unit.toMillis(visibilityTimeout);
+	}
+
+	/*
+	 * Sets where operations on every queue are reported
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void push(String queueName, String msgContent) throws IOException {
+		pushBatch(queueName, Collections.singletonList(msgContent));
+	}
+
+	@Override
+	public void pushBatch(String queueName, List<String> msgContents) throws IOException {
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(msgContents.size());
+		for (String msgContent : msgContents) {
+			payloads.add(ByteBuffer.wrap(msgContent.getBytes(StandardCharsets.UTF_8)));
+		}
+		pushPayloads(queueName, payloads, 0);
+	}
+
+	/*
+	 * Delays are measured on the wall clock of each process, to the millisecond. Other processes
+	 * see a delayed message within EXPIRY_RECHECK_MILLIS of it becoming visible.
+	 */
+	@Override
+	public void push(String queueName, String msgContent, long delay, TimeUnit unit) throws IOException {
+		pushAt(queueName, msgContent, System.currentTimeMillis() + unit.toMillis(delay));
+	}
+
+	@Override
+	public void pushAt(String queueName, String msgContent, Instant deliverAt) throws IOException {
+		pushAt(queueName, msgContent, deliverAt.toEpochMilli());
+	}
+
+	private void pushAt(String queueName, String msgContent, long visibleAt) throws IOException {
+		pushPayloads(queueName, Collections.singletonList(ByteBuffer.wrap(msgContent.getBytes(StandardCharsets.UTF_8))), visibleAt);
+	}
+
+	@Override
+	public void pushBytes(String queueName, ByteBuffer payload) throws IOException {
+		pushBytesBatch(queueName, Collections.singletonList(payload));
+	}
+
+	/*
+	 * Each payload is copied from the caller's buffer straight into its slot
+	 */
+	@Override
+	public void pushBytesBatch(String queueName, List<ByteBuffer> payloads) throws IOException {
+		pushPayloads(queueName, payloads, 0);
+	}
+
+	/*
+	 * Throws QueueFullException if the messages do not fit under the limits of the queue, or if
+	 * no slot was freed within the configured wait. The messages become visible at visibleAt, or at
+	 * once if it has passed.
+	 */
+	private void pushPayloads(String queueName, List<ByteBuffer> payloads, long visibleAt) throws IOException {
+		long start = System.nanoTime();
+		SharedRing ring = getRing(queueName);
+		try {
+			QueueLimits limits = queueLimits.get(queueName);
+			if (limits != null) {
+				makeRoom(queueName, ring, limits, payloads);
+			}
+			int pushed = append(queueName, ring, payloads, visibleAt);
+			metrics.pushed(queueName, pushed, System.nanoTime() - start);
+		} catch (QueueFullException e) {
+			metrics.rejected(queueName, payloads.size());
+			throw e;
+		}
+	}
+
+	/*
+	 * Pushes the message only if it fits under the limits of the queue and a slot is free right
+	 * now, without waiting or dropping messages
+	 */
+	@Override
+	public boolean offer(String queueName, String msgContent) throws IOException {
+		long start = System.nanoTime();
+		SharedRing ring = getRing(queueName);
+		ByteBuffer payload = ByteBuffer.wrap(msgContent.getBytes(StandardCharsets.UTF_8));
+		QueueLimits limits = queueLimits.get(queueName);
+		boolean pushed = (limits == null || limits.fits(ring.size(), ring.bytes(), 1, payload.remaining()))
+				&& ring.push(payload, visibilityTimeoutMillis, System.currentTimeMillis());
+		if (pushed) {
+			metrics.pushed(queueName, 1, System.nanoTime() - start);
+		} else {
+			metrics.rejected(queueName, 1);
+		}
+		return pushed;
+	}
+
+	@Override
+	public QueueMessage pull(String queueName) throws IOException {
+		List<QueueMessage> messages = pullBatch(queueName, 1);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/*
+	 * Pulls a message, spinning and then parking until one is pushed by any process or an
+	 * in-flight message becomes visible again
+	 */
+	@Override
+	public QueueMessage pull(String queueName, long waitTime, TimeUnit unit) throws IOException {
+		SharedRing ring = getRing(queueName);
+		long deadline = System.nanoTime() + unit.toNanos(waitTime);
+		for (int attempt = 0;; attempt++) {
+			List<QueueMessage> messages = take(queueName, ring, 1);
+			if (!messages.isEmpty()) {
+				metrics.pulled(queueName, 1, -1);
+				reportRedelivered(queueName, messages);
+				return messages.get(0);
+			}
+			if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+				metrics.pulled(queueName, 0, -1);
+				return null;
+			}
+			idle(attempt);
+		}
+	}
+
+	@Override
+	public List<QueueMessage> pullBatch(String queueName, int maxMessages) throws IOException {
+		long start = System.nanoTime();
+		List<QueueMessage> messages = take(queueName, getRing(queueName), maxMessages);
+		metrics.pulled(queueName, messages.size(), System.nanoTime() - start);
+		reportRedelivered(queueName, messages);
+		if (messages.isEmpty()) {
+			log.warning("No Visible Messages in Queue " + queueName);
+		}
+		return messages;
+	}
+
+	/*
+	 * Pulls up to maxMessages, moving those that used up their receives to the dead-letter queue
+	 */
+	private List<QueueMessage> take(String queueName, SharedRing ring, int maxMessages) throws IOException {
+		DeadLetterPolicy policy = deadLetterPolicies.get(queueName);
+		List<QueueMessage> deadLetters = new ArrayList<QueueMessage>();
+		List<QueueMessage> messages = ring.pull(queueName, maxMessages, System.currentTimeMillis(),
+				policy == null ? 0 : policy.maxReceiveCount, deadLetters);
+		if (!deadLetters.isEmpty()) {
+			moveToDeadLetterQueue(queueName, ring, policy, deadLetters);
+		}
+		return messages;
+	}
+
+	@Override
+	public void delete(String queueName, Object msg) throws IOException {
+		deleteBatch(queueName, Collections.singletonList(msg));
+	}
+
+	/*
+	 * Deletes all still-invisible messages pulled from this queue
+	 */
+	@Override
+	public void deleteBatch(String queueName, List<?> msgs) throws IOException {
+		List<QueueMessage> receipts = receipts(queueName, msgs, "delete", true);
+		if (receipts.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		List<QueueMessage> deleted = getRing(queueName).delete(receipts, System.currentTimeMillis());
+		long now = System.currentTimeMillis();
+		QueueMetrics metrics = this.metrics;
+		metrics.deleted(queueName, deleted.size(), System.nanoTime() - start);
+		for (QueueMessage receipt : deleted) {
+			metrics.messageAge(queueName, now - receipt.getPushedAt());
+		}
+		if (deleted.size() < receipts.size()) {
+			log.warning((receipts.size() - deleted.size()) + " messages could not be removed from Queue " + queueName);
+		}
+	}
+
+	@Override
+	public boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) throws IOException {
+		return changeVisibilityBatch(queueName, Collections.singletonList(msg), timeout, unit) == 1;
+	}
+
+	/*
+	 * Moves the deadline of every message still in flight under its receipt, and of the receipt
+	 * with it
+	 */
+	@Override
+	public int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) throws IOException {
+		List<QueueMessage> receipts = receipts(queueName, msgs, "change visibility of", false);
+		if (receipts.isEmpty()) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long deadline = now + unit.toMillis(timeout);
+		List<QueueMessage> changed = getRing(queueName).changeVisibility(receipts, deadline, now);
+		for (QueueMessage receipt : changed) {
+			receipt.setTimeoutInMillis(deadline);
+		}
+		return changed.size();
+	}
+
+	/*
+	 * The policy belongs to this service, so every process pulling from the queue should set
+	 * the same one
+	 */
+	@Override
+	public void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+		if (deadLetterQueueName == null) {
+			deadLetterPolicies.remove(queueName);
+		} else {
+			deadLetterPolicies.put(queueName, new DeadLetterPolicy(deadLetterQueueName, maxReceiveCount));
+		}
+	}
+
+	/*
+	 * Moves messages in batches: each batch is taken in flight on the dead-letter queue, pushed
+	 * to queueName and only then deleted, so a crash can duplicate messages but never lose them
+	 */
+	@Override
+	public int redrive(String deadLetterQueueName, String queueName, int maxMessages) throws IOException {
+		SharedRing deadLetters = getRing(deadLetterQueueName);
+		SharedRing ring = getRing(queueName);
+		int moved = 0;
+		while (moved < maxMessages) {
+			List<QueueMessage> messages = deadLetters.pull(deadLetterQueueName,
+					Math.min(REDRIVE_BATCH_SIZE, maxMessages - moved), System.currentTimeMillis(), 0, null);
+			if (messages.isEmpty()) {
+				break;
+			}
+			append(queueName, ring, payloads(messages), 0);
+			List<QueueMessage> deleted = deadLetters.delete(messages, System.currentTimeMillis());
+			if (deleted.size() < messages.size()) {
+				log.warning((messages.size() - deleted.size()) + " messages redriven to queue " + queueName
+						+ " could not be removed from Queue " + deadLetterQueueName + " and may be redriven again");
+			}
+			moved += deleted.size();
+		}
+		return moved;
+	}
+
+	/*
+	 * The limits belong to this service and are checked against counters other processes update
+	 * at the same time, so they are soft: concurrent pushes may go slightly over them.
+	 */
+	@Override
+	public void setQueueLimits(String queueName, QueueLimits limits) {
+		if (limits == null) {
+			queueLimits.remove(queueName);
+		} else {
+			queueLimits.put(queueName, limits);
+		}
+	}
+
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return ((QueueMessage) msg).getPayload();
+	}
+
+	/*
+	 * Messages not yet deleted, counting those in flight
+	 */
+	public int getQueueSize(String queueName) throws IOException {
+		return getRing(queueName).size();
+	}
+
+	/*
+	 * Forces every ring this service has opened out to its file. Rings already outlive the
+	 * processes using them; this makes them outlive a crash of the host too.
+	 */
+	public void sync() {
+		for (SharedRing ring : rings.values()) {
+			ring.sync();
+		}
+	}
+
+	/*
+	 * Waits for room under limits as their overflow policy says, or throws QueueFullException
+	 */
+	private void makeRoom(String queueName, SharedRing ring, QueueLimits limits, List<ByteBuffer> payloads) {
+		long byteCount = 0;
+		for (ByteBuffer payload : payloads) {
+			byteCount += payload.remaining();
+		}
+		if (!limits.fits(0, 0, payloads.size(), byteCount)) {
+			throw new QueueFullException("Queue " + queueName + " can never hold " + payloads.size() + " more messages");
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.getMaxBlockMillis());
+		int dropped = 0;
+		for (int attempt = 0; !limits.fits(ring.size(), ring.bytes(), payloads.size(), byteCount); attempt++) {
+			OverflowPolicy policy = limits.getOverflowPolicy();
+			if (policy == OverflowPolicy.DROP_OLDEST && ring.dropOldest(System.currentTimeMillis())) {
+				dropped++;
+			} else if (policy != OverflowPolicy.BLOCK) {
+				break;
+			} else if (System.nanoTime() - deadline >= 0) {
+				throw new QueueFullException("Timed out waiting for room for " + payloads.size() + " messages in queue " + queueName);
+			} else {
+				idle(attempt);
+			}
+		}
+		if (dropped > 0) {
+			metrics.dropped(queueName, dropped);
+		}
+		if (!limits.fits(ring.size(), ring.bytes(), payloads.size(), byteCount)) {
+			throw new QueueFullException("Queue " + queueName + " has no room for " + payloads.size() + " messages");
+		}
+	}
+
+	/*
+	 * Writes each payload to the ring, waiting up to the configured time for a free slot. Returns
+	 * the number written, which is less than all of them only if the thread was interrupted.
+	 */
+	private int append(String queueName, SharedRing ring, List<ByteBuffer> payloads, long visibleAt) {
+		long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxPushWaitMillis());
+		for (int i = 0; i < payloads.size(); i++) {
+			long deadline = System.nanoTime() + maxWaitNanos;
+			for (int attempt = 0; !ring.push(payloads.get(i), visibilityTimeoutMillis, visibleAt, System.currentTimeMillis()); attempt++) {
+				if (Thread.currentThread().isInterrupted()) {
+					log.warning("Interrupted pushing messages to queue " + queueName);
+					return i;
+				}
+				if (System.nanoTime() - deadline >= 0) {
+					throw new QueueFullException("Ring of queue " + queueName + " is full, cannot push message");
+				}
+				idle(attempt);
+			}
+		}
+		return payloads.size();
+	}
+
+	/*
+	 * Pushes messages that used up their receives to the dead-letter queue, then deletes them
+	 * from queueName. If the move fails, the messages become visible again and are moved by a
+	 * later pull.
+	 */
+	private void moveToDeadLetterQueue(String queueName, SharedRing ring, DeadLetterPolicy policy, List<QueueMessage> deadLetters)
+			throws IOException {
+		try {
+			append(policy.queueName, getRing(policy.queueName), payloads(deadLetters), 0);
+			ring.delete(deadLetters, System.currentTimeMillis());
+			metrics.deadLettered(queueName, deadLetters.size());
+		} catch (QueueFullException e) {
+			log.warning("Error occurred moving messages from queue " + queueName + " to dead-letter queue " + policy.queueName
+					+ "; Error: " + e);
+		}
+	}
+
+	/*
+	 * The messages of msgs pulled from queueName, and only those still in flight if inFlight is set
+	 */
+	private List<QueueMessage> receipts(String queueName, List<?> msgs, String operation, boolean inFlight) {
+		List<QueueMessage> receipts = new ArrayList<QueueMessage>();
+		for (Object msg : msgs) {
+			if (!(msg instanceof QueueMessage)) {
+				log.warning("Invalid message, cannot " + operation + " it");
+				continue;
+			}
+			QueueMessage qMsg = (QueueMessage) msg;
+			if (!queueName.equals(qMsg.getQueueName())) {
+				log.warning("Message was not pulled from queue " + queueName + ", cannot " + operation + " it");
+				continue;
+			}
+			if (!inFlight || !qMsg.isVisible()) {
+				receipts.add(qMsg);
+			}
+		}
+		return receipts;
+	}
+
+	private void reportRedelivered(String queueName, List<QueueMessage> messages) {
+		int redelivered = 0;
+		for (QueueMessage message : messages) {
+			if (message.getReceiveCount() > 1) {
+				redelivered++;
+			}
+		}
+		if (redelivered > 0) {
+			metrics.redelivered(queueName, redelivered);
+		}
+	}
+
+	private SharedRing getRing(String queueName) throws IOException {
+		SharedRing ring = rings.get(queueName);
+		if (ring == null) {
+			synchronized (rings) {
+				ring = rings.get(queueName);
+				if (ring == null) {
+					ring = SharedRing.open(rootPath.resolve(queueName + RING_SUFFIX), config.getSlots(), config.getMaxMessageSize());
+					rings.put(queueName, ring);
+				}
+			}
+		}
+		return ring;
+	}
+
+	private static List<ByteBuffer> payloads(List<QueueMessage> messages) {
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(messages.size());
+		for (QueueMessage message : messages) {
+			payloads.add(message.getPayload());
+		}
+		return payloads;
+	}
+
+	/*
+	 * Backs off a little more on each failed attempt: spin, then yield, then park
+	 */
+	private static void idle(int attempt) {
+		if (attempt < SPINS) {
+			return;
+		}
+		if (attempt < SPINS + YIELDS) {
+			Thread.yield();
+			return;
+		}
+		long micros = Math.min(MAX_PARK_MICROS, 1L << Math.min(10, attempt - SPINS - YIELDS));
+		LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+
+	private static class DeadLetterPolicy {
+		final String queueName;
+		final int maxReceiveCount;
+
+		DeadLetterPolicy(String queueName, int maxReceiveCount) {
+			this.queueName = queueName;
+			this.maxReceiveCount = maxReceiveCount;
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/*
+ * Memory-mapped ring of message slots backing a single shared-memory queue. Every process using
+ * the queue maps the same file, and producers and consumers coordinate only through
+ * compare-and-swap on words of the mapping, so no operation makes a system call or takes a lock.
+ *
+ * The file starts with a header holding the geometry and the shared counters, each on a cache
+ * line of its own:
+ *
+ *   magic (4) | version (4) | slots (4) | slot size (4) | epoch (8) || head (8) || tail (8)
+ *     || cursor (8) || size (8) | bytes (8)
+ *
+ * followed by the slots, each starting with a fixed header:
+ *
+ *   sequence (8) | lease (8) | pushed at (8) | visibility timeout (8) | length (4) | pad (4)
+ *     | origin (8) | payload
+ *
+ * Message s of the queue lives in slot s % slots. The sequence word of a slot says which lap it
+ * is on: it is s while message s is being written, s + 1 once it is published, and s + slots
+ * once it is deleted and the slot is free for message s + slots. A producer claims message
+ * head by moving head on while the slot is free for it, then stamps the lease word of the slot
+ * WRITING with the time; a stalled producer holds up only its own slot, never other producers.
+ *
+ * A producer that finds the slot of head still holding the message a lap back, in flight or
+ * delayed, carries that message forward instead of waiting for it: it claims head for it and
+ * moves the sequence word on a lap, leaving the message where it is. So messages held by
+ * consumers or delays take their slots out of the ring but never stop it from turning, and the
+ * ring is full only once every slot holds a message or the message a lap back has never been
+ * pulled. A message keeps the sequence it was pushed as in its origin word, and its receipts
+ * name that, so they stay valid however far it is carried.
+ *
+ * The lease word of a published message packs its receive count into the bits above 44 and its
+ * visibility deadline, in milliseconds since the epoch of the ring, into the 44 below. A
+ * deadline of 0 means never pulled. A delayed message is published with no receives and the time
+ * it becomes visible as its deadline, so pulls pass it by until then and the expiry scan picks
+ * it up once it is due, as if its visibility timeout had ended. It keeps its slot meanwhile,
+ * carried forward like a message in flight. Pulling, changing visibility and deleting each move
+ * the lease word with a single CAS from the value the caller last saw, so a receipt, identified
+ * by the receive count, stays valid until the message is delivered again.
+ *
+ * Consumers find new messages from cursor, below which every message has been pulled at least
+ * once, and messages whose visibility timeout has ended by scanning from tail, the oldest
+ * message not yet deleted. The expiry scan only runs once the earliest deadline this process
+ * knows of has passed, and at least every EXPIRY_RECHECK_MILLIS for deadlines set by other
+ * processes.
+ *
+ * The ring survives restarts of every process using it, as the mapping writes through to the
+ * file. A producer that dies while writing leaves its slot claimed; once the claim is older
+ * than STALE_WRITE_MILLIS the slot is freed again when it reaches the tail.
+ */
+class SharedRing implements Closeable {
+	private static final int MAGIC = 0x51524E47;
+	private static final int VERSION = 2;
+
+	private static final int SLOTS = 8;
+	private static final int SLOT_SIZE = 12;
+	private static final int EPOCH = 16;
+	private static final int HEAD = 64;
+	private static final int TAIL = 128;
+	private static final int CURSOR = 192;
+	private static final int SIZE = 256;
+	private static final int BYTES = 264;
+	private static final int HEADER_SIZE = 320;
+
+	private static final int SEQUENCE = 0;
+	private static final int LEASE = 8;
+	private static final int PUSHED_AT = 16;
+	private static final int VISIBILITY_TIMEOUT = 24;
+	private static final int LENGTH = 32;
+	private static final int ORIGIN = 40;
+	private static final int SLOT_HEADER_SIZE = 48;
+
+	private static final long FREE = -1L;
+	private static final long WRITING = Long.MIN_VALUE;
+	private static final int RECEIVE_COUNT_SHIFT = 44;
+	private static final long DEADLINE_MASK = (1L << RECEIVE_COUNT_SHIFT) - 1;
+	private static final int MAX_RECEIVE_COUNT = (1 << (63 - RECEIVE_COUNT_SHIFT)) - 1;
+
+	/*
+	 * Longest a deadline set by another process can go unnoticed once it has passed
+	 */
+	static final long EXPIRY_RECHECK_MILLIS = 100;
+
+	/*
+	 * Age after which a slot still being written is taken to belong to a dead producer
+	 */
+	private static final long STALE_WRITE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final Unsafe UNSAFE;
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		try {
+			Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			UNSAFE = (Unsafe) theUnsafe.get(null);
+			ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/*
+	 * Kept so the mapping stays alive for as long as its address is used
+	 */
+	private final MappedByteBuffer mapping;
+	private final long base;
+	private final int slots;
+	private final int slotSize;
+	private final long epoch;
+	private final AtomicLong expiryScanAt = new AtomicLong();
+
+	private SharedRing(MappedByteBuffer mapping) {
+		this.mapping = mapping;
+		this.base = UNSAFE.getLong(mapping, ADDRESS_OFFSET);
+		this.slots = UNSAFE.getInt(base + SLOTS);
+		this.slotSize = UNSAFE.getInt(base + SLOT_SIZE);
+		this.epoch = UNSAFE.getLong(base + EPOCH);
+	}
+
+	/*
+	 * Maps the ring in file, creating it with the given geometry if it does not exist yet. Other
+	 * processes opening the same file at the same time wait for it to be initialized. Opens are
+	 * serialized within the JVM, as file locks are held per process.
+	 */
+	static synchronized SharedRing open(Path file, int slots, int maxMessageSize) throws IOException {
+		int slotSize = (SLOT_HEADER_SIZE + maxMessageSize + 63) & ~63;
+		long fileSize = HEADER_SIZE + (long) slots * slotSize;
+		if(slots < 1 || maxMessageSize < 0 || fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A ring of " + slots + " slots of " + maxMessageSize + " bytes cannot be mapped");
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// Released when the channel closes
+			channel.lock();
+			boolean created = channel.size() < HEADER_SIZE;
+			if(created) {
+				channel.truncate(0);
+			} else {
+				fileSize = channel.size();
+			}
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+			long address = UNSAFE.getLong(mapping, ADDRESS_OFFSET);
+			if(created) {
+				initialize(address, slots, slotSize);
+			} else if(UNSAFE.getIntVolatile(null, address) != MAGIC || UNSAFE.getInt(address + 4) != VERSION) {
+				throw new IOException("Not a ring file: " + file);
+			}
+			return new SharedRing(mapping);
+		}
+	}
+
+	private static void initialize(long address, int slots, int slotSize) {
+		UNSAFE.putInt(address + 4, VERSION);
+		UNSAFE.putInt(address + SLOTS, slots);
+		UNSAFE.putInt(address + SLOT_SIZE, slotSize);
+		UNSAFE.putLong(address + EPOCH, System.currentTimeMillis());
+		for(int i = 0; i < slots; i++) {
+			long slot = address + HEADER_SIZE + (long) i * slotSize;
+			UNSAFE.putLong(slot + SEQUENCE, i);
+			UNSAFE.putLong(slot + LEASE, FREE);
+		}
+		UNSAFE.putIntVolatile(null, address, MAGIC);
+	}
+
+	int maxMessageSize() {
+		return slotSize - SLOT_HEADER_SIZE;
+	}
+
+	/*
+	 * Messages not yet deleted, counting those in flight
+	 */
+	int size() {
+		return (int) Math.max(0, UNSAFE.getLongVolatile(null, base + SIZE));
+	}
+
+	long bytes() {
+		return Math.max(0, UNSAFE.getLongVolatile(null, base + BYTES));
+	}
+
+	/*
+	 * Writes payload to the next slot. Returns false if the ring is full, as the message a ring's
+	 * length before the head has never been pulled or every slot holds a message. Throws
+	 * IllegalArgumentException if payload is larger than a slot.
+	 */
+	boolean push(ByteBuffer payload, long visibilityTimeoutMillis, long now) {
+		return push(payload, visibilityTimeoutMillis, 0, now);
+	}
+
+	/*
+	 * As push, for a message that becomes visible at visibleAt, or at once if that is not after
+	 * now
+	 */
+	boolean push(ByteBuffer payload, long visibilityTimeoutMillis, long visibleAt, long now) {
+		int length = payload.remaining();
+		if(length > maxMessageSize()) {
+			throw new IllegalArgumentException("Message of " + length + " bytes does not fit in a slot of " + maxMessageSize());
+		}
+		int carried = 0;
+		while(true) {
+			long head = UNSAFE.getLongVolatile(null, base + HEAD);
+			long slot = slot(head);
+			long sequence = UNSAFE.getLongVolatile(null, slot + SEQUENCE);
+			if(sequence == head) {
+				if(!UNSAFE.compareAndSwapLong(null, base + HEAD, head, head + 1)) {
+					continue;
+				}
+				if(write(slot, head, payload, visibilityTimeoutMillis, visibleAt, now)) {
+					return true;
+				}
+			} else if(sequence == head - slots + 1 && carried < slots && isHeld(slot)) {
+				if(!UNSAFE.compareAndSwapLong(null, base + HEAD, head, head + 1)) {
+					continue;
+				}
+				carried++;
+				if(!carry(slot, head) && write(slot, head, payload, visibilityTimeoutMillis, visibleAt, now)) {
+					return true;
+				}
+			} else if(sequence < head && UNSAFE.getLongVolatile(null, base + HEAD) == head) {
+				advanceTail(now);
+				return false;
+			}
+		}
+	}
+
+	/*
+	 * Whether the message published in slot is in flight, delayed or was pulled before, and so
+	 * may be carried forward without jumping ahead of messages never pulled
+	 */
+	private boolean isHeld(long slot) {
+		long lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+		return lease >= 0 && (lease & DEADLINE_MASK) != 0;
+	}
+
+	/*
+	 * Moves the message a lap back in slot on to sequence, claimed for it by the caller. Returns
+	 * false if the message was deleted meanwhile, leaving the slot free for sequence.
+	 */
+	private boolean carry(long slot, long sequence) {
+		while(true) {
+			long current = UNSAFE.getLongVolatile(null, slot + SEQUENCE);
+			if(current == sequence) {
+				return false;
+			}
+			if(UNSAFE.compareAndSwapLong(null, slot + SEQUENCE, current, sequence + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Writes payload as message sequence, claimed by the caller, to its slot
+	 */
+	private boolean write(long slot, long sequence, ByteBuffer payload, long visibilityTimeoutMillis, long visibleAt, long now) {
+		long claim = WRITING | relative(now);
+		if(!UNSAFE.compareAndSwapLong(null, slot + LEASE, FREE, claim)) {
+			// Stamped by advanceTail on our behalf, or already freed as stale
+			claim = UNSAFE.getLongVolatile(null, slot + LEASE);
+		}
+		return claim != FREE && claim < 0 && publish(slot, sequence, claim, payload, visibilityTimeoutMillis, visibleAt, now);
+	}
+
+	/*
+	 * Fills a claimed slot and makes it visible. Returns false if the claim was taken for a dead
+	 * producer's and the slot freed in the meantime.
+	 */
+	private boolean publish(long slot, long sequence, long claim, ByteBuffer payload, long visibilityTimeoutMillis, long visibleAt,
+			long now) {
+		int length = payload.remaining();
+		UNSAFE.putLong(slot + PUSHED_AT, now);
+		UNSAFE.putLong(slot + VISIBILITY_TIMEOUT, visibilityTimeoutMillis);
+		UNSAFE.putInt(slot + LENGTH, length);
+		UNSAFE.putLong(slot + ORIGIN, sequence);
+		ByteBuffer target = ((ByteBuffer) mapping).duplicate();
+		((Buffer) target).position((int) (slot - base + SLOT_HEADER_SIZE));
+		target.put(payload.duplicate());
+		boolean delayed = visibleAt > now;
+		if(!UNSAFE.compareAndSwapLong(null, slot + LEASE, claim, delayed ? lease(0, visibleAt) : 0)) {
+			return false;
+		}
+		if(delayed) {
+			expiryScanAt.accumulateAndGet(visibleAt + 1, Math::min);
+		}
+		UNSAFE.getAndAddLong(null, base + SIZE, 1);
+		UNSAFE.getAndAddLong(null, base + BYTES, length);
+		UNSAFE.compareAndSwapLong(null, slot + SEQUENCE, sequence, sequence + 1);
+		return true;
+	}
+
+	/*
+	 * Marks up to maxMessages visible messages as in flight until their visibility timeout from
+	 * now and returns them, those that became visible again first. As in QueueLog, messages
+	 * already received maxReceiveCount times are added to deadLetters instead, for the caller to
+	 * move and delete. A maxReceiveCount of 0 means no limit.
+	 */
+	List<QueueMessage> pull(String queueName, int maxMessages, long now, int maxReceiveCount, List<QueueMessage> deadLetters) {
+		List<QueueMessage> messages = new ArrayList<QueueMessage>();
+		if(now >= expiryScanAt.get()) {
+			pullExpired(queueName, messages, maxMessages, now, maxReceiveCount, deadLetters);
+		}
+		if(messages.size() < maxMessages) {
+			pullNew(queueName, messages, maxMessages, now, maxReceiveCount, deadLetters);
+		}
+		return messages;
+	}
+
+	private void pullExpired(String queueName, List<QueueMessage> messages, int maxMessages, long now, int maxReceiveCount,
+			List<QueueMessage> deadLetters) {
+		long nextScan = now + EXPIRY_RECHECK_MILLIS;
+		long end = Math.min(UNSAFE.getLongVolatile(null, base + CURSOR), UNSAFE.getLongVolatile(null, base + HEAD));
+		for(long sequence = UNSAFE.getLongVolatile(null, base + TAIL); sequence < end; sequence++) {
+			if(messages.size() == maxMessages) {
+				return;
+			}
+			long slot = slot(sequence);
+			if(UNSAFE.getLongVolatile(null, slot + SEQUENCE) != sequence + 1) {
+				continue;
+			}
+			long lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+			if(lease < 0) {
+				continue;
+			}
+			long deadline = lease & DEADLINE_MASK;
+			if(deadline == 0 || deadline < relative(now)) {
+				claim(queueName, sequence, slot, lease, now, maxReceiveCount, messages, deadLetters);
+			} else {
+				nextScan = Math.min(nextScan, epoch + deadline + 1);
+			}
+		}
+		expiryScanAt.set(nextScan);
+	}
+
+	/*
+	 * Pulls messages from cursor on, moving cursor past every message that has been pulled. Those
+	 * left behind a slot still being written may have expired too.
+	 */
+	private void pullNew(String queueName, List<QueueMessage> messages, int maxMessages, long now, int maxReceiveCount,
+			List<QueueMessage> deadLetters) {
+		long cursor = UNSAFE.getLongVolatile(null, base + CURSOR);
+		long head = UNSAFE.getLongVolatile(null, base + HEAD);
+		long newCursor = cursor;
+		boolean contiguous = true;
+		for(long sequence = cursor; sequence < head && messages.size() < maxMessages; sequence++) {
+			long slot = slot(sequence);
+			long lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+			if(UNSAFE.getLongVolatile(null, slot + SEQUENCE) == sequence + 1 && lease >= 0
+					&& ((lease & DEADLINE_MASK) == 0 || (lease & DEADLINE_MASK) < relative(now))) {
+				claim(queueName, sequence, slot, lease, now, maxReceiveCount, messages, deadLetters);
+			}
+			long current = UNSAFE.getLongVolatile(null, slot + SEQUENCE);
+			lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+			boolean passed = current > sequence + 1 || (current == sequence + 1 && (lease == FREE || lease > 0));
+			contiguous &= passed;
+			if(contiguous) {
+				newCursor = sequence + 1;
+			}
+		}
+		if(newCursor > cursor) {
+			UNSAFE.compareAndSwapLong(null, base + CURSOR, cursor, newCursor);
+		}
+	}
+
+	private void claim(String queueName, long sequence, long slot, long lease, long now, int maxReceiveCount,
+			List<QueueMessage> messages, List<QueueMessage> deadLetters) {
+		int previousReceives = (int) (lease >>> RECEIVE_COUNT_SHIFT);
+		int receiveCount = Math.min(MAX_RECEIVE_COUNT, previousReceives + 1);
+		long visibilityTimeoutMillis = UNSAFE.getLong(slot + VISIBILITY_TIMEOUT);
+		long deadline = now + visibilityTimeoutMillis;
+		long claimed = lease(receiveCount, deadline);
+		if(!UNSAFE.compareAndSwapLong(null, slot + LEASE, lease, claimed)) {
+			return;
+		}
+		int length = Math.min(UNSAFE.getInt(slot + LENGTH), maxMessageSize());
+		long pushedAt = UNSAFE.getLong(slot + PUSHED_AT);
+		long origin = UNSAFE.getLong(slot + ORIGIN);
+		byte[] payload = new byte[length];
+		ByteBuffer source = ((ByteBuffer) mapping).duplicate();
+		((Buffer) source).position((int) (slot - base + SLOT_HEADER_SIZE));
+		source.get(payload);
+		if(UNSAFE.getLongVolatile(null, slot + SEQUENCE) != sequence + 1) {
+			// The slot moved on to a later message with the same lease word, or the message was
+			// carried forward; give it back, to be found by the expiry scan if cursor moved past it
+			// meanwhile
+			if(UNSAFE.compareAndSwapLong(null, slot + LEASE, claimed, lease)) {
+				expiryScanAt.set(0);
+			}
+			return;
+		}
+		expiryScanAt.accumulateAndGet(deadline + 1, Math::min);
+		QueueMessage message = new QueueMessage(queueName, origin, receiveCount, ByteBuffer.wrap(payload).asReadOnlyBuffer(),
+				visibilityTimeoutMillis, deadline, pushedAt);
+		boolean deadLetter = maxReceiveCount > 0 && previousReceives >= maxReceiveCount;
+		(deadLetter ? deadLetters : messages).add(message);
+	}
+
+	/*
+	 * Deletes the deliveries named by the receipts, skipping any that are no longer the latest
+	 * delivery of their message or whose visibility timeout has expired. Returns the receipts of
+	 * the messages deleted. A message carried forward meanwhile frees its slot for the lap after
+	 * the one it was carried to.
+	 */
+	List<QueueMessage> delete(List<QueueMessage> receipts, long now) {
+		List<QueueMessage> deleted = new ArrayList<QueueMessage>();
+		for(QueueMessage receipt : receipts) {
+			long slot = slot(receipt.getSequence());
+			long lease = currentLease(receipt, slot, now);
+			if(lease >= 0 && UNSAFE.compareAndSwapLong(null, slot + LEASE, lease, FREE)) {
+				UNSAFE.getAndAddLong(null, base + SIZE, -1);
+				UNSAFE.getAndAddLong(null, base + BYTES, -UNSAFE.getInt(slot + LENGTH));
+				long sequence;
+				do {
+					sequence = UNSAFE.getLongVolatile(null, slot + SEQUENCE);
+				} while(!UNSAFE.compareAndSwapLong(null, slot + SEQUENCE, sequence, sequence - 1 + slots));
+				deleted.add(receipt);
+			}
+		}
+		if(!deleted.isEmpty()) {
+			advanceTail(now);
+		}
+		return deleted;
+	}
+
+	/*
+	 * Moves the deadline of the deliveries named by the receipts, skipping any that are no longer
+	 * the latest delivery of their message or have expired. Returns the receipts of the messages
+	 * changed.
+	 */
+	List<QueueMessage> changeVisibility(List<QueueMessage> receipts, long deadline, long now) {
+		List<QueueMessage> changed = new ArrayList<QueueMessage>();
+		for(QueueMessage receipt : receipts) {
+			long slot = slot(receipt.getSequence());
+			long lease = currentLease(receipt, slot, now);
+			if(lease >= 0 && UNSAFE.compareAndSwapLong(null, slot + LEASE, lease, lease(receipt.getReceiveCount(), deadline))) {
+				changed.add(receipt);
+			}
+		}
+		if(!changed.isEmpty()) {
+			expiryScanAt.accumulateAndGet(deadline + 1, Math::min);
+		}
+		return changed;
+	}
+
+	/*
+	 * Deletes the oldest visible message to make room. Returns false if none is visible.
+	 */
+	boolean dropOldest(long now) {
+		List<QueueMessage> oldest = pull(null, 1, now, 0, null);
+		return !oldest.isEmpty() && !delete(oldest, now).isEmpty();
+	}
+
+	/*
+	 * Forces the ring out to the file
+	 */
+	void sync() {
+		mapping.force();
+	}
+
+	@Override
+	public void close() {
+		sync();
+	}
+
+	/*
+	 * The lease word of the delivery receipt names, or -1 if it is no longer in flight. The origin
+	 * word is written before a message is published, so it is read after the lease word.
+	 */
+	private long currentLease(QueueMessage receipt, long slot, long now) {
+		long lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+		if(lease < 0 || UNSAFE.getLongVolatile(null, slot + ORIGIN) != receipt.getSequence()
+				|| (int) (lease >>> RECEIVE_COUNT_SHIFT) != receipt.getReceiveCount()
+				|| (lease & DEADLINE_MASK) < relative(now)) {
+			return -1;
+		}
+		return lease;
+	}
+
+	/*
+	 * Moves tail past deleted messages, freeing slots a dead producer left claimed and publishing
+	 * slots a producer finished writing but did not get to publish. A slot claimed but not yet
+	 * stamped is stamped now, so its age is known if its producer never gets to it.
+	 */
+	private void advanceTail(long now) {
+		while(true) {
+			long tail = UNSAFE.getLongVolatile(null, base + TAIL);
+			if(tail >= UNSAFE.getLongVolatile(null, base + HEAD)) {
+				return;
+			}
+			long slot = slot(tail);
+			long sequence = UNSAFE.getLongVolatile(null, slot + SEQUENCE);
+			// Deleted, or carried forward to a later lap
+			if(sequence == tail + slots || sequence > tail + 1) {
+				UNSAFE.compareAndSwapLong(null, base + TAIL, tail, tail + 1);
+				continue;
+			}
+			if(sequence != tail) {
+				return;
+			}
+			long lease = UNSAFE.getLongVolatile(null, slot + LEASE);
+			if(lease >= 0) {
+				// Published, visible or delayed, by a producer that did not get to bump the sequence
+				UNSAFE.compareAndSwapLong(null, slot + SEQUENCE, tail, tail + 1);
+				return;
+			}
+			if(lease == FREE) {
+				UNSAFE.compareAndSwapLong(null, slot + LEASE, FREE, WRITING | relative(now));
+				return;
+			}
+			if(lease >= 0 || relative(now) - (lease & DEADLINE_MASK) < STALE_WRITE_MILLIS
+					|| !UNSAFE.compareAndSwapLong(null, slot + LEASE, lease, FREE)) {
+				return;
+			}
+			UNSAFE.compareAndSwapLong(null, slot + SEQUENCE, tail, tail + slots);
+		}
+	}
+
+	private long slot(long sequence) {
+		return base + HEADER_SIZE + (sequence % slots) * slotSize;
+	}
+
+	private long lease(int receiveCount, long deadline) {
+		return ((long) receiveCount << RECEIVE_COUNT_SHIFT) | Math.max(1, relative(deadline));
+	}
+
+	private long relative(long millis) {
+		return Math.max(0, millis - epoch) & DEADLINE_MASK;
+	}
+}
@@ -0,0 +1,295 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/*
+ * AsyncQueueService over the SQS async client. Each operation sends its requests through the
+ * client's callback API and completes its future from the callback, so no thread of this class
+ * waits on SQS; long-polls are held by the client's connections, not by callers.
+ *
+ * Requests match those of SqsQueueService: batches go ten messages per request and binary
+ * payloads travel in the BinaryPayload attribute, so the two services can share queues. Limits,
+ * dead-letter queues and metrics are left to SqsQueueService, as they are set up once rather
+ * than per message.
+ */
+public class SqsAsyncQueueService implements AsyncQueueService {
+	private final AmazonSQSAsync sqsClient;
+	private final ConcurrentMap<String, CompletableFuture<String>> queueUrls = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+	private static final Logger log = Logger.getLogger("SqsAsyncQueueService");
+
+	public SqsAsyncQueueService(AmazonSQSAsync sqsClient) {
+		this.sqsClient = sqsClient;
+	}
+
+	@Override
+	public CompletableFuture<Void> push(String queueName, String msgContent) {
+		return withQueueUrl(queueName, queueUrl -> this.<SendMessageRequest, SendMessageResult>call(
+				new SendMessageRequest(queueUrl, msgContent), sqsClient::sendMessageAsync)).thenApply(result -> null);
+	}
+
+	/*
+	 * Sends messages with one SendMessageBatch request per ten messages, all at once. Completes
+	 * with PartialBatchException, once every request has returned, if SQS refused any messages.
+	 */
+	@Override
+	public CompletableFuture<Void> pushBatch(String queueName, List<String> msgContents) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(msgContents.size());
+		for (int i = 0; i < msgContents.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), msgContents.get(i)));
+		}
+		return withQueueUrl(queueName, queueUrl -> {
+			List<CompletableFuture<SendMessageBatchResult>> sends = new ArrayList<CompletableFuture<SendMessageBatchResult>>();
+			for (int start = 0; start < entries.size(); start += SqsQueueService.MAX_BATCH_SIZE) {
+				SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl,
+						entries.subList(start, Math.min(start + SqsQueueService.MAX_BATCH_SIZE, entries.size())));
+				sends.add(this.<SendMessageBatchRequest, SendMessageBatchResult>call(request, sqsClient::sendMessageBatchAsync));
+			}
+			return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).thenApply(done -> {
+				List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+				for (CompletableFuture<SendMessageBatchResult> send : sends) {
+					failed.addAll(send.join().getFailed());
+				}
+				if (!failed.isEmpty()) {
+					throw new PartialBatchException(queueName, failed);
+				}
+				return null;
+			});
+		});
+	}
+
+	/*
+	 * The payload is copied into the request before the call returns
+	 */
+	@Override
+	public CompletableFuture<Void> pushBytes(String queueName, ByteBuffer payload) {
+		SendMessageRequest request = new SendMessageRequest().withMessageBody(SqsQueueService.BINARY_BODY)
+				.addMessageAttributesEntry(SqsQueueService.BINARY_PAYLOAD, SqsQueueService.binary(payload));
+		return withQueueUrl(queueName, queueUrl -> this.<SendMessageRequest, SendMessageResult>call(
+				request.withQueueUrl(queueUrl), sqsClient::sendMessageAsync)).thenApply(result -> null);
+	}
+
+	@Override
+	public CompletableFuture<Message> pull(String queueName) {
+		return pull(queueName, 0, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * Long-polls with WaitTimeSeconds, up to 20 seconds per request as in SqsQueueService. A
+	 * message that arrives for a pull cancelled meanwhile is made visible again.
+	 */
+	@Override
+	public CompletableFuture<Message> pull(String queueName, long waitTime, TimeUnit unit) {
+		CompletableFuture<Message> result = new CompletableFuture<Message>();
+		long deadline = System.nanoTime() + unit.toNanos(waitTime);
+		withQueueUrl(queueName, queueUrl -> longPoll(queueName, queueUrl, deadline, result)).whenComplete((message, error) -> {
+			if (error != null) {
+				result.completeExceptionally(unwrap(error));
+			}
+		});
+		return result;
+	}
+
+	private CompletableFuture<Void> longPoll(String queueName, String queueUrl, long deadline, CompletableFuture<Message> result) {
+		long remaining = TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime() + TimeUnit.SECONDS.toNanos(1) - 1);
+		ReceiveMessageRequest request = receiveRequest(queueUrl, 1)
+				.withWaitTimeSeconds((int) Math.max(0, Math.min(SqsQueueService.MAX_WAIT_SECONDS, remaining)));
+		return this.<ReceiveMessageRequest, ReceiveMessageResult>call(request, sqsClient::receiveMessageAsync).thenCompose(received -> {
+			List<Message> msgs = received.getMessages();
+			if (!msgs.isEmpty()) {
+				if (!result.complete(msgs.get(0))) {
+					changeVisibility(queueName, msgs.get(0), 0, TimeUnit.SECONDS);
+				}
+			} else if (remaining <= SqsQueueService.MAX_WAIT_SECONDS) {
+				result.complete(null);
+			} else if (!result.isDone()) {
+				return longPoll(queueName, queueUrl, deadline, result);
+			}
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/*
+	 * Receives up to maxMessages messages, ten per ReceiveMessage request, stopping early once
+	 * the queue has no more visible messages
+	 */
+	@Override
+	public CompletableFuture<List<Message>> pullBatch(String queueName, int maxMessages) {
+		return withQueueUrl(queueName, queueUrl -> receiveBatch(queueUrl, maxMessages, new ArrayList<Message>()));
+	}
+
+	private CompletableFuture<List<Message>> receiveBatch(String queueUrl, int maxMessages, List<Message> messages) {
+		if (messages.size() >= maxMessages) {
+			return CompletableFuture.completedFuture(messages);
+		}
+		ReceiveMessageRequest request = receiveRequest(queueUrl, Math.min(SqsQueueService.MAX_BATCH_SIZE, maxMessages - messages.size()));
+		return this.<ReceiveMessageRequest, ReceiveMessageResult>call(request, sqsClient::receiveMessageAsync).thenCompose(received -> {
+			if (received.getMessages().isEmpty()) {
+				return CompletableFuture.completedFuture(messages);
+			}
+			messages.addAll(received.getMessages());
+			return receiveBatch(queueUrl, maxMessages, messages);
+		});
+	}
+
+	private static ReceiveMessageRequest receiveRequest(String queueUrl, int maxMessages) {
+		return new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(maxMessages)
+				.withAttributeNames(SqsQueueService.RECEIVE_COUNT, SqsQueueService.SENT_TIMESTAMP,
+						SqsQueueService.MESSAGE_GROUP_ID)
+				.withMessageAttributeNames(SqsQueueService.BINARY_PAYLOAD);
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(String queueName, Object msg) {
+		Message sqsMsg = (Message) msg;
+		return withQueueUrl(queueName, queueUrl -> this.<DeleteMessageRequest, Void>call(
+				new DeleteMessageRequest(queueUrl, sqsMsg.getReceiptHandle()), sqsClient::deleteMessageAsync));
+	}
+
+	/*
+	 * Deletes messages with one DeleteMessageBatch request per ten messages, all at once
+	 */
+	@Override
+	public CompletableFuture<Void> deleteBatch(String queueName, List<?> msgs) {
+		return withQueueUrl(queueName, queueUrl -> {
+			List<CompletableFuture<DeleteMessageBatchResult>> deletes = new ArrayList<CompletableFuture<DeleteMessageBatchResult>>();
+			for (int start = 0; start < msgs.size(); start += SqsQueueService.MAX_BATCH_SIZE) {
+				List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+				for (int i = start; i < Math.min(start + SqsQueueService.MAX_BATCH_SIZE, msgs.size()); i++) {
+					entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), ((Message) msgs.get(i)).getReceiptHandle()));
+				}
+				deletes.add(this.<DeleteMessageBatchRequest, DeleteMessageBatchResult>call(
+						new DeleteMessageBatchRequest(queueUrl, entries), sqsClient::deleteMessageBatchAsync).thenApply(result -> {
+							logFailures("delete", queueName, result.getFailed());
+							return result;
+						}));
+			}
+			return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()]));
+		});
+	}
+
+	/*
+	 * Completes with false if the receipt is no longer valid or the message no longer in flight.
+	 * SQS takes visibility timeouts in whole seconds, so timeout is rounded up.
+	 */
+	@Override
+	public CompletableFuture<Boolean> changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) {
+		Message sqsMsg = (Message) msg;
+		ChangeMessageVisibilityRequest request = new ChangeMessageVisibilityRequest()
+				.withReceiptHandle(sqsMsg.getReceiptHandle()).withVisibilityTimeout(SqsQueueService.toSeconds(timeout, unit));
+		return withQueueUrl(queueName, queueUrl -> this.<ChangeMessageVisibilityRequest, Void>call(
+				request.withQueueUrl(queueUrl), sqsClient::changeMessageVisibilityAsync)).handle((result, error) -> {
+					if (error == null) {
+						return true;
+					}
+					Throwable cause = unwrap(error);
+					if (cause instanceof ReceiptHandleIsInvalidException || cause instanceof MessageNotInflightException) {
+						log.warning("Cannot change visibility of message on queue " + queueName + "; Error: "
+								+ ((AmazonServiceException) cause).getErrorMessage());
+						return false;
+					}
+					throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+				});
+	}
+
+	@Override
+	public ByteBuffer getPayload(Object msg) {
+		return SqsQueueService.payload((Message) msg);
+	}
+
+	/*
+	 * Runs a call against the cached URL of a queue. If SQS reports that the queue no longer
+	 * exists, the URL is evicted so the next call looks it up again.
+	 */
+	private <T> CompletableFuture<T> withQueueUrl(String queueName, Function<String, CompletableFuture<T>> call) {
+		CompletableFuture<String> queueUrl = getQueueUrl(queueName);
+		return queueUrl.thenCompose(call).whenComplete((result, error) -> {
+			Throwable cause = error == null ? null : unwrap(error);
+			if (cause instanceof QueueDoesNotExistException || (cause instanceof AmazonServiceException
+					&& SqsQueueService.NON_EXISTENT_QUEUE.equals(((AmazonServiceException) cause).getErrorCode()))) {
+				queueUrls.remove(queueName, queueUrl);
+			}
+		});
+	}
+
+	private CompletableFuture<String> getQueueUrl(String queueName) {
+		CompletableFuture<String> queueUrl = queueUrls.get(queueName);
+		if (queueUrl == null || queueUrl.isCompletedExceptionally()) {
+			queueUrl = this.<GetQueueUrlRequest, GetQueueUrlResult>call(new GetQueueUrlRequest(queueName), sqsClient::getQueueUrlAsync)
+					.thenApply(GetQueueUrlResult::getQueueUrl);
+			queueUrls.put(queueName, queueUrl);
+		}
+		return queueUrl;
+	}
+
+	/*
+	 * Sends request through an async method of the client, completing the future returned from
+	 * the client's callback
+	 */
+	private <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> call(Q request,
+			BiFunction<Q, AsyncHandler<Q, R>, Future<R>> method) {
+		CompletableFuture<R> result = new CompletableFuture<R>();
+		try {
+			method.apply(request, new AsyncHandler<Q, R>() {
+				@Override
+				public void onError(Exception exception) {
+					result.completeExceptionally(exception);
+				}
+
+				@Override
+				public void onSuccess(Q request, R response) {
+					result.complete(response);
+				}
+			});
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+
+	private void logFailures(String action, String queueName, List<BatchResultErrorEntry> failed) {
+		for (BatchResultErrorEntry entry : failed) {
+			log.warning("Failed to " + action + " message " + entry.getId() + " on queue " + queueName
+					+ "; Error: " + entry.getCode() + " " + entry.getMessage());
+		}
+	}
+}
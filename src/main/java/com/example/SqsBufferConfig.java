@@ -0,0 +1,67 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Settings for the buffered mode of SqsQueueService.
+ *
+ * maxPrefetched          messages kept in the local receive buffer of each queue
+ * flushInterval          longest a delete waits to be coalesced into a batch request; sends
+ *                        go out as soon as no other send of the queue is in flight
+ * visibilityTimeout      visibility timeout requested for prefetched messages
+ * minVisibilityRemaining prefetched messages with less than this left before their visibility
+ *                        timeout expires are dropped instead of handed out
+ * longPollWait           WaitTimeSeconds used by the background ReceiveMessage calls
+ */
+public class SqsBufferConfig {
+	private int maxPrefetched = 20;
+	private long flushIntervalMillis = 200;
+	private int visibilityTimeoutSeconds = 30;
+	private long minVisibilityRemainingMillis = 5000;
+	private int longPollWaitSeconds = SqsQueueService.MAX_WAIT_SECONDS;
+
+	public SqsBufferConfig withMaxPrefetched(int maxPrefetched) {
+		this.maxPrefetched = maxPrefetched;
+		return this;
+	}
+
+	public SqsBufferConfig withFlushInterval(long flushInterval, TimeUnit unit) {
+		this.flushIntervalMillis = unit.toMillis(flushInterval);
+		return this;
+	}
+
+	public SqsBufferConfig withVisibilityTimeout(int visibilityTimeoutSeconds) {
+		this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+		return this;
+	}
+
+	public SqsBufferConfig withMinVisibilityRemaining(long minVisibilityRemaining, TimeUnit unit) {
+		this.minVisibilityRemainingMillis = unit.toMillis(minVisibilityRemaining);
+		return this;
+	}
+
+	public SqsBufferConfig withLongPollWait(int longPollWaitSeconds) {
+		this.longPollWaitSeconds = longPollWaitSeconds;
+		return this;
+	}
+
+	int getMaxPrefetched() {
+		return maxPrefetched;
+	}
+
+	long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	int getVisibilityTimeoutSeconds() {
+		return visibilityTimeoutSeconds;
+	}
+
+	long getMinVisibilityRemainingMillis() {
+		return minVisibilityRemainingMillis;
+	}
+
+	int getLongPollWaitSeconds() {
+		return longPollWaitSeconds;
+	}
+}
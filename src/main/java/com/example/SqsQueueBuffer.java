@@ -0,0 +1,376 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+/*
+ * Client-side buffer for one SQS queue, used by the buffered mode of SqsQueueService.
+ *
+ * Receives: a background task keeps up to maxPrefetched messages in a local buffer, fetching ten
+ * at a time with long-polling ReceiveMessage calls, so pulls are usually served without a network
+ * call. Each prefetched message remembers when its visibility timeout runs out (counted from
+ * before the receive was sent), and messages too close to expiring are dropped rather than handed
+ * out; SQS makes them visible again.
+ *
+ * Sends block until their batch is acknowledged so failures still reach the caller, so they are
+ * never held back for the flush interval: a send goes out at once when no other send is in flight,
+ * and the sends queued behind one go out together, as one batch, as soon as it returns. Batching
+ * then comes from concurrency alone, and a lone send costs one round trip.
+ *
+ * Deletes return at once and failures are only logged, since a lost delete just means the message
+ * is delivered again. They wait in an outbox until ten are queued or the flush interval passes,
+ * then go out as one batch request.
+ */
+class SqsQueueBuffer {
+	private static final Logger log = Logger.getLogger("SqsQueueBuffer");
+
+	private final AmazonSQS sqsClient;
+	private final String queueName;
+	private final String queueUrl;
+	private final SqsBufferConfig config;
+	private final ExecutorService fetcher;
+
+	private final LinkedBlockingDeque<Prefetched> prefetched = new LinkedBlockingDeque<Prefetched>();
+	private final AtomicBoolean fetching = new AtomicBoolean();
+	private volatile boolean closed;
+
+	private final Outbox<String> sends;
+	private final Outbox<String> deletes;
+
+	SqsQueueBuffer(AmazonSQS sqsClient, String queueName, String queueUrl, SqsBufferConfig config,
+			ExecutorService fetcher, ScheduledExecutorService flusher) {
+		this.sqsClient = sqsClient;
+		this.queueName = queueName;
+		this.queueUrl = queueUrl;
+		this.config = config;
+		this.fetcher = fetcher;
+		this.sends = new Outbox<String>(flusher, true) {
+			void send(List<Pending<String>> batch) {
+				sendBatch(batch);
+			}
+		};
+		this.deletes = new Outbox<String>(flusher, false) {
+			void send(List<Pending<String>> batch) {
+				deleteBatch(batch);
+			}
+		};
+	}
+
+	/*
+	 * Takes the next prefetched message, waiting up to waitNanos for one to arrive. Without a wait,
+	 * an empty buffer is refilled with a short-poll receive first, so a visible message is still
+	 * found as it would be without buffering. Returns null if no message turns up.
+	 */
+	Message receive(long waitNanos) throws InterruptedException {
+		if(waitNanos <= 0) {
+			List<Message> messages = receive(1);
+			return messages.isEmpty() ? null : messages.get(0);
+		}
+		long deadline = System.nanoTime() + waitNanos;
+		while(true) {
+			fetchMore();
+			Prefetched next = prefetched.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if(next == null) {
+				return null;
+			}
+			if(next.usable()) {
+				fetchMore();
+				return next.message;
+			}
+		}
+	}
+
+	/*
+	 * Takes up to maxMessages prefetched messages, refilling an empty buffer with one short-poll
+	 * receive first
+	 */
+	List<Message> receive(int maxMessages) {
+		List<Message> messages = drain(maxMessages);
+		if(messages.isEmpty()) {
+			fill(0);
+			messages = drain(maxMessages);
+		}
+		fetchMore();
+		return messages;
+	}
+
+	/*
+	 * Queues a send and waits until its batch has been accepted by SQS
+	 */
+	void send(String msgContent) {
+		CompletableFuture<Void> sent = sends.add(msgContent);
+		try {
+			sent.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonServiceException("Interrupted waiting for message to be sent to " + queueName);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new AmazonServiceException("Failed to send message to " + queueName, (Exception) e.getCause());
+		}
+	}
+
+	/*
+	 * Queues a delete; it is sent with the next batch
+	 */
+	void delete(String receiptHandle) {
+		deletes.add(receiptHandle);
+	}
+
+	/*
+	 * Sends everything still queued and stops prefetching. Prefetched messages are left to time
+	 * out on the server.
+	 */
+	void close() {
+		closed = true;
+		sends.flushAll();
+		deletes.flushAll();
+		prefetched.clear();
+	}
+
+	/*
+	 * Starts a background receive unless one is running or the buffer is full
+	 */
+	private void fetchMore() {
+		if(closed || prefetched.size() >= config.getMaxPrefetched() || !fetching.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			fetcher.execute(this::fetch);
+		} catch (RuntimeException e) {
+			fetching.set(false);
+			log.warning("Cannot prefetch messages from " + queueName + "; Error: " + e);
+		}
+	}
+
+	/*
+	 * Fetches again straight away while messages keep coming, or while the long-poll stops this
+	 * from spinning on an empty queue. After a failure the next pull retries.
+	 */
+	private void fetch() {
+		boolean again = false;
+		try {
+			again = !closed && (fill(config.getLongPollWaitSeconds()) > 0 || config.getLongPollWaitSeconds() > 0);
+		} catch (RuntimeException e) {
+			log.warning("Error occurred prefetching messages from " + queueName + "; Error: " + e);
+		} finally {
+			fetching.set(false);
+		}
+		if(again) {
+			fetchMore();
+		}
+	}
+
+	/*
+	 * Receives up to ten messages into the buffer, as many as fit. Returns how many arrived.
+	 */
+	private int fill(int waitSeconds) {
+		int free = config.getMaxPrefetched() - prefetched.size();
+		if(free <= 0) {
+			return 0;
+		}
+		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl)
+				.withMaxNumberOfMessages(Math.min(SqsQueueService.MAX_BATCH_SIZE, free))
+				.withVisibilityTimeout(config.getVisibilityTimeoutSeconds())
+				.withWaitTimeSeconds(waitSeconds)
+				.withAttributeNames(SqsQueueService.RECEIVE_COUNT, SqsQueueService.SENT_TIMESTAMP,
+						SqsQueueService.MESSAGE_GROUP_ID)
+				.withMessageAttributeNames(SqsQueueService.BINARY_PAYLOAD);
+		long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getVisibilityTimeoutSeconds());
+		List<Message> received = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
+		for(Message message : received) {
+			prefetched.add(new Prefetched(message, expiresAt));
+		}
+		return received.size();
+	}
+
+	/*
+	 * Takes up to maxMessages from the buffer, dropping any too close to their visibility timeout
+	 */
+	private List<Message> drain(int maxMessages) {
+		List<Message> messages = new ArrayList<Message>();
+		Prefetched next;
+		while(messages.size() < maxMessages && (next = prefetched.poll()) != null) {
+			if(next.usable()) {
+				messages.add(next.message);
+			}
+		}
+		return messages;
+	}
+
+	private void sendBatch(List<Pending<String>> batch) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+		for(int i = 0; i < batch.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), batch.get(i).value));
+		}
+		SendMessageBatchResult result = sqsClient.sendMessageBatch(queueUrl, entries);
+		for(SendMessageBatchResultEntry entry : result.getSuccessful()) {
+			batch.get(Integer.parseInt(entry.getId())).done.complete(null);
+		}
+		for(BatchResultErrorEntry entry : result.getFailed()) {
+			AmazonServiceException error = new AmazonServiceException(entry.getMessage());
+			error.setErrorCode(entry.getCode());
+			batch.get(Integer.parseInt(entry.getId())).done.completeExceptionally(error);
+		}
+	}
+
+	private void deleteBatch(List<Pending<String>> batch) {
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+		for(int i = 0; i < batch.size(); i++) {
+			entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), batch.get(i).value));
+		}
+		DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(queueUrl, entries);
+		for(BatchResultErrorEntry entry : result.getFailed()) {
+			log.warning("Failed to delete message " + entry.getId() + " on queue " + queueName
+					+ "; Error: " + entry.getCode() + " " + entry.getMessage());
+		}
+		for(Pending<String> pending : batch) {
+			pending.done.complete(null);
+		}
+	}
+
+	private class Prefetched {
+		final Message message;
+		final long expiresAt;
+
+		Prefetched(Message message, long expiresAt) {
+			this.message = message;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean usable() {
+			long remaining = expiresAt - System.nanoTime();
+			return remaining > TimeUnit.MILLISECONDS.toNanos(config.getMinVisibilityRemainingMillis());
+		}
+	}
+
+	private static class Pending<T> {
+		final T value;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Pending(T value) {
+			this.value = value;
+		}
+	}
+
+	/*
+	 * Entries waiting to go out as a batch. A full batch is sent by the thread that filled it. An
+	 * eager outbox sends an entry straight away when it has no batch in flight, and hands what
+	 * queued up meanwhile to the flusher when that batch returns; otherwise a partial batch is sent
+	 * by the flusher once the oldest entry has waited the flush interval.
+	 */
+	private abstract class Outbox<T> {
+		private final ScheduledExecutorService flusher;
+		private final boolean eager;
+		private List<Pending<T>> queued = new ArrayList<Pending<T>>();
+		private boolean flushScheduled;
+		private boolean sending;
+
+		Outbox(ScheduledExecutorService flusher, boolean eager) {
+			this.flusher = flusher;
+			this.eager = eager;
+		}
+
+		abstract void send(List<Pending<T>> batch);
+
+		CompletableFuture<Void> add(T value) {
+			Pending<T> pending = new Pending<T>(value);
+			List<Pending<T>> batch = null;
+			boolean first = false;
+			synchronized (this) {
+				queued.add(pending);
+				if(eager && !sending) {
+					sending = first = true;
+					batch = queued;
+					queued = new ArrayList<Pending<T>>();
+				} else if(queued.size() >= SqsQueueService.MAX_BATCH_SIZE) {
+					batch = queued;
+					queued = new ArrayList<Pending<T>>();
+				} else if(!eager && !flushScheduled) {
+					flushScheduled = true;
+					flusher.schedule(this::flushAll, config.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+				}
+			}
+			if(batch != null) {
+				flush(batch);
+			}
+			if(first) {
+				sendQueued();
+			}
+			return pending.done;
+		}
+
+		/*
+		 * Called when the batch in flight of an eager outbox returns: sends what queued up behind it
+		 * from the flusher, which calls back here once that batch returns in turn
+		 */
+		private void sendQueued() {
+			while(true) {
+				List<Pending<T>> batch;
+				synchronized (this) {
+					if(queued.isEmpty()) {
+						sending = false;
+						return;
+					}
+					batch = queued;
+					queued = new ArrayList<Pending<T>>();
+				}
+				try {
+					flusher.execute(() -> {
+						flush(batch);
+						sendQueued();
+					});
+					return;
+				} catch (RejectedExecutionException e) {
+					// The flusher is shut down once the buffer is closed, so send from here
+					flush(batch);
+				}
+			}
+		}
+
+		void flushAll() {
+			List<Pending<T>> batch;
+			synchronized (this) {
+				flushScheduled = false;
+				batch = queued;
+				queued = new ArrayList<Pending<T>>();
+			}
+			if(!batch.isEmpty()) {
+				flush(batch);
+			}
+		}
+
+		private void flush(List<Pending<T>> batch) {
+			try {
+				send(batch);
+			} catch (RuntimeException e) {
+				log.warning("Error occurred flushing batch to " + queueName + "; Error: " + e);
+				for(Pending<T> pending : batch) {
+					pending.done.completeExceptionally(e);
+				}
+			}
+		}
+	}
+}
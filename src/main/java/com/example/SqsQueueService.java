@@ -1,16 +1,47 @@
 package com.example;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
-import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
-public class SqsQueueService implements QueueService {
+public class SqsQueueService implements FifoQueueService {
   //
   // Task 4: Optionally implement parts of me.
   //
@@ -18,27 +49,734 @@ public class SqsQueueService implements QueueService {
   // primarily so you can quickly assess your choices for method signatures in QueueService in
   // terms of how well they map to the implementation intended for a production environment.
   //
-	private AmazonSQSClient sqsClient;
+	/*
+	 * Most entries SQS accepts in a single batch request
+	 */
+	static final int MAX_BATCH_SIZE = 10;
+	
+	/*
+	 * Longest WaitTimeSeconds SQS accepts for a long-poll
+	 */
+	static final int MAX_WAIT_SECONDS = 20;
+
+	/*
+	 * Error code SQS returns for operations on a queue URL that no longer exists
+	 */
+	static final String NON_EXISTENT_QUEUE = "AWS.SimpleQueueService.NonExistentQueue";
+
+	/*
+	 * Message attributes requested on every receive, for the metrics
+	 */
+	static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+	static final String SENT_TIMESTAMP = "SentTimestamp";
+
+	/*
+	 * Parameters of SendMessage for FIFO queues, and the message attribute naming the group of a
+	 * received message. The SDK this is built against predates FIFO queues and has no fields for
+	 * them, so they are sent as query parameters of their own.
+	 */
+	static final String MESSAGE_GROUP_ID = "MessageGroupId";
+	static final String MESSAGE_DEDUPLICATION_ID = "MessageDeduplicationId";
+
+	/*
+	 * Prefix of the query parameters of entry n, counting from 1, of a SendMessageBatch request
+	 */
+	static final String BATCH_ENTRY_PREFIX = "SendMessageBatchRequestEntry.";
+
+	/*
+	 * Message attribute name asking a receive for every attribute of the message
+	 */
+	private static final String ALL_ATTRIBUTES = "All";
+
+	/*
+	 * Binary payloads travel in a message attribute of this name, as SQS message bodies must be
+	 * text. The body then holds a placeholder, as it may not be empty.
+	 */
+	static final String BINARY_PAYLOAD = "BinaryPayload";
+	static final String BINARY_BODY = "-";
+
+	/*
+	 * Longest delay SQS accepts on a message
+	 */
+	static final long MAX_DELAY_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+
+	private static final String QUEUE_ARN = "QueueArn";
+	private static final String REDRIVE_POLICY = "RedrivePolicy";
+	private static final String APPROXIMATE_VISIBLE = "ApproximateNumberOfMessages";
+	private static final String APPROXIMATE_IN_FLIGHT = "ApproximateNumberOfMessagesNotVisible";
+
+	/*
+	 * How often a producer blocked on a full queue asks SQS for the size of the queue again
+	 */
+	private static final long ROOM_POLL_MILLIS = 1000;
+
+	private AmazonSQS sqsClient;
+	private final long queueUrlTtlNanos;
+	private final ConcurrentMap<String, CachedQueueUrl> queueUrls = new ConcurrentHashMap<String, CachedQueueUrl>();
+	private final ConcurrentMap<String, QueueLimits> queueLimits = new ConcurrentHashMap<String, QueueLimits>();
+
+	/*
+	 * Buffered mode only: one buffer per queue URL, plus the threads that fill and flush them
+	 */
+	private final SqsBufferConfig bufferConfig;
+	private final ConcurrentMap<String, SqsQueueBuffer> buffers = new ConcurrentHashMap<String, SqsQueueBuffer>();
+	private final ExecutorService fetcher;
+	private final ScheduledExecutorService flusher;
+
+	private volatile QueueMetrics metrics = QueueMetrics.NOOP;
 
-	public SqsQueueService(AmazonSQSClient sqsClient) {
+	private static final Logger log = Logger.getLogger("SqsQueueService");
+
+	public SqsQueueService(AmazonSQS sqsClient) {
+		this(sqsClient, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Queue URLs are cached for queueUrlTtl, or until the queue is found to no longer exist if
+	 * queueUrlTtl is zero.
+	 */
+	public SqsQueueService(AmazonSQS sqsClient, long queueUrlTtl, TimeUnit unit) {
+		this(sqsClient, queueUrlTtl, unit, null);
+	}
+
+	/*
+	 * Buffered mode: messages are prefetched in the background and sends and deletes are sent in
+	 * batches (see SqsQueueBuffer). Call shutdown() to send any deletes still waiting.
+	 */
+	public SqsQueueService(AmazonSQS sqsClient, SqsBufferConfig bufferConfig) {
+		this(sqsClient, 0, TimeUnit.MILLISECONDS, bufferConfig);
+	}
+
+	private SqsQueueService(AmazonSQS sqsClient, long queueUrlTtl, TimeUnit unit, SqsBufferConfig bufferConfig) {
 		this.sqsClient = sqsClient;
+		this.queueUrlTtlNanos = unit.toNanos(queueUrlTtl);
+		this.bufferConfig = bufferConfig;
+		if(bufferConfig != null) {
+			fetcher = Executors.newCachedThreadPool(
+					new ThreadFactoryBuilder().setNameFormat("sqs-prefetch-%d").setDaemon(true).build());
+			flusher = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("sqs-flush-%d").setDaemon(true).build());
+		} else {
+			fetcher = null;
+			flusher = null;
+		}
 	}
-	
+
+	/*
+	 * Sets where operations on every queue are reported. SQS does not tell a client about
+	 * expiries or queue depth, so those are not reported.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/*
+	 * Throws QueueFullException if the message does not fit under the limits of the queue
+	 */
 	public void push(String queueName, String msgContent) {
-	    GetQueueUrlResult queueUrl = sqsClient.getQueueUrl(queueName);
-	    sqsClient.sendMessage(new SendMessageRequest(queueUrl.getQueueUrl(), msgContent));
+		admit(queueName, 1);
+		send(queueName, msgContent);
 	}
-	 
-	public Object pull(String queueName) {
-		GetQueueUrlResult queueUrl = sqsClient.getQueueUrl(queueName);
-		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl.getQueueUrl());
-		List<Message> msgs = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
-		return msgs.get(0);
+
+	/*
+	 * Sends the message with DelaySeconds, so SQS holds it back. The delay is rounded up to whole
+	 * seconds and may be at most MAX_DELAY_SECONDS; longer delays throw IllegalArgumentException.
+	 * Delayed messages are always sent directly, even in buffered mode.
+	 */
+	public void push(String queueName, String msgContent, long delay, TimeUnit unit) {
+		long delaySeconds = (unit.toMillis(delay) + 999) / 1000;
+		if(delaySeconds <= 0) {
+			push(queueName, msgContent);
+			return;
+		}
+		if(delaySeconds > MAX_DELAY_SECONDS) {
+			throw new IllegalArgumentException("SQS delays messages by at most " + MAX_DELAY_SECONDS + " seconds, not " + delaySeconds);
+		}
+		admit(queueName, 1);
+		long start = System.nanoTime();
+		withQueueUrl(queueName, queueUrl -> sqsClient.sendMessage(new SendMessageRequest(queueUrl, msgContent)
+				.withDelaySeconds((int) delaySeconds)));
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+	}
+
+	public void pushAt(String queueName, String msgContent, Instant deliverAt) {
+		push(queueName, msgContent, deliverAt.toEpochMilli() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Pushes the message only if the approximate size of the queue leaves room for it
+	 */
+	public boolean offer(String queueName, String msgContent) {
+		QueueLimits limits = queueLimits.get(queueName);
+		if(limits != null && approximateSize(queueName) + 1 > limits.getMaxMessages()) {
+			metrics.rejected(queueName, 1);
+			return false;
+		}
+		send(queueName, msgContent);
+		return true;
+	}
+
+	private void send(String queueName, String msgContent) {
+		long start = System.nanoTime();
+		if(bufferConfig != null) {
+			withQueueUrl(queueName, queueUrl -> {
+				getBuffer(queueName, queueUrl).send(msgContent);
+				return null;
+			});
+		} else {
+			withQueueUrl(queueName, queueUrl -> sqsClient.sendMessage(new SendMessageRequest(queueUrl, msgContent)));
+		}
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+	}
+
+	/*
+	 * Returns null if no message is visible
+	 */
+	public Message pull(String queueName) {
+		if(bufferConfig != null) {
+			return pull(queueName, 0, TimeUnit.SECONDS);
+		}
+		long start = System.nanoTime();
+		List<Message> msgs = withQueueUrl(queueName, queueUrl -> sqsClient.receiveMessage(
+				new ReceiveMessageRequest(queueUrl).withAttributeNames(RECEIVE_COUNT, SENT_TIMESTAMP, MESSAGE_GROUP_ID)
+						.withMessageAttributeNames(BINARY_PAYLOAD)).getMessages());
+		reportPulled(queueName, msgs, System.nanoTime() - start);
+		return msgs.isEmpty() ? null : msgs.get(0);
+	}
+	
+	/*
+	 * Long-polls with WaitTimeSeconds, which SQS caps at 20 seconds per request, so longer waits
+	 * take several requests. Waits are rounded up to whole seconds.
+	 */
+	public Message pull(String queueName, long waitTime, TimeUnit unit) {
+		long start = System.nanoTime();
+		Message msg;
+		if(bufferConfig != null) {
+			msg = withQueueUrl(queueName, queueUrl -> {
+				try {
+					return getBuffer(queueName, queueUrl).receive(unit.toNanos(waitTime));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			});
+		} else {
+			msg = withQueueUrl(queueName, queueUrl -> longPoll(queueUrl, start + unit.toNanos(waitTime)));
+		}
+		reportPulled(queueName, msg == null ? Collections.<Message>emptyList() : Collections.singletonList(msg),
+				waitTime > 0 ? -1 : System.nanoTime() - start);
+		return msg;
+	}
+
+	private Message longPoll(String queueUrl, long deadline) {
+		while(true) {
+			long remaining = TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime() + TimeUnit.SECONDS.toNanos(1) - 1);
+			ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl)
+					.withWaitTimeSeconds((int) Math.max(0, Math.min(MAX_WAIT_SECONDS, remaining)))
+					.withAttributeNames(RECEIVE_COUNT, SENT_TIMESTAMP, MESSAGE_GROUP_ID)
+					.withMessageAttributeNames(BINARY_PAYLOAD);
+			List<Message> msgs = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
+			if(!msgs.isEmpty()) {
+				return msgs.get(0);
+			}
+			if(remaining <= MAX_WAIT_SECONDS || Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+		}
 	}
 
 	public void delete(String queueName, Object msg) {
-	    GetQueueUrlResult queueUrl = sqsClient.getQueueUrl(queueName);
 	    Message sqsMsg = (Message)msg;
-	    sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl.getQueueUrl(), sqsMsg.getReceiptHandle()));
+	    long start = System.nanoTime();
+	    withQueueUrl(queueName, queueUrl -> {
+	    	if(bufferConfig != null) {
+	    		getBuffer(queueName, queueUrl).delete(sqsMsg.getReceiptHandle());
+	    		return null;
+	    	}
+	    	sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl, sqsMsg.getReceiptHandle()));
+	    	return null;
+	    });
+	    metrics.deleted(queueName, 1, System.nanoTime() - start);
+	    reportAge(queueName, sqsMsg);
+	}
+
+	/*
+	 * Sends messages with one SendMessageBatch request per ten messages. Throws
+	 * PartialBatchException naming the messages SQS refused; the others are sent.
+	 */
+	public void pushBatch(String queueName, List<String> msgContents) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(msgContents.size());
+		for(int i = 0; i < msgContents.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), msgContents.get(i)));
+		}
+		sendBatch(queueName, entries);
+	}
+
+	/*
+	 * Binary messages are always sent directly, even in buffered mode. Throws QueueFullException
+	 * if the message does not fit under the limits of the queue.
+	 */
+	public void pushBytes(String queueName, ByteBuffer payload) {
+		admit(queueName, 1);
+		long start = System.nanoTime();
+		withQueueUrl(queueName, queueUrl -> sqsClient.sendMessage(new SendMessageRequest(queueUrl, BINARY_BODY)
+				.addMessageAttributesEntry(BINARY_PAYLOAD, binary(payload))));
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+	}
+
+	public void pushBytesBatch(String queueName, List<ByteBuffer> payloads) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(payloads.size());
+		for(int i = 0; i < payloads.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), BINARY_BODY)
+					.addMessageAttributesEntry(BINARY_PAYLOAD, binary(payloads.get(i))));
+		}
+		sendBatch(queueName, entries);
+	}
+
+	/*
+	 * Sends the group and deduplication ids along with the message, for SQS to order and
+	 * deduplicate it. The queue must be a FIFO queue, whose name ends in ".fifo", and needs a
+	 * group id; it also needs a deduplication id unless it has content-based deduplication on.
+	 * Messages of a group are always sent directly, even in buffered mode. Throws
+	 * QueueFullException if the message does not fit under the limits of the queue.
+	 */
+	public void pushToGroup(String queueName, String msgContent, String messageGroupId, String deduplicationId) {
+		admit(queueName, 1);
+		sendToGroup(queueName, new SendMessageRequest().withMessageBody(msgContent), messageGroupId, deduplicationId);
+	}
+
+	public void pushBytesToGroup(String queueName, ByteBuffer payload, String messageGroupId, String deduplicationId) {
+		admit(queueName, 1);
+		sendToGroup(queueName, new SendMessageRequest().withMessageBody(BINARY_BODY).addMessageAttributesEntry(BINARY_PAYLOAD,
+				binary(payload)), messageGroupId, deduplicationId);
+	}
+
+	private void sendToGroup(String queueName, SendMessageRequest request, String messageGroupId, String deduplicationId) {
+		long start = System.nanoTime();
+		if(messageGroupId != null) {
+			request.putCustomQueryParameter(MESSAGE_GROUP_ID, messageGroupId);
+		}
+		if(deduplicationId != null) {
+			request.putCustomQueryParameter(MESSAGE_DEDUPLICATION_ID, deduplicationId);
+		}
+		withQueueUrl(queueName, queueUrl -> sqsClient.sendMessage(request.withQueueUrl(queueUrl)));
+		metrics.pushed(queueName, 1, System.nanoTime() - start);
+	}
+
+	/*
+	 * Group a received message was sent to, or null if it was sent outside any group
+	 */
+	public static String getMessageGroupId(Message sqsMsg) {
+		return sqsMsg.getAttributes().get(MESSAGE_GROUP_ID);
+	}
+
+	/*
+	 * The binary payload of a message pushed with pushBytes, or else the UTF-8 bytes of its body
+	 */
+	public ByteBuffer getPayload(Object msg) {
+		return payload((Message) msg);
+	}
+
+	static ByteBuffer payload(Message sqsMsg) {
+		MessageAttributeValue binary = sqsMsg.getMessageAttributes().get(BINARY_PAYLOAD);
+		if(binary != null && binary.getBinaryValue() != null) {
+			return binary.getBinaryValue().asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(sqsMsg.getBody().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+
+	/*
+	 * The SDK reads the value when the request is sent, so it gets a copy the caller cannot change
+	 */
+	static MessageAttributeValue binary(ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		copy.put(payload.duplicate());
+		((Buffer) copy).flip();
+		return new MessageAttributeValue().withDataType("Binary").withBinaryValue(copy);
+	}
+
+	/*
+	 * Sends entries with one SendMessageBatch request per ten. Throws PartialBatchException once
+	 * every request has been sent if SQS refused any of the entries.
+	 */
+	private void sendBatch(String queueName, List<SendMessageBatchRequestEntry> entries) {
+		admit(queueName, entries.size());
+		long startTime = System.nanoTime();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		int pushed = withQueueUrl(queueName, queueUrl -> {
+			int sent = 0;
+			for(int start = 0; start < entries.size(); start += MAX_BATCH_SIZE) {
+				SendMessageBatchResult result = sqsClient.sendMessageBatch(queueUrl,
+						entries.subList(start, Math.min(start + MAX_BATCH_SIZE, entries.size())));
+				failed.addAll(result.getFailed());
+				sent += result.getSuccessful().size();
+			}
+			return sent;
+		});
+		metrics.pushed(queueName, pushed, System.nanoTime() - startTime);
+		if(!failed.isEmpty()) {
+			throw new PartialBatchException(queueName, failed);
+		}
+	}
+
+	/*
+	 * Receives up to maxMessages messages, ten per ReceiveMessage request, stopping early once
+	 * the queue has no more visible messages
+	 */
+	public List<Message> pullBatch(String queueName, int maxMessages) {
+		long start = System.nanoTime();
+		List<Message> pulled;
+		if(bufferConfig != null) {
+			pulled = withQueueUrl(queueName, queueUrl -> getBuffer(queueName, queueUrl).receive(maxMessages));
+		} else {
+			pulled = withQueueUrl(queueName, queueUrl -> receiveBatch(queueUrl, maxMessages));
+		}
+		reportPulled(queueName, pulled, System.nanoTime() - start);
+		return pulled;
+	}
+
+	private List<Message> receiveBatch(String queueUrl, int maxMessages) {
+		List<Message> messages = new ArrayList<Message>();
+		while(messages.size() < maxMessages) {
+			ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl)
+					.withMaxNumberOfMessages(Math.min(MAX_BATCH_SIZE, maxMessages - messages.size()))
+					.withAttributeNames(RECEIVE_COUNT, SENT_TIMESTAMP, MESSAGE_GROUP_ID)
+					.withMessageAttributeNames(BINARY_PAYLOAD);
+			List<Message> received = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
+			if(received.isEmpty()) {
+				break;
+			}
+			messages.addAll(received);
+		}
+		return messages;
+	}
+
+	/*
+	 * Deletes messages with one DeleteMessageBatch request per ten messages
+	 */
+	public void deleteBatch(String queueName, List<?> msgs) {
+		long startTime = System.nanoTime();
+		List<Message> deleted = withQueueUrl(queueName, queueUrl -> {
+			List<Message> succeeded = new ArrayList<Message>();
+			for(int start = 0; start < msgs.size(); start += MAX_BATCH_SIZE) {
+				List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+				for(int i = start; i < Math.min(start + MAX_BATCH_SIZE, msgs.size()); i++) {
+					Message sqsMsg = (Message) msgs.get(i);
+					entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), sqsMsg.getReceiptHandle()));
+				}
+				DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(queueUrl, entries);
+				logFailures("delete", queueName, result.getFailed());
+				for(DeleteMessageBatchResultEntry entry : result.getSuccessful()) {
+					succeeded.add((Message) msgs.get(Integer.parseInt(entry.getId())));
+				}
+			}
+			return succeeded;
+		});
+		metrics.deleted(queueName, deleted.size(), System.nanoTime() - startTime);
+		for(Message msg : deleted) {
+			reportAge(queueName, msg);
+		}
+	}
+
+	private void reportPulled(String queueName, List<Message> msgs, long latencyNanos) {
+		QueueMetrics metrics = this.metrics;
+		metrics.pulled(queueName, msgs.size(), latencyNanos);
+		int redelivered = 0;
+		for(Message msg : msgs) {
+			String receiveCount = msg.getAttributes().get(RECEIVE_COUNT);
+			if(receiveCount != null && Integer.parseInt(receiveCount) > 1) {
+				redelivered++;
+			}
+		}
+		if(redelivered > 0) {
+			metrics.redelivered(queueName, redelivered);
+		}
+	}
+
+	private void reportAge(String queueName, Message msg) {
+		String sentTimestamp = msg.getAttributes().get(SENT_TIMESTAMP);
+		if(sentTimestamp != null) {
+			metrics.messageAge(queueName, System.currentTimeMillis() - Long.parseLong(sentTimestamp));
+		}
+	}
+
+	/*
+	 * SQS takes visibility timeouts in whole seconds, so timeout is rounded up
+	 */
+	public boolean changeVisibility(String queueName, Object msg, long timeout, TimeUnit unit) {
+		Message sqsMsg = (Message) msg;
+		try {
+			withQueueUrl(queueName, queueUrl -> {
+				sqsClient.changeMessageVisibility(queueUrl, sqsMsg.getReceiptHandle(), toSeconds(timeout, unit));
+				return null;
+			});
+			return true;
+		} catch (ReceiptHandleIsInvalidException | MessageNotInflightException e) {
+			log.warning("Cannot change visibility of message on queue " + queueName + "; Error: " + e.getErrorMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Changes visibility with one ChangeMessageVisibilityBatch request per ten messages
+	 */
+	public int changeVisibilityBatch(String queueName, List<?> msgs, long timeout, TimeUnit unit) {
+		int seconds = toSeconds(timeout, unit);
+		return withQueueUrl(queueName, queueUrl -> {
+			int changed = 0;
+			for(int start = 0; start < msgs.size(); start += MAX_BATCH_SIZE) {
+				List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+				for(int i = start; i < Math.min(start + MAX_BATCH_SIZE, msgs.size()); i++) {
+					Message sqsMsg = (Message) msgs.get(i);
+					entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i), sqsMsg.getReceiptHandle())
+							.withVisibilityTimeout(seconds));
+				}
+				ChangeMessageVisibilityBatchResult result = sqsClient.changeMessageVisibilityBatch(queueUrl, entries);
+				logFailures("change visibility of", queueName, result.getFailed());
+				changed += result.getSuccessful().size();
+			}
+			return changed;
+		});
+	}
+
+	static int toSeconds(long timeout, TimeUnit unit) {
+		return (int) Math.min(Integer.MAX_VALUE, (unit.toMillis(timeout) + 999) / 1000);
+	}
+
+	/*
+	 * Sets the RedrivePolicy of the queue, so SQS itself moves messages to the dead-letter queue
+	 * after maxReceiveCount receives. Both queues must already exist.
+	 */
+	public void setDeadLetterQueue(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+		String redrivePolicy = "";
+		if(deadLetterQueueName != null) {
+			String deadLetterQueueArn = withQueueUrl(deadLetterQueueName, queueUrl -> sqsClient.getQueueAttributes(
+					new GetQueueAttributesRequest(queueUrl).withAttributeNames(QUEUE_ARN)).getAttributes().get(QUEUE_ARN));
+			redrivePolicy = "{\"maxReceiveCount\":\"" + maxReceiveCount + "\",\"deadLetterTargetArn\":\""
+					+ deadLetterQueueArn + "\"}";
+		}
+		Map<String, String> attributes = Collections.singletonMap(REDRIVE_POLICY, redrivePolicy);
+		withQueueUrl(queueName, queueUrl -> {
+			sqsClient.setQueueAttributes(queueUrl, attributes);
+			return null;
+		});
+	}
+
+	/*
+	 * Moves messages ten at a time: each batch is received from the dead-letter queue, sent to
+	 * queueName, and deleted once sent. Messages that fail to send stay on the dead-letter queue
+	 * and become visible again there. Every message attribute is carried over, and messages of a
+	 * FIFO queue keep their group; they are deduplicated by their message id on the dead-letter
+	 * queue, so one moved twice after a failed delete arrives once.
+	 */
+	public int redrive(String deadLetterQueueName, String queueName, int maxMessages) {
+		int moved = 0;
+		while(moved < maxMessages) {
+			int batchSize = Math.min(MAX_BATCH_SIZE, maxMessages - moved);
+			List<Message> msgs = withQueueUrl(deadLetterQueueName, queueUrl -> sqsClient.receiveMessage(
+					new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(batchSize).withAttributeNames(MESSAGE_GROUP_ID)
+							.withMessageAttributeNames(ALL_ATTRIBUTES)).getMessages());
+			if(msgs.isEmpty()) {
+				break;
+			}
+			SendMessageBatchRequest request = new SendMessageBatchRequest();
+			for(int i = 0; i < msgs.size(); i++) {
+				Message msg = msgs.get(i);
+				request.getEntries().add(new SendMessageBatchRequestEntry(Integer.toString(i), msg.getBody())
+						.withMessageAttributes(msg.getMessageAttributes()));
+				String messageGroupId = getMessageGroupId(msg);
+				if(messageGroupId != null) {
+					request.putCustomQueryParameter(BATCH_ENTRY_PREFIX + (i + 1) + "." + MESSAGE_GROUP_ID, messageGroupId);
+					request.putCustomQueryParameter(BATCH_ENTRY_PREFIX + (i + 1) + "." + MESSAGE_DEDUPLICATION_ID, msg.getMessageId());
+				}
+			}
+			SendMessageBatchResult result = withQueueUrl(queueName, queueUrl -> sqsClient.sendMessageBatch(request.withQueueUrl(queueUrl)));
+			logFailures("redrive", queueName, result.getFailed());
+			List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<DeleteMessageBatchRequestEntry>();
+			for(SendMessageBatchResultEntry sent : result.getSuccessful()) {
+				deletes.add(new DeleteMessageBatchRequestEntry(sent.getId(),
+						msgs.get(Integer.parseInt(sent.getId())).getReceiptHandle()));
+			}
+			if(deletes.isEmpty()) {
+				break;
+			}
+			DeleteMessageBatchResult deleted = withQueueUrl(deadLetterQueueName,
+					queueUrl -> sqsClient.deleteMessageBatch(queueUrl, deletes));
+			logFailures("delete", deadLetterQueueName, deleted.getFailed());
+			// Messages that could not be deleted stay on the dead-letter queue, to be moved again
+			moved += deleted.getSuccessful().size();
+		}
+		return moved;
+	}
+
+	/*
+	 * SQS has no caps of its own, so they are enforced by this client against the approximate
+	 * number of visible and in-flight messages SQS reports, which lags behind sends and deletes.
+	 * Caps are therefore soft, and each push to a capped queue costs a GetQueueAttributes request.
+	 * SQS does not report the size of a queue in bytes, so maxBytes is not enforced.
+	 */
+	public void setQueueLimits(String queueName, QueueLimits limits) {
+		if(limits == null) {
+			queueLimits.remove(queueName);
+			return;
+		}
+		if(limits.getMaxBytes() != Long.MAX_VALUE) {
+			log.warning("SQS does not report queue size in bytes; only the message cap of queue " + queueName + " is enforced");
+		}
+		queueLimits.put(queueName, limits);
+	}
+
+	/*
+	 * Makes sure count more messages fit under the limits of the queue, if it has any, as its
+	 * overflow policy says: by polling the queue size until they fit, by receiving and deleting
+	 * the excess, or by checking once. Throws QueueFullException if they do not fit.
+	 */
+	private void admit(String queueName, int count) {
+		QueueLimits limits = queueLimits.get(queueName);
+		if(limits == null) {
+			return;
+		}
+		if(count > limits.getMaxMessages()) {
+			throw rejected(queueName, count, "Queue " + queueName + " can never hold " + count + " more messages");
+		}
+		int excess = approximateSize(queueName) + count - limits.getMaxMessages();
+		if(excess <= 0) {
+			return;
+		}
+		switch(limits.getOverflowPolicy()) {
+		case BLOCK:
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.getMaxBlockMillis());
+			while(excess > 0) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					throw rejected(queueName, count, "Timed out waiting for room for " + count + " messages in queue " + queueName);
+				}
+				try {
+					TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ROOM_POLL_MILLIS)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw rejected(queueName, count, "Interrupted waiting for room in queue " + queueName);
+				}
+				excess = approximateSize(queueName) + count - limits.getMaxMessages();
+			}
+			return;
+		case DROP_OLDEST:
+			if(dropOldest(queueName, excess) < excess) {
+				throw rejected(queueName, count, "Queue " + queueName + " has too few visible messages to drop for " + count + " messages");
+			}
+			return;
+		default:
+			throw rejected(queueName, count, "Queue " + queueName + " has no room for " + count + " messages");
+		}
+	}
+
+	private QueueFullException rejected(String queueName, int count, String message) {
+		metrics.rejected(queueName, count);
+		return new QueueFullException(message);
+	}
+
+	private int approximateSize(String queueName) {
+		Map<String, String> attributes = withQueueUrl(queueName, queueUrl -> sqsClient.getQueueAttributes(
+				new GetQueueAttributesRequest(queueUrl).withAttributeNames(APPROXIMATE_VISIBLE, APPROXIMATE_IN_FLIGHT))
+				.getAttributes());
+		int size = 0;
+		for(String attribute : new String[] { APPROXIMATE_VISIBLE, APPROXIMATE_IN_FLIGHT }) {
+			String value = attributes.get(attribute);
+			if(value != null) {
+				size += Integer.parseInt(value);
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * Receives up to count visible messages and deletes them. Standard queues do not keep strict
+	 * order, so these are roughly, not exactly, the oldest. Returns the number dropped.
+	 */
+	private int dropOldest(String queueName, int count) {
+		int dropped = withQueueUrl(queueName, queueUrl -> {
+			List<Message> msgs = receiveBatch(queueUrl, count);
+			int deleted = 0;
+			for(int start = 0; start < msgs.size(); start += MAX_BATCH_SIZE) {
+				List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+				for(int i = start; i < Math.min(start + MAX_BATCH_SIZE, msgs.size()); i++) {
+					entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), msgs.get(i).getReceiptHandle()));
+				}
+				DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(queueUrl, entries);
+				logFailures("drop", queueName, result.getFailed());
+				deleted += result.getSuccessful().size();
+			}
+			return deleted;
+		});
+		if(dropped > 0) {
+			metrics.dropped(queueName, dropped);
+		}
+		return dropped;
+	}
+
+	/*
+	 * Sends the sends and deletes still waiting in buffered mode and stops prefetching
+	 */
+	public void shutdown() {
+		if(bufferConfig == null) {
+			return;
+		}
+		for(SqsQueueBuffer buffer : buffers.values()) {
+			buffer.close();
+		}
+		buffers.clear();
+		fetcher.shutdownNow();
+		flusher.shutdown();
+	}
+
+	/*
+	 * Runs a call against the cached URL of a queue. If SQS reports that the queue no longer
+	 * exists, the URL is evicted so the next call looks it up again.
+	 */
+	private <T> T withQueueUrl(String queueName, Function<String, T> call) {
+		String queueUrl = getQueueUrl(queueName);
+		try {
+			return call.apply(queueUrl);
+		} catch (AmazonServiceException e) {
+			if(e instanceof QueueDoesNotExistException || NON_EXISTENT_QUEUE.equals(e.getErrorCode())) {
+				queueUrls.remove(queueName);
+				SqsQueueBuffer buffer = buffers.remove(queueUrl);
+				if(buffer != null) {
+					buffer.close();
+				}
+			}
+			throw e;
+		}
+	}
+
+	private String getQueueUrl(String queueName) {
+		CachedQueueUrl cached = queueUrls.get(queueName);
+		if(cached == null || (queueUrlTtlNanos > 0 && System.nanoTime() - cached.fetchedAt > queueUrlTtlNanos)) {
+			cached = new CachedQueueUrl(sqsClient.getQueueUrl(queueName).getQueueUrl(), System.nanoTime());
+			queueUrls.put(queueName, cached);
+		}
+		return cached.queueUrl;
+	}
+
+	private SqsQueueBuffer getBuffer(String queueName, String queueUrl) {
+		return buffers.computeIfAbsent(queueUrl,
+				url -> new SqsQueueBuffer(sqsClient, queueName, url, bufferConfig, fetcher, flusher));
+	}
+
+	private void logFailures(String action, String queueName, List<BatchResultErrorEntry> failed) {
+		for(BatchResultErrorEntry entry : failed) {
+			log.warning("Failed to " + action + " message " + entry.getId() + " on queue " + queueName
+					+ "; Error: " + entry.getCode() + " " + entry.getMessage());
+		}
+	}
+
+	private static class CachedQueueUrl {
+		final String queueUrl;
+		final long fetchedAt;
+
+		CachedQueueUrl(String queueUrl, long fetchedAt) {
+			this.queueUrl = queueUrl;
+			this.fetchedAt = fetchedAt;
+		}
 	}
 }
@@ -0,0 +1,273 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+
+/*
+ * Hashed timing wheel holding the visibility deadlines of in-flight messages, and the times
+ * delayed messages become visible.
+ *
+ * Time is read from a Ticker, so deadlines are monotonic and unaffected by wall-clock changes,
+ * and tests can drive time by hand. The wheel is a ring of buckets, one per tick; a timeout goes
+ * into the bucket of the first tick after its deadline, modulo the ring size. Schedule and
+ * cancel only lock the one bucket they touch and are O(1).
+ *
+ * There is no timer thread. advance() is called on the pull path and sweeps every bucket whose
+ * tick has passed since the last call, returning everything that expired in one list. After an
+ * idle gap longer than a rotation every bucket is swept once.
+ *
+ * Timeouts due further out than one rotation wait in an overflow map of buckets keyed by tick,
+ * and each advance moves the buckets the ring has come to cover into it. So a sweep only ever
+ * walks timeouts due within the rotation, however many are scheduled for hours ahead, and a
+ * far timeout costs a skip-list lookup to schedule and one move into the ring.
+ *
+ * The tick last swept is published under the lock of the bucket being swept. A schedule reads it
+ * under the lock of its own bucket, so a timeout is either seen by the sweep of its tick or found
+ * to be already due, never missed.
+ */
+class TimingWheel<T> {
+	private final Ticker ticker;
+	private final long tickNanos;
+	private final Bucket<T>[] buckets;
+	private final int mask;
+	private final long origin;
+	private final ReentrantLock advanceLock = new ReentrantLock();
+	private volatile long sweptTick;
+
+	/*
+	 * Buckets of timeouts due after horizon, the last tick the ring covers. A bucket is closed
+	 * once moved into the ring, and a schedule that finds it closed retries against the ring.
+	 */
+	private final ConcurrentNavigableMap<Long, Bucket<T>> overflow = new ConcurrentSkipListMap<Long, Bucket<T>>();
+	private volatile long horizon;
+
+	/*
+	 * bucketCount is rounded up to a power of two
+	 */
+	TimingWheel(Ticker ticker, long tickNanos, int bucketCount) {
+		int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+		this.ticker = ticker;
+		this.tickNanos = tickNanos;
+		this.buckets = newBuckets(size);
+		for(int i = 0; i < size; i++) {
+			buckets[i] = new Bucket<T>();
+		}
+		this.mask = size - 1;
+		this.origin = ticker.read();
+		this.horizon = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Bucket<T>[] newBuckets(int size) {
+		return (Bucket<T>[]) new Bucket<?>[size];
+	}
+
+	/*
+	 * Current time of the wheel's ticker, in nanoseconds
+	 */
+	long now() {
+		return ticker.read();
+	}
+
+	/*
+	 * Schedules item to expire once the ticker reaches deadlineNanos. Returns null, scheduling
+	 * nothing, if the tick of the deadline has already been swept.
+	 */
+	Timeout<T> schedule(T item, long deadlineNanos) {
+		long tick = tickOf(deadlineNanos) + 1;
+		while(tick > horizon) {
+			Bucket<T> later = overflow.computeIfAbsent(tick, key -> new Bucket<T>());
+			synchronized (later) {
+				if(!later.closed) {
+					Timeout<T> timeout = new Timeout<T>(item, tick, later);
+					later.add(timeout);
+					return timeout;
+				}
+			}
+		}
+		Bucket<T> bucket = buckets[(int) (tick & mask)];
+		synchronized (bucket) {
+			if(tick <= sweptTick) {
+				return null;
+			}
+			Timeout<T> timeout = new Timeout<T>(item, tick, bucket);
+			bucket.add(timeout);
+			return timeout;
+		}
+	}
+
+	/*
+	 * Removes a timeout before it expires. Returns false if it had already expired.
+	 */
+	boolean cancel(Timeout<T> timeout) {
+		while(true) {
+			Bucket<T> bucket = timeout.bucket;
+			if(bucket == null) {
+				return false;
+			}
+			synchronized (bucket) {
+				// Otherwise moved from the overflow map into the ring meanwhile
+				if(timeout.bucket == bucket) {
+					bucket.remove(timeout);
+					return true;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Removes and returns the items of every timeout whose deadline has passed. If another thread
+	 * is already advancing the wheel, returns nothing and leaves the expired items to that thread.
+	 */
+	List<T> advance() {
+		List<T> expired = new ArrayList<T>();
+		if(!advanceLock.tryLock()) {
+			return expired;
+		}
+		try {
+			long current = tickOf(ticker.read());
+			long from = Math.max(sweptTick + 1, current - mask);
+			for(long tick = from; tick <= current; tick++) {
+				Bucket<T> bucket = buckets[(int) (tick & mask)];
+				synchronized (bucket) {
+					bucket.expire(tick, expired);
+					sweptTick = tick;
+				}
+			}
+			cascade(current, expired);
+		} finally {
+			advanceLock.unlock();
+		}
+		return expired;
+	}
+
+	/*
+	 * Moves the overflow buckets the ring covers once swept up to current into the ring, and the
+	 * timeouts in them that are already due, after an idle gap, straight into expired. A bucket
+	 * created behind a concurrent move is picked up by the next one.
+	 */
+	private void cascade(long current, List<T> expired) {
+		horizon = current + buckets.length;
+		Map.Entry<Long, Bucket<T>> first;
+		while((first = overflow.firstEntry()) != null && first.getKey() <= horizon) {
+			overflow.remove(first.getKey(), first.getValue());
+			Bucket<T> later = first.getValue();
+			synchronized (later) {
+				later.closed = true;
+				Timeout<T> timeout;
+				while((timeout = later.head) != null) {
+					if(timeout.tick <= current) {
+						later.remove(timeout);
+						expired.add(timeout.item);
+						continue;
+					}
+					// Never unset in between, so a concurrent cancel follows the timeout
+					later.unlink(timeout);
+					Bucket<T> bucket = buckets[(int) (timeout.tick & mask)];
+					synchronized (bucket) {
+						bucket.add(timeout);
+						timeout.bucket = bucket;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Nanoseconds until the next tick whose bucket holds any timeout, or Long.MAX_VALUE if the
+	 * wheel is empty. A hint for waiting consumers: the bucket found may since have been emptied
+	 * by cancels.
+	 */
+	long nanosUntilNextTimeout() {
+		long swept = sweptTick;
+		long next = Long.MAX_VALUE;
+		for(long tick = swept + 1; tick <= swept + buckets.length; tick++) {
+			if(buckets[(int) (tick & mask)].head != null) {
+				next = tick;
+				break;
+			}
+		}
+		Map.Entry<Long, Bucket<T>> later = overflow.firstEntry();
+		if(later != null) {
+			next = Math.min(next, later.getKey());
+		}
+		return next == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, origin + next * tickNanos - ticker.read());
+	}
+
+	/*
+	 * Last tick reached by the given time
+	 */
+	private long tickOf(long nanos) {
+		return Math.max(0, nanos - origin) / tickNanos;
+	}
+
+	static class Timeout<T> {
+		final T item;
+		final long tick;
+		/*
+		 * Bucket holding the timeout, in the ring or the overflow map, or null once it has
+		 * expired or been cancelled
+		 */
+		volatile Bucket<T> bucket;
+		Timeout<T> prev;
+		Timeout<T> next;
+
+		Timeout(T item, long tick, Bucket<T> bucket) {
+			this.item = item;
+			this.tick = tick;
+			this.bucket = bucket;
+		}
+	}
+
+	/*
+	 * Doubly linked list of timeouts; guarded by its own monitor
+	 */
+	private static class Bucket<T> {
+		volatile Timeout<T> head;
+		boolean closed;
+
+		void add(Timeout<T> timeout) {
+			timeout.next = head;
+			if(head != null) {
+				head.prev = timeout;
+			}
+			head = timeout;
+		}
+
+		void remove(Timeout<T> timeout) {
+			unlink(timeout);
+			timeout.bucket = null;
+		}
+
+		void unlink(Timeout<T> timeout) {
+			if(timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if(timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+
+		void expire(long tick, List<T> expired) {
+			Timeout<T> timeout = head;
+			while(timeout != null) {
+				Timeout<T> next = timeout.next;
+				if(timeout.tick <= tick) {
+					remove(timeout);
+					expired.add(timeout.item);
+				}
+				timeout = next;
+			}
+		}
+	}
+}
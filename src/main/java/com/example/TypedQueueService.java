@@ -0,0 +1,96 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Pushes and pulls values of type T on any QueueService, encoding them with codec into binary
+ * payloads, so values never pass through a String:
+ *
+ *   TypedQueueService<Order> orders = new TypedQueueService<Order>(queueService, orderCodec);
+ *   orders.push(queueName, order);
+ *   TypedQueueService.Received<Order> received = orders.pull(queueName);
+ *   handle(received.getValue());
+ *   orders.delete(queueName, received);
+ */
+public class TypedQueueService<T> {
+	private final QueueService queueService;
+	private final Codec<T> codec;
+
+	public TypedQueueService(QueueService queueService, Codec<T> codec) {
+		this.queueService = queueService;
+		this.codec = codec;
+	}
+
+	public void push(String queueName, T value) throws IOException {
+		queueService.pushBytes(queueName, codec.encode(value));
+	}
+
+	public void pushBatch(String queueName, List<T> values) throws IOException {
+		List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(values.size());
+		for (T value : values) {
+			payloads.add(codec.encode(value));
+		}
+		queueService.pushBytesBatch(queueName, payloads);
+	}
+
+	/*
+	 * Returns null if no message is visible
+	 */
+	public Received<T> pull(String queueName) throws IOException {
+		return decode(queueService.pull(queueName));
+	}
+
+	/*
+	 * Returns null if no message arrived within waitTime
+	 */
+	public Received<T> pull(String queueName, long waitTime, TimeUnit unit) throws IOException {
+		return decode(queueService.pull(queueName, waitTime, unit));
+	}
+
+	public List<Received<T>> pullBatch(String queueName, int maxMessages) throws IOException {
+		List<?> msgs = queueService.pullBatch(queueName, maxMessages);
+		if (msgs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Received<T>> received = new ArrayList<Received<T>>(msgs.size());
+		for (Object msg : msgs) {
+			received.add(decode(msg));
+		}
+		return received;
+	}
+
+	public void delete(String queueName, Received<T> received) throws IOException {
+		queueService.delete(queueName, received.getMessage());
+	}
+
+	private Received<T> decode(Object msg) {
+		return msg == null ? null : new Received<T>(codec.decode(queueService.getPayload(msg)), msg);
+	}
+
+	/*
+	 * A pulled value, with the message it came in for deleting it or changing its visibility
+	 * on the underlying QueueService
+	 */
+	public static class Received<T> {
+		private final T value;
+		private final Object message;
+
+		Received(T value, Object message) {
+			this.value = value;
+			this.message = message;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		public Object getMessage() {
+			return message;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Keeps messages invisible while long-running handlers work on them, so queues can use short
+ * visibility timeouts for fast redelivery without slow jobs being delivered twice:
+ *
+ *   try (VisibilityHeartbeat.Lease lease = heartbeat.keepAlive(queueName, msg)) {
+ *       handle(msg);
+ *   }
+ *   queueService.delete(queueName, msg);
+ *
+ * Every leased message is given timeout from now when leased, and again every third of timeout
+ * until its lease is closed, with one changeVisibilityBatch call per queue. If the handler dies,
+ * the heartbeat stops and the message is redelivered within timeout. A message that can no longer
+ * be extended, as it was deleted or redelivered meanwhile, is dropped from the heartbeat.
+ */
+public class VisibilityHeartbeat implements Closeable {
+	private static final Logger log = Logger.getLogger("VisibilityHeartbeat");
+
+	private final QueueService queueService;
+	private final long timeoutMillis;
+	private final Map<String, Set<Object>> leased = new ConcurrentHashMap<String, Set<Object>>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("visibility-heartbeat-%d").build());
+
+	public VisibilityHeartbeat(QueueService queueService, long timeout, TimeUnit unit) {
+		this.queueService = queueService;
+		this.timeoutMillis = unit.toMillis(timeout);
+		long interval = Math.max(1, timeoutMillis / 3);
+		scheduler.scheduleWithFixedDelay(this::beat, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Extends the visibility of msg now and until the lease is closed. Throws IllegalStateException
+	 * if the message could not be extended, as another consumer may get it.
+	 */
+	public Lease keepAlive(String queueName, Object msg) throws IOException {
+		if (!queueService.changeVisibility(queueName, msg, timeoutMillis, TimeUnit.MILLISECONDS)) {
+			throw new IllegalStateException("Message on queue " + queueName + " is no longer in flight");
+		}
+		leased.computeIfAbsent(queueName, name -> Sets.newConcurrentHashSet()).add(msg);
+		return new Lease(queueName, msg);
+	}
+
+	/*
+	 * Stops extending every leased message
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		leased.clear();
+	}
+
+	/*
+	 * Messages whose visibility is being extended
+	 */
+	int leasedCount() {
+		int count = 0;
+		for (Set<Object> msgs : leased.values()) {
+			count += msgs.size();
+		}
+		return count;
+	}
+
+	private void beat() {
+		for (Map.Entry<String, Set<Object>> entry : leased.entrySet()) {
+			List<Object> msgs = new ArrayList<Object>(entry.getValue());
+			if (msgs.isEmpty()) {
+				continue;
+			}
+			try {
+				int changed = queueService.changeVisibilityBatch(entry.getKey(), msgs, timeoutMillis, TimeUnit.MILLISECONDS);
+				if (changed < msgs.size()) {
+					int lost = forgetLost(entry.getKey(), entry.getValue(), msgs);
+					log.warning("Lost " + lost + " leased messages on queue " + entry.getKey());
+				}
+			} catch (Exception e) {
+				log.warning("Error occurred extending leased messages on queue " + entry.getKey() + "; Error: " + e);
+			}
+		}
+	}
+
+	/*
+	 * The batch call does not say which messages failed, so each is extended again on its own, and
+	 * those that fail are no longer leased. Returns how many were dropped.
+	 */
+	private int forgetLost(String queueName, Set<Object> leasedMsgs, List<Object> msgs) throws IOException {
+		int lost = 0;
+		for (Object msg : msgs) {
+			if (!queueService.changeVisibility(queueName, msg, timeoutMillis, TimeUnit.MILLISECONDS) && leasedMsgs.remove(msg)) {
+				lost++;
+			}
+		}
+		return lost;
+	}
+
+	public class Lease implements AutoCloseable {
+		private final String queueName;
+		private final Object msg;
+
+		private Lease(String queueName, Object msg) {
+			this.queueName = queueName;
+			this.msg = msg;
+		}
+
+		/*
+		 * Stops extending the message; it stays invisible for the rest of its current timeout
+		 */
+		@Override
+		public void close() {
+			Set<Object> msgs = leased.get(queueName);
+			if (msgs != null) {
+				msgs.remove(msg);
+			}
+		}
+	}
+}
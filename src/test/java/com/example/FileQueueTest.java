@@ -1,13 +1,34 @@
 package com.example;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -207,4 +228,763 @@ public class FileQueueTest {
 		assertEquals(0, fileQueueService.getQueueSize(queue1));
 		assertEquals(0, fileQueueService.getQueueSize(queue2));	
 	}
+	
+	@Test
+	public void testDeleteRemovesExactDeliveryOfDuplicateMessages() throws IOException {
+		String queue1 = "Test Queue 1";
+		
+		fileQueueService.push(queue1, "msg");
+		fileQueueService.push(queue1, "msg");
+		QueueMessage msg1 = fileQueueService.pull(queue1);
+		QueueMessage msg2 = fileQueueService.pull(queue1);
+		assertNotEquals(msg1.getReceiptHandle(), msg2.getReceiptHandle());
+		
+		/*
+		 * Deleting one copy leaves the other in flight, still deletable by its own receipt
+		 */
+		fileQueueService.delete(queue1, msg2);
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		fileQueueService.delete(queue1, msg2);
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		fileQueueService.delete(queue1, msg1);
+		assertEquals(0, fileQueueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testStaleReceiptDoesntDeleteRedeliveredMessage() throws IOException, InterruptedException {
+		String queue1 = "Test Queue 1";
+		fileQueueService.setVisibilityTimeout(1);
+		
+		fileQueueService.push(queue1, "msg1");
+		QueueMessage msg1 = fileQueueService.pull(queue1);
+		TimeUnit.SECONDS.sleep(2);
+		QueueMessage msg2 = fileQueueService.pull(queue1);
+		assertEquals(1, msg1.getReceiveCount());
+		assertEquals(2, msg2.getReceiveCount());
+		
+		/*
+		 * Makes sure the receipt of the first delivery can't delete the second
+		 */
+		fileQueueService.delete(queue1, msg1);
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		fileQueueService.delete(queue1, msg2);
+		assertEquals(0, fileQueueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testBlockingPullReturnsMessagePushedWhileWaiting() throws Exception {
+		String queue1 = "Test Queue 1";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		Future<QueueMessage> msg = executor.submit(() -> fileQueueService.pull(queue1, 5, TimeUnit.SECONDS));
+		otherService.push(queue1, "msg1");
+		
+		/*
+		 * Makes sure the waiting consumer is woken well before its wait time is up
+		 */
+		assertEquals("msg1", msg.get(1, TimeUnit.SECONDS).getContent());
+		assertNull(fileQueueService.pull(queue1, 10, TimeUnit.MILLISECONDS));
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testBlockingPullIsWokenByPushFromAnotherProcess() throws Exception {
+		String queue1 = "Test Queue 1";
+		fileQueueService.push(queue1, "msg0");
+		assertEquals("msg0", fileQueueService.pull(queue1).getContent());
+		Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), OtherProcess.class.getName(), tempDir.getAbsolutePath(), queue1, "msg1")
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		
+		/*
+		 * Makes sure the push of the other process wakes the consumer well before its wait time is
+		 * up, although its write to the existing segment, through a mapping, raises no file system
+		 * event
+		 */
+		long start = System.nanoTime();
+		QueueMessage msg = fileQueueService.pull(queue1, 20, TimeUnit.SECONDS);
+		long waited = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+		assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+		assertEquals(0, process.exitValue());
+		assertEquals("msg1", msg.getContent());
+		assertTrue("Waited " + waited + " seconds", waited < 10);
+	}
+	
+	@Test
+	public void testQueueStateIsSharedBetweenServices() throws IOException {
+		String queue1 = "Test Queue 1";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		
+		fileQueueService.push(queue1, "msg1");
+		fileQueueService.push(queue1, "msg2");
+		
+		/*
+		 * A second service over the same directory, standing in for another JVM, sees the
+		 * pushed messages and the in-flight state of the first
+		 */
+		QueueMessage msg1 = otherService.pull(queue1);
+		QueueMessage msg2 = fileQueueService.pull(queue1);
+		assertEquals("msg1", msg1.getContent());
+		assertEquals("msg2", msg2.getContent());
+		assertNull(otherService.pull(queue1));
+		
+		fileQueueService.delete(queue1, msg1);
+		assertEquals(1, otherService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testSegmentsAreDroppedOnceFullyDeleted() throws IOException, InterruptedException {
+		String queue1 = "Test Queue 1";
+		fileQueueService = new FileQueueService(tempDir.getAbsolutePath(), 30, 256);
+		
+		for(int i = 0; i < 20; i++) {
+			fileQueueService.push(queue1, "msg:" + i);
+		}
+		assertTrue(segmentCount(queue1) > 1);
+		
+		/*
+		 * Messages are delivered in order across segment boundaries
+		 */
+		for(int i = 0; i < 20; i++) {
+			QueueMessage msg = fileQueueService.pull(queue1);
+			assertEquals("msg:" + i, msg.getContent());
+			fileQueueService.delete(queue1, msg);
+		}
+		assertEquals(0, fileQueueService.getQueueSize(queue1));
+		
+		/*
+		 * Only the active segment is left once the compactor has run
+		 */
+		long deadline = System.currentTimeMillis() + 1000;
+		while(segmentCount(queue1) > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, segmentCount(queue1));
+	}
+	
+	@Test
+	public void testOldLiveMessageDoesntPinLaterSegments() throws Exception {
+		String queue1 = "Test Queue 1";
+		fileQueueService = new FileQueueService(tempDir.getAbsolutePath(), 30, 256);
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30, 256);
+		
+		fileQueueService.pushToGroup(queue1, "a0", "A", null);
+		for(int i = 0; i < 50; i++) {
+			fileQueueService.push(queue1, "msg:" + i);
+		}
+		fileQueueService.pushToGroup(queue1, "a1", "A", null);
+		assertEquals(52, otherService.getQueueSize(queue1));
+		QueueMessage old = fileQueueService.pull(queue1);
+		assertEquals("a0", old.getContent());
+		List<QueueMessage> messages = fileQueueService.pullBatch(queue1, 50);
+		assertEquals(50, messages.size());
+		fileQueueService.deleteBatch(queue1, messages);
+		
+		/*
+		 * Makes sure the compactor moves the in-flight message out of the oldest segment, so the
+		 * deleted messages behind it are dropped
+		 */
+		long deadline = System.currentTimeMillis() + 5000;
+		while(segmentCount(queue1) > 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(segmentCount(queue1) <= 2);
+		
+		/*
+		 * Makes sure a service that followed the log, and one that starts after the compaction,
+		 * both see the moved message still in flight, with the rest of its group waiting behind it
+		 */
+		FileQueueService restarted = new FileQueueService(tempDir.getAbsolutePath(), 30, 256);
+		assertEquals(2, restarted.getQueueSize(queue1));
+		assertNull(restarted.pull(queue1));
+		assertEquals(2, otherService.getQueueSize(queue1));
+		assertNull(otherService.pull(queue1));
+		restarted.delete(queue1, old);
+		assertEquals("a1", otherService.pull(queue1).getContent());
+		assertNull(restarted.pull(queue1));
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testConcurrentPushesFromManyThreadsAndServices() throws Exception {
+		String queue1 = "Test Queue 1";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		
+		/*
+		 * Threads of two services over the same directory contend for the same queue lock
+		 */
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int i = 0; i < 8; i++) {
+			FileQueueService service = i % 2 == 0 ? fileQueueService : otherService;
+			futures.add(executor.submit(() -> {
+				for(int j = 0; j < 50; j++) {
+					service.push(queue1, "msg");
+				}
+				return null;
+			}));
+		}
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		
+		assertEquals(400, fileQueueService.getQueueSize(queue1));
+		assertEquals(400, otherService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testBatchOperations() throws IOException {
+		String queue1 = "Test Queue 1";
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 25; i++) {
+			contents.add("Test Message " + i);
+		}
+		
+		fileQueueService.pushBatch(queue1, contents);
+		assertEquals(25, fileQueueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure a batch pull returns at most the requested number, in order
+		 */
+		List<QueueMessage> batch = fileQueueService.pullBatch(queue1, 10);
+		assertEquals(10, batch.size());
+		for(int i = 0; i < 10; i++) {
+			assertEquals("Test Message " + i, batch.get(i).getContent());
+		}
+		
+		fileQueueService.deleteBatch(queue1, batch);
+		assertEquals(15, fileQueueService.getQueueSize(queue1));
+		assertEquals(15, fileQueueService.pullBatch(queue1, 100).size());
+		assertTrue(fileQueueService.pullBatch(queue1, 100).isEmpty());
+	}
+	
+	@Test
+	public void testContentIsStoredAsArbitraryBytes() throws IOException {
+		String queue1 = "Test Queue 1";
+		String content = "30:msg:1\nsecond line\r\n\u00e9\u4e2d\ud83d\ude00";
+		
+		fileQueueService.push(queue1, content);
+		fileQueueService.push(queue1, "");
+		
+		assertEquals(content, fileQueueService.pull(queue1).getContent());
+		assertEquals("", fileQueueService.pull(queue1).getContent());
+	}
+	
+	@Test
+	public void testTornTailIsIgnoredAndOverwritten() throws IOException {
+		String queue1 = "Test Queue 1";
+		fileQueueService.push(queue1, "msg1");
+		
+		/*
+		 * Simulates a writer that crashed halfway through a record: a header with no valid CRC
+		 * right after the last record
+		 */
+		try (RandomAccessFile segment = new RandomAccessFile(tempDir.toPath().resolve(queue1)
+				.resolve(String.format("%020d.seg", 0)).toFile(), "rw")) {
+			long end = 0;
+			while(true) {
+				segment.seek(end);
+				if(segment.readInt() == 0) {
+					break;
+				}
+				end += QueueLog.HEADER_SIZE + segment.readInt();
+			}
+			segment.seek(end);
+			segment.writeInt(QueueLog.PUSH);
+			segment.writeInt(4);
+			segment.writeLong(1);
+		}
+		
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		assertEquals(1, otherService.getQueueSize(queue1));
+		otherService.push(queue1, "msg2");
+		assertEquals("msg1", fileQueueService.pull(queue1).getContent());
+		assertEquals("msg2", fileQueueService.pull(queue1).getContent());
+	}
+	
+	@Test
+	public void testDurableModesUnderConcurrentPushes() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		FileQueueService groupCommit = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024 * 1024, Durability.GROUP_COMMIT);
+		FileQueueService always = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024 * 1024, Durability.ALWAYS);
+		groupCommit.setGroupCommit(5, TimeUnit.MILLISECONDS, 16);
+		
+		/*
+		 * Pushes wait for their sync, so every record of the durable services is on disk once they
+		 * return; the queue must still see every message exactly once
+		 */
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int i = 0; i < 8; i++) {
+			FileQueueService service = i % 2 == 0 ? groupCommit : always;
+			String queueName = i % 2 == 0 ? "Group Commit Queue" : "Always Queue";
+			futures.add(executor.submit(() -> {
+				for(int j = 0; j < 50; j++) {
+					service.push(queueName, "msg");
+				}
+				return null;
+			}));
+		}
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(0, groupCommit.unsyncedRecords("Group Commit Queue"));
+		assertEquals(0, always.unsyncedRecords("Always Queue"));
+		
+		assertEquals(200, fileQueueService.getQueueSize("Group Commit Queue"));
+		assertEquals(200, fileQueueService.getQueueSize("Always Queue"));
+		QueueMessage msg = always.pull("Always Queue");
+		always.delete("Always Queue", msg);
+		assertEquals(199, groupCommit.getQueueSize("Always Queue"));
+		groupCommit.close();
+		always.close();
+	}
+	
+	private long segmentCount(String queueName) throws IOException {
+		try (Stream<Path> files = Files.list(tempDir.toPath().resolve(queueName))) {
+			return files.filter(path -> path.toString().endsWith(".seg")).count();
+		}
+	}
+	
+	@Test
+	public void testMetricsAreRecorded() throws Exception {
+		String queue1 = "Test Queue 1";
+		RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+		fileQueueService.setMetrics(metrics);
+		fileQueueService.setVisibilityTimeout(1);
+		
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 5; i++) {
+			contents.add("msg" + i);
+		}
+		fileQueueService.pushBatch(queue1, contents);
+		List<QueueMessage> batch = fileQueueService.pullBatch(queue1, 3);
+		fileQueueService.deleteBatch(queue1, batch.subList(0, 2));
+		
+		QueueMetricsSnapshot snapshot = metrics.snapshot(queue1);
+		assertEquals(5, snapshot.getPushed());
+		assertEquals(3, snapshot.getPulled());
+		assertEquals(2, snapshot.getDeleted());
+		assertEquals(2, snapshot.getVisible());
+		assertEquals(1, snapshot.getInFlight());
+		assertEquals(2, snapshot.getMessageAge().getCount());
+		assertTrue(snapshot.getLockWait().getCount() >= 3);
+		
+		/*
+		 * Asserts the undeleted message expires and is counted as redelivered when pulled again
+		 */
+		TimeUnit.SECONDS.sleep(2);
+		assertEquals(3, fileQueueService.pullBatch(queue1, 10).size());
+		snapshot = metrics.snapshot(queue1);
+		assertEquals(1, snapshot.getExpired());
+		assertEquals(1, snapshot.getRedelivered());
+		assertEquals(0, snapshot.getVisible());
+		assertEquals(3, snapshot.getInFlight());
+	}
+	
+	@Test
+	public void testMessagesAreMovedToDeadLetterQueueAfterMaxReceives() throws IOException, InterruptedException {
+		String queue1 = "Test Queue 1";
+		String dlq = "Test Dead Letter Queue";
+		RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+		fileQueueService.setMetrics(metrics);
+		fileQueueService.setVisibilityTimeout(1);
+		fileQueueService.setDeadLetterQueue(queue1, dlq, 1);
+		
+		fileQueueService.pushBatch(queue1, Arrays.asList("poison1", "poison2", "msg3"));
+		assertEquals(2, fileQueueService.pullBatch(queue1, 2).size());
+		TimeUnit.MILLISECONDS.sleep(1100);
+		
+		/*
+		 * Asserts both expired messages go to the dead-letter queue, counting toward the batch so
+		 * a pull takes no more messages under the lock than asked for, and the next pull returns
+		 * the message behind them
+		 */
+		assertTrue(fileQueueService.pullBatch(queue1, 2).isEmpty());
+		List<QueueMessage> batch = fileQueueService.pullBatch(queue1, 2);
+		assertEquals(1, batch.size());
+		assertEquals("msg3", batch.get(0).getContent());
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		assertEquals(2, fileQueueService.getQueueSize(dlq));
+		assertEquals(2, metrics.snapshot(queue1).getDeadLettered());
+		
+		/*
+		 * Asserts the moved messages are visible to another service over the same directory,
+		 * and redrive moves them back in order
+		 */
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		assertEquals(2, otherService.redrive(dlq, queue1, 10));
+		assertEquals(0, fileQueueService.getQueueSize(dlq));
+		fileQueueService.delete(queue1, batch.get(0));
+		batch = fileQueueService.pullBatch(queue1, 10);
+		assertEquals(2, batch.size());
+		assertEquals("poison1", batch.get(0).getContent());
+		assertEquals("poison2", batch.get(1).getContent());
+		assertEquals(1, batch.get(0).getReceiveCount());
+	}
+	
+	@Test
+	public void testChangeVisibilityIsSharedBetweenServices() throws IOException, InterruptedException {
+		String queue1 = "Test Queue 1";
+		fileQueueService.setVisibilityTimeout(500, TimeUnit.MILLISECONDS);
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		
+		fileQueueService.pushBatch(queue1, Arrays.asList("msg1", "msg2"));
+		List<QueueMessage> batch = fileQueueService.pullBatch(queue1, 2);
+		assertTrue(fileQueueService.changeVisibility(queue1, batch.get(0), 3, TimeUnit.SECONDS));
+		assertEquals(1, fileQueueService.changeVisibilityBatch(queue1, batch.subList(1, 2), 0, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(1000);
+		
+		/*
+		 * Asserts another service sees the extended message as in flight and the other as visible
+		 */
+		List<QueueMessage> pulled = otherService.pullBatch(queue1, 10);
+		assertEquals(1, pulled.size());
+		assertEquals("msg2", pulled.get(0).getContent());
+		
+		/*
+		 * Asserts the extended receipt can still be deleted past its original timeout
+		 */
+		fileQueueService.delete(queue1, batch.get(0));
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		assertFalse(fileQueueService.changeVisibility(queue1, batch.get(1), 1, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testQueueLimitsApplyOverflowPolicy() throws Exception {
+		String queue1 = "Test Queue 1";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		fileQueueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(2));
+		otherService.pushBatch(queue1, Arrays.asList("msg1", "msg2"));
+		
+		/*
+		 * Asserts messages pushed by another service count against the cap, in flight or not
+		 */
+		QueueMessage msg1 = otherService.pull(queue1);
+		try {
+			fileQueueService.push(queue1, "msg3");
+			fail("Push should fail on a full queue");
+		} catch (QueueFullException e) {
+			assertEquals(2, fileQueueService.getQueueSize(queue1));
+		}
+		assertFalse(fileQueueService.offer(queue1, "msg3"));
+		otherService.delete(queue1, msg1);
+		assertTrue(fileQueueService.offer(queue1, "msg3"));
+		
+		/*
+		 * Asserts the oldest visible messages are dropped to stay under the byte cap
+		 */
+		fileQueueService.setQueueLimits(queue1, new QueueLimits().withMaxBytes(10)
+				.withOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+		fileQueueService.push(queue1, "msg4567");
+		assertEquals(1, fileQueueService.getQueueSize(queue1));
+		QueueMessage msg4 = fileQueueService.pull(queue1);
+		assertEquals("msg4567", msg4.getContent());
+		
+		/*
+		 * Asserts a blocked push goes through once the message in flight is deleted
+		 */
+		fileQueueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(1)
+				.withOverflowPolicy(OverflowPolicy.BLOCK).withMaxBlock(5, TimeUnit.SECONDS));
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			executor.schedule(() -> {
+				otherService.delete(queue1, msg4);
+				return null;
+			}, 100, TimeUnit.MILLISECONDS);
+			fileQueueService.push(queue1, "msg8");
+			assertEquals("msg8", fileQueueService.pull(queue1).getContent());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testBinaryPayloadsRoundTrip() throws Exception {
+		String queue1 = "Test Queue 1";
+		String deadLetters = "Test Dead Letters";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		fileQueueService.setDeadLetterQueue(queue1, deadLetters, 1);
+		byte[] bytes = {0, (byte) 0xff, (byte) 0xc3, 0x28, 42};
+		
+		/*
+		 * Asserts bytes that are not valid UTF-8 reach another service intact, and are handed out
+		 * as read-only views of the log
+		 */
+		ByteBuffer payload = ByteBuffer.allocateDirect(16);
+		payload.put(bytes);
+		((Buffer) payload).flip();
+		fileQueueService.pushBytesBatch(queue1, Arrays.asList(payload, ByteBuffer.wrap("msg2".getBytes("UTF-8"))));
+		assertEquals(bytes.length, payload.remaining());
+		QueueMessage msg1 = otherService.pull(queue1);
+		ByteBuffer pulled = otherService.getPayload(msg1);
+		assertTrue(pulled.isReadOnly());
+		assertEquals(ByteBuffer.wrap(bytes), pulled);
+		assertEquals("msg2", otherService.pull(queue1).getContent());
+		
+		/*
+		 * Asserts the payload is kept as is when moved to the dead-letter queue and back
+		 */
+		otherService.changeVisibility(queue1, msg1, 0, TimeUnit.SECONDS);
+		TimeUnit.MILLISECONDS.sleep(10);
+		assertNull(fileQueueService.pull(queue1));
+		assertEquals(1, fileQueueService.redrive(deadLetters, queue1, 10));
+		assertEquals(ByteBuffer.wrap(bytes), fileQueueService.getPayload(fileQueueService.pull(queue1)));
+	}
+	
+	@Test
+	public void testPartitionedQueueKeepsShardsInOwnDirectories() throws Exception {
+		String queue1 = "Test Queue 1";
+		PartitionedQueueService producer = new PartitionedQueueService(fileQueueService, 3);
+		PartitionedQueueService consumer = new PartitionedQueueService(new FileQueueService(tempDir.getAbsolutePath(), 30), 3);
+		
+		producer.pushBatch(queue1, Arrays.asList("msg1", "msg2", "msg3"));
+		producer.push(queue1, "key", "msg4");
+		for (int i = 0; i < 3; i++) {
+			assertTrue(Files.isDirectory(tempDir.toPath().resolve(PartitionedQueueService.shardName(queue1, i))));
+		}
+		
+		/*
+		 * Asserts a consumer over the same directory steals from every shard
+		 */
+		List<PartitionedQueueService.Partitioned> msgs = consumer.pullBatch(queue1, 10);
+		assertEquals(4, msgs.size());
+		consumer.deleteBatch(queue1, msgs);
+		assertNull(consumer.pull(queue1));
+	}
+	
+	@Test
+	public void testAsyncPullsWaitOnDirectoryChangesWithoutThreads() throws Exception {
+		String queue1 = "Test Queue 1";
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			FileAsyncQueueService async = new FileAsyncQueueService(fileQueueService, executor);
+			FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+			
+			/*
+			 * Asserts more pulls can wait than the executor has threads, and a push by another
+			 * service wakes them all
+			 */
+			List<CompletableFuture<QueueMessage>> waiting = new ArrayList<CompletableFuture<QueueMessage>>();
+			List<String> contents = new ArrayList<String>();
+			for (int i = 0; i < 10; i++) {
+				waiting.add(async.pull(queue1, 5, TimeUnit.SECONDS));
+				contents.add("msg" + i);
+			}
+			TimeUnit.MILLISECONDS.sleep(200);
+			for (CompletableFuture<QueueMessage> pull : waiting) {
+				assertFalse(pull.isDone());
+			}
+			otherService.pushBatch(queue1, contents);
+			List<String> pulled = new ArrayList<String>();
+			for (CompletableFuture<QueueMessage> pull : waiting) {
+				QueueMessage msg = pull.get(5, TimeUnit.SECONDS);
+				pulled.add(msg.getContent());
+				async.delete(queue1, msg).get();
+			}
+			assertEquals(new HashSet<String>(contents), new HashSet<String>(pulled));
+			assertEquals(0, fileQueueService.getQueueSize(queue1));
+			assertNull(async.pull(queue1, 50, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testFifoGroupsAndDeduplicationAcrossProcesses() throws Exception {
+		String queue1 = "Test FIFO Queue";
+		String deadLetters = "Test FIFO Dead Letters";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+		otherService.setMetrics(metrics);
+		
+		/*
+		 * Makes sure a deduplication id pushed by one process drops the same id from another,
+		 * which does not count the duplicate as pushed
+		 */
+		fileQueueService.pushToGroup(queue1, "a0", "A", "id-a0");
+		otherService.pushToGroup(queue1, "a1", "A", null);
+		fileQueueService.pushToGroup(queue1, "b0", "B", null);
+		otherService.pushToGroup(queue1, "a0", "A", "id-a0");
+		assertEquals(3, fileQueueService.getQueueSize(queue1));
+		assertEquals(1, metrics.snapshot(queue1).getPushed());
+		
+		/*
+		 * Makes sure every process delivers only the oldest message of each group, and the next
+		 * once it is deleted
+		 */
+		List<QueueMessage> pulled = fileQueueService.pullBatch(queue1, 10);
+		assertEquals(2, pulled.size());
+		assertEquals("a0", pulled.get(0).getContent());
+		assertEquals("A", pulled.get(0).getMessageGroupId());
+		assertEquals("b0", pulled.get(1).getContent());
+		assertNull(otherService.pull(queue1));
+		fileQueueService.delete(queue1, pulled.get(0));
+		QueueMessage msg = otherService.pull(queue1);
+		assertEquals("a1", msg.getContent());
+		
+		/*
+		 * Makes sure a message given back is delivered again before the rest of its group, and a
+		 * dead-lettered message keeps its group
+		 */
+		otherService.pushToGroup(queue1, "a2", "A", null);
+		otherService.changeVisibility(queue1, msg, 0, TimeUnit.SECONDS);
+		TimeUnit.MILLISECONDS.sleep(10);
+		fileQueueService.setDeadLetterQueue(queue1, deadLetters, 2);
+		msg = fileQueueService.pull(queue1);
+		assertEquals("a1", msg.getContent());
+		fileQueueService.changeVisibility(queue1, msg, 0, TimeUnit.SECONDS);
+		TimeUnit.MILLISECONDS.sleep(10);
+		// This pull moves a1 to the dead-letter queue, handing the group on to a2
+		assertNull(fileQueueService.pull(queue1));
+		assertEquals("a2", fileQueueService.pull(queue1).getContent());
+		msg = fileQueueService.pull(deadLetters);
+		assertEquals("a1", msg.getContent());
+		assertEquals("A", msg.getMessageGroupId());
+		
+		/*
+		 * Makes sure ids are forgotten once the window has passed, and survive a new view of the log
+		 */
+		fileQueueService.setDeduplicationWindow(200, TimeUnit.MILLISECONDS);
+		FileQueueService restarted = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		restarted.setDeduplicationWindow(200, TimeUnit.MILLISECONDS);
+		restarted.pushBytesToGroup(queue1, ByteBuffer.wrap(new byte[] { 1 }), "B", "id-b1");
+		fileQueueService.pushToGroup(queue1, "b1", "B", "id-b1");
+		assertEquals(3, fileQueueService.getQueueSize(queue1));
+		TimeUnit.MILLISECONDS.sleep(250);
+		fileQueueService.pushToGroup(queue1, "b1", "B", "id-b1");
+		assertEquals(4, restarted.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testDelayedPushesBecomeVisibleInEveryProcess() throws Exception {
+		String queue1 = "Test Delayed Queue";
+		FileQueueService otherService = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		
+		/*
+		 * Makes sure a delayed message is passed by until due, in the pushing process and others,
+		 * and one scheduled in the past is visible at once
+		 */
+		fileQueueService.push(queue1, "Later", 300, TimeUnit.MILLISECONDS);
+		fileQueueService.pushAt(queue1, "Past", Instant.now().minusSeconds(1));
+		assertEquals(2, otherService.getQueueSize(queue1));
+		assertEquals("Past", otherService.pull(queue1).getContent());
+		assertNull(otherService.pull(queue1));
+		assertNull(fileQueueService.pull(queue1));
+		
+		/*
+		 * Makes sure a waiting pull wakes up when the delay ends, and the message was never received
+		 * before
+		 */
+		long start = System.nanoTime();
+		QueueMessage msg = otherService.pull(queue1, 5, TimeUnit.SECONDS);
+		assertEquals("Later", msg.getContent());
+		assertEquals(1, msg.getReceiveCount());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		
+		/*
+		 * Makes sure a new view of the log still holds back a delayed message
+		 */
+		fileQueueService.push(queue1, "Tomorrow", 1, TimeUnit.DAYS);
+		FileQueueService restarted = new FileQueueService(tempDir.getAbsolutePath(), 30);
+		assertNull(restarted.pull(queue1));
+		assertEquals(3, restarted.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testRestartLoadsCheckpointAndTruncatesTornTail() throws Exception {
+		String queue1 = "Test Checkpoint Queue";
+		fileQueueService = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024);
+		for(int i = 0; i < 100; i++) {
+			fileQueueService.push(queue1, "msg" + i);
+		}
+		fileQueueService.delete(queue1, fileQueueService.pull(queue1));
+		QueueMessage inFlight = fileQueueService.pull(queue1);
+		fileQueueService.pushToGroup(queue1, "a0", "A", "id-a0");
+		fileQueueService.pushToGroup(queue1, "a1", "A", null);
+		fileQueueService.push(queue1, "Tomorrow", 1, TimeUnit.DAYS);
+		fileQueueService.checkpoint(queue1);
+		fileQueueService.push(queue1, "After");
+		
+		/*
+		 * Damages the deleted first message, which only a replay from the start of the log reads
+		 */
+		Path queuePath = tempDir.toPath().resolve(queue1);
+		try (RandomAccessFile segment = new RandomAccessFile(queuePath.resolve(String.format("%020d.seg", 0)).toFile(), "rw")) {
+			segment.seek(2 * QueueLog.HEADER_SIZE);
+			segment.write('X');
+		}
+		
+		/*
+		 * Makes sure a restart from the checkpoint sees the deleted, in-flight, delayed and grouped
+		 * messages as they were, the deduplication ids, and the records appended after it
+		 */
+		FileQueueService restarted = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024);
+		assertEquals(103, restarted.getQueueSize(queue1));
+		restarted.pushToGroup(queue1, "a0", "A", "id-a0");
+		assertEquals(103, restarted.getQueueSize(queue1));
+		List<QueueMessage> pulled = restarted.pullBatch(queue1, 200);
+		assertEquals(100, pulled.size());
+		assertEquals("msg2", pulled.get(0).getContent());
+		assertEquals("a0", pulled.get(98).getContent());
+		assertEquals("After", pulled.get(99).getContent());
+		restarted.delete(queue1, inFlight);
+		assertEquals(102, restarted.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure a torn record at the end of the last segment is zeroed by the next process to
+		 * read it, and appends carry on from there
+		 */
+		Path last;
+		try (Stream<Path> files = Files.list(queuePath)) {
+			last = files.filter(path -> path.toString().endsWith(".seg")).max(Path::compareTo).get();
+		}
+		long end = 0;
+		try (RandomAccessFile segment = new RandomAccessFile(last.toFile(), "rw")) {
+			while(true) {
+				segment.seek(end);
+				if(segment.readInt() == 0) {
+					break;
+				}
+				end += QueueLog.HEADER_SIZE + segment.readInt();
+			}
+			segment.seek(end);
+			segment.writeInt(QueueLog.PUSH);
+			segment.writeInt(4);
+			segment.writeLong(1);
+		}
+		FileQueueService recovered = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024);
+		assertEquals(102, recovered.getQueueSize(queue1));
+		try (RandomAccessFile segment = new RandomAccessFile(last.toFile(), "r")) {
+			segment.seek(end);
+			assertEquals(0, segment.readLong());
+		}
+		recovered.push(queue1, "Recovered");
+		assertEquals(103, fileQueueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure the checkpoint is what spared the restarts the damaged record: a full replay
+		 * stops at it
+		 */
+		Files.delete(queuePath.resolve("checkpoint"));
+		FileQueueService replayed = new FileQueueService(tempDir.getAbsolutePath(), 30, 1024);
+		assertNotEquals(103, replayed.getQueueSize(queue1));
+	}
+	
+	/*
+	 * Pushes a message to a queue from another JVM, once its consumer has had time to start
+	 * waiting
+	 *
+	 * Arguments: root directory, queue name, message
+	 */
+	public static class OtherProcess {
+		public static void main(String[] args) throws Exception {
+			TimeUnit.SECONDS.sleep(1);
+			FileQueueService service = new FileQueueService(args[0], 30);
+			service.push(args[1], args[2]);
+			service.close();
+		}
+	}
 }
@@ -4,7 +4,18 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.testing.FakeTicker;
 
 public class InMemoryQueueTest {
   //
@@ -169,4 +180,981 @@ public class InMemoryQueueTest {
 		queueService.delete(queue1, msg2);
 		assertEquals(0, queueService.getQueueSize(queue1));
 	}
+	
+	@Test
+	public void testDeleteRemovesExactDeliveryOfDuplicateMessages() {
+		String queue1 = "Test Queue 1";
+		
+		queueService.push(queue1, "Test Message");
+		queueService.push(queue1, "Test Message");
+		QueueMessage msg1 = queueService.pull(queue1);
+		QueueMessage msg2 = queueService.pull(queue1);
+		assertNotEquals(msg1.getReceiptHandle(), msg2.getReceiptHandle());
+		
+		/*
+		 * Deleting one copy leaves the other in flight, still deletable by its own receipt
+		 */
+		queueService.delete(queue1, msg2);
+		assertEquals(1, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, msg2);
+		assertEquals(1, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, msg1);
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testStaleReceiptDoesntDeleteRedeliveredMessage() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		
+		queueService.setVisibilityTimeout(1);
+		queueService.push(queue1, "Test Message 1");
+		QueueMessage msg1 = queueService.pull(queue1);
+		ticker.advance(2, TimeUnit.SECONDS);
+		QueueMessage msg2 = queueService.pull(queue1);
+		assertEquals(1, msg1.getReceiveCount());
+		assertEquals(2, msg2.getReceiveCount());
+		
+		/*
+		 * Makes sure the receipt of the first delivery can't delete the second
+		 */
+		queueService.delete(queue1, msg1);
+		assertEquals(1, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, msg2);
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testBlockingPullReturnsMessagePushedWhileWaiting() throws Exception {
+		String queue1 = "Test Queue 1";
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		Future<QueueMessage> msg = executor.submit(() -> queueService.pull(queue1, 5, TimeUnit.SECONDS));
+		queueService.push(queue1, "Test Message 1");
+		
+		/*
+		 * Makes sure the waiting consumer is woken well before its wait time is up
+		 */
+		assertEquals("Test Message 1", msg.get(1, TimeUnit.SECONDS).getContent());
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testBlockingPullWaitsForMessageToBecomeVisible() {
+		String queue1 = "Test Queue 1";
+		
+		queueService.setVisibilityTimeout(1);
+		queueService.push(queue1, "Test Message 1");
+		QueueMessage msg1 = queueService.pull(queue1);
+		
+		/*
+		 * Makes sure a blocked consumer times out, then gets the message once it is redelivered
+		 */
+		assertNull(queueService.pull(queue1, 10, TimeUnit.MILLISECONDS));
+		QueueMessage msg2 = queueService.pull(queue1, 5, TimeUnit.SECONDS);
+		assertEquals(msg1.getContent(), msg2.getContent());
+		assertEquals(2, msg2.getReceiveCount());
+	}
+	
+	@Test
+	public void testPullSkipsManyInFlightMessages() {
+		String queue1 = "Test Queue 1";
+		
+		for(int i = 0; i < 100000; i++) {
+			queueService.push(queue1, "Test Message " + i);
+		}
+		for(int i = 0; i < 100000; i++) {
+			assertEquals("Test Message " + i, queueService.pull(queue1).getContent());
+		}
+		
+		/*
+		 * Makes sure a new message is found behind 100k in-flight messages
+		 */
+		queueService.push(queue1, "Test Message Last");
+		assertEquals("Test Message Last", queueService.pull(queue1).getContent());
+		assertEquals(100001, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testConcurrentRoundTripsDeliverEveryMessageOnce() throws Exception {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		
+		/*
+		 * Throughput is measured by the benchmarks of the jmh profile; this checks that threads on
+		 * their own queues and on one shared queue each consume every message exactly once
+		 */
+		assertRoundTripsDeliverEveryMessageOnce(threads, false);
+		assertRoundTripsDeliverEveryMessageOnce(threads, true);
+	}
+	
+	/*
+	 * Runs push/pull/delete round trips on the given number of threads, either each on its own
+	 * queue or all on one, and checks that every message was consumed exactly once.
+	 */
+	private void assertRoundTripsDeliverEveryMessageOnce(int threads, boolean sharedQueue) throws Exception {
+		int roundTrips = 20000;
+		InMemoryQueueService service = new InMemoryQueueService();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		Set<String> consumed = ConcurrentHashMap.newKeySet();
+		AtomicInteger duplicates = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int i = 0; i < threads; i++) {
+			int thread = i;
+			String queueName = sharedQueue ? "Shared Queue" : "Test Queue " + i;
+			futures.add(executor.submit(() -> {
+				start.await();
+				for(int j = 0; j < roundTrips; j++) {
+					service.push(queueName, "Test Message " + thread + "-" + j);
+					QueueMessage msg = service.pull(queueName);
+					if(msg != null) {
+						service.delete(queueName, msg);
+						if(!consumed.add(msg.getContent())) {
+							duplicates.incrementAndGet();
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		
+		assertEquals(0, duplicates.get());
+		assertEquals(threads * roundTrips, consumed.size());
+		for(int i = 0; i < threads; i++) {
+			assertEquals(0, service.getQueueSize(sharedQueue ? "Shared Queue" : "Test Queue " + i));
+		}
+	}
+	
+	@Test
+	public void testBatchOperations() {
+		String queue1 = "Test Queue 1";
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 25; i++) {
+			contents.add("Test Message " + i);
+		}
+		
+		queueService.pushBatch(queue1, contents);
+		assertEquals(25, queueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure a batch pull returns at most the requested number, in order
+		 */
+		List<QueueMessage> batch = queueService.pullBatch(queue1, 10);
+		assertEquals(10, batch.size());
+		for(int i = 0; i < 10; i++) {
+			assertEquals("Test Message " + i, batch.get(i).getContent());
+		}
+		
+		queueService.deleteBatch(queue1, batch);
+		assertEquals(15, queueService.getQueueSize(queue1));
+		assertEquals(15, queueService.pullBatch(queue1, 100).size());
+		assertTrue(queueService.pullBatch(queue1, 100).isEmpty());
+	}
+	
+	@Test
+	public void testMetricsAreRecorded() throws Exception {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		RecordingQueueMetrics metrics = RecordingQueueMetrics.withJmx();
+		queueService.setMetrics(metrics);
+		queueService.setVisibilityTimeout(1);
+		
+		try {
+			queueService.push(queue1, "Test Message 1");
+			queueService.push(queue1, "Test Message 2");
+			QueueMessage msg1 = queueService.pull(queue1);
+			QueueMessage msg2 = queueService.pull(queue1);
+			queueService.delete(queue1, msg1);
+			
+			QueueMetricsSnapshot snapshot = metrics.snapshot(queue1);
+			assertEquals(2, snapshot.getPushed());
+			assertEquals(2, snapshot.getPulled());
+			assertEquals(1, snapshot.getDeleted());
+			assertEquals(0, snapshot.getVisible());
+			assertEquals(1, snapshot.getInFlight());
+			assertEquals(2, snapshot.getPushLatency().getCount());
+			assertEquals(1, snapshot.getMessageAge().getCount());
+			
+			/*
+			 * Makes sure the expired message is counted and its second delivery is a redelivery
+			 */
+			ticker.advance(2, TimeUnit.SECONDS);
+			QueueMessage redelivered = queueService.pull(queue1);
+			assertEquals(msg2.getContent(), redelivered.getContent());
+			snapshot = metrics.snapshot(queue1);
+			assertEquals(1, snapshot.getExpired());
+			assertEquals(1, snapshot.getRedelivered());
+			assertEquals(3, snapshot.getPulled());
+			
+			/*
+			 * Makes sure the counters are exported over JMX
+			 */
+			assertEquals(2L, ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(RecordingQueueMetrics.objectName(queue1), "Pushed"));
+		} finally {
+			metrics.close();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(RecordingQueueMetrics.objectName(queue1)));
+	}
+	
+	@Test
+	public void testMessagesAreMovedToDeadLetterQueueAfterMaxReceives() {
+		String queue1 = "Test Queue 1";
+		String dlq = "Test Dead Letter Queue";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		
+		queueService.setVisibilityTimeout(1);
+		queueService.setDeadLetterQueue(queue1, dlq, 2);
+		queueService.push(queue1, "Poison Message");
+		queueService.push(queue1, "Test Message");
+		
+		assertEquals("Poison Message", queueService.pull(queue1).getContent());
+		queueService.delete(queue1, queueService.pull(queue1));
+		ticker.advance(1100, TimeUnit.MILLISECONDS);
+		assertEquals(2, queueService.pull(queue1).getReceiveCount());
+		ticker.advance(1100, TimeUnit.MILLISECONDS);
+		
+		/*
+		 * Makes sure the third receive moves the message instead of delivering it
+		 */
+		assertNull(queueService.pull(queue1));
+		assertEquals(0, queueService.getQueueSize(queue1));
+		assertEquals(1, queueService.getQueueSize(dlq));
+		
+		/*
+		 * Makes sure redrive moves it back with its receives reset
+		 */
+		assertEquals(1, queueService.redrive(dlq, queue1, 10));
+		assertEquals(0, queueService.getQueueSize(dlq));
+		QueueMessage redriven = queueService.pull(queue1);
+		assertEquals("Poison Message", redriven.getContent());
+		assertEquals(1, redriven.getReceiveCount());
+		queueService.delete(queue1, redriven);
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testVisibilityTimeoutFollowsInjectedClock() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		queueService.setVisibilityTimeout(250, TimeUnit.MILLISECONDS);
+		
+		queueService.push(queue1, "Test Message 1");
+		queueService.push(queue1, "Test Message 2");
+		QueueMessage msg1 = queueService.pull(queue1);
+		QueueMessage msg2 = queueService.pull(queue1);
+		queueService.delete(queue1, msg2);
+		
+		/*
+		 * Makes sure the message stays in flight until its deadline has passed, to the millisecond
+		 */
+		ticker.advance(250, TimeUnit.MILLISECONDS);
+		assertNull(queueService.pull(queue1));
+		ticker.advance(1, TimeUnit.MILLISECONDS);
+		QueueMessage redelivered = queueService.pull(queue1);
+		assertEquals(msg1.getContent(), redelivered.getContent());
+		assertEquals(2, redelivered.getReceiveCount());
+		
+		/*
+		 * Makes sure the stale receipt no longer deletes, and the deleted message never comes back
+		 */
+		queueService.delete(queue1, msg1);
+		assertEquals(1, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, redelivered);
+		ticker.advance(1, TimeUnit.HOURS);
+		assertNull(queueService.pull(queue1));
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testTimeoutsLongerThanOneWheelTurnExpireAcrossQueues() {
+		String queue1 = "Test Queue 1";
+		String queue2 = "Test Queue 2";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		
+		queueService.setVisibilityTimeout(5, TimeUnit.SECONDS);
+		queueService.push(queue1, "Test Message 1");
+		queueService.pull(queue1);
+		queueService.setVisibilityTimeout(3, TimeUnit.SECONDS);
+		queueService.push(queue2, "Test Message 2");
+		queueService.pull(queue2);
+		
+		ticker.advance(4999, TimeUnit.MILLISECONDS);
+		assertNull(queueService.pull(queue1));
+		
+		/*
+		 * Makes sure a pull on one queue returned the expired message of the other queue
+		 */
+		ticker.advance(2, TimeUnit.MILLISECONDS);
+		assertEquals(2, queueService.pull(queue1).getReceiveCount());
+		assertEquals(1, queueService.pullBatch(queue2, 10).size());
+	}
+	
+	@Test
+	public void testChangeVisibilityMovesDeadline() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		queueService.setVisibilityTimeout(100, TimeUnit.MILLISECONDS);
+		
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2"));
+		List<QueueMessage> batch = queueService.pullBatch(queue1, 2);
+		
+		/*
+		 * Makes sure an extended message stays invisible and deletable past its original timeout,
+		 * while one given back with a zero timeout is redelivered at once
+		 */
+		assertTrue(queueService.changeVisibility(queue1, batch.get(0), 1, TimeUnit.SECONDS));
+		assertEquals(1, queueService.changeVisibilityBatch(queue1, batch.subList(1, 2), 0, TimeUnit.SECONDS));
+		ticker.advance(1, TimeUnit.MILLISECONDS);
+		QueueMessage givenBack = queueService.pull(queue1);
+		assertEquals("Test Message 2", givenBack.getContent());
+		ticker.advance(500, TimeUnit.MILLISECONDS);
+		assertEquals("Test Message 2", queueService.pull(queue1).getContent());
+		assertNull(queueService.pull(queue1));
+		queueService.delete(queue1, batch.get(0));
+		assertEquals(1, queueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure expired and stale receipts cannot be changed
+		 */
+		assertFalse(queueService.changeVisibility(queue1, givenBack, 1, TimeUnit.SECONDS));
+		assertFalse(queueService.changeVisibility(queue1, batch.get(1), 1, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testHeartbeatKeepsSlowMessageInvisible() throws Exception {
+		String queue1 = "Test Queue 1";
+		queueService.setVisibilityTimeout(200, TimeUnit.MILLISECONDS);
+		queueService.push(queue1, "Test Message 1");
+		QueueMessage msg = queueService.pull(queue1);
+		
+		try (VisibilityHeartbeat heartbeat = new VisibilityHeartbeat(queueService, 200, TimeUnit.MILLISECONDS)) {
+			VisibilityHeartbeat.Lease lease = heartbeat.keepAlive(queue1, msg);
+			TimeUnit.MILLISECONDS.sleep(700);
+			assertNull(queueService.pull(queue1));
+			lease.close();
+			
+			/*
+			 * Makes sure the message is redelivered once its lease is closed
+			 */
+			TimeUnit.MILLISECONDS.sleep(400);
+			QueueMessage redelivered = queueService.pull(queue1);
+			assertEquals(2, redelivered.getReceiveCount());
+			
+			/*
+			 * Makes sure a message deleted while leased is dropped from the heartbeat rather than
+			 * retried on every beat
+			 */
+			heartbeat.keepAlive(queue1, redelivered);
+			queueService.delete(queue1, redelivered);
+			TimeUnit.MILLISECONDS.sleep(200);
+			assertEquals(0, heartbeat.leasedCount());
+		}
+	}
+	
+	@Test
+	public void testOffHeapModeKeepsMessagesIntact() {
+		String queue1 = "Test Queue 1";
+		String deadLetters = "Test Dead Letters";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker, new OffHeapConfig().withCapacity(1 << 16).withSlabSize(1 << 12));
+		queueService.setVisibilityTimeout(100, TimeUnit.MILLISECONDS);
+		queueService.setDeadLetterQueue(queue1, deadLetters, 2);
+		
+		char[] large = new char[3000];
+		Arrays.fill(large, 'x');
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 1", "Tëst Mèssage 2 \u2603", new String(large)));
+		assertTrue(queueService.getOffHeapUsage() > 0);
+		
+		/*
+		 * Makes sure messages come back in order with their content, and an expired delivery
+		 * returns to the head with its receive count
+		 */
+		QueueMessage msg1 = queueService.pull(queue1);
+		assertEquals("Test Message 1", msg1.getContent());
+		ticker.advance(101, TimeUnit.MILLISECONDS);
+		List<QueueMessage> batch = queueService.pullBatch(queue1, 3);
+		assertEquals(Arrays.asList(2, 1, 1), Arrays.asList(batch.get(0).getReceiveCount(),
+				batch.get(1).getReceiveCount(), batch.get(2).getReceiveCount()));
+		assertEquals("Tëst Mèssage 2 \u2603", batch.get(1).getContent());
+		assertEquals(new String(large), batch.get(2).getContent());
+		
+		/*
+		 * Makes sure a message moved to the dead-letter queue and back keeps its content, and that
+		 * deleting every message frees all of the direct memory
+		 */
+		queueService.deleteBatch(queue1, batch.subList(1, 3));
+		ticker.advance(101, TimeUnit.MILLISECONDS);
+		assertNull(queueService.pull(queue1));
+		assertEquals(1, queueService.redrive(deadLetters, queue1, 10));
+		QueueMessage redriven = queueService.pull(queue1);
+		assertEquals("Test Message 1", redriven.getContent());
+		queueService.delete(queue1, redriven);
+		assertEquals(0, queueService.getOffHeapUsage());
+	}
+	
+	@Test
+	public void testOffHeapModeAppliesBackpressureAtCapacity() throws Exception {
+		String queue1 = "Test Queue 1";
+		queueService = new InMemoryQueueService(new OffHeapConfig().withCapacity(1024).withSlabSize(1024)
+				.withMaxPushWait(200, TimeUnit.MILLISECONDS));
+		
+		/*
+		 * Each message takes a 128 byte block, so a single 1 KB slab holds eight
+		 */
+		char[] content = new char[60];
+		Arrays.fill(content, 'x');
+		for (int i = 0; i < 8; i++) {
+			queueService.push(queue1, new String(content));
+		}
+		try {
+			queueService.push(queue1, new String(content));
+			fail("Push should fail once the off-heap store is full");
+		} catch (IllegalStateException e) {
+			assertEquals(8, queueService.getQueueSize(queue1));
+		}
+		
+		/*
+		 * Makes sure pulled messages still count against capacity, and a waiting push goes through
+		 * as soon as one is deleted
+		 */
+		QueueMessage msg = queueService.pull(queue1);
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			executor.schedule(() -> queueService.delete(queue1, msg), 50, TimeUnit.MILLISECONDS);
+			queueService.push(queue1, new String(content));
+			assertEquals(8, queueService.getQueueSize(queue1));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testQueueLimitsApplyOverflowPolicy() throws Exception {
+		String queue1 = "Test Queue 1";
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(2));
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2"));
+		
+		/*
+		 * Makes sure a full queue refuses pushes and offers, counting in-flight messages
+		 */
+		QueueMessage msg1 = queueService.pull(queue1);
+		try {
+			queueService.push(queue1, "Test Message 3");
+			fail("Push should fail on a full queue");
+		} catch (QueueFullException e) {
+			assertEquals(2, queueService.getQueueSize(queue1));
+		}
+		assertFalse(queueService.offer(queue1, "Test Message 3"));
+		queueService.delete(queue1, msg1);
+		assertTrue(queueService.offer(queue1, "Test Message 3"));
+		
+		/*
+		 * Makes sure the oldest visible message is dropped for a new one, and bytes are capped too
+		 */
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(2).withMaxBytes(28)
+				.withOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+		queueService.push(queue1, "Test Message 4");
+		assertEquals(28, queueService.getQueueBytes(queue1));
+		queueService.push(queue1, "Test Message 5 and more");
+		assertEquals(1, queueService.getQueueSize(queue1));
+		QueueMessage msg5 = queueService.pull(queue1);
+		assertEquals("Test Message 5 and more", msg5.getContent());
+		
+		/*
+		 * Makes sure a blocked push goes through once a consumer deletes a message
+		 */
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(1)
+				.withOverflowPolicy(OverflowPolicy.BLOCK).withMaxBlock(5, TimeUnit.SECONDS));
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			executor.schedule(() -> queueService.delete(queue1, msg5), 100, TimeUnit.MILLISECONDS);
+			queueService.push(queue1, "Test Message 6");
+			assertEquals("Test Message 6", queueService.pull(queue1).getContent());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testBinaryPayloadsRoundTrip() {
+		String queue1 = "Test Queue 1";
+		byte[] bytes = {0, (byte) 0xff, (byte) 0xc3, 0x28, 42};
+		
+		/*
+		 * Makes sure bytes that are not valid UTF-8 survive on and off the heap, and that the
+		 * caller may reuse its buffer once the push returns
+		 */
+		for (InMemoryQueueService service : Arrays.asList(queueService, new InMemoryQueueService(new OffHeapConfig()))) {
+			ByteBuffer payload = ByteBuffer.allocate(16);
+			payload.put(bytes);
+			((Buffer) payload).flip();
+			service.pushBytes(queue1, payload);
+			assertEquals(bytes.length, payload.remaining());
+			((Buffer) payload).clear();
+			payload.put(new byte[16]);
+			service.push(queue1, "Test Message 2");
+			
+			QueueMessage msg1 = service.pull(queue1);
+			ByteBuffer pulled = service.getPayload(msg1);
+			assertTrue(pulled.isReadOnly());
+			assertEquals(ByteBuffer.wrap(bytes), pulled);
+			assertEquals(ByteBuffer.wrap("Test Message 2".getBytes()), service.getPayload(service.pull(queue1)));
+		}
+	}
+	
+	@Test
+	public void testTypedQueueServiceUsesCodec() throws Exception {
+		String queue1 = "Test Queue 1";
+		Codec<Long> longs = new Codec<Long>() {
+			public ByteBuffer encode(Long value) {
+				ByteBuffer payload = ByteBuffer.allocate(8).putLong(value);
+				((Buffer) payload).flip();
+				return payload;
+			}
+			public Long decode(ByteBuffer payload) {
+				return payload.getLong();
+			}
+		};
+		TypedQueueService<Long> typed = new TypedQueueService<Long>(queueService, longs);
+		typed.push(queue1, 1L);
+		typed.pushBatch(queue1, Arrays.asList(2L, Long.MAX_VALUE));
+		
+		TypedQueueService.Received<Long> received = typed.pull(queue1);
+		assertEquals(Long.valueOf(1), received.getValue());
+		typed.delete(queue1, received);
+		List<TypedQueueService.Received<Long>> batch = typed.pullBatch(queue1, 10);
+		assertEquals(Long.valueOf(Long.MAX_VALUE), batch.get(1).getValue());
+		assertEquals(2, queueService.getQueueSize(queue1));
+		assertNull(typed.pull(queue1));
+		
+		/*
+		 * Makes sure the UTF-8 codec reads String messages
+		 */
+		queueService.push(queue1, "Tëst Mèssage \u2603");
+		assertEquals("Tëst Mèssage \u2603", new TypedQueueService<String>(queueService, Codec.UTF8).pull(queue1).getValue());
+	}
+	
+	@Test
+	public void testPartitionedQueueSpreadsMessagesOverShards() throws Exception {
+		String queue1 = "Test Queue 1";
+		PartitionedQueueService partitioned = new PartitionedQueueService(queueService, 4);
+		
+		/*
+		 * Makes sure keyed messages share a shard, in order, and others are dealt out in turn
+		 */
+		for (int i = 0; i < 3; i++) {
+			partitioned.push(queue1, "customer-1", "Keyed Message " + i);
+		}
+		partitioned.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2", "Test Message 3", "Test Message 4"));
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queueService.getQueueSize(PartitionedQueueService.shardName(queue1, i)) >= 1);
+		}
+		
+		/*
+		 * Makes sure a single pull steals from every shard, and messages are deleted from theirs
+		 */
+		List<PartitionedQueueService.Partitioned> msgs = partitioned.pullBatch(queue1, 10);
+		assertEquals(7, msgs.size());
+		List<String> keyed = new ArrayList<String>();
+		for (PartitionedQueueService.Partitioned msg : msgs) {
+			String content = ((QueueMessage) msg.getMessage()).getContent();
+			if (content.startsWith("Keyed")) {
+				keyed.add(content);
+			}
+		}
+		assertEquals(Arrays.asList("Keyed Message 0", "Keyed Message 1", "Keyed Message 2"), keyed);
+		partitioned.deleteBatch(queue1, msgs);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(0, queueService.getQueueSize(PartitionedQueueService.shardName(queue1, i)));
+		}
+	}
+	
+	@Test
+	public void testOrderedPartitionedQueueHandsShardToOneConsumer() throws Exception {
+		String queue1 = "Test Queue 1";
+		PartitionedQueueService partitioned = new PartitionedQueueService(queueService, 2);
+		partitioned.setOrdered(queue1, 30, TimeUnit.SECONDS);
+		partitioned.push(queue1, "customer-1", "Keyed Message 1");
+		partitioned.push(queue1, "customer-1", "Keyed Message 2");
+		
+		/*
+		 * Makes sure the second message of a key is held back until the first is deleted, even
+		 * from a waiting consumer
+		 */
+		PartitionedQueueService.Partitioned msg1 = partitioned.pull(queue1);
+		assertEquals("Keyed Message 1", Codec.UTF8.decode(partitioned.getPayload(msg1)));
+		assertNull(partitioned.pull(queue1));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<PartitionedQueueService.Partitioned> waiting = executor.submit(() -> partitioned.pull(queue1, 5, TimeUnit.SECONDS));
+			TimeUnit.MILLISECONDS.sleep(200);
+			assertFalse(waiting.isDone());
+			partitioned.delete(queue1, msg1);
+			assertEquals("Keyed Message 2", ((QueueMessage) waiting.get(5, TimeUnit.SECONDS).getMessage()).getContent());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testStaleDeleteDoesntReleaseLaterLease() throws Exception {
+		String queue1 = "Test Queue 1";
+		PartitionedQueueService partitioned = new PartitionedQueueService(queueService, 1);
+		queueService.setVisibilityTimeout(200, TimeUnit.MILLISECONDS);
+		partitioned.setOrdered(queue1, 200, TimeUnit.MILLISECONDS);
+		partitioned.push(queue1, "customer-1", "Keyed Message 1");
+		partitioned.push(queue1, "customer-1", "Keyed Message 2");
+		
+		/*
+		 * Makes sure a message pulled under a lease that has lapsed cannot give up the shard
+		 * while it is held under the lease of its redelivery
+		 */
+		PartitionedQueueService.Partitioned stale = partitioned.pull(queue1);
+		TimeUnit.MILLISECONDS.sleep(300);
+		PartitionedQueueService.Partitioned redelivered = partitioned.pull(queue1);
+		assertEquals("Keyed Message 1", ((QueueMessage) redelivered.getMessage()).getContent());
+		partitioned.delete(queue1, stale);
+		assertNull(partitioned.pull(queue1));
+		partitioned.delete(queue1, redelivered);
+		assertEquals("Keyed Message 2", ((QueueMessage) partitioned.pull(queue1).getMessage()).getContent());
+	}
+	
+	@Test
+	public void testKeyedDelayedPushesGoToTheShardOfTheirKey() throws Exception {
+		String queue1 = "Test Queue 1";
+		PartitionedQueueService partitioned = new PartitionedQueueService(queueService, 4);
+		partitioned.push(queue1, "customer-1", "Keyed Message 1");
+		partitioned.push(queue1, "customer-1", "Keyed Message 2", 1, TimeUnit.HOURS);
+		partitioned.pushAt(queue1, "customer-1", "Keyed Message 3", Instant.now().plusSeconds(3600));
+		
+		/*
+		 * Makes sure every message of the key waits on one shard
+		 */
+		int keyedShards = 0;
+		for (int i = 0; i < 4; i++) {
+			int size = queueService.getQueueSize(PartitionedQueueService.shardName(queue1, i));
+			if (size > 0) {
+				assertEquals(3, size);
+				keyedShards++;
+			}
+		}
+		assertEquals(1, keyedShards);
+	}
+	
+	@Test
+	public void testPartitionedRedriveKeepsMessagesOnTheShardOfTheirKey() throws Exception {
+		String queue1 = "Test Queue 1";
+		String deadLetters = "Test Queue 2";
+		PartitionedQueueService partitioned = new PartitionedQueueService(queueService, 4);
+		partitioned.setPartitions(deadLetters, 4);
+		partitioned.setDeadLetterQueue(queue1, deadLetters, 1);
+		for (int i = 0; i < 8; i++) {
+			partitioned.push(deadLetters, "customer-" + i, "Keyed Message " + i);
+		}
+		int[] sizes = new int[4];
+		for (int i = 0; i < 4; i++) {
+			sizes[i] = queueService.getQueueSize(PartitionedQueueService.shardName(deadLetters, i));
+		}
+		
+		/*
+		 * Makes sure each dead-letter shard goes back to the shard of queue1 it is paired with
+		 */
+		assertEquals(8, partitioned.redrive(deadLetters, queue1, 10));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(sizes[i], queueService.getQueueSize(PartitionedQueueService.shardName(queue1, i)));
+			assertEquals(0, queueService.getQueueSize(PartitionedQueueService.shardName(deadLetters, i)));
+		}
+	}
+	
+	@Test
+	public void testAsyncPullWaitsWithoutHoldingAThread() throws Exception {
+		String queue1 = "Test Queue 1";
+		InMemoryAsyncQueueService async = new InMemoryAsyncQueueService(queueService);
+		queueService.setVisibilityTimeout(200, TimeUnit.MILLISECONDS);
+		
+		/*
+		 * Makes sure thousands of waiting pulls can be outstanding at once, and each is completed
+		 * by a push or ends with null
+		 */
+		List<CompletableFuture<QueueMessage>> waiting = new ArrayList<CompletableFuture<QueueMessage>>();
+		for(int i = 0; i < 5000; i++) {
+			waiting.add(async.pull(queue1, 5, TimeUnit.SECONDS));
+		}
+		assertFalse(waiting.get(0).isDone());
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 5000; i++) {
+			contents.add("Test Message " + i);
+		}
+		async.pushBatch(queue1, contents).get();
+		for(CompletableFuture<QueueMessage> pull : waiting) {
+			QueueMessage msg = pull.get(5, TimeUnit.SECONDS);
+			async.delete(queue1, msg).get();
+		}
+		assertEquals(0, queueService.getQueueSize(queue1));
+		assertNull(async.pull(queue1, 50, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS));
+		
+		/*
+		 * Makes sure a waiting pull wakes up for a message that becomes visible again, and that
+		 * a cancelled one takes nothing and stops listening to the queue
+		 */
+		async.push(queue1, "Test Message");
+		QueueMessage msg = async.pull(queue1).get();
+		assertEquals(2, async.pull(queue1, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).getReceiveCount());
+		CompletableFuture<QueueMessage> cancelled = async.pull(queue1, 5, TimeUnit.SECONDS);
+		assertEquals(1, queueService.waitingPullCount(queue1));
+		cancelled.cancel(false);
+		assertEquals(0, queueService.waitingPullCount(queue1));
+		TimeUnit.MILLISECONDS.sleep(300);
+		assertEquals("Test Message", async.pull(queue1).get().getContent());
+		assertFalse(async.changeVisibility(queue1, msg, 1, TimeUnit.SECONDS).get());
+	}
+	
+	@Test
+	public void testCancelledBlockingPullOnExecutorGivesMessageBack() throws Exception {
+		String queue1 = "Test Queue 1";
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			ExecutorAsyncQueueService async = new ExecutorAsyncQueueService(queueService, executor);
+			
+			/*
+			 * Makes sure a message taken by a pull still blocked when its future was cancelled is
+			 * visible again at once, not after its visibility timeout
+			 */
+			CompletableFuture<?> cancelled = async.pull(queue1, 5, TimeUnit.SECONDS);
+			TimeUnit.MILLISECONDS.sleep(50);
+			cancelled.cancel(false);
+			queueService.push(queue1, "Test Message");
+			TimeUnit.MILLISECONDS.sleep(100);
+			QueueMessage msg = queueService.pull(queue1);
+			assertEquals("Test Message", msg.getContent());
+			assertEquals(2, msg.getReceiveCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testConsumerDeletesHandledMessagesAndRetriesFailures() throws Exception {
+		String queue1 = "Test Queue 1";
+		InMemoryAsyncQueueService async = new InMemoryAsyncQueueService(queueService);
+		queueService.setVisibilityTimeout(200, TimeUnit.MILLISECONDS);
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 2000; i++) {
+			contents.add("Test Message " + i);
+		}
+		queueService.pushBatch(queue1, contents);
+		
+		/*
+		 * Makes sure every message is handled, with no more than maxInFlight at once, and that a
+		 * message whose handler throws is delivered again and deleted only once handled
+		 */
+		Set<String> handled = ConcurrentHashMap.newKeySet();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(contents.size());
+		QueueConsumer consumer = new QueueConsumer(async, queue1, msg -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				TimeUnit.MILLISECONDS.sleep(1);
+				String content = ((QueueMessage) msg).getContent();
+				if(content.equals("Test Message 7") && failures.getAndIncrement() == 0) {
+					throw new IllegalStateException("First attempt fails");
+				}
+				if(handled.add(content)) {
+					done.countDown();
+				}
+			} finally {
+				running.decrementAndGet();
+			}
+		}, new ConsumerConfig().withMaxInFlight(100).withPollWait(100, TimeUnit.MILLISECONDS));
+		consumer.start();
+		try {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			consumer.close();
+		}
+		assertTrue(consumer.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(maxRunning.get() <= 100);
+		assertEquals(2, failures.get());
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testFifoGroupsDeliverInOrderOneMessageAtATime() {
+		String queue1 = "Test Queue 1";
+		String queue2 = "Test Queue 2";
+		String deadLetters = "Test Dead Letters";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		queueService.setVisibilityTimeout(10);
+		
+		for (int i = 0; i < 3; i++) {
+			queueService.pushToGroup(queue1, "a" + i, "A", null);
+			queueService.pushToGroup(queue1, "b" + i, "B", null);
+		}
+		queueService.push(queue1, "unordered");
+		
+		/*
+		 * Makes sure only the oldest message of each group is delivered, so groups are consumed in
+		 * parallel while each stays in order
+		 */
+		List<QueueMessage> pulled = queueService.pullBatch(queue1, 10);
+		assertEquals(3, pulled.size());
+		assertEquals("a0", pulled.get(0).getContent());
+		assertEquals("A", pulled.get(0).getMessageGroupId());
+		assertEquals("b0", pulled.get(1).getContent());
+		assertNull(pulled.get(2).getMessageGroupId());
+		assertNull(queueService.pull(queue1));
+		
+		/*
+		 * Makes sure deleting a message hands its group on, and an expired message is delivered
+		 * again before the rest of its group
+		 */
+		queueService.delete(queue1, pulled.get(1));
+		queueService.delete(queue1, pulled.get(2));
+		ticker.advance(11, TimeUnit.SECONDS);
+		pulled = queueService.pullBatch(queue1, 10);
+		assertEquals(2, pulled.size());
+		assertEquals("a0", pulled.get(0).getContent());
+		assertEquals(2, pulled.get(0).getReceiveCount());
+		assertEquals("b1", pulled.get(1).getContent());
+		queueService.deleteBatch(queue1, pulled);
+		assertEquals("a1", queueService.pull(queue1).getContent());
+		assertEquals("b2", queueService.pull(queue1).getContent());
+		assertEquals(3, queueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure a dead-lettered message hands its group on, and keeps its group in the
+		 * dead-letter queue
+		 */
+		queueService.setDeadLetterQueue(queue2, deadLetters, 1);
+		queueService.pushToGroup(queue2, "c0", "C", null);
+		queueService.pushToGroup(queue2, "c1", "C", null);
+		assertEquals("c0", queueService.pull(queue2).getContent());
+		ticker.advance(11, TimeUnit.SECONDS);
+		assertEquals("c1", queueService.pull(queue2).getContent());
+		QueueMessage deadLetter = queueService.pull(deadLetters);
+		assertEquals("c0", deadLetter.getContent());
+		assertEquals("C", deadLetter.getMessageGroupId());
+	}
+	
+	@Test
+	public void testFifoDeduplicationWindow() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker, new OffHeapConfig().withCapacity(1 << 16).withSlabSize(1 << 12));
+		
+		/*
+		 * Makes sure a deduplication id drops repeated pushes for five minutes, whatever their group
+		 */
+		queueService.pushToGroup(queue1, "Test Message 1", "A", "id-1");
+		queueService.pushToGroup(queue1, "Test Message 1", "A", "id-1");
+		queueService.pushToGroup(queue1, "Test Message 1", null, "id-1");
+		queueService.pushBytesToGroup(queue1, ByteBuffer.wrap(new byte[] { 1, 2 }), "A", "id-2");
+		assertEquals(2, queueService.getQueueSize(queue1));
+		ticker.advance(4, TimeUnit.MINUTES);
+		queueService.pushToGroup(queue1, "Test Message 1", "A", "id-1");
+		assertEquals(2, queueService.getQueueSize(queue1));
+		ticker.advance(1, TimeUnit.MINUTES);
+		queueService.pushToGroup(queue1, "Test Message 3", "A", "id-1");
+		assertEquals(3, queueService.getQueueSize(queue1));
+		
+		/*
+		 * Makes sure messages waiting behind the head of their group in off-heap mode come back
+		 * intact and in order
+		 */
+		QueueMessage msg = queueService.pull(queue1);
+		assertEquals("Test Message 1", msg.getContent());
+		assertNull(queueService.pull(queue1));
+		queueService.delete(queue1, msg);
+		msg = queueService.pull(queue1);
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2 }), msg.getPayload());
+		assertEquals("A", msg.getMessageGroupId());
+		queueService.delete(queue1, msg);
+		assertEquals("Test Message 3", queueService.pull(queue1).getContent());
+	}
+	
+	@Test
+	public void testDelayedPushesBecomeVisibleWhenDue() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker);
+		
+		/*
+		 * Makes sure a delayed message is held back while others pass it, and one scheduled in the
+		 * past is visible at once
+		 */
+		queueService.push(queue1, "Later", 10, TimeUnit.SECONDS);
+		queueService.push(queue1, "Now");
+		queueService.pushAt(queue1, "Past", Instant.now().minusSeconds(1));
+		assertEquals(3, queueService.getQueueSize(queue1));
+		List<QueueMessage> msgs = queueService.pullBatch(queue1, 10);
+		assertEquals(2, msgs.size());
+		assertEquals("Now", msgs.get(0).getContent());
+		assertEquals("Past", msgs.get(1).getContent());
+		ticker.advance(9999, TimeUnit.MILLISECONDS);
+		assertNull(queueService.pull(queue1));
+		ticker.advance(2, TimeUnit.MILLISECONDS);
+		QueueMessage msg = queueService.pull(queue1);
+		assertEquals("Later", msg.getContent());
+		assertEquals(1, msg.getReceiveCount());
+		
+		/*
+		 * Makes sure many messages scheduled well past one turn of the wheel all come due on time,
+		 * in between in-flight messages timing out
+		 */
+		for(int i = 0; i < 100000; i++) {
+			queueService.push(queue1, "Scheduled " + i, 1, TimeUnit.HOURS);
+		}
+		queueService.deleteBatch(queue1, msgs);
+		queueService.delete(queue1, msg);
+		queueService.setVisibilityTimeout(1, TimeUnit.MINUTES);
+		queueService.push(queue1, "Now");
+		assertEquals(1, queueService.pullBatch(queue1, 10).size());
+		ticker.advance(59, TimeUnit.MINUTES);
+		assertEquals("Now", queueService.pull(queue1).getContent());
+		ticker.advance(59, TimeUnit.SECONDS);
+		assertTrue(queueService.pullBatch(queue1, 10).isEmpty());
+		ticker.advance(2, TimeUnit.SECONDS);
+		msgs = queueService.pullBatch(queue1, 200000);
+		assertEquals(100001, msgs.size());
+		assertEquals("Now", msgs.get(0).getContent());
+		assertEquals("Scheduled 0", msgs.get(1).getContent());
+		assertEquals("Scheduled 99999", msgs.get(100000).getContent());
+		assertEquals(100001, queueService.getQueueSize(queue1));
+	}
+	
+	@Test
+	public void testDelayedPushesWaitOffHeap() {
+		String queue1 = "Test Queue 1";
+		FakeTicker ticker = new FakeTicker();
+		queueService = new InMemoryQueueService(ticker, new OffHeapConfig().withCapacity(1 << 16).withSlabSize(1 << 12));
+		
+		/*
+		 * Makes sure a delayed message waits in off-heap memory and takes its room in the queue
+		 */
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(1));
+		queueService.push(queue1, "Test Message 1", 1, TimeUnit.SECONDS);
+		assertTrue(queueService.getOffHeapUsage() > 0);
+		assertFalse(queueService.offer(queue1, "Test Message 2"));
+		assertNull(queueService.pull(queue1));
+		ticker.advance(2, TimeUnit.SECONDS);
+		QueueMessage msg = queueService.pull(queue1);
+		assertEquals("Test Message 1", msg.getContent());
+		queueService.delete(queue1, msg);
+		assertEquals(0, queueService.getOffHeapUsage());
+	}
 }
@@ -0,0 +1,375 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/*
+ * In-process stand-in for SQS, covering the calls SqsQueueService makes. Counts every call by
+ * operation name so tests can check how many round-trips an operation costs.
+ *
+ * Messages sent with a MessageGroupId are held back while an earlier message of their group is
+ * in the queue, and a MessageDeduplicationId seen in the last five minutes drops the message, as
+ * on an SQS FIFO queue. DelaySeconds holds a message back for that long.
+ */
+class LocalSqs extends AbstractAmazonSQS {
+	private static final String URL_PREFIX = "https://sqs.local/000000000000/";
+	private static final String ARN_PREFIX = "arn:aws:sqs:local:000000000000:";
+	private static final long DEDUPLICATION_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private final Map<String, LocalQueue> queues = new HashMap<String, LocalQueue>();
+	private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Set<String> refusedBodies = new HashSet<String>();
+	private volatile long sendLatencyMillis;
+
+	int calls(String operation) {
+		AtomicInteger count = calls.get(operation);
+		return count == null ? 0 : count.get();
+	}
+
+	/*
+	 * SendMessageBatch fails the entries with this body from now on, as SQS does an entry it
+	 * refuses, sending the rest
+	 */
+	synchronized void refuse(String body) {
+		refusedBodies.add(body);
+	}
+
+	/*
+	 * SendMessageBatch takes this long to return from now on, as over a network. Other calls are
+	 * not held up meanwhile.
+	 */
+	void setSendLatency(long millis) {
+		sendLatencyMillis = millis;
+	}
+
+	synchronized int size(String queueName) {
+		return queues.get(queueName).messages.size();
+	}
+
+	synchronized String attribute(String queueName, String attributeName) {
+		return queues.get(queueName).attributes.get(attributeName);
+	}
+
+	@Override
+	public synchronized CreateQueueResult createQueue(CreateQueueRequest request) {
+		count("CreateQueue");
+		if(!queues.containsKey(request.getQueueName())) {
+			queues.put(request.getQueueName(), new LocalQueue());
+		}
+		return new CreateQueueResult().withQueueUrl(URL_PREFIX + request.getQueueName());
+	}
+
+	@Override
+	public synchronized void deleteQueue(DeleteQueueRequest request) {
+		count("DeleteQueue");
+		queues.remove(queueName(request.getQueueUrl()));
+	}
+
+	@Override
+	public synchronized GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+		count("GetQueueUrl");
+		if(!queues.containsKey(request.getQueueName())) {
+			throw new QueueDoesNotExistException("The specified queue does not exist");
+		}
+		return new GetQueueUrlResult().withQueueUrl(URL_PREFIX + request.getQueueName());
+	}
+
+	@Override
+	public synchronized GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+		count("GetQueueAttributes");
+		String queueName = queueName(request.getQueueUrl());
+		Map<String, String> attributes = new HashMap<String, String>(queue(request.getQueueUrl()).attributes);
+		attributes.put("QueueArn", ARN_PREFIX + queueName);
+		int visible = 0;
+		long now = System.currentTimeMillis();
+		for(LocalMessage message : queue(request.getQueueUrl()).messages.values()) {
+			if(now > message.visibleAt) {
+				visible++;
+			}
+		}
+		attributes.put("ApproximateNumberOfMessages", Integer.toString(visible));
+		attributes.put("ApproximateNumberOfMessagesNotVisible",
+				Integer.toString(queue(request.getQueueUrl()).messages.size() - visible));
+		attributes.keySet().retainAll(request.getAttributeNames());
+		return new GetQueueAttributesResult().withAttributes(attributes);
+	}
+
+	@Override
+	public synchronized void setQueueAttributes(SetQueueAttributesRequest request) {
+		count("SetQueueAttributes");
+		queue(request.getQueueUrl()).attributes.putAll(request.getAttributes());
+	}
+
+	@Override
+	public synchronized SendMessageResult sendMessage(SendMessageRequest request) {
+		count("SendMessage");
+		notifyAll();
+		Map<String, List<String>> parameters = request.getCustomQueryParameters();
+		return new SendMessageResult().withMessageId(queue(request.getQueueUrl()).add(request.getMessageBody(),
+				request.getMessageAttributes(), request.getDelaySeconds(), parameter(parameters, SqsQueueService.MESSAGE_GROUP_ID),
+				parameter(parameters, SqsQueueService.MESSAGE_DEDUPLICATION_ID)));
+	}
+
+	@Override
+	public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+		count("SendMessageBatch");
+		if(sendLatencyMillis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(sendLatencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted", e);
+			}
+		}
+		return addBatch(request);
+	}
+
+	private synchronized SendMessageBatchResult addBatch(SendMessageBatchRequest request) {
+		LocalQueue queue = queue(request.getQueueUrl());
+		Map<String, List<String>> parameters = request.getCustomQueryParameters();
+		SendMessageBatchResult result = new SendMessageBatchResult();
+		for(int i = 0; i < request.getEntries().size(); i++) {
+			SendMessageBatchRequestEntry entry = request.getEntries().get(i);
+			if(refusedBodies.contains(entry.getMessageBody())) {
+				result.getFailed().add(new BatchResultErrorEntry().withId(entry.getId())
+						.withCode("InvalidMessageContents").withMessage("Refused").withSenderFault(true));
+				continue;
+			}
+			String prefix = SqsQueueService.BATCH_ENTRY_PREFIX + (i + 1) + ".";
+			String messageId = queue.add(entry.getMessageBody(), entry.getMessageAttributes(), entry.getDelaySeconds(),
+					parameter(parameters, prefix + SqsQueueService.MESSAGE_GROUP_ID),
+					parameter(parameters, prefix + SqsQueueService.MESSAGE_DEDUPLICATION_ID));
+			result.getSuccessful().add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(messageId));
+		}
+		notifyAll();
+		return result;
+	}
+
+	@Override
+	public synchronized ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		count("ReceiveMessage");
+		LocalQueue queue = queue(request.getQueueUrl());
+		int maxMessages = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+		int visibilityTimeout = request.getVisibilityTimeout() == null ? 30 : request.getVisibilityTimeout();
+		long waitUntil = System.currentTimeMillis()
+				+ (request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds() * 1000L);
+		List<Message> received = new ArrayList<Message>();
+		while(true) {
+			long now = System.currentTimeMillis();
+			Set<String> heldGroups = new HashSet<String>();
+			for(LocalMessage message : queue.messages.values()) {
+				if(received.size() == maxMessages) {
+					break;
+				}
+				// Only the oldest message of a group may be delivered
+				if(message.groupId != null && !heldGroups.add(message.groupId)) {
+					continue;
+				}
+				if(now > message.visibleAt) {
+					message.visibleAt = now + visibilityTimeout * 1000L;
+					message.receiptHandle = UUID.randomUUID().toString();
+					message.receiveCount++;
+					Message delivery = new Message().withMessageId(message.messageId).withBody(message.body)
+							.withReceiptHandle(message.receiptHandle)
+							.addAttributesEntry("ApproximateReceiveCount", Integer.toString(message.receiveCount))
+							.addAttributesEntry("SentTimestamp", Long.toString(message.sentAt));
+					if(message.groupId != null) {
+						delivery.addAttributesEntry(SqsQueueService.MESSAGE_GROUP_ID, message.groupId);
+					}
+					for(Map.Entry<String, MessageAttributeValue> attribute : message.attributes.entrySet()) {
+						if(request.getMessageAttributeNames().contains(attribute.getKey())
+								|| request.getMessageAttributeNames().contains("All")) {
+							delivery.addMessageAttributesEntry(attribute.getKey(), attribute.getValue());
+						}
+					}
+					received.add(delivery);
+				}
+			}
+			if(!received.isEmpty() || now >= waitUntil) {
+				return new ReceiveMessageResult().withMessages(received);
+			}
+			try {
+				wait(waitUntil - now);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ReceiveMessageResult().withMessages(received);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+		count("ChangeMessageVisibility");
+		if(!queue(request.getQueueUrl()).changeVisibility(request.getReceiptHandle(), request.getVisibilityTimeout())) {
+			throw new ReceiptHandleIsInvalidException("The receipt handle is not valid");
+		}
+		notifyAll();
+	}
+
+	@Override
+	public synchronized ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request) {
+		count("ChangeMessageVisibilityBatch");
+		LocalQueue queue = queue(request.getQueueUrl());
+		ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+		for(ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+			if(queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout())) {
+				result.getSuccessful().add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+			} else {
+				result.getFailed().add(new BatchResultErrorEntry().withId(entry.getId())
+						.withCode("ReceiptHandleIsInvalid").withSenderFault(true));
+			}
+		}
+		notifyAll();
+		return result;
+	}
+
+	@Override
+	public synchronized void deleteMessage(DeleteMessageRequest request) {
+		count("DeleteMessage");
+		if(!queue(request.getQueueUrl()).remove(request.getReceiptHandle())) {
+			throw new ReceiptHandleIsInvalidException("The receipt handle is not valid");
+		}
+	}
+
+	@Override
+	public synchronized DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+		count("DeleteMessageBatch");
+		LocalQueue queue = queue(request.getQueueUrl());
+		DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+		for(DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+			if(queue.remove(entry.getReceiptHandle())) {
+				result.getSuccessful().add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+			} else {
+				result.getFailed().add(new BatchResultErrorEntry().withId(entry.getId())
+						.withCode("ReceiptHandleIsInvalid").withSenderFault(true));
+			}
+		}
+		return result;
+	}
+
+	private void count(String operation) {
+		calls.computeIfAbsent(operation, name -> new AtomicInteger()).incrementAndGet();
+	}
+
+	private LocalQueue queue(String queueUrl) {
+		LocalQueue queue = queues.get(queueName(queueUrl));
+		if(queue == null) {
+			throw new QueueDoesNotExistException("The specified queue does not exist");
+		}
+		return queue;
+	}
+
+	private static String queueName(String queueUrl) {
+		return queueUrl.substring(URL_PREFIX.length());
+	}
+
+	private static String parameter(Map<String, List<String>> parameters, String name) {
+		List<String> values = parameters == null ? null : parameters.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	private static class LocalQueue {
+		final Map<String, LocalMessage> messages = new LinkedHashMap<String, LocalMessage>();
+		final Map<String, String> attributes = new HashMap<String, String>();
+		final Map<String, LocalMessage> deduplicated = new HashMap<String, LocalMessage>();
+
+		String add(String body, Map<String, MessageAttributeValue> attributes, Integer delaySeconds, String groupId,
+				String deduplicationId) {
+			LocalMessage previous = deduplicationId == null ? null : deduplicated.get(deduplicationId);
+			if(previous != null && System.currentTimeMillis() - previous.sentAt < DEDUPLICATION_WINDOW_MILLIS) {
+				return previous.messageId;
+			}
+			LocalMessage message = new LocalMessage(UUID.randomUUID().toString(), body);
+			message.attributes.putAll(attributes);
+			message.groupId = groupId;
+			if(delaySeconds != null) {
+				message.visibleAt = message.sentAt + delaySeconds * 1000L;
+			}
+			messages.put(message.messageId, message);
+			if(deduplicationId != null) {
+				deduplicated.put(deduplicationId, message);
+			}
+			return message.messageId;
+		}
+
+		boolean changeVisibility(String receiptHandle, int visibilityTimeout) {
+			for(LocalMessage message : messages.values()) {
+				if(receiptHandle.equals(message.receiptHandle)) {
+					message.visibleAt = System.currentTimeMillis() + visibilityTimeout * 1000L;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean remove(String receiptHandle) {
+			for(Iterator<LocalMessage> it = messages.values().iterator(); it.hasNext();) {
+				if(receiptHandle.equals(it.next().receiptHandle)) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class LocalMessage {
+		final String messageId;
+		final String body;
+		final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		final long sentAt = System.currentTimeMillis();
+		long visibleAt;
+		int receiveCount;
+		String receiptHandle;
+		String groupId;
+
+		LocalMessage(String messageId, String body) {
+			this.messageId = messageId;
+			this.body = body;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.example;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AbstractAmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Async client over LocalSqs, covering the calls SqsAsyncQueueService makes. Like the SDK's
+ * client, it runs each call on a pool thread and reports the outcome through the callback.
+ */
+class LocalSqsAsync extends AbstractAmazonSQSAsync {
+	private final LocalSqs sqs;
+	private final ExecutorService executor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("local-sqs-async-%d").setDaemon(true).build());
+
+	LocalSqsAsync(LocalSqs sqs) {
+		this.sqs = sqs;
+	}
+
+	@Override
+	public Future<GetQueueUrlResult> getQueueUrlAsync(GetQueueUrlRequest request,
+			AsyncHandler<GetQueueUrlRequest, GetQueueUrlResult> handler) {
+		return run(request, handler, sqs::getQueueUrl);
+	}
+
+	@Override
+	public Future<SendMessageResult> sendMessageAsync(SendMessageRequest request,
+			AsyncHandler<SendMessageRequest, SendMessageResult> handler) {
+		return run(request, handler, sqs::sendMessage);
+	}
+
+	@Override
+	public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+			AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+		return run(request, handler, sqs::sendMessageBatch);
+	}
+
+	@Override
+	public Future<ReceiveMessageResult> receiveMessageAsync(ReceiveMessageRequest request,
+			AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler) {
+		return run(request, handler, sqs::receiveMessage);
+	}
+
+	@Override
+	public Future<Void> deleteMessageAsync(DeleteMessageRequest request, AsyncHandler<DeleteMessageRequest, Void> handler) {
+		return run(request, handler, deleteRequest -> {
+			sqs.deleteMessage(deleteRequest);
+			return null;
+		});
+	}
+
+	@Override
+	public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(DeleteMessageBatchRequest request,
+			AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> handler) {
+		return run(request, handler, sqs::deleteMessageBatch);
+	}
+
+	@Override
+	public Future<Void> changeMessageVisibilityAsync(ChangeMessageVisibilityRequest request,
+			AsyncHandler<ChangeMessageVisibilityRequest, Void> handler) {
+		return run(request, handler, changeRequest -> {
+			sqs.changeMessageVisibility(changeRequest);
+			return null;
+		});
+	}
+
+	private <Q extends AmazonWebServiceRequest, R> Future<R> run(Q request, AsyncHandler<Q, R> handler, Function<Q, R> call) {
+		return executor.submit(() -> {
+			R result;
+			try {
+				result = call.apply(request);
+			} catch (RuntimeException e) {
+				handler.onError(e);
+				throw e;
+			}
+			handler.onSuccess(request, result);
+			return result;
+		});
+	}
+}
@@ -0,0 +1,308 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class SharedMemoryQueueTest {
+	private SharedMemoryQueueService queueService;
+	private File rootDir;
+
+	@Before
+	public void setup() throws IOException {
+		rootDir = Files.createTempDirectory("shared-memory-queue").toFile();
+		queueService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30,
+				new SharedMemoryConfig().withSlots(1024).withMaxMessageSize(256));
+	}
+
+	@After
+	public void deleteQueues() throws IOException {
+		FileUtils.deleteDirectory(rootDir);
+	}
+
+	@Test
+	public void testPushPullDelete() throws IOException {
+		String queue1 = "Test Queue 1";
+
+		queueService.pushBatch(queue1, Arrays.asList("msg1", "msg2"));
+		queueService.push(queue1, "msg3");
+		assertEquals(3, queueService.getQueueSize(queue1));
+
+		/*
+		 * Asserts messages come out in order and count until deleted
+		 */
+		QueueMessage msg1 = queueService.pull(queue1);
+		List<QueueMessage> batch = queueService.pullBatch(queue1, 10);
+		assertEquals("msg1", msg1.getContent());
+		assertEquals(Arrays.asList("msg2", "msg3"), Arrays.asList(batch.get(0).getContent(), batch.get(1).getContent()));
+		assertNull(queueService.pull(queue1));
+		assertEquals(3, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, msg1);
+		queueService.deleteBatch(queue1, batch);
+		assertEquals(0, queueService.getQueueSize(queue1));
+
+		try {
+			queueService.pushBytes(queue1, java.nio.ByteBuffer.allocate(1024));
+			fail("Push should fail for a message larger than a slot");
+		} catch (IllegalArgumentException e) {
+			assertEquals(0, queueService.getQueueSize(queue1));
+		}
+	}
+
+	@Test
+	public void testVisibilityTimeoutRedeliversAndInvalidatesReceipt() throws Exception {
+		String queue1 = "Test Queue 1";
+		String deadLetters = "Test Dead Letters";
+		queueService.setVisibilityTimeout(100, TimeUnit.MILLISECONDS);
+		queueService.setDeadLetterQueue(queue1, deadLetters, 2);
+		queueService.push(queue1, "msg1");
+
+		/*
+		 * Asserts an expired message comes back with its receive count, and the first receipt
+		 * can no longer delete it
+		 */
+		QueueMessage first = queueService.pull(queue1);
+		assertNull(queueService.pull(queue1));
+		TimeUnit.MILLISECONDS.sleep(150);
+		QueueMessage second = queueService.pull(queue1);
+		assertEquals("msg1", second.getContent());
+		assertEquals(2, second.getReceiveCount());
+		assertFalse(queueService.changeVisibility(queue1, first, 1, TimeUnit.SECONDS));
+
+		/*
+		 * Asserts an extended message stays invisible past its timeout, and one given back is
+		 * moved to the dead-letter queue on the next pull, then redriven
+		 */
+		assertTrue(queueService.changeVisibility(queue1, second, 1, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(150);
+		assertNull(queueService.pull(queue1));
+		assertTrue(queueService.changeVisibility(queue1, second, 0, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(5);
+		assertNull(queueService.pull(queue1));
+		assertEquals(0, queueService.getQueueSize(queue1));
+		assertEquals(1, queueService.getQueueSize(deadLetters));
+		assertEquals(1, queueService.redrive(deadLetters, queue1, 10));
+		QueueMessage redriven = queueService.pull(queue1);
+		assertEquals(1, redriven.getReceiveCount());
+		queueService.delete(queue1, redriven);
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+
+	@Test
+	public void testRingIsSharedBetweenServicesAndOutlivesThem() throws Exception {
+		String queue1 = "Test Queue 1";
+		SharedMemoryQueueService otherService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30);
+
+		/*
+		 * Asserts a service with its own mapping of the ring, as another process would have,
+		 * sees pushes and deletes at once, and that it keeps the geometry it was created with
+		 */
+		queueService.pushBatch(queue1, Arrays.asList("msg1", "msg2", "msg3"));
+		QueueMessage msg1 = otherService.pull(queue1);
+		assertEquals("msg1", msg1.getContent());
+		otherService.delete(queue1, msg1);
+		assertEquals(2, queueService.getQueueSize(queue1));
+		assertEquals("msg2", queueService.pull(queue1).getContent());
+		assertEquals(1024L * 320 + 320, new File(rootDir, queue1 + ".ring").length());
+
+		/*
+		 * Asserts a restarted service finds the messages left, including the one in flight
+		 */
+		queueService.sync();
+		SharedMemoryQueueService restarted = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30);
+		assertEquals(2, restarted.getQueueSize(queue1));
+		assertEquals("msg3", restarted.pull(queue1).getContent());
+		
+		/*
+		 * Asserts a separate JVM maps the same ring: it pushes a message and takes it past the two
+		 * left in flight here, and its delete shows up at once
+		 */
+		Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), OtherProcess.class.getName(), rootDir.getAbsolutePath(), queue1)
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+		assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+		assertEquals(0, process.exitValue());
+		assertEquals("msg4", output);
+		assertEquals(2, restarted.getQueueSize(queue1));
+		assertNull(queueService.pull(queue1));
+	}
+	
+	/*
+	 * The other process of testRingIsSharedBetweenServicesAndOutlivesThem: pushes msg4 to the
+	 * queue, then pulls and deletes one message and prints its content
+	 */
+	public static class OtherProcess {
+		public static void main(String[] args) throws IOException {
+			SharedMemoryQueueService service = new SharedMemoryQueueService(args[0], 30);
+			service.push(args[1], "msg4");
+			QueueMessage msg = service.pull(args[1]);
+			service.delete(args[1], msg);
+			System.out.print(msg.getContent());
+		}
+	}
+
+	@Test
+	public void testFullRingAppliesBackpressure() throws Exception {
+		String queue1 = "Test Queue 1";
+		queueService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30,
+				new SharedMemoryConfig().withSlots(4).withMaxPushWait(200, TimeUnit.MILLISECONDS));
+		queueService.pushBatch(queue1, Arrays.asList("msg1", "msg2", "msg3", "msg4"));
+		try {
+			queueService.push(queue1, "msg5");
+			fail("Push should fail on a full ring");
+		} catch (QueueFullException e) {
+			assertEquals(4, queueService.getQueueSize(queue1));
+		}
+		assertFalse(queueService.offer(queue1, "msg5"));
+
+		/*
+		 * Asserts a message in flight at the head of the ring is carried forward, so a push takes
+		 * the slot deleted behind it
+		 */
+		List<QueueMessage> msgs = queueService.pullBatch(queue1, 2);
+		queueService.delete(queue1, msgs.get(1));
+		queueService.push(queue1, "msg5");
+		assertEquals(4, queueService.getQueueSize(queue1));
+		queueService.delete(queue1, msgs.get(0));
+		assertEquals(3, queueService.getQueueSize(queue1));
+
+		/*
+		 * Asserts a waiting push takes the slot at the head of the ring once its message, never
+		 * pulled, is pulled and deleted
+		 */
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			executor.schedule(() -> {
+				QueueMessage msg = queueService.pull(queue1);
+				assertEquals("msg3", msg.getContent());
+				queueService.delete(queue1, msg);
+				return null;
+			}, 50, TimeUnit.MILLISECONDS).get();
+			queueService.push(queue1, "msg6");
+			assertEquals(3, queueService.getQueueSize(queue1));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testUndeletedMessagesDontHoldUpTheRing() throws Exception {
+		String queue1 = "Test Queue 1";
+		int slots = 4;
+		queueService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30,
+				new SharedMemoryConfig().withSlots(slots).withMaxPushWait(200, TimeUnit.MILLISECONDS));
+		queueService.push(queue1, "Held");
+		QueueMessage held = queueService.pull(queue1);
+		queueService.push(queue1, "Delayed", 1, TimeUnit.HOURS);
+
+		/*
+		 * Makes sure pushes go on past both messages, lap after lap, without waiting on them
+		 */
+		for (int i = 0; i < 3 * slots + 1; i++) {
+			queueService.push(queue1, "msg" + i);
+			QueueMessage msg = queueService.pull(queue1);
+			assertEquals("msg" + i, msg.getContent());
+			queueService.delete(queue1, msg);
+		}
+		assertEquals(2, queueService.getQueueSize(queue1));
+
+		/*
+		 * Makes sure the receipt taken before the message was carried forward still names it
+		 */
+		assertTrue(queueService.changeVisibility(queue1, held, 60, TimeUnit.SECONDS));
+		queueService.delete(queue1, held);
+		assertEquals(1, queueService.getQueueSize(queue1));
+		assertNull(queueService.pull(queue1));
+	}
+
+	@Test
+	public void testConcurrentProducersAndConsumersDeliverEachMessageOnce() throws Exception {
+		String queue1 = "Test Queue 1";
+		SharedMemoryQueueService otherService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30,
+				new SharedMemoryConfig().withSlots(1024).withMaxMessageSize(256));
+		int producers = 4;
+		int messagesPerProducer = 2000;
+		Set<String> received = Sets.newConcurrentHashSet();
+		ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < messagesPerProducer; i++) {
+						queueService.push(queue1, producer + ":" + i);
+					}
+					return null;
+				}));
+			}
+			for (int c = 0; c < producers; c++) {
+				SharedMemoryQueueService consumer = c % 2 == 0 ? queueService : otherService;
+				futures.add(executor.submit(() -> {
+					QueueMessage msg;
+					while ((msg = consumer.pull(queue1, 1, TimeUnit.SECONDS)) != null) {
+						assertTrue(received.add(msg.getContent()));
+						consumer.delete(queue1, msg);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(producers * messagesPerProducer, received.size());
+		assertEquals(0, queueService.getQueueSize(queue1));
+	}
+
+	@Test
+	public void testDelayedPushesBecomeVisibleInEveryProcess() throws Exception {
+		String queue1 = "Test Queue 1";
+		SharedMemoryQueueService otherService = new SharedMemoryQueueService(rootDir.getAbsolutePath(), 30,
+				new SharedMemoryConfig().withSlots(1024).withMaxMessageSize(256));
+
+		/*
+		 * Makes sure a delayed message is passed by until due, in the pushing process and others
+		 */
+		queueService.push(queue1, "Later", 300, TimeUnit.MILLISECONDS);
+		queueService.pushAt(queue1, "Past", Instant.now().minusSeconds(1));
+		assertEquals(2, queueService.getQueueSize(queue1));
+		assertEquals("Past", otherService.pull(queue1).getContent());
+		assertNull(otherService.pull(queue1));
+		assertNull(queueService.pull(queue1));
+		TimeUnit.MILLISECONDS.sleep(300 + SharedRing.EXPIRY_RECHECK_MILLIS + 50);
+		QueueMessage msg = otherService.pull(queue1);
+		assertEquals("Later", msg.getContent());
+		assertEquals(1, msg.getReceiveCount());
+		otherService.delete(queue1, msg);
+		assertEquals(1, queueService.getQueueSize(queue1));
+	}
+}
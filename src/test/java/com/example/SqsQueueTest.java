@@ -0,0 +1,478 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class SqsQueueTest {
+	private LocalSqs sqs;
+	private SqsQueueService queueService;
+
+	@Before
+	public void setup() {
+		sqs = new LocalSqs();
+		sqs.createQueue("Test Queue 1");
+		sqs.createQueue("Test Queue 2");
+		queueService = new SqsQueueService(sqs);
+	}
+
+	@Test
+	public void testQueueUrlIsLookedUpOncePerQueue() {
+		String queue1 = "Test Queue 1";
+		String queue2 = "Test Queue 2";
+
+		queueService.push(queue1, "Test Message 1");
+		queueService.push(queue2, "Test Message 2");
+		Message msg = queueService.pull(queue1);
+		queueService.delete(queue1, msg);
+		queueService.push(queue1, "Test Message 3");
+
+		/*
+		 * Steady-state operations cost a single call each
+		 */
+		assertEquals("Test Message 1", msg.getBody());
+		assertEquals(2, sqs.calls("GetQueueUrl"));
+		assertEquals(3, sqs.calls("SendMessage"));
+		assertEquals(1, sqs.size(queue1));
+	}
+
+	@Test
+	public void testQueueUrlIsEvictedWhenQueueNoLongerExists() {
+		String queue1 = "Test Queue 1";
+
+		queueService.push(queue1, "Test Message 1");
+		sqs.deleteQueue(sqs.getQueueUrl(queue1).getQueueUrl());
+		try {
+			queueService.push(queue1, "Test Message 2");
+			fail("Expected push to a deleted queue to fail");
+		} catch (QueueDoesNotExistException e) {
+			// expected
+		}
+
+		/*
+		 * Makes sure the recreated queue is looked up again
+		 */
+		sqs.createQueue(queue1);
+		int lookups = sqs.calls("GetQueueUrl");
+		queueService.push(queue1, "Test Message 3");
+		assertEquals(lookups + 1, sqs.calls("GetQueueUrl"));
+		assertEquals(1, sqs.size(queue1));
+	}
+
+	@Test
+	public void testBatchOperationsUseBatchRequests() {
+		String queue1 = "Test Queue 1";
+		List<String> contents = Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12");
+
+		queueService.pushBatch(queue1, contents);
+		List<Message> msgs = queueService.pullBatch(queue1, 12);
+		queueService.deleteBatch(queue1, msgs);
+
+		/*
+		 * Twelve messages take two requests of each kind
+		 */
+		assertEquals(12, msgs.size());
+		assertEquals(2, sqs.calls("SendMessageBatch"));
+		assertEquals(2, sqs.calls("ReceiveMessage"));
+		assertEquals(2, sqs.calls("DeleteMessageBatch"));
+		assertEquals(0, sqs.size(queue1));
+	}
+
+	@Test
+	public void testPartlyRefusedBatchesThrowWithTheRefusedMessages() throws Exception {
+		String queue1 = "Test Queue 1";
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 12; i++) {
+			contents.add("Batch Message " + i);
+		}
+		sqs.refuse("Batch Message 3");
+		sqs.refuse("Batch Message 11");
+
+		/*
+		 * Every request is sent, and the refused messages come back by their index in the batch
+		 */
+		try {
+			queueService.pushBatch(queue1, contents);
+			fail("Expected a partly refused batch to throw");
+		} catch (PartialBatchException e) {
+			assertEquals(Arrays.asList(3, 11), e.getFailedIndexes());
+			assertEquals("InvalidMessageContents", e.getErrorCode());
+		}
+		assertEquals(2, sqs.calls("SendMessageBatch"));
+		assertEquals(10, sqs.size(queue1));
+
+		/*
+		 * The async service completes exceptionally with the same failures
+		 */
+		SqsAsyncQueueService async = new SqsAsyncQueueService(new LocalSqsAsync(sqs));
+		try {
+			async.pushBatch(queue1, contents).get();
+			fail("Expected a partly refused batch to complete exceptionally");
+		} catch (ExecutionException e) {
+			assertEquals(Arrays.asList(3, 11), ((PartialBatchException) e.getCause()).getFailedIndexes());
+		}
+		assertEquals(20, sqs.size(queue1));
+	}
+
+	@Test
+	public void testPullReturnsNullWhenQueueIsEmpty() {
+		assertNull(queueService.pull("Test Queue 1"));
+	}
+
+	@Test
+	public void testLongPollReturnsMessagePushedWhileWaiting() throws Exception {
+		String queue1 = "Test Queue 1";
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		Future<Message> msg = executor.submit(() -> queueService.pull(queue1, 5, TimeUnit.SECONDS));
+		queueService.push(queue1, "Test Message 1");
+
+		assertEquals("Test Message 1", msg.get(1, TimeUnit.SECONDS).getBody());
+		executor.shutdown();
+	}
+
+	@Test
+	public void testBufferedModeCoalescesSendsAndDeletes() throws Exception {
+		String queue1 = "Test Queue 1";
+		SqsQueueService buffered = new SqsQueueService(sqs,
+				new SqsBufferConfig().withFlushInterval(50, TimeUnit.MILLISECONDS).withLongPollWait(1));
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		sqs.setSendLatency(50);
+
+		List<Future<?>> pushes = new ArrayList<Future<?>>();
+		for(int i = 0; i < 20; i++) {
+			String content = "Test Message " + i;
+			pushes.add(executor.submit(() -> buffered.push(queue1, content)));
+		}
+		for(Future<?> push : pushes) {
+			push.get();
+		}
+		for(int i = 0; i < 20; i++) {
+			Message msg = buffered.pull(queue1, 1, TimeUnit.SECONDS);
+			assertNotNull(msg);
+			buffered.delete(queue1, msg);
+		}
+		buffered.shutdown();
+
+		/*
+		 * Messages travel ten to a request in both directions
+		 */
+		assertEquals(0, sqs.calls("SendMessage"));
+		assertTrue(sqs.calls("SendMessageBatch") < 20);
+		assertTrue(sqs.calls("ReceiveMessage") < 20);
+		assertEquals(0, sqs.calls("DeleteMessage"));
+		assertTrue(sqs.calls("DeleteMessageBatch") < 20);
+		assertEquals(0, sqs.size(queue1));
+		executor.shutdown();
+	}
+
+	@Test
+	public void testBufferedSendsDontWaitForTheFlushInterval() throws Exception {
+		String queue1 = "Test Queue 1";
+		SqsQueueService buffered = new SqsQueueService(sqs,
+				new SqsBufferConfig().withFlushInterval(5, TimeUnit.SECONDS).withLongPollWait(1));
+
+		/*
+		 * With no other send in flight a push goes out at once, one request per push
+		 */
+		long start = System.nanoTime();
+		buffered.push(queue1, "Test Message 1");
+		buffered.push(queue1, "Test Message 2");
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertEquals(2, sqs.calls("SendMessageBatch"));
+		assertEquals(2, sqs.size(queue1));
+		buffered.shutdown();
+	}
+
+	@Test
+	public void testPrefetchedMessagesNearVisibilityTimeoutAreDropped() throws Exception {
+		String queue1 = "Test Queue 1";
+		SqsQueueService buffered = new SqsQueueService(sqs, new SqsBufferConfig().withVisibilityTimeout(1)
+				.withMinVisibilityRemaining(500, TimeUnit.MILLISECONDS).withLongPollWait(0));
+
+		buffered.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2"));
+		assertEquals("Test Message 1", buffered.pull(queue1).getBody());
+
+		/*
+		 * Test Message 2 was prefetched with the first but is now too close to expiring
+		 */
+		Thread.sleep(700);
+		assertNull(buffered.pull(queue1));
+
+		/*
+		 * Once its visibility timeout has passed SQS delivers it again
+		 */
+		Thread.sleep(500);
+		assertNotNull(buffered.pull(queue1));
+		buffered.shutdown();
+	}
+
+	@Test
+	public void testMetricsAreRecorded() {
+		String queue1 = "Test Queue 1";
+		RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+		queueService.setMetrics(metrics);
+
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2", "Test Message 3"));
+		List<Message> msgs = queueService.pullBatch(queue1, 2);
+		queueService.deleteBatch(queue1, msgs);
+		Message last = queueService.pull(queue1);
+		queueService.delete(queue1, last);
+		queueService.deleteBatch(queue1, Arrays.asList(last));
+
+		/*
+		 * Message ages come from the SentTimestamp attribute requested with each receive, and
+		 * are reported only for messages actually deleted
+		 */
+		QueueMetricsSnapshot snapshot = metrics.snapshot(queue1);
+		assertEquals(3, snapshot.getPushed());
+		assertEquals(3, snapshot.getPulled());
+		assertEquals(3, snapshot.getDeleted());
+		assertEquals(0, snapshot.getRedelivered());
+		assertEquals(3, snapshot.getMessageAge().getCount());
+		assertEquals(2, snapshot.getPullLatency().getCount());
+	}
+
+	@Test
+	public void testDeadLetterQueueMapsToRedrivePolicyAndRedriveMovesMessagesBack() {
+		String queue1 = "Test Queue 1";
+		String dlq = "Test Queue 2";
+
+		queueService.setDeadLetterQueue(queue1, dlq, 3);
+		assertEquals("{\"maxReceiveCount\":\"3\",\"deadLetterTargetArn\":\"arn:aws:sqs:local:000000000000:Test Queue 2\"}",
+				sqs.attribute(queue1, "RedrivePolicy"));
+
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 15; i++) {
+			contents.add("Test Message " + i);
+		}
+		queueService.pushBatch(dlq, contents);
+
+		/*
+		 * Redrive moves up to the requested number, in batches of ten
+		 */
+		assertEquals(12, queueService.redrive(dlq, queue1, 12));
+		assertEquals(12, sqs.size(queue1));
+		assertEquals(3, sqs.size(dlq));
+		assertEquals(2, sqs.calls("DeleteMessageBatch"));
+
+		queueService.setDeadLetterQueue(queue1, null, 0);
+		assertEquals("", sqs.attribute(queue1, "RedrivePolicy"));
+	}
+
+	@Test
+	public void testChangeVisibilityUsesBatchRequests() throws Exception {
+		String queue1 = "Test Queue 1";
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 12; i++) {
+			contents.add("Test Message " + i);
+		}
+		queueService.pushBatch(queue1, contents);
+		List<Message> msgs = queueService.pullBatch(queue1, 12);
+
+		assertEquals(12, queueService.changeVisibilityBatch(queue1, msgs, 0, TimeUnit.SECONDS));
+		assertEquals(2, sqs.calls("ChangeMessageVisibilityBatch"));
+
+		/*
+		 * Messages given back with a zero timeout can be received again
+		 */
+		TimeUnit.MILLISECONDS.sleep(5);
+		Message msg = queueService.pull(queue1);
+		assertEquals("Test Message 0", msg.getBody());
+		assertTrue(queueService.changeVisibility(queue1, msg, 1, TimeUnit.MINUTES));
+		queueService.deleteBatch(queue1, msgs);
+		assertFalse(queueService.changeVisibility(queue1, msgs.get(1), 1, TimeUnit.MINUTES));
+	}
+
+	@Test
+	public void testQueueLimitsUseApproximateQueueSize() {
+		String queue1 = "Test Queue 1";
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(2));
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 1", "Test Message 2"));
+
+		/*
+		 * A full queue refuses pushes and offers, counting in-flight messages
+		 */
+		Message msg1 = queueService.pull(queue1);
+		try {
+			queueService.push(queue1, "Test Message 3");
+			fail("Push should fail on a full queue");
+		} catch (QueueFullException e) {
+			assertEquals(2, sqs.size(queue1));
+		}
+		assertFalse(queueService.offer(queue1, "Test Message 3"));
+		queueService.delete(queue1, msg1);
+		assertTrue(queueService.offer(queue1, "Test Message 3"));
+
+		/*
+		 * Dropping receives and deletes as many visible messages as the batch needs
+		 */
+		queueService.setQueueLimits(queue1, new QueueLimits().withMaxMessages(2)
+				.withOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+		queueService.pushBatch(queue1, Arrays.asList("Test Message 4", "Test Message 5"));
+		assertEquals(2, sqs.size(queue1));
+		assertEquals("Test Message 4", queueService.pull(queue1).getBody());
+	}
+
+	@Test
+	public void testBinaryPayloadsTravelAsMessageAttributes() {
+		String queue1 = "Test Queue 1";
+		String dlq = "Test Queue 2";
+		byte[] bytes = {0, (byte) 0xff, (byte) 0xc3, 0x28, 42};
+
+		ByteBuffer payload = ByteBuffer.wrap(bytes);
+		queueService.pushBytes(queue1, payload);
+		queueService.pushBytesBatch(dlq, Arrays.asList(payload, payload));
+		queueService.push(queue1, "Test Message 2");
+		assertEquals(bytes.length, payload.remaining());
+
+		/*
+		 * Binary payloads come back from the attribute, text ones from the body
+		 */
+		List<Message> msgs = queueService.pullBatch(queue1, 10);
+		assertEquals(ByteBuffer.wrap(bytes), queueService.getPayload(msgs.get(0)));
+		assertEquals(ByteBuffer.wrap("Test Message 2".getBytes()), queueService.getPayload(msgs.get(1)));
+
+		/*
+		 * Redrive carries the attribute over
+		 */
+		assertEquals(2, queueService.redrive(dlq, queue1, 10));
+		Message redriven = queueService.pullBatch(queue1, 10).get(0);
+		assertEquals(ByteBuffer.wrap(bytes), queueService.getPayload(redriven));
+	}
+
+	@Test
+	public void testAsyncServiceCompletesFromClientCallbacks() throws Exception {
+		String queue1 = "Test Queue 1";
+		SqsAsyncQueueService async = new SqsAsyncQueueService(new LocalSqsAsync(sqs));
+
+		/*
+		 * A waiting pull is a long-poll completed by the client's callback when a message arrives
+		 */
+		CompletableFuture<Message> waiting = async.pull(queue1, 5, TimeUnit.SECONDS);
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertFalse(waiting.isDone());
+		queueService.push(queue1, "Test Message 1");
+		Message msg = waiting.get(5, TimeUnit.SECONDS);
+		assertEquals("Test Message 1", msg.getBody());
+
+		/*
+		 * Batches go ten messages per request, and binary payloads as in SqsQueueService
+		 */
+		List<String> contents = new ArrayList<String>();
+		for(int i = 0; i < 12; i++) {
+			contents.add("Batch Message " + i);
+		}
+		async.pushBatch(queue1, contents).get();
+		assertEquals(2, sqs.calls("SendMessageBatch"));
+		List<Message> msgs = async.pullBatch(queue1, 20).get();
+		assertEquals(12, msgs.size());
+		async.deleteBatch(queue1, msgs).get();
+		async.delete(queue1, msg).get();
+		assertEquals(0, sqs.size(queue1));
+		assertFalse(async.changeVisibility(queue1, msg, 0, TimeUnit.SECONDS).get());
+		async.pushBytes(queue1, ByteBuffer.wrap(new byte[] { 0, 1, 2 })).get();
+		assertEquals(ByteBuffer.wrap(new byte[] { 0, 1, 2 }), queueService.getPayload(queueService.pull(queue1)));
+		assertEquals(2, sqs.calls("GetQueueUrl"));
+	}
+
+	@Test
+	public void testFifoIdsTravelWithSendsAndGroupsComeBackWithMessages() {
+		String queue1 = "Test Queue 1";
+
+		queueService.pushToGroup(queue1, "a0", "A", "id-a0");
+		queueService.pushToGroup(queue1, "a1", "A", "id-a1");
+		queueService.pushBytesToGroup(queue1, ByteBuffer.wrap(new byte[] { 1 }), "B", null);
+		queueService.pushToGroup(queue1, "a0", "A", "id-a0");
+
+		/*
+		 * The duplicate is dropped by the queue, and each group has one message in flight at a time
+		 */
+		assertEquals(3, sqs.size(queue1));
+		List<Message> msgs = queueService.pullBatch(queue1, 10);
+		assertEquals(2, msgs.size());
+		assertEquals("a0", msgs.get(0).getBody());
+		assertEquals("A", SqsQueueService.getMessageGroupId(msgs.get(0)));
+		assertEquals("B", SqsQueueService.getMessageGroupId(msgs.get(1)));
+		assertNull(queueService.pull(queue1));
+		queueService.delete(queue1, msgs.get(0));
+		assertEquals("a1", queueService.pull(queue1).getBody());
+		assertNull(SqsQueueService.getMessageGroupId(new Message()));
+	}
+
+	@Test
+	public void testRedriveKeepsGroupsAndMessageAttributes() {
+		String queue1 = "Test Queue 1";
+		String dlq = "Test Queue 2";
+
+		queueService.pushToGroup(dlq, "a0", "A", "id-a0");
+		queueService.pushToGroup(dlq, "a1", "A", "id-a1");
+		sqs.sendMessage(new SendMessageRequest(sqs.getQueueUrl(dlq).getQueueUrl(), "Tagged Message")
+				.addMessageAttributesEntry("Origin", new MessageAttributeValue().withDataType("String").withStringValue("orders")));
+
+		/*
+		 * The group and every attribute are sent on, so the group stays in order on queue1
+		 */
+		assertEquals(3, queueService.redrive(dlq, queue1, 10));
+		assertEquals(0, sqs.size(dlq));
+		List<Message> msgs = sqs.receiveMessage(new ReceiveMessageRequest(sqs.getQueueUrl(queue1).getQueueUrl())
+				.withMaxNumberOfMessages(10).withMessageAttributeNames("All")).getMessages();
+		assertEquals(2, msgs.size());
+		assertEquals("a0", msgs.get(0).getBody());
+		assertEquals("A", SqsQueueService.getMessageGroupId(msgs.get(0)));
+		assertEquals("Tagged Message", msgs.get(1).getBody());
+		assertNull(SqsQueueService.getMessageGroupId(msgs.get(1)));
+		assertEquals("orders", msgs.get(1).getMessageAttributes().get("Origin").getStringValue());
+	}
+
+	@Test
+	public void testDelaysMapToDelaySeconds() throws Exception {
+		String queue1 = "Test Queue 1";
+
+		/*
+		 * Delays are rounded up to whole seconds, and SQS holds the message back that long
+		 */
+		queueService.push(queue1, "Later", 500, TimeUnit.MILLISECONDS);
+		queueService.pushAt(queue1, "Past", Instant.now().minusSeconds(1));
+		assertEquals("Past", queueService.pull(queue1).getBody());
+		assertNull(queueService.pull(queue1));
+		TimeUnit.MILLISECONDS.sleep(1100);
+		assertEquals("Later", queueService.pull(queue1).getBody());
+
+		/*
+		 * Delays longer than SQS allows are refused before anything is sent
+		 */
+		int sends = sqs.calls("SendMessage");
+		try {
+			queueService.push(queue1, "Too Late", 16, TimeUnit.MINUTES);
+			fail("Expected a delay over 15 minutes to be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(sends, sqs.calls("SendMessage"));
+	}
+}